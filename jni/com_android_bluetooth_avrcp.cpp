@@ -69,6 +69,10 @@ static bool copy_item_attributes(JNIEnv* env, jobject object,
 
 static bool copy_jstring(uint8_t* str, int maxBytes, jstring jstr, JNIEnv* env);
 
+static bool copy_encoded_attrs(JNIEnv* env, btrc_element_attr_val_t* pAttrs,
+                               int numAttr, jintArray attrIds,
+                               jbyteArray values, jintArray valueOffsets);
+
 static void cleanup_items(btrc_folder_items_t* p_items, int numItems);
 
 static void btavrcp_remote_features_callback(RawAddress* bd_addr,
@@ -1338,6 +1342,84 @@ static jboolean getItemAttrRspNative(JNIEnv* env, jobject object,
   return (status == BT_STATUS_SUCCESS) ? JNI_TRUE : JNI_FALSE;
 }
 
+static jboolean getElementAttrRspEncodedNative(JNIEnv* env, jobject object,
+                                               jbyteArray address, jbyte numAttr,
+                                               jintArray attrIds,
+                                               jbyteArray values,
+                                               jintArray valueOffsets) {
+  if (!sBluetoothAvrcpInterface) {
+    ALOGE("%s: sBluetoothAvrcpInterface is null", __func__);
+    return JNI_FALSE;
+  }
+
+  if (numAttr < 0 || numAttr > BTRC_MAX_ELEM_ATTR_SIZE) {
+    ALOGE("%s: number of attributes exceed maximum", __func__);
+    return JNI_FALSE;
+  }
+
+  btrc_element_attr_val_t pAttrs[BTRC_MAX_ELEM_ATTR_SIZE];
+  if (!copy_encoded_attrs(env, pAttrs, numAttr, attrIds, values,
+                          valueOffsets)) {
+    ALOGE("%s: Failed to copy attributes", __func__);
+    return JNI_FALSE;
+  }
+
+  jbyte* addr = env->GetByteArrayElements(address, NULL);
+  if (!addr) {
+    jniThrowIOException(env, EINVAL);
+    return JNI_FALSE;
+  }
+
+  RawAddress* btAddr = (RawAddress*)addr;
+  bt_status_t status =
+      sBluetoothAvrcpInterface->get_element_attr_rsp(btAddr, numAttr, pAttrs);
+  if (status != BT_STATUS_SUCCESS) {
+    ALOGE("Failed get_element_attr_rsp, status: %d", status);
+  }
+
+  env->ReleaseByteArrayElements(address, addr, 0);
+  return (status == BT_STATUS_SUCCESS) ? JNI_TRUE : JNI_FALSE;
+}
+
+static jboolean getItemAttrRspEncodedNative(JNIEnv* env, jobject object,
+                                            jbyteArray address, jint rspStatus,
+                                            jbyte numAttr, jintArray attrIds,
+                                            jbyteArray values,
+                                            jintArray valueOffsets) {
+  if (!sBluetoothAvrcpInterface) {
+    ALOGE("%s: sBluetoothAvrcpInterface is null", __func__);
+    return JNI_FALSE;
+  }
+
+  if (numAttr < 0 || numAttr > BTRC_MAX_ELEM_ATTR_SIZE) {
+    ALOGE("%s: number of attributes exceed maximum", __func__);
+    return JNI_FALSE;
+  }
+
+  btrc_element_attr_val_t pAttrs[BTRC_MAX_ELEM_ATTR_SIZE];
+  if (!copy_encoded_attrs(env, pAttrs, numAttr, attrIds, values,
+                          valueOffsets)) {
+    ALOGE("%s: Failed to copy attributes", __func__);
+    rspStatus = BTRC_STS_INTERNAL_ERR;
+    numAttr = 0;
+  }
+
+  jbyte* addr = env->GetByteArrayElements(address, NULL);
+  if (!addr) {
+    jniThrowIOException(env, EINVAL);
+    return JNI_FALSE;
+  }
+
+  RawAddress* btAddr = (RawAddress*)addr;
+  bt_status_t status = sBluetoothAvrcpInterface->get_item_attr_rsp(
+      btAddr, (btrc_status_t)rspStatus, numAttr, pAttrs);
+  if (status != BT_STATUS_SUCCESS)
+    ALOGE("Failed get_item_attr_rsp, status: %d", status);
+
+  env->ReleaseByteArrayElements(address, addr, 0);
+  return (status == BT_STATUS_SUCCESS) ? JNI_TRUE : JNI_FALSE;
+}
+
 static jboolean registerNotificationPlayerAppRspNative(JNIEnv *env, jobject object ,jint type,
                                                 jbyte numattr ,jbyteArray value ,
                                                 jbyteArray address) {
@@ -2122,6 +2204,8 @@ static JNINativeMethod sMethods[] = {
     {"updatePlayStatusToStack", "(I)Z", (void*)updatePlayStatusToStack},
     {"getElementAttrRspNative", "([BB[I[Ljava/lang/String;)Z",
      (void*)getElementAttrRspNative},
+    {"getElementAttrRspEncodedNative", "([BB[I[B[I)Z",
+     (void*)getElementAttrRspEncodedNative},
     {"getListPlayerappAttrRspNative", "(B[B[B)Z", (void *) getListPlayerappAttrRspNative},
     {"getPlayerAppValueRspNative", "(B[B[B)Z", (void *) getPlayerAppValueRspNative},
     {"SendCurrentPlayerValueRspNative", "(B[B[B)Z",
@@ -2160,6 +2244,9 @@ static JNINativeMethod sMethods[] = {
     {"getItemAttrRspNative", "([BIB[I[Ljava/lang/String;)Z",
      (void*)getItemAttrRspNative},
 
+    {"getItemAttrRspEncodedNative", "([BIB[I[B[I)Z",
+     (void*)getItemAttrRspEncodedNative},
+
     {"playItemRspNative", "([BI)Z", (void*)playItemRspNative},
 
     {"getTotalNumOfItemsRspNative", "([BIII)Z",
@@ -2248,6 +2335,52 @@ static bool copy_jstring(uint8_t* str, int maxBytes, jstring jstr,
   return true;
 }
 
+/* Helper function to copy attribute values already encoded in UTF-8 by java.
+ * The value of attribute i is values[valueOffsets[i], valueOffsets[i + 1]),
+ * it is truncated on a character boundary if it doesn't fit.
+ *
+ * returns true on succes, false otherwise
+ */
+static bool copy_encoded_attrs(JNIEnv* env, btrc_element_attr_val_t* pAttrs,
+                               int numAttr, jintArray attrIds,
+                               jbyteArray values, jintArray valueOffsets) {
+  if (numAttr == 0) return true;
+  if (attrIds == NULL || values == NULL || valueOffsets == NULL) return false;
+  if (env->GetArrayLength(attrIds) < numAttr) return false;
+
+  jsize numOffsets = env->GetArrayLength(valueOffsets);
+  jsize blobLen = env->GetArrayLength(values);
+  jint* attr = env->GetIntArrayElements(attrIds, NULL);
+  jint* offsets = env->GetIntArrayElements(valueOffsets, NULL);
+  jbyte* blob = env->GetByteArrayElements(values, NULL);
+  bool success = attr != NULL && offsets != NULL && blob != NULL;
+
+  for (int i = 0; success && i < numAttr; i++) {
+    int id = attr[i];
+    if (id <= 0 || id + 1 >= numOffsets || offsets[id] < 0 ||
+        offsets[id + 1] < offsets[id] || offsets[id + 1] > blobLen) {
+      success = false;
+      break;
+    }
+
+    int len = offsets[id + 1] - offsets[id];
+    if (len > BTRC_MAX_ATTR_STR_LEN - 1) {
+      len = BTRC_MAX_ATTR_STR_LEN - 1;
+      // Don't cut a multi-byte character in half
+      while (len > 0 && (blob[offsets[id] + len] & 0xC0) == 0x80) len--;
+    }
+
+    pAttrs[i].attr_id = id;
+    memset(pAttrs[i].text, 0, BTRC_MAX_ATTR_STR_LEN);
+    memcpy(pAttrs[i].text, blob + offsets[id], len);
+  }
+
+  if (blob) env->ReleaseByteArrayElements(values, blob, JNI_ABORT);
+  if (offsets) env->ReleaseIntArrayElements(valueOffsets, offsets, JNI_ABORT);
+  if (attr) env->ReleaseIntArrayElements(attrIds, attr, JNI_ABORT);
+  return success;
+}
+
 /* Helper function to cleanup items */
 static void cleanup_items(btrc_folder_items_t* p_items, int numItems) {
   for (int item_idx = 0; item_idx < numItems; item_idx++) {
@@ -52,15 +52,79 @@ final public class Utils {
 
     static final int BD_ADDR_LEN = 6; // bytes
     static final int BD_UUID_LEN = 16; // bytes
+    private static final int BD_ADDR_STRING_LEN = BD_ADDR_LEN * 3 - 1; // "XX:XX:XX:XX:XX:XX"
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
     public static String getAddressStringFromByte(byte[] address) {
         if (address == null || address.length != BD_ADDR_LEN) {
             return null;
         }
 
-        return String.format("%02X:%02X:%02X:%02X:%02X:%02X",
-                address[0], address[1], address[2], address[3], address[4],
-                address[5]);
+        // Called for every JNI callback, avoid String.format().
+        char[] chars = new char[BD_ADDR_STRING_LEN];
+        for (int i = 0; i < BD_ADDR_LEN; i++) {
+            int b = address[i] & 0xFF;
+            int j = i * 3;
+            chars[j] = HEX_DIGITS[b >>> 4];
+            chars[j + 1] = HEX_DIGITS[b & 0x0F];
+            if (j + 2 < BD_ADDR_STRING_LEN) {
+                chars[j + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Pack an address into the low 48 bits of a long, first byte most significant, so that it
+     * can be used as a map key without allocating.
+     *
+     * @return the packed address, or -1 if the address is not valid
+     */
+    public static long getLongFromAddress(byte[] address) {
+        if (address == null || address.length != BD_ADDR_LEN) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < BD_ADDR_LEN; i++) {
+            value = (value << 8) | (address[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Pack an address of the form "00:11:22:AA:BB:CC" into a long.
+     *
+     * @return the packed address, or -1 if the address is not valid
+     */
+    public static long getLongFromAddress(String address) {
+        if (address == null || address.length() != BD_ADDR_STRING_LEN) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < BD_ADDR_STRING_LEN; i += 3) {
+            int high = Character.digit(address.charAt(i), 16);
+            int low = Character.digit(address.charAt(i + 1), 16);
+            if (high < 0 || low < 0) {
+                return -1;
+            }
+            value = (value << 8) | (high << 4) | low;
+        }
+        return value;
+    }
+
+    public static String getAddressStringFromLong(long address) {
+        char[] chars = new char[BD_ADDR_STRING_LEN];
+        for (int i = BD_ADDR_LEN - 1; i >= 0; i--) {
+            int b = (int) (address & 0xFF);
+            int j = i * 3;
+            chars[j] = HEX_DIGITS[b >>> 4];
+            chars[j + 1] = HEX_DIGITS[b & 0x0F];
+            if (j + 2 < BD_ADDR_STRING_LEN) {
+                chars[j + 2] = ':';
+            }
+            address >>>= 8;
+        }
+        return new String(chars);
     }
 
     public static byte[] getByteAddress(BluetoothDevice device) {
@@ -76,7 +140,12 @@ final public class Utils {
 
         for (i = 0; i < address.length(); i++) {
             if (address.charAt(i) != ':') {
-                output[j] = (byte) Integer.parseInt(address.substring(i, i + 2), BD_UUID_LEN);
+                int high = Character.digit(address.charAt(i), 16);
+                int low = Character.digit(address.charAt(i + 1), 16);
+                if (high < 0 || low < 0) {
+                    throw new NumberFormatException("Invalid address " + address);
+                }
+                output[j] = (byte) ((high << 4) | low);
                 j++;
                 i++;
             }
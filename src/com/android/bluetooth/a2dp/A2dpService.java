@@ -37,6 +37,7 @@ import android.provider.Settings;
 import android.os.SystemProperties;
 import android.util.Log;
 import com.android.bluetooth.avrcp.Avrcp;
+import com.android.bluetooth.btservice.ProfilePriorityStore;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.Utils;
 import java.util.ArrayList;
@@ -341,9 +342,8 @@ public class A2dpService extends ProfileService {
         if (DBG) Log.d(TAG, "Enter setPriority");
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        Settings.Global.putInt(getContentResolver(),
-            Settings.Global.getBluetoothA2dpSinkPriorityKey(device.getAddress()),
-            priority);
+        ProfilePriorityStore.getInstance(this).setPriority(
+                Settings.Global.getBluetoothA2dpSinkPriorityKey(device.getAddress()), priority);
         if (DBG) Log.d(TAG,"Saved priority " + device + " = " + priority);
         if (DBG) Log.d(TAG, "Exit setPriority");
         return true;
@@ -353,9 +353,8 @@ public class A2dpService extends ProfileService {
         if (DBG) Log.d(TAG, "Enter getPriority");
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        int priority = Settings.Global.getInt(getContentResolver(),
-            Settings.Global.getBluetoothA2dpSinkPriorityKey(device.getAddress()),
-            BluetoothProfile.PRIORITY_UNDEFINED);
+        int priority = ProfilePriorityStore.getInstance(this).getPriority(
+                Settings.Global.getBluetoothA2dpSinkPriorityKey(device.getAddress()));
         if (DBG) Log.d(TAG, "Exit getPriority");
         return priority;
     }
@@ -60,6 +60,7 @@ import android.os.SystemProperties;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.Instrumentation;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.internal.util.IState;
 import com.android.internal.util.State;
@@ -72,6 +73,8 @@ import java.util.Set;
 final class A2dpStateMachine extends StateMachine {
     private static final boolean DBG = true;
     private static final String TAG = "A2dpStateMachine";
+    private static final Instrumentation.Probe QUEUE_DELAY_PROBE =
+            Instrumentation.probe("A2dpStateMachine.queueDelay");
 
     private static String BT_SOC;
     static final int CONNECT = 1;
@@ -2184,6 +2187,10 @@ final class A2dpStateMachine extends StateMachine {
         sendMessage(STACK_EVENT,event);
     }
     private BluetoothDevice getDevice(byte[] address) {
+        AdapterService adapterService = AdapterService.getAdapterService();
+        if (adapterService != null) {
+            return adapterService.getDeviceFromByte(address);
+        }
         return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
     }
 
@@ -2251,6 +2258,11 @@ final class A2dpStateMachine extends StateMachine {
         }
     }
 
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        QUEUE_DELAY_PROBE.recordQueueDelay(msg);
+    }
+
     public void dump(StringBuilder sb) {
         ProfileService.println(sb, "mCurrentDevice: " + mCurrentDevice);
         ProfileService.println(sb, "mTargetDevice: " + mTargetDevice);
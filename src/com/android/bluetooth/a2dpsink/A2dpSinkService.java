@@ -27,6 +27,7 @@ import android.util.Log;
 import com.android.bluetooth.avrcpcontroller.AvrcpControllerService;
 import com.android.bluetooth.a2dpsink.mbs.A2dpMediaBrowserService;
 
+import com.android.bluetooth.btservice.ProfilePriorityStore;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.Utils;
 
@@ -178,9 +179,8 @@ public class A2dpSinkService extends ProfileService {
         if (DBG) Log.d(TAG, "Enter setPriority");
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        Settings.Global.putInt(getContentResolver(),
-            Settings.Global.getBluetoothA2dpSrcPriorityKey(device.getAddress()),
-            priority);
+        ProfilePriorityStore.getInstance(this).setPriority(
+                Settings.Global.getBluetoothA2dpSrcPriorityKey(device.getAddress()), priority);
         if (DBG) {
             Log.d(TAG,"Saved priority " + device + " = " + priority);
         }
@@ -192,9 +192,8 @@ public class A2dpSinkService extends ProfileService {
         if (DBG) Log.d(TAG, "Enter getPriority");
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        int priority = Settings.Global.getInt(getContentResolver(),
-            Settings.Global.getBluetoothA2dpSrcPriorityKey(device.getAddress()),
-            BluetoothProfile.PRIORITY_UNDEFINED);
+        int priority = ProfilePriorityStore.getInstance(this).getPriority(
+                Settings.Global.getBluetoothA2dpSrcPriorityKey(device.getAddress()));
         if (DBG) Log.d(TAG, "Exit getPriority");
         return priority;
     }
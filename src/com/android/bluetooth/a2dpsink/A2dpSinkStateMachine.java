@@ -809,6 +809,10 @@ public class A2dpSinkStateMachine extends StateMachine {
     }
 
     private BluetoothDevice getDevice(byte[] address) {
+        AdapterService adapterService = AdapterService.getAdapterService();
+        if (adapterService != null) {
+            return adapterService.getDeviceFromByte(address);
+        }
         return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
     }
 
@@ -38,6 +38,7 @@ import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /*************************************************************************************************
  * Provides functionality required for Addressed Media Player, like Now Playing List related
@@ -55,25 +56,61 @@ public class AddressedMediaPlayer {
     static private final String GPM_BUNDLE_METADATA_KEY =
             "com.google.android.music.mediasession.music_metadata";
 
+    /* Now playing items whose encoded attributes are kept */
+    static private final int ITEM_ATTR_CACHE_SIZE = 64;
+
     private AvrcpMediaRspInterface mMediaInterface;
     private @NonNull List<MediaSession.QueueItem> mNowPlayingList;
 
     private final List<MediaSession.QueueItem> mEmptyNowPlayingList;
 
+    /* Now playing items by queue id */
+    private final HashMap<Long, MediaSession.QueueItem> mNowPlayingIndex;
+    /* The queue is only fetched again when the player reports a change */
+    private @Nullable MediaController mQueueController;
+    private boolean mQueueStale;
+    /* Whether the queue was built from the metadata of a player without a queue */
+    private boolean mQueueSynthesized;
+    /* Bumped every time the queue is fetched */
+    private int mQueueVersion;
+
     private long mLastTrackIdSent;
 
+    private final AvrcpAttributeCache mItemAttrCache;
+    /* Bumped when the metadata or the queue change, outdates every cached item */
+    private int mAttrVersion;
+
     public AddressedMediaPlayer(AvrcpMediaRspInterface mediaInterface) {
         mEmptyNowPlayingList = new ArrayList<MediaSession.QueueItem>();
         mNowPlayingList = mEmptyNowPlayingList;
+        mNowPlayingIndex = new HashMap<Long, MediaSession.QueueItem>();
+        mQueueStale = true;
         mMediaInterface = mediaInterface;
         mLastTrackIdSent = MediaSession.QueueItem.UNKNOWN_ID;
+        mItemAttrCache = new AvrcpAttributeCache(ITEM_ATTR_CACHE_SIZE);
     }
 
     void cleanup() {
         if (DEBUG) Log.v(TAG, "cleanup");
         mNowPlayingList = mEmptyNowPlayingList;
+        mNowPlayingIndex.clear();
+        mQueueController = null;
+        mQueueStale = true;
         mMediaInterface = null;
         mLastTrackIdSent = MediaSession.QueueItem.UNKNOWN_ID;
+        mItemAttrCache.clear();
+        mAttrVersion++;
+    }
+
+    /* The metadata of the addressed player changed */
+    void onMetadataChanged() {
+        mAttrVersion++;
+        if (mQueueSynthesized) mQueueStale = true;
+    }
+
+    /* The queue of the addressed player changed */
+    void onQueueChanged() {
+        mQueueStale = true;
     }
 
     /* get now playing list from addressed player */
@@ -109,23 +146,26 @@ public class AddressedMediaPlayer {
         }
 
         if (DEBUG) Log.d(TAG, "getItemAttr-UID: 0x" + Utils.byteArrayToString(itemAttr.mUid));
-        for (MediaSession.QueueItem item : items) {
-            if (item.getQueueId() == mediaId) {
-                getItemAttrFilterAttr(bdaddr, itemAttr, item, mediaController);
-                return;
-            }
+        MediaSession.QueueItem item = findNowPlayingItem(items, mediaId);
+        if (item != null) {
+            getItemAttrFilterAttr(bdaddr, itemAttr, item, mediaController);
+            return;
         }
 
         // Couldn't find it, so the id is invalid
         mMediaInterface.getItemAttrRsp(bdaddr, AvrcpConstants.RSP_INV_ITEM, null);
     }
 
-    /* Refresh and get the queue of now playing.
+    /* Refresh and get the queue of now playing. The queue is fetched from the player only if it
+     * changed since the last time.
      */
     @NonNull
     List<MediaSession.QueueItem> updateNowPlayingList(@Nullable MediaController mediaController) {
         if (mediaController == null) return mEmptyNowPlayingList;
+        if (!mQueueStale && mediaController.equals(mQueueController)) return mNowPlayingList;
+
         List<MediaSession.QueueItem> items = mediaController.getQueue();
+        mQueueSynthesized = (items == null);
         if (items == null) {
             Log.i(TAG, "null queue from " + mediaController.getPackageName()
                             + ", constructing single-item list");
@@ -156,12 +196,29 @@ public class AddressedMediaPlayer {
             items.add(current);
         }
 
-        if (!items.equals(mNowPlayingList)) sendNowPlayingListChanged();
+        mQueueController = mediaController;
+        mQueueStale = false;
+        mQueueVersion++;
+        // Queue ids may be reused for other items once the queue is replaced
+        mAttrVersion++;
         mNowPlayingList = items;
+        mNowPlayingIndex.clear();
+        for (MediaSession.QueueItem item : items) {
+            mNowPlayingIndex.put(item.getQueueId(), item);
+        }
+        sendNowPlayingListChanged();
 
         return mNowPlayingList;
     }
 
+    /* items is the list returned by updateNowPlayingList */
+    @Nullable
+    private MediaSession.QueueItem findNowPlayingItem(
+            List<MediaSession.QueueItem> items, long queueId) {
+        if (items != mNowPlayingList) return null;
+        return mNowPlayingIndex.get(queueId);
+    }
+
     private void sendNowPlayingListChanged() {
         if (mMediaInterface == null) return;
         if (DEBUG) Log.d(TAG, "sendNowPlayingListChanged()");
@@ -212,13 +269,11 @@ public class AddressedMediaPlayer {
             return;
         }
 
-        for (MediaSession.QueueItem item : items) {
-            if (qid == item.getQueueId()) {
-                if (DEBUG) Log.d(TAG, "Skipping to ID " + qid);
-                mediaControllerCntrl.skipToQueueItem(qid);
-                mMediaInterface.playItemRsp(bdaddr, AvrcpConstants.RSP_NO_ERROR);
-                return;
-            }
+        if (findNowPlayingItem(items, qid) != null) {
+            if (DEBUG) Log.d(TAG, "Skipping to ID " + qid);
+            mediaControllerCntrl.skipToQueueItem(qid);
+            mMediaInterface.playItemRsp(bdaddr, AvrcpConstants.RSP_NO_ERROR);
+            return;
         }
 
         Log.w(TAG, "Invalid now playing Queue ID " + qid);
@@ -484,6 +539,12 @@ public class AddressedMediaPlayer {
         }
 
         if (DEBUG) Log.d(TAG, "getItemAttrFilterAttr: attr id list size:" + attrTempId.size());
+        if (mItemAttrReqObj.mNumAttr != AvrcpConstants.NUM_ATTR_NONE
+                && !attrTempId.contains(AvrcpConstants.ATTRID_COVER_ART)) {
+            sendCachedItemAttr(bdaddr, attrTempId, mediaItem, mediaController);
+            return;
+        }
+
         /* lookup and copy values of attributes for ids requested above */
         for (int idx = 0; idx < attrTempId.size(); idx++) {
             /* check if media player provided requested attributes */
@@ -510,6 +571,36 @@ public class AddressedMediaPlayer {
         }
     }
 
+    /* answer from the encoded attributes of the item, the cover art handle is never cached */
+    private void sendCachedItemAttr(byte[] bdaddr, List<Integer> attrIds,
+            MediaSession.QueueItem mediaItem, @Nullable MediaController mediaController) {
+        int version = mAttrVersion;
+        long queueId = mediaItem.getQueueId();
+        AvrcpAttributeCache.Entry entry = mItemAttrCache.get(queueId, version);
+        if (entry == null) {
+            String[] values = new String[AvrcpConstants.ATTRID_COVER_ART];
+            for (int attr = AvrcpConstants.ATTRID_TITLE; attr < AvrcpConstants.ATTRID_COVER_ART;
+                    attr++) {
+                values[attr] = getAttrValue(attr, mediaItem, mediaController);
+            }
+            entry = mItemAttrCache.put(queueId, version, values);
+        }
+
+        /* only the attributes provided by the player are sent */
+        int numAttr = 0;
+        for (int attr : attrIds) {
+            if (entry.has(attr)) numAttr++;
+        }
+        int[] rspAttrIds = new int[numAttr];
+        int idx = 0;
+        for (int attr : attrIds) {
+            if (entry.has(attr)) rspAttrIds[idx++] = attr;
+        }
+
+        ItemAttrRsp rspObj = new ItemAttrRsp(AvrcpConstants.RSP_NO_ERROR, rspAttrIds, entry);
+        mMediaInterface.getItemAttrRsp(bdaddr, AvrcpConstants.RSP_NO_ERROR, rspObj);
+    }
+
     private long getActiveQueueItemId(@Nullable MediaController controller) {
         if (controller == null) return MediaSession.QueueItem.UNKNOWN_ID;
         PlaybackState state = controller.getPlaybackState();
@@ -546,7 +637,9 @@ public class AddressedMediaPlayer {
     public void dump(StringBuilder sb, @Nullable MediaController mediaController) {
         ProfileService.println(sb, "AddressedPlayer info:");
         ProfileService.println(sb, "mLastTrackIdSent: " + mLastTrackIdSent);
-        ProfileService.println(sb, "mNowPlayingList: " + mNowPlayingList.size() + " elements");
+        ProfileService.println(sb, "mNowPlayingList: " + mNowPlayingList.size() + " elements"
+                + ", version " + mQueueVersion + (mQueueStale ? " (stale)" : ""));
+        mItemAttrCache.dump(sb, "Item attributes cache");
         long currentQueueId = getActiveQueueItemId(mediaController);
         for (MediaSession.QueueItem item : mNowPlayingList) {
             long itemId = item.getQueueId();
@@ -71,7 +71,9 @@ import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.avrcpcontroller.AvrcpControllerService;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -110,6 +112,10 @@ public final class Avrcp {
     private MediaControllerListener mMediaControllerCb;
     private MediaAttributes mMediaAttributes;
     private long mLastQueueId;
+    // Bumped every time mMediaAttributes is replaced
+    private int mMetadataVersion;
+    private final AvrcpAttributeCache mElementAttrCache =
+            new AvrcpAttributeCache(ELEMENT_ATTR_CACHE_SIZE);
     private PackageManager mPackageManager;
     private int mTransportControlFlags;
     private int mA2dpState;
@@ -128,6 +134,10 @@ public final class Avrcp {
     private int mNowPlayingListChangedNT;
     private long mPlaybackIntervalMs;
     private long mLastReportedPosition;
+    // Player updates dropped as they didn't change anything
+    private long mRedundantStateCount;
+    // Play position notifications held back to respect the playback interval
+    private long mDeferredPlayPosCount;
     private long mNextPosMs;
     private long mPrevPosMs;
     private int mFeatures;
@@ -217,7 +227,6 @@ public final class Avrcp {
     private static final int MSG_SET_A2DP_AUDIO_STATE = 18;
     private static final int MSG_NOW_PLAYING_CHANGED_RSP = 19;
     private static final int MESSAGE_DEVICE_RC_CLEANUP = 21;
-    private static final int MSG_PLAY_INTERVAL_TIMEOUT_2 = 22;
     private final static int MESSAGE_PLAYERSETTINGS_TIMEOUT = 23;
     private final static int MESSAGE_SET_MEDIA_SESSION = 24;
     private final static int MSG_SET_AVRCP_CONNECTED_DEVICE = 25;
@@ -231,6 +240,9 @@ public final class Avrcp {
     public static final int AVRC_ID_VOL_UP = 0x41;
     public static final int AVRC_ID_VOL_DOWN = 0x42;
     private static final int SET_MEDIA_SESSION_DELAY = 300;
+    // GetElementAttributes is only about the current track, and every track change bumps
+    // mMetadataVersion, so only the attributes of the current track are worth keeping
+    private static final int ELEMENT_ATTR_CACHE_SIZE = 1;
 
     /* Communicates with MediaPlayer to fetch media content */
     private BrowsedMediaPlayer mBrowsedMediaPlayer;
@@ -314,6 +326,8 @@ public final class Avrcp {
         private long mPlaybackIntervalMs;
         private int mPlayerStatusChangeNT;
         private long mLastReportedPosition;
+        // When the last unrequested play position notification was sent, -1 if none
+        private long mLastPlayPosSentMs;
         private int mPlayPosChangedNT;
         private int mFeatures;
         private int mLastDirection;
@@ -357,6 +371,7 @@ public final class Avrcp {
             mPrevPosMs = -1;
             mPlaybackIntervalMs = 0L;
             mLastReportedPosition = -1;
+            mLastPlayPosSentMs = -1;
             mPlayPosChangedNT = AvrcpConstants.NOTIFICATION_TYPE_CHANGED;
             mFeatures = 0;
             mLastDirection = 0;
@@ -391,6 +406,12 @@ public final class Avrcp {
         }
     };
     DeviceDependentFeature[] deviceFeatures;
+    // Session table: index in deviceFeatures of each connected device
+    private final HashMap<BluetoothDevice, Integer> mDeviceIndexMap =
+            new HashMap<BluetoothDevice, Integer>();
+    private final ArrayDeque<Integer> mFreeDeviceIndices = new ArrayDeque<Integer>();
+    // Indices of the connected devices, replaced on every connection change
+    private volatile int[] mConnectedIndices = new int[0];
 
     static {
         classInitNative();
@@ -440,6 +461,7 @@ public final class Avrcp {
         deviceFeatures = new DeviceDependentFeature[maxAvrcpConnections];
         for(int i = 0; i < maxAvrcpConnections; i++) {
             deviceFeatures[i] = new DeviceDependentFeature(mContext);
+            mFreeDeviceIndices.add(i);
         }
         mFastforward = false;
         mRewind = false;
@@ -676,6 +698,11 @@ public final class Avrcp {
         @Override
         public synchronized void onPlaybackStateChanged(PlaybackState state) {
             if (DEBUG) Log.v(TAG, "onPlaybackStateChanged: state " + state.toString());
+            if (isRedundantPlayerState(state, SystemClock.elapsedRealtime())) {
+                mRedundantStateCount++;
+                if (DEBUG) Log.v(TAG, "onPlaybackStateChanged: nothing changed, dropped");
+                return;
+            }
             updateCurrentMediaState(null);
             Log.v(TAG, " Exit onPlaybackStateChanged");
         }
@@ -693,6 +720,7 @@ public final class Avrcp {
 
         @Override
         public void onQueueChanged(List<MediaSession.QueueItem> queue) {
+            mAddressedMediaPlayer.onQueueChanged();
             if (queue == null) {
                 Log.v(TAG, "onQueueChanged: received null queue");
                 return;
@@ -902,6 +930,8 @@ public final class Avrcp {
                         break;
                     }
                 }
+                if (!blacklistAttr && sendCachedElementAttr(elem)) break;
+
                 StringBuilder responseDebug = new StringBuilder();
                 responseDebug.append("getElementAttr response: ");
                 for (int i = 0; i < numAttr; ++i) {
@@ -942,7 +972,6 @@ public final class Avrcp {
                 break;
 
             case MSG_PLAY_INTERVAL_TIMEOUT:
-            case MSG_PLAY_INTERVAL_TIMEOUT_2:
                 if (DEBUG) Log.v(TAG, "MSG_PLAY_INTERVAL_TIMEOUT");
                 Log.v(TAG, "event for device address " + (BluetoothDevice)msg.obj);
                 deviceIndex = getIndexForDevice((BluetoothDevice) msg.obj);
@@ -979,7 +1008,8 @@ public final class Avrcp {
                         Log.e(TAG, "Unsolicited response, ignored");
                         break;
                     }
-                    removeMessages(MSG_ABS_VOL_TIMEOUT);
+                    removeMessages(MSG_ABS_VOL_TIMEOUT,
+                            deviceFeatures[deviceIndex].mCurrentDevice);
 
                     volAdj = deviceFeatures[deviceIndex].mVolCmdAdjustInProgress;
                     deviceFeatures[deviceIndex].mVolCmdAdjustInProgress = false;
@@ -1081,7 +1111,7 @@ public final class Avrcp {
                 }
 
                 if (DEBUG) Log.d(TAG, "MSG_ADJUST_VOLUME: direction=" + msg.arg1);
-                for (int i = 0; i < maxAvrcpConnections; i++) {
+                for (int i : mConnectedIndices) {
                     if (deviceFeatures[i].mCurrentDevice != null &&
                             deviceFeatures[i].isActiveDevice) {
                           deviceIndex = i;
@@ -1168,7 +1198,7 @@ public final class Avrcp {
 
                 int avrcpVolume = convertToAvrcpVolume(msg.arg1);
                 avrcpVolume = Math.min(AVRCP_MAX_VOL, Math.max(0, avrcpVolume));
-                for (int i = 0; i < maxAvrcpConnections; i++) {
+                for (int i : mConnectedIndices) {
                     if (deviceFeatures[i].mCurrentDevice != null &&
                             deviceFeatures[i].isActiveDevice) {
 
@@ -1496,8 +1526,21 @@ public final class Avrcp {
     }
 
     private boolean areMultipleDevicesConnected() {
-        for (int deviceIndex = 0; deviceIndex < maxAvrcpConnections; deviceIndex++) {
-            if (deviceFeatures[deviceIndex].mCurrentDevice == null) {
+        return mConnectedIndices.length == maxAvrcpConnections;
+    }
+
+    /*
+     * A player state is only dropped if it restates what every connected device was last sent.
+     * Devices can lag behind the player state, e.g. playing isn't reported during a call.
+     */
+    private boolean isRedundantPlayerState(PlaybackState state, long nowMs) {
+        if (!PlayPositionScheduler.isRedundant(mCurrentPlayerState, mLastStateUpdate, state,
+                    nowMs)) {
+            return false;
+        }
+        for (int deviceIndex : mConnectedIndices) {
+            if (!PlayPositionScheduler.isRedundant(deviceFeatures[deviceIndex].mCurrentPlayState,
+                        deviceFeatures[deviceIndex].mLastStateUpdate, state, nowMs)) {
                 return false;
             }
         }
@@ -1520,7 +1563,16 @@ public final class Avrcp {
         mLastStateUpdate = SystemClock.elapsedRealtime();
 
         HeadsetService headsetService = HeadsetService.getHeadsetService();
-        for (int deviceIndex = 0; deviceIndex < maxAvrcpConnections; deviceIndex++) {
+        int[] connectedIndices = mConnectedIndices;
+        // State changes and seeks are sent right away, only the position moving on is held off
+        boolean[] sendNow = new boolean[connectedIndices.length];
+        for (int i = 0; i < connectedIndices.length; i++) {
+            int deviceIndex = connectedIndices[i];
+            sendNow[i] = !PlayPositionScheduler.isRedundant(
+                    deviceFeatures[deviceIndex].mCurrentPlayState,
+                    deviceFeatures[deviceIndex].mLastStateUpdate, state, mLastStateUpdate);
+        }
+        for (int deviceIndex : connectedIndices) {
             /*Discretion is required only when updating play state changed as playing*/
             boolean isInCall = headsetService != null && headsetService.isScoOrCallActive();
             if ((state.getState() != PlaybackState.STATE_PLAYING) ||
@@ -1533,18 +1585,19 @@ public final class Avrcp {
             Log.i(TAG,"No active device found, update playstate to stack");
             updatePlayStatusToStack(newPlayStatus);
         }
-        for (int deviceIndex = 0; deviceIndex < maxAvrcpConnections; deviceIndex++) {
-            sendPlayPosNotificationRsp(false, deviceIndex);
+        for (int i = 0; i < connectedIndices.length; i++) {
+            sendPlayPosNotificationRsp(false, connectedIndices[i], sendNow[i]);
         }
         Log.v(TAG, "Exit updatePlayerStateAndPosition");
     }
 
     private void updatePlaybackState(PlaybackState state, BluetoothDevice device) {
         Log.v(TAG,"updatePlaybackState, state: " + state + " device: " + device);
-        for (int i = 0; i < maxAvrcpConnections; i++) {
-            Log.v(TAG,"Device: " + ((deviceFeatures[i].mCurrentDevice == null) ?
-                "no name: " : deviceFeatures[i].mCurrentDevice.getName() +
-                " : old state: " + deviceFeatures[i].mCurrentPlayState));
+        if (DEBUG) {
+            for (int i : mConnectedIndices) {
+                Log.v(TAG,"Device: " + deviceFeatures[i].mCurrentDevice.getName() +
+                    " : old state: " + deviceFeatures[i].mCurrentPlayState);
+            }
         }
         if (device == null) {
             /*Called because of player state change*/
@@ -1664,6 +1717,18 @@ public final class Avrcp {
                     && (coverArt == null?true:(coverArt.equals(other.coverArt)));
         }
 
+        /*
+         * Values indexed by attribute id. The cover art handle is left out, it is fetched when
+         * requested since the BIP connection may come up later.
+         */
+        public synchronized String[] getStrings() {
+            String[] values = new String[ATTR_COVER_ART + 1];
+            for (int attrId = ATTR_TITLE; attrId < ATTR_COVER_ART; attrId++) {
+                values[attrId] = getString(attrId);
+            }
+            return values;
+        }
+
         public synchronized String getString(int attrId) {
             if (!exists)
                 return new String();
@@ -1772,7 +1837,7 @@ public final class Avrcp {
                     currentAttributes = new MediaAttributes(null);
                 else
                     currentAttributes = new MediaAttributes(mMediaController.getMetadata());
-                for (int i = 0; i < maxAvrcpConnections; i++) {
+                for (int i : mConnectedIndices) {
                     if (device != null) {
                         if ((isPlaying != isPlayingState(deviceFeatures[i].mCurrentPlayState)) &&
                             (device.equals(deviceFeatures[i].mCurrentDevice))) {
@@ -1824,13 +1889,10 @@ public final class Avrcp {
         byte[] addr = null;
         int index = INVALID_DEVICE_INDEX;
         if (device == null) {
-            for (int i = 0; i < maxAvrcpConnections; i++) {
-                if (deviceFeatures[i].isActiveDevice) {
-                    addr = getByteAddress(deviceFeatures[i].mCurrentDevice);
-                    index = getIndexForDevice(deviceFeatures[i].mCurrentDevice);
-                    Log.v(TAG,"updateCurrentMediaState: addr: " + addr);
-                    break;
-                }
+            index = getActiveDeviceIndex();
+            if (index != INVALID_DEVICE_INDEX) {
+                addr = getByteAddress(deviceFeatures[index].mCurrentDevice);
+                Log.v(TAG,"updateCurrentMediaState: addr: " + addr);
             }
         } else {
             addr = getByteAddress(device);
@@ -1885,6 +1947,8 @@ public final class Avrcp {
                     && !currentAttributes.equals(mMediaAttributes))) {
                 Log.v(TAG, "Send track changed");
                 mMediaAttributes = currentAttributes;
+                mMetadataVersion++;
+                mAddressedMediaPlayer.onMetadataChanged();
                 mLastQueueId = newQueueId;
                 if (device != null) {
                     int idx = getIndexForDevice(device);
@@ -1892,7 +1956,7 @@ public final class Avrcp {
                             deviceFeatures[idx].mTrackChangedNT == AvrcpConstants.NOTIFICATION_TYPE_INTERIM)
                     sendTrackChangedRsp(false, device);
                 } else {
-                    for (int i = 0; i < maxAvrcpConnections; i++) {
+                    for (int i : mConnectedIndices) {
                         if ((deviceFeatures[i].mCurrentDevice != null) &&
                             (deviceFeatures[i].mTrackChangedNT == AvrcpConstants.NOTIFICATION_TYPE_INTERIM)) {
                             deviceFeatures[i].mTracksPlayed++;
@@ -1922,13 +1986,36 @@ public final class Avrcp {
         }
 
         if (updateA2dpPlayState && newState != null && newState.getState() == PlaybackState.STATE_PLAYING) {
-            for (int i = 0; i < maxAvrcpConnections; i++) {
-                if (device != null && device.equals(deviceFeatures[i].mCurrentDevice))
-                    sendPlayPosNotificationRsp(false, i);
-            }
+            int i = getIndexForDevice(device);
+            if (i != INVALID_DEVICE_INDEX) sendPlayPosNotificationRsp(false, i);
         }
     }
 
+    /*
+     * Answer GetElementAttributes with the attributes of the current track encoded when it
+     * changed. Returns false if the request has to go through MediaAttributes.getString().
+     */
+    private boolean sendCachedElementAttr(AvrcpCmd.ElementAttrCmd elem) {
+        for (int i = 0; i < elem.mNumAttr; i++) {
+            if (elem.mAttrIDs[i] == MediaAttributes.ATTR_COVER_ART) return false;
+        }
+
+        MediaAttributes attributes = mMediaAttributes;
+        int version = mMetadataVersion;
+        AvrcpAttributeCache.Entry entry = mElementAttrCache.get(mLastQueueId, version);
+        if (entry == null) {
+            entry = mElementAttrCache.put(mLastQueueId, version, attributes.getStrings());
+        }
+        if (!entry.hasAll(elem.mAttrIDs, elem.mNumAttr)) return false;
+
+        if (DEBUG) Log.v(TAG, "getElementAttr cached response: numAttr=" + elem.mNumAttr);
+        if (!getElementAttrRspEncodedNative(elem.mAddress, elem.mNumAttr, elem.mAttrIDs,
+                entry.mBlob, entry.mOffsets)) {
+            Log.e(TAG, "getElementAttrRspEncodedNative failed!");
+        }
+        return true;
+    }
+
     private void getRcFeaturesRequestFromNative(byte[] address, int features) {
         if (DEBUG) Log.v(TAG, "getRcFeaturesRequestFromNative: address=" + address.toString());
         Message msg = mHandler.obtainMessage(MSG_NATIVE_REQ_GET_RC_FEATURES, features, 0,
@@ -2291,6 +2378,15 @@ public final class Avrcp {
      * TG.
      */
     private void sendPlayPosNotificationRsp(boolean requested, int i) {
+        sendPlayPosNotificationRsp(requested, i, false);
+    }
+
+    /**
+     * Same as above, but if |sendNow| is true a changed position is sent
+     * without waiting for the end of the playback interval. Used when the
+     * play state changed or the player seeked.
+     */
+    private void sendPlayPosNotificationRsp(boolean requested, int i, boolean sendNow) {
         Log.d(TAG, "Enter sendPlayPosNotificationRsp");
         if (!requested && deviceFeatures[i].mPlayPosChangedNT != AvrcpConstants.NOTIFICATION_TYPE_INTERIM) {
             if (DEBUG) Log.d(TAG, "sendPlayPosNotificationRsp: Not registered or requesting.");
@@ -2299,7 +2395,6 @@ public final class Avrcp {
         long playPositionMs = getPlayPosition(deviceFeatures[i].mCurrentDevice);
         int currPlayStatus = convertPlayStateToPlayStatus(deviceFeatures[i].mCurrentPlayState);
         String debugLine = "sendPlayPosNotificationRsp: ";
-        int currMsgPlayIntervalTimeout = (i == 0) ? MSG_PLAY_INTERVAL_TIMEOUT : MSG_PLAY_INTERVAL_TIMEOUT_2;
 
         // Some remote devices are going to bad state when sending play position
         // as ffff for non-playing state
@@ -2319,10 +2414,22 @@ public final class Avrcp {
             if (isPlayingState(deviceFeatures[i].mCurrentPlayState)) debugLine += " Playing";
             debugLine += " State: " + deviceFeatures[i].mCurrentPlayState.getState();
         }
-        if (requested || ((deviceFeatures[i].mLastReportedPosition != playPositionMs) &&
+        boolean changed = (deviceFeatures[i].mLastReportedPosition != playPositionMs) &&
              ((playPositionMs >= deviceFeatures[i].mNextPosMs) ||
-             (playPositionMs <= deviceFeatures[i].mPrevPosMs)))) {
-            if (!requested) deviceFeatures[i].mPlayPosChangedNT = AvrcpConstants.NOTIFICATION_TYPE_CHANGED;
+             (playPositionMs <= deviceFeatures[i].mPrevPosMs));
+        long now = SystemClock.elapsedRealtime();
+        long holdOffMs = 0;
+        if (!requested && changed && !sendNow) {
+            // Several changes within an interval are sent as one, once the interval is over
+            holdOffMs = PlayPositionScheduler.getHoldOffMs(deviceFeatures[i].mLastPlayPosSentMs,
+                    deviceFeatures[i].mPlaybackIntervalMs, now);
+            if (holdOffMs > 0) mDeferredPlayPosCount++;
+        }
+        if (requested || (changed && holdOffMs == 0)) {
+            if (!requested) {
+                deviceFeatures[i].mPlayPosChangedNT = AvrcpConstants.NOTIFICATION_TYPE_CHANGED;
+                deviceFeatures[i].mLastPlayPosSentMs = now;
+            }
             registerNotificationRspPlayPosNative(deviceFeatures[i].mPlayPosChangedNT,
                    (int)playPositionMs, getByteAddress(deviceFeatures[i].mCurrentDevice));
             deviceFeatures[i].mLastReportedPosition = playPositionMs;
@@ -2335,13 +2442,16 @@ public final class Avrcp {
             }
         }
 
-        mHandler.removeMessages(currMsgPlayIntervalTimeout);
+        // The device is the token of its own timeout
+        mHandler.removeMessages(MSG_PLAY_INTERVAL_TIMEOUT, deviceFeatures[i].mCurrentDevice);
         if (deviceFeatures[i].mPlayPosChangedNT == AvrcpConstants.NOTIFICATION_TYPE_INTERIM &&
-                 isPlayingState(deviceFeatures[i].mCurrentPlayState)) {
-            Message msg = mHandler.obtainMessage(currMsgPlayIntervalTimeout, 0, 0,
+                 (holdOffMs > 0 || isPlayingState(deviceFeatures[i].mCurrentPlayState))) {
+            Message msg = mHandler.obtainMessage(MSG_PLAY_INTERVAL_TIMEOUT, 0, 0,
                                                  deviceFeatures[i].mCurrentDevice);
             long delay = deviceFeatures[i].mPlaybackIntervalMs;
-            if (deviceFeatures[i].mNextPosMs != -1) {
+            if (holdOffMs > 0) {
+                delay = holdOffMs;
+            } else if (deviceFeatures[i].mNextPosMs != -1) {
                 delay = deviceFeatures[i].mNextPosMs - (playPositionMs > 0 ? playPositionMs : 0);
             }
             if (DEBUG) debugLine += " Timeout " + delay + "ms";
@@ -2361,7 +2471,7 @@ public final class Avrcp {
             return false;
         }
         List<Byte> absVolumeSupported = new ArrayList<Byte>();
-        for (int i = 0; i < maxAvrcpConnections; i++) {
+        for (int i : mConnectedIndices) {
             if (deviceFeatures[i].mCurrentDevice != null) {
                 // add 1 in byte list if absolute volume is supported
                 // add 0 in byte list if absolute volume not supported
@@ -2390,7 +2500,7 @@ public final class Avrcp {
                     AvrcpControllerService.getAvrcpControllerService();
             if (avrcpCtrlService != null) {
                 Log.d(TAG, "avrcpCtrlService not null");
-                for (int i = 0; i < maxAvrcpConnections; i++) {
+                for (int i : mConnectedIndices) {
                     if (deviceFeatures[i].mCurrentDevice != null) {
                         Log.d(TAG, "SendPassThruPlay command sent for = "
                                 + deviceFeatures[i].mCurrentDevice);
@@ -2761,60 +2871,54 @@ public final class Avrcp {
 
     public void setAvrcpConnectedDevice(BluetoothDevice device) {
         Log.i(TAG,"setAvrcpConnectedDevice, Device added is " + device);
-        for (int i = 0; i < maxAvrcpConnections; i++) {
-            if (deviceFeatures[i].mCurrentDevice != null &&
-                    deviceFeatures[i].mCurrentDevice.equals(device)) {
-                Log.v(TAG,"device is already added in connected list, ignore now");
-                return;
-            }
+        if (getIndexForDevice(device) != INVALID_DEVICE_INDEX) {
+            Log.v(TAG,"device is already added in connected list, ignore now");
+            return;
         }
-        for (int i = 0; i < maxAvrcpConnections; i++ ) {
-            if (deviceFeatures[i].mCurrentDevice == null) {
-                deviceFeatures[i].mCurrentDevice = device;
-                deviceFeatures[i].isActiveDevice = true;
-                /*Playstate is explicitly updated here to take care of cases
-                        where play state update is missed because of that happening
-                        even before Avrcp connects*/
-                deviceFeatures[i].mCurrentPlayState = mCurrentPlayerState;
-                if (isPlayingState(mCurrentPlayerState)) {
-                /* In dual a2dp connection mode, if music is streaming on other device and
-                ** avrcp connection was delayed to second device and is not in playing state
-                ** check for playing device and update play status accordingly
-                */
-                    if (!isPlayStateToBeUpdated(i)) {
+        int index = attachDevice(device);
+        if (index != INVALID_DEVICE_INDEX) {
+            deviceFeatures[index].isActiveDevice = true;
+            /*Playstate is explicitly updated here to take care of cases
+                    where play state update is missed because of that happening
+                    even before Avrcp connects*/
+            deviceFeatures[index].mCurrentPlayState = mCurrentPlayerState;
+            if (isPlayingState(mCurrentPlayerState)) {
+            /* In dual a2dp connection mode, if music is streaming on other device and
+            ** avrcp connection was delayed to second device and is not in playing state
+            ** check for playing device and update play status accordingly
+            */
+                if (!isPlayStateToBeUpdated(index)) {
+                    PlaybackState.Builder playState = new PlaybackState.Builder();
+                    playState.setState(PlaybackState.STATE_PAUSED,
+                                   PlaybackState.PLAYBACK_POSITION_UNKNOWN, 1.0f);
+                    deviceFeatures[index].mCurrentPlayState = playState.build();
+                }
+            }
+            Log.i(TAG,"setAvrcpConnectedDevice, mCurrentPlayerState = " + mCurrentPlayerState +
+                      "isMusicActive = " + mAudioManager.isMusicActive());
+            if (!isPlayingState(mCurrentPlayerState) &&
+                 (mA2dpService.getA2dpPlayingDevice().size() > 0) &&
+                  mAudioManager.isMusicActive()) {
+            /*A2DP playstate updated for video playback scenario, where a2dp play status is
+                updated when avrcp connection was not up yet.*/
+                Log.i(TAG,"A2dp playing device found");
+                List<BluetoothDevice> playingDevice = mA2dpService.getA2dpPlayingDevice();
+                for (int j = 0; j < playingDevice.size(); j++) {
+                    if (playingDevice.get(j).equals(device)) {
                         PlaybackState.Builder playState = new PlaybackState.Builder();
-                        playState.setState(PlaybackState.STATE_PAUSED,
+                        playState.setState(PlaybackState.STATE_PLAYING,
                                        PlaybackState.PLAYBACK_POSITION_UNKNOWN, 1.0f);
-                        deviceFeatures[i].mCurrentPlayState = playState.build();
+                        deviceFeatures[index].mCurrentPlayState = playState.build();
                     }
                 }
-                Log.i(TAG,"setAvrcpConnectedDevice, mCurrentPlayerState = " + mCurrentPlayerState +
-                          "isMusicActive = " + mAudioManager.isMusicActive());
-                if (!isPlayingState(mCurrentPlayerState) &&
-                     (mA2dpService.getA2dpPlayingDevice().size() > 0) &&
-                      mAudioManager.isMusicActive()) {
-                /*A2DP playstate updated for video playback scenario, where a2dp play status is
-                    updated when avrcp connection was not up yet.*/
-                    Log.i(TAG,"A2dp playing device found");
-                    List<BluetoothDevice> playingDevice = mA2dpService.getA2dpPlayingDevice();
-                    for (int j = 0; j < playingDevice.size(); j++) {
-                        if (playingDevice.get(j).equals(device)) {
-                            PlaybackState.Builder playState = new PlaybackState.Builder();
-                            playState.setState(PlaybackState.STATE_PLAYING,
-                                           PlaybackState.PLAYBACK_POSITION_UNKNOWN, 1.0f);
-                            deviceFeatures[i].mCurrentPlayState = playState.build();
-                        }
-                    }
-                }
-                Log.i(TAG,"play status updated on Avrcp connection as: " +
-                                                    deviceFeatures[i].mCurrentPlayState);
-                Log.i(TAG,"device added at " + i);
-                Log.i(TAG,"Active device set to true at index =  " + i);
-                break;
             }
+            Log.i(TAG,"play status updated on Avrcp connection as: " +
+                                                deviceFeatures[index].mCurrentPlayState);
+            Log.i(TAG,"device added at " + index);
+            Log.i(TAG,"Active device set to true at index =  " + index);
         }
 
-        for (int i = 0; i < maxAvrcpConnections; i++ ) {
+        for (int i : mConnectedIndices) {
             if (isPlayingState(mCurrentPlayerState)) {
                 if (deviceFeatures[i].mCurrentDevice != null &&
                     !isPlayStateToBeUpdated(i) &&
@@ -2844,7 +2948,7 @@ public final class Avrcp {
      */
     public void setAvrcpDisconnectedDevice(BluetoothDevice device) {
         Log.i(TAG,"Enter setAvrcpDisconnectedDevice");
-        for (int i = 0; i < maxAvrcpConnections; i++ ) {
+        for (int i : mConnectedIndices) {
             if (deviceFeatures[i].mCurrentDevice !=null &&
                     deviceFeatures[i].mCurrentDevice.equals(device)) {
                 // initiate cleanup for all variables;
@@ -2877,7 +2981,7 @@ public final class Avrcp {
                 isAbsoluteVolumeSupported());
         Log.v(TAG," update audio manager for abs vol state = "
                 + isAbsoluteVolumeSupported());
-        for (int i = 0; i < maxAvrcpConnections; i++ ) {
+        for (int i : mConnectedIndices) {
             if (deviceFeatures[i].mCurrentDevice != null) {
                 if (isAbsoluteVolumeSupported() &&
                         deviceFeatures[i].mAbsoluteVolume != -1) {
@@ -3906,13 +4010,14 @@ public final class Avrcp {
 
     public void cleanupDeviceFeaturesIndex (int index) {
         Log.i(TAG,"cleanupDeviceFeaturesIndex index:" + index);
-        deviceFeatures[index].mCurrentDevice = null;
+        detachDevice(index);
         deviceFeatures[index].mCurrentPlayState = new PlaybackState.Builder().setState(PlaybackState.STATE_NONE, -1L, 0.0f).build();;
         deviceFeatures[index].mNowPlayingListChangedNT = AvrcpConstants.NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mPlayStatusChangedNT = AvrcpConstants.NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mPlayerStatusChangeNT = AvrcpConstants.NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mTrackChangedNT = AvrcpConstants.NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mPlaybackIntervalMs = 0L;
+        deviceFeatures[index].mLastPlayPosSentMs = -1;
         deviceFeatures[index].mPlayPosChangedNT = AvrcpConstants.NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mFeatures = 0;
         deviceFeatures[index].mAbsoluteVolume = -1;
@@ -3977,6 +4082,14 @@ public final class Avrcp {
             ProfileService.println(sb, "mVolumeMapping: " + deviceFeatures[i].mVolumeMapping.toString());
 
         }
+        synchronized (mDeviceIndexMap) {
+            ProfileService.println(sb, "Connected devices: " + mDeviceIndexMap);
+        }
+        mElementAttrCache.dump(sb, "Element attributes cache");
+        if (mAvrcpBrowseManager != null) mAvrcpBrowseManager.dump(sb);
+        ProfileService.println(sb, "Redundant player states dropped: " + mRedundantStateCount);
+        ProfileService.println(sb, "Play position notifications deferred: "
+                + mDeferredPlayPosCount);
         synchronized (this) {
             if (mMediaController != null)
                 ProfileService.println(sb, "mMediaController: "
@@ -4030,6 +4143,8 @@ public final class Avrcp {
 
     public class AvrcpBrowseManager {
         Map<String, BrowsedMediaPlayer> connList = new HashMap<String, BrowsedMediaPlayer>();
+        /* shared by the devices so that browsing the same player loads its folders once */
+        private final BrowsePageCache mPageCache = new BrowsePageCache();
         private AvrcpMediaRspInterface mMediaInterface;
         private Context mContext;
 
@@ -4049,6 +4164,7 @@ public final class Avrcp {
             }
             // clean up the map
             connList.clear();
+            mPageCache.clear();
         }
 
         // get the a free media player interface based on the passed bd address
@@ -4060,7 +4176,8 @@ public final class Avrcp {
             if (connList.containsKey(bdaddrStr)) {
                 mediaPlayer = connList.get(bdaddrStr);
             } else {
-                mediaPlayer = new BrowsedMediaPlayer(bdaddr, mContext, mMediaInterface);
+                mediaPlayer =
+                        new BrowsedMediaPlayer(bdaddr, mContext, mMediaInterface, mPageCache);
                 connList.put(bdaddrStr, mediaPlayer);
             }
             return mediaPlayer;
@@ -4080,6 +4197,10 @@ public final class Avrcp {
             return connList;
         }
 
+        public void dump(StringBuilder sb) {
+            mPageCache.dump(sb);
+        }
+
         /* Helper function to convert colon separated bdaddr to byte string */
         private byte[] hexStringToByteArray(String s) {
             int len = s.length();
@@ -4115,7 +4236,7 @@ public final class Avrcp {
 
         public void SendSetPlayerAppRsp(int attr_status, byte[] address) {
             if (attr_status != AvrcpConstants.RSP_INTERNAL_ERR) {
-                for (int i = 0; i < maxAvrcpConnections; i++) {
+                for (int i : mConnectedIndices) {
                     if (deviceFeatures[i].mCurrentDevice != null &&
                         deviceFeatures[i].mPlayerStatusChangeNT ==
                             AvrcpConstants.NOTIFICATION_TYPE_INTERIM) {
@@ -4160,7 +4281,7 @@ public final class Avrcp {
         public BluetoothDevice GetPlayerSettingCmdPendingDevice(Integer reponse) {
             BluetoothDevice device = null;
             mHandler.removeMessages(MESSAGE_PLAYERSETTINGS_TIMEOUT);
-            for (int i = 0; i < maxAvrcpConnections; i++) {
+            for (int i : mConnectedIndices) {
                 if ((deviceFeatures[i].mMusicAppCmdResponsePending
                         .containsKey(reponse))) {
                     CreateMusicSettingsAppCmdLookupOrUpdate(reponse, i, false);
@@ -4229,7 +4350,12 @@ public final class Avrcp {
         }
 
         public void getItemAttrRsp(byte[] address, int rspStatus, ItemAttrRsp rspObj) {
-            if (rspObj != null && rspStatus == AvrcpConstants.RSP_NO_ERROR) {
+            if (rspObj != null && rspStatus == AvrcpConstants.RSP_NO_ERROR
+                    && rspObj.mEncoded != null) {
+                if (!getItemAttrRspEncodedNative(address, rspStatus, rspObj.mNumAttr,
+                        rspObj.mAttributesIds, rspObj.mEncoded.mBlob, rspObj.mEncoded.mOffsets))
+                    Log.e(TAG, "getItemAttrRspEncodedNative failed!");
+            } else if (rspObj != null && rspStatus == AvrcpConstants.RSP_NO_ERROR) {
                 if (!getItemAttrRspNative(address, rspStatus, rspObj.mNumAttr,
                         rspObj.mAttributesIds, rspObj.mAttributesArray))
                     Log.e(TAG, "getItemAttrRspNative failed!");
@@ -4267,13 +4393,9 @@ public final class Avrcp {
 
         public void uidsChangedRsp(int type) {
             byte[] addr = null;
-            int index = INVALID_DEVICE_INDEX;
-            for (int i = 0; i < maxAvrcpConnections; i++) {
-                if (deviceFeatures[i].isActiveDevice) {
-                    addr = getByteAddress(deviceFeatures[i].mCurrentDevice);
-                    index = i;
-                    break; 
-                }
+            int index = getActiveDeviceIndex();
+            if (index != INVALID_DEVICE_INDEX) {
+                addr = getByteAddress(deviceFeatures[index].mCurrentDevice);
             }
 
             if ((index != INVALID_DEVICE_INDEX) &&
@@ -4295,12 +4417,10 @@ public final class Avrcp {
 
         public void nowPlayingChangedRsp(int type, byte[] address) {
             byte[] addr = null;
-            for (int i = 0; i < maxAvrcpConnections; i++) {
-                if (deviceFeatures[i].isActiveDevice) {
-                    addr = getByteAddress(deviceFeatures[i].mCurrentDevice);
-                    deviceFeatures[i].mNowPlayingListChangedNT = type;
-                    break; 
-                }
+            int index = getActiveDeviceIndex();
+            if (index != INVALID_DEVICE_INDEX) {
+                addr = getByteAddress(deviceFeatures[index].mCurrentDevice);
+                deviceFeatures[index].mNowPlayingListChangedNT = type;
             }
             if (addr == null) {
                 Log.e(TAG,"uidsChangedRsp:No active device found");
@@ -4325,17 +4445,67 @@ public final class Avrcp {
     }
 
     private int getIndexForDevice(BluetoothDevice device) {
-        for (int i = 0; i < maxAvrcpConnections; i++) {
-            if (deviceFeatures[i].mCurrentDevice != null &&
-                    deviceFeatures[i].mCurrentDevice.equals(device)) {
-                Log.i(TAG,"device found at index " + i);
+        Integer index;
+        synchronized (mDeviceIndexMap) {
+            index = mDeviceIndexMap.get(device);
+        }
+        if (index == null) {
+            Log.e(TAG, "returning invalid index");
+            return INVALID_DEVICE_INDEX;
+        }
+        if (DEBUG) Log.v(TAG, "device found at index " + index);
+        return index;
+    }
+
+    /* Index of the first connected device that is active, INVALID_DEVICE_INDEX if none is */
+    private int getActiveDeviceIndex() {
+        for (int i : mConnectedIndices) {
+            if (deviceFeatures[i].mCurrentDevice != null && deviceFeatures[i].isActiveDevice) {
                 return i;
             }
         }
-        Log.e(TAG, "returning invalid index");
         return INVALID_DEVICE_INDEX;
     }
 
+    /* Give a free entry of deviceFeatures to a device, INVALID_DEVICE_INDEX if none is left */
+    private int attachDevice(BluetoothDevice device) {
+        synchronized (mDeviceIndexMap) {
+            Integer index = mFreeDeviceIndices.poll();
+            if (index == null) {
+                Log.e(TAG, "attachDevice: no room left for " + device);
+                return INVALID_DEVICE_INDEX;
+            }
+            deviceFeatures[index].mCurrentDevice = device;
+            mDeviceIndexMap.put(device, index);
+            updateConnectedIndices();
+            return index;
+        }
+    }
+
+    private void detachDevice(int index) {
+        synchronized (mDeviceIndexMap) {
+            BluetoothDevice device = deviceFeatures[index].mCurrentDevice;
+            if (device == null) return;
+            // Pending timeouts of the device use it as token
+            mHandler.removeMessages(MSG_PLAY_INTERVAL_TIMEOUT, device);
+            mHandler.removeMessages(MSG_ABS_VOL_TIMEOUT, device);
+            deviceFeatures[index].mCurrentDevice = null;
+            mDeviceIndexMap.remove(device);
+            mFreeDeviceIndices.push(index);
+            updateConnectedIndices();
+        }
+    }
+
+    private void updateConnectedIndices() {
+        int[] indices = new int[mDeviceIndexMap.size()];
+        int i = 0;
+        for (int index : mDeviceIndexMap.values()) {
+            indices[i++] = index;
+        }
+        Arrays.sort(indices);
+        mConnectedIndices = indices;
+    }
+
     /* getters for some private variables */
     public AvrcpBrowseManager getAvrcpBrowseManager() {
         return mAvrcpBrowseManager;
@@ -4653,6 +4823,8 @@ public final class Avrcp {
     private native boolean updatePlayStatusToStack(int state);
     private native boolean getElementAttrRspNative(byte[] address, byte numAttr, int[] attrIds,
             String[] textArray);
+    private native boolean getElementAttrRspEncodedNative(byte[] address, byte numAttr,
+            int[] attrIds, byte[] values, int[] valueOffsets);
     private native boolean registerNotificationRspPlayStatusNative(int type, int
             playStatus, byte[] address);
     private native boolean registerNotificationRspTrackChangeNative(int type, byte[]
@@ -4688,6 +4860,8 @@ public final class Avrcp {
     private native boolean changePathRspNative(byte[] address, int rspStatus, int numItems);
     private native boolean getItemAttrRspNative(byte[] address, int rspStatus, byte numAttr,
             int[] attrIds, String[] textArray);
+    private native boolean getItemAttrRspEncodedNative(byte[] address, int rspStatus,
+            byte numAttr, int[] attrIds, byte[] values, int[] valueOffsets);
     private native boolean playItemRspNative(byte[] address, int rspStatus);
     private native boolean getTotalNumOfItemsRspNative(byte[] address, int rspStatus,
             int uidCounter, int numItems);
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*************************************************************************************************
+ * Media attributes of tracks, encoded in UTF-8 once and handed to native as is for the
+ * GetElementAttributes and GetItemAttributes responses.
+ *
+ * Entries are keyed by media id and stamped with the version of the metadata they were built
+ * from. An entry built from an older version is never returned, the caller builds a new one.
+ ************************************************************************************************/
+
+class AvrcpAttributeCache {
+    /* Encoded attributes of one track */
+    static class Entry {
+        final long mMediaId;
+        final int mVersion;
+        /* Values back to back, the value of attribute i is mBlob[mOffsets[i], mOffsets[i + 1]) */
+        final byte[] mBlob;
+        final int[] mOffsets;
+        /* Bit i is set if the player provided attribute i */
+        private final int mPresent;
+
+        private Entry(long mediaId, int version, String[] values) {
+            mMediaId = mediaId;
+            mVersion = version;
+
+            byte[][] encoded = new byte[values.length][];
+            int present = 0;
+            int length = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null) continue;
+                encoded[i] = values[i].getBytes(StandardCharsets.UTF_8);
+                present |= 1 << i;
+                length += encoded[i].length;
+            }
+
+            mBlob = new byte[length];
+            mOffsets = new int[values.length + 1];
+            int offset = 0;
+            for (int i = 0; i < values.length; i++) {
+                mOffsets[i] = offset;
+                if (encoded[i] == null) continue;
+                System.arraycopy(encoded[i], 0, mBlob, offset, encoded[i].length);
+                offset += encoded[i].length;
+            }
+            mOffsets[values.length] = offset;
+            mPresent = present;
+        }
+
+        boolean has(int attrId) {
+            return attrId > 0 && attrId < mOffsets.length - 1 && (mPresent & (1 << attrId)) != 0;
+        }
+
+        /* Whether every attribute requested is in the entry */
+        boolean hasAll(int[] attrIds, int numAttr) {
+            for (int i = 0; i < numAttr; i++) {
+                if (!has(attrIds[i])) return false;
+            }
+            return true;
+        }
+    }
+
+    private final int mCapacity;
+    private final LinkedHashMap<Long, Entry> mEntries;
+    private long mHits;
+    private long mMisses;
+
+    AvrcpAttributeCache(final int capacity) {
+        mCapacity = capacity;
+        mEntries = new LinkedHashMap<Long, Entry>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    /* Returns the entry of this track built from this version of the metadata, or null */
+    synchronized Entry get(long mediaId, int version) {
+        Entry entry = mEntries.get(mediaId);
+        if (entry == null || entry.mVersion != version) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry;
+    }
+
+    /*
+     * Encode and store the attributes of a track. values[i] holds attribute i, or null if the
+     * player doesn't provide it.
+     */
+    synchronized Entry put(long mediaId, int version, String[] values) {
+        Entry entry = new Entry(mediaId, version, values);
+        mEntries.put(mediaId, entry);
+        return entry;
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    synchronized void dump(StringBuilder sb, String name) {
+        ProfileService.println(sb, name + ": " + mEntries.size() + "/" + mCapacity
+                + " tracks, hits: " + mHits + ", misses: " + mMisses);
+    }
+}
@@ -186,6 +186,8 @@ class ItemAttrRsp {
     byte mNumAttr;
     int[] mAttributesIds;
     String[] mAttributesArray;
+    /* values of the attributes already encoded, used instead of mAttributesArray if set */
+    AvrcpAttributeCache.Entry mEncoded;
 
     public ItemAttrRsp(byte status, int[] attributesIds, String[] attributesArray) {
         mStatus = status;
@@ -193,6 +195,13 @@ class ItemAttrRsp {
         mAttributesIds = attributesIds;
         mAttributesArray = attributesArray;
     }
+
+    public ItemAttrRsp(byte status, int[] attributesIds, AvrcpAttributeCache.Entry encoded) {
+        mStatus = status;
+        mNumAttr = (byte) attributesIds.length;
+        mAttributesIds = attributesIds;
+        mEncoded = encoded;
+    }
 }
 
 /* stores information of Media Players in the system */
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.media.browse.MediaBrowser;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*************************************************************************************************
+ * Pages of folder items loaded from the MediaBrowserService of media players, shared by all the
+ * devices browsing the same player.
+ *
+ * A folder is loaded PAGE_SIZE items at a time. Only the most recently used pages of the most
+ * recently used folders are kept, the others are loaded again from the player when needed.
+ * The number of items in a folder is known once the whole folder or its last page has been
+ * loaded, or once it has been counted. What is known of a folder is dropped FOLDER_MAX_AGE_MS
+ * after it was first loaded.
+ ************************************************************************************************/
+
+class BrowsePageCache {
+    static final int PAGE_SIZE = 100;
+    static final int PAGES_PER_FOLDER = 4;
+    static final int MAX_FOLDERS = 8;
+    /* How long the items of a folder and their number are trusted */
+    static final long FOLDER_MAX_AGE_MS = 30 * 1000;
+
+    private static class Folder {
+        /* Number of items in the folder, -1 until the last page is loaded */
+        int mSize = -1;
+        /* When the first page or the whole folder was loaded */
+        final long mLoadedMs;
+        final LinkedHashMap<Integer, List<MediaBrowser.MediaItem>> mPages =
+                new LinkedHashMap<Integer, List<MediaBrowser.MediaItem>>(
+                        PAGES_PER_FOLDER, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<Integer, List<MediaBrowser.MediaItem>> eldest) {
+                        return size() > PAGES_PER_FOLDER;
+                    }
+                };
+
+        Folder(long loadedMs) {
+            mLoadedMs = loadedMs;
+        }
+    }
+
+    private final LinkedHashMap<String, Folder> mFolders =
+            new LinkedHashMap<String, Folder>(MAX_FOLDERS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Folder> eldest) {
+                    return size() > MAX_FOLDERS;
+                }
+            };
+    private long mHits;
+    private long mMisses;
+
+    /* Package names have no '/', so this can't be mistaken for the key of another folder */
+    private static String key(String packageName, String folderId) {
+        return packageName + "/" + folderId;
+    }
+
+    /* Returns a folder unless it expired, an expired folder is dropped */
+    private Folder getFolder(String key, long nowMs) {
+        Folder folder = mFolders.get(key);
+        if (folder != null && nowMs - folder.mLoadedMs > FOLDER_MAX_AGE_MS) {
+            mFolders.remove(key);
+            return null;
+        }
+        return folder;
+    }
+
+    /* Returns the number of items in a folder, or -1 if it is unknown or expired */
+    synchronized int getSize(String packageName, String folderId, long nowMs) {
+        Folder folder = getFolder(key(packageName, folderId), nowMs);
+        return (folder == null) ? -1 : folder.mSize;
+    }
+
+    /* Returns the items of a page, or null if the page is not cached or expired */
+    synchronized List<MediaBrowser.MediaItem> getPage(
+            String packageName, String folderId, int page, long nowMs) {
+        Folder folder = getFolder(key(packageName, folderId), nowMs);
+        List<MediaBrowser.MediaItem> items = (folder == null) ? null : folder.mPages.get(page);
+        if (items == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return items;
+    }
+
+    /*
+     * The list is kept as is and handed out to every device, it must not be modified. The page
+     * expires with the rest of the folder, adding pages doesn't make a folder younger.
+     */
+    synchronized void putPage(String packageName, String folderId, int page,
+            List<MediaBrowser.MediaItem> items, long nowMs) {
+        String key = key(packageName, folderId);
+        Folder folder = getFolder(key, nowMs);
+        if (folder == null) {
+            folder = new Folder(nowMs);
+            mFolders.put(key, folder);
+        }
+        folder.mPages.put(page, items);
+        if (items.size() < PAGE_SIZE) folder.mSize = page * PAGE_SIZE + items.size();
+    }
+
+    /* Records the number of items of a folder counted without keeping all its pages */
+    synchronized void setSize(String packageName, String folderId, int size, long nowMs) {
+        String key = key(packageName, folderId);
+        Folder folder = getFolder(key, nowMs);
+        if (folder == null) {
+            folder = new Folder(nowMs);
+            mFolders.put(key, folder);
+        }
+        folder.mSize = size;
+    }
+
+    /*
+     * Replaces what is known of a folder with all its items, loaded at nowMs. Only its first
+     * pages are kept.
+     */
+    synchronized void putFolder(String packageName, String folderId,
+            List<MediaBrowser.MediaItem> items, long nowMs) {
+        Folder folder = new Folder(nowMs);
+        folder.mSize = items.size();
+        for (int page = 0; page < PAGES_PER_FOLDER; page++) {
+            int from = page * PAGE_SIZE;
+            if (page > 0 && from >= items.size()) break;
+            int to = Math.min(items.size(), from + PAGE_SIZE);
+            folder.mPages.put(page, new ArrayList<MediaBrowser.MediaItem>(items.subList(from, to)));
+        }
+        mFolders.put(key(packageName, folderId), folder);
+    }
+
+    synchronized void clear() {
+        mFolders.clear();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "Browse page cache: " + mFolders.size() + "/" + MAX_FOLDERS
+                + " folders, hits: " + mHits + ", misses: " + mMisses);
+    }
+}
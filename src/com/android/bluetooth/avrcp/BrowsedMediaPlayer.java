@@ -26,11 +26,13 @@ import android.media.browse.MediaBrowser.MediaItem;
 import android.media.session.MediaSession;
 import android.media.session.MediaSession.QueueItem;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Stack;
 
@@ -51,6 +53,10 @@ class BrowsedMediaPlayer {
 
     private static final String[] ROOT_FOLDER = {"root"};
 
+    /* Items sent at most in a GetFolderItems response, the remote asks for the rest after */
+    private static final int MAX_FOLDER_ITEMS_PER_RSP =
+            BrowsePageCache.PAGES_PER_FOLDER * BrowsePageCache.PAGE_SIZE;
+
     /*  package and service name of target Media Player which is set for browsing */
     private String mPackageName;
     private String mConnectingPackageName;
@@ -71,8 +77,8 @@ class BrowsedMediaPlayer {
     /* stores the path trail during changePath */
     private Stack<String> mPathStack = null;
 
-    /* Number of items in current folder */
-    private int mCurrFolderNumItems = 0;
+    /* Number of items in current folder, -1 until it is loaded */
+    private int mFolderSize = -1;
 
     /* store mapping between uid(Avrcp) and mediaId(Media Player). */
     private HashMap<Integer, String> mHmap = new HashMap<Integer, String>();
@@ -80,8 +86,12 @@ class BrowsedMediaPlayer {
     /* command objects from avrcp handler */
     private AvrcpCmd.FolderItemsCmd mFolderItemsReqObj;
 
-    /* store result of getfolderitems with scope="vfs" */
-    private List<MediaBrowser.MediaItem> mFolderItems = null;
+    /* Pages of folder items, shared with the other devices browsing the same player */
+    private final BrowsePageCache mPageCache;
+
+    /* page of the current folder each item listed to the remote is in, and which are folders */
+    private HashMap<String, Integer> mItemPages = new HashMap<String, Integer>();
+    private HashSet<String> mBrowsableItems = new HashSet<String>();
 
     /* Connection state callback handler */
     class MediaConnectionCallback extends MediaBrowser.ConnectionCallback {
@@ -126,144 +136,285 @@ class BrowsedMediaPlayer {
         }
     }
 
-    /* Subscription callback handler. Subscribe to a folder to get its contents */
-    private MediaBrowser.SubscriptionCallback folderItemsCb =
-            new MediaBrowser.SubscriptionCallback() {
+    /*
+     * Loads pages of a folder in order, from the page cache or with a paged subscription to the
+     * media player. Stops after lastPage or after the last page of the folder.
+     */
+    private abstract class PageLoader extends MediaBrowser.SubscriptionCallback {
+        private final String mPlayerPackage;
+        private final String mFolderId;
+        private final int mLastPage;
+        private int mPage;
+
+        PageLoader(String folderId, int firstPage, int lastPage) {
+            mPlayerPackage = mPackageName;
+            mFolderId = folderId;
+            mPage = firstPage;
+            mLastPage = lastPage;
+        }
 
-        @Override
-        public void onChildrenLoaded(String parentId, List<MediaBrowser.MediaItem> children) {
-            Log.w(TAG, "OnChildren Loaded folder items: childrens= " + children.size());
+        /* called for each page, in order */
+        abstract void onPage(int page, List<MediaBrowser.MediaItem> items);
 
-            /*
-             * cache current folder items and send as rsp when remote requests
-             * get_folder_items (scope = vfs)
-             */
-            if (mFolderItems == null) {
-                if (DEBUG) Log.d(TAG, "sending setbrowsed player rsp");
-                mFolderItems = children;
-                mMediaInterface.setBrowsedPlayerRsp(mBDAddr, AvrcpConstants.RSP_NO_ERROR,
-                        (byte)0x00, children.size(), ROOT_FOLDER);
-            } else {
-                mFolderItems = children;
-                mCurrFolderNumItems = mFolderItems.size();
-                mMediaInterface.changePathRsp(mBDAddr, AvrcpConstants.RSP_NO_ERROR,
-                        mCurrFolderNumItems);
+        /* called once all the pages are loaded */
+        abstract void onPagesLoaded();
+
+        abstract void onLoadError(int page);
+
+        void start() {
+            while (mPage <= mLastPage) {
+                List<MediaBrowser.MediaItem> items = mPageCache.getPage(
+                        mPlayerPackage, mFolderId, mPage, SystemClock.elapsedRealtime());
+                if (items == null) {
+                    if (mMediaBrowser == null) {
+                        Log.e(TAG, "PageLoader: mMediaBrowser is null");
+                        onLoadError(mPage);
+                        return;
+                    }
+                    Bundle options = new Bundle();
+                    options.putInt(MediaBrowser.EXTRA_PAGE, mPage);
+                    options.putInt(MediaBrowser.EXTRA_PAGE_SIZE, BrowsePageCache.PAGE_SIZE);
+                    mMediaBrowser.subscribe(mFolderId, options, this);
+                    return;
+                }
+                if (!deliver(items)) return;
             }
-            mMediaBrowser.unsubscribe(parentId);
+            onPagesLoaded();
         }
 
-        /* UID is invalid */
-        @Override
-        public void onError(String id) {
-            Log.e(TAG, "set browsed player rsp. Could not get root folder items");
-            mMediaInterface.setBrowsedPlayerRsp(mBDAddr, AvrcpConstants.RSP_INTERNAL_ERR,
-                    (byte)0x00, 0, null);
+        /* Returns false once the last page was delivered */
+        private boolean deliver(List<MediaBrowser.MediaItem> items) {
+            onPage(mPage, items);
+            mPage++;
+            if (items.size() < BrowsePageCache.PAGE_SIZE || mPage > mLastPage) {
+                onPagesLoaded();
+                return false;
+            }
+            return true;
         }
-    };
-
-    /* callback from media player in response to getitemAttr request */
-    private class ItemAttribSubscriber extends MediaBrowser.SubscriptionCallback {
-        private String mMediaId;
-        private AvrcpCmd.ItemAttrCmd mAttrReq;
 
-        public ItemAttribSubscriber(
-                @NonNull AvrcpCmd.ItemAttrCmd attrReq, @NonNull String mediaId) {
-            mAttrReq = attrReq;
-            mMediaId = mediaId;
+        private boolean onPageLoaded(List<MediaBrowser.MediaItem> items) {
+            mPageCache.putPage(
+                    mPlayerPackage, mFolderId, mPage, items, SystemClock.elapsedRealtime());
+            return deliver(items);
         }
 
         @Override
-        public void onChildrenLoaded(String parentId, List<MediaBrowser.MediaItem> children) {
-            String logprefix = "ItemAttribSubscriber(" + mMediaId + "): ";
-            if (DEBUG) Log.d(TAG, logprefix + "OnChildren Loaded");
-            int status = AvrcpConstants.RSP_INV_ITEM;
+        public void onChildrenLoaded(
+                String parentId, List<MediaBrowser.MediaItem> children, Bundle options) {
+            if (DEBUG) Log.d(TAG, "onChildrenLoaded: " + parentId + " page " + mPage);
+            if (mMediaBrowser != null) mMediaBrowser.unsubscribe(parentId, this);
 
-            if (children == null) {
-                Log.w(TAG, logprefix + "children list is null parentId: " + parentId);
-            } else {
-                /* find the item in the folder */
-                for (MediaBrowser.MediaItem item : children) {
-                    if (item.getMediaId().equals(mMediaId)) {
-                        if (DEBUG) Log.d(TAG, logprefix + "found item");
-                        getItemAttrFilterAttr(item);
-                        status = AvrcpConstants.RSP_NO_ERROR;
-                        break;
-                    }
-                }
-            }
-            /* Send only error from here, in case of success, getItemAttrFilterAttr sends */
-            if (status != AvrcpConstants.RSP_NO_ERROR) {
-                Log.e(TAG, logprefix + "not able to find item from " + parentId);
-                mMediaInterface.getItemAttrRsp(mBDAddr, status, null);
+            if (children.size() <= BrowsePageCache.PAGE_SIZE) {
+                if (onPageLoaded(children)) start();
+                return;
             }
-            mMediaBrowser.unsubscribe(parentId);
+
+            /* The player ignored the paging options and sent the whole folder, cut it in pages */
+            List<MediaBrowser.MediaItem> page;
+            do {
+                int from = (int) Math.min(children.size(),
+                        (long) mPage * BrowsePageCache.PAGE_SIZE);
+                int to = Math.min(children.size(), from + BrowsePageCache.PAGE_SIZE);
+                page = new ArrayList<MediaBrowser.MediaItem>(children.subList(from, to));
+            } while (onPageLoaded(page));
         }
 
         @Override
-        public void onError(String id) {
-            Log.e(TAG, "Could not get attributes from media player id: " + id);
-            mMediaInterface.getItemAttrRsp(mBDAddr, AvrcpConstants.RSP_INTERNAL_ERR, null);
+        public void onError(String parentId, Bundle options) {
+            Log.e(TAG, "Could not load page " + mPage + " of " + parentId);
+            if (mMediaBrowser != null) mMediaBrowser.unsubscribe(parentId, this);
+            onLoadError(mPage);
         }
+    }
 
-        /* helper method to filter required attibuteand send GetItemAttr response */
-        private void getItemAttrFilterAttr(@NonNull MediaBrowser.MediaItem mediaItem) {
-            /* Response parameters */
-            int[] attrIds = null; /* array of attr ids */
-            String[] attrValues = null; /* array of attr values */
+    /* helper method to filter required attibuteand send GetItemAttr response */
+    private void getItemAttrFilterAttr(
+            @NonNull AvrcpCmd.ItemAttrCmd attrReq, @NonNull MediaBrowser.MediaItem mediaItem) {
+        /* Response parameters */
+        int[] attrIds = null; /* array of attr ids */
+        String[] attrValues = null; /* array of attr values */
 
-            /* variables to temperorily add attrs */
-            ArrayList<Integer> attrIdArray = new ArrayList<Integer>();
-            ArrayList<String> attrValueArray = new ArrayList<String>();
-            ArrayList<Integer> attrReqIds = new ArrayList<Integer>();
+        /* variables to temperorily add attrs */
+        ArrayList<Integer> attrIdArray = new ArrayList<Integer>();
+        ArrayList<String> attrValueArray = new ArrayList<String>();
+        ArrayList<Integer> attrReqIds = new ArrayList<Integer>();
+
+        if (attrReq.mNumAttr == AvrcpConstants.NUM_ATTR_NONE) {
+            // Note(jamuraa): the stack should never send this, remove?
+            Log.i(TAG, "getItemAttrFilterAttr: No attributes requested");
+            mMediaInterface.getItemAttrRsp(mBDAddr, AvrcpConstants.RSP_BAD_PARAM, null);
+            return;
+        }
 
-            if (mAttrReq.mNumAttr == AvrcpConstants.NUM_ATTR_NONE) {
-                // Note(jamuraa): the stack should never send this, remove?
-                Log.i(TAG, "getItemAttrFilterAttr: No attributes requested");
-                mMediaInterface.getItemAttrRsp(mBDAddr, AvrcpConstants.RSP_BAD_PARAM, null);
-                return;
+        /* check if remote device has requested all attributes */
+        if (attrReq.mNumAttr == AvrcpConstants.NUM_ATTR_ALL
+                || attrReq.mNumAttr == AvrcpConstants.MAX_NUM_ATTR) {
+            for (int idx = 1; idx <= AvrcpConstants.MAX_NUM_ATTR; idx++) {
+                attrReqIds.add(idx); /* attr id 0x00 is unused */
             }
-
-            /* check if remote device has requested all attributes */
-            if (mAttrReq.mNumAttr == AvrcpConstants.NUM_ATTR_ALL
-                    || mAttrReq.mNumAttr == AvrcpConstants.MAX_NUM_ATTR) {
-                for (int idx = 1; idx <= AvrcpConstants.MAX_NUM_ATTR; idx++) {
-                    attrReqIds.add(idx); /* attr id 0x00 is unused */
-                }
-            } else {
-                /* get only the requested attribute ids from the request */
-                for (int idx = 0; idx < mAttrReq.mNumAttr; idx++) {
-                    attrReqIds.add(mAttrReq.mAttrIDs[idx]);
-                }
+        } else {
+            /* get only the requested attribute ids from the request */
+            for (int idx = 0; idx < attrReq.mNumAttr; idx++) {
+                attrReqIds.add(attrReq.mAttrIDs[idx]);
             }
+        }
 
-            /* lookup and copy values of attributes for ids requested above */
-            for (int attrId : attrReqIds) {
-                /* check if media player provided requested attributes */
-                String value = getAttrValue(attrId, mediaItem);
-                if (value != null) {
-                    attrIdArray.add(attrId);
-                    attrValueArray.add(value);
-                }
+        /* lookup and copy values of attributes for ids requested above */
+        for (int attrId : attrReqIds) {
+            /* check if media player provided requested attributes */
+            String value = getAttrValue(attrId, mediaItem);
+            if (value != null) {
+                attrIdArray.add(attrId);
+                attrValueArray.add(value);
             }
+        }
 
-            /* copy filtered attr ids and attr values to response parameters */
-            attrIds = new int[attrIdArray.size()];
-            for (int i = 0; i < attrIdArray.size(); i++) attrIds[i] = attrIdArray.get(i);
+        /* copy filtered attr ids and attr values to response parameters */
+        attrIds = new int[attrIdArray.size()];
+        for (int i = 0; i < attrIdArray.size(); i++) attrIds[i] = attrIdArray.get(i);
 
-            attrValues = attrValueArray.toArray(new String[attrIdArray.size()]);
+        attrValues = attrValueArray.toArray(new String[attrIdArray.size()]);
 
-            /* create rsp object and send response */
-            ItemAttrRsp rspObj = new ItemAttrRsp(AvrcpConstants.RSP_NO_ERROR, attrIds, attrValues);
-            mMediaInterface.getItemAttrRsp(mBDAddr, AvrcpConstants.RSP_NO_ERROR, rspObj);
-        }
+        /* create rsp object and send response */
+        ItemAttrRsp rspObj = new ItemAttrRsp(AvrcpConstants.RSP_NO_ERROR, attrIds, attrValues);
+        mMediaInterface.getItemAttrRsp(mBDAddr, AvrcpConstants.RSP_NO_ERROR, rspObj);
     }
 
     /* Constructor */
     public BrowsedMediaPlayer(byte[] address, Context context,
-            AvrcpMediaRspInterface mAvrcpMediaRspInterface) {
+            AvrcpMediaRspInterface mAvrcpMediaRspInterface, BrowsePageCache pageCache) {
         mContext = context;
         mMediaInterface = mAvrcpMediaRspInterface;
         mBDAddr = address;
+        mPageCache = pageCache;
+    }
+
+    /*
+     * Count the items of a folder the remote moved to and send the response to the
+     * SetBrowsedPlayer or ChangePath command. Unless another device did it recently, the folder
+     * is counted one page at a time, only its first pages are kept in the page cache. A player
+     * that ignores the paging options sends the whole folder for the first page, that response
+     * is used as the whole folder. The other pages are loaded when the remote asks for them.
+     */
+    private void enterFolder(final String folderId, final boolean setBrowsed) {
+        mFolderSize = -1;
+        mItemPages.clear();
+        mBrowsableItems.clear();
+
+        long now = SystemClock.elapsedRealtime();
+        int size = mPageCache.getSize(mPackageName, folderId, now);
+        if (size >= 0) {
+            onFolderEntered(size, setBrowsed);
+            return;
+        }
+
+        if (mMediaBrowser == null) {
+            Log.e(TAG, "enterFolder: mMediaBrowser is null");
+            onEnterFolderError(folderId, setBrowsed);
+            return;
+        }
+
+        new FolderCounter(folderId, setBrowsed).requestPage();
+    }
+
+    /* Counts the items of a folder with a paged subscription, see enterFolder() */
+    private class FolderCounter extends MediaBrowser.SubscriptionCallback {
+        private final String mPlayerPackage;
+        private final String mFolderId;
+        private final boolean mSetBrowsed;
+        private int mPage = 0;
+        /* Media ID of the first item of the folder */
+        private String mFirstId;
+
+        FolderCounter(String folderId, boolean setBrowsed) {
+            mPlayerPackage = mPackageName;
+            mFolderId = folderId;
+            mSetBrowsed = setBrowsed;
+        }
+
+        void requestPage() {
+            if (mMediaBrowser == null) {
+                Log.e(TAG, "FolderCounter: mMediaBrowser is null");
+                onEnterFolderError(mFolderId, mSetBrowsed);
+                return;
+            }
+            Bundle options = new Bundle();
+            options.putInt(MediaBrowser.EXTRA_PAGE, mPage);
+            options.putInt(MediaBrowser.EXTRA_PAGE_SIZE, BrowsePageCache.PAGE_SIZE);
+            mMediaBrowser.subscribe(mFolderId, options, this);
+        }
+
+        private void onCounted(int size) {
+            if (DEBUG) Log.d(TAG, "enterFolder: " + mFolderId + " has " + size + " items");
+            mPageCache.setSize(mPlayerPackage, mFolderId, size, SystemClock.elapsedRealtime());
+            onFolderEntered(size, mSetBrowsed);
+        }
+
+        @Override
+        public void onChildrenLoaded(
+                String parentId, List<MediaBrowser.MediaItem> children, Bundle options) {
+            if (mMediaBrowser != null) mMediaBrowser.unsubscribe(parentId, this);
+            long now = SystemClock.elapsedRealtime();
+
+            if (children.size() > BrowsePageCache.PAGE_SIZE) {
+                /* The player ignored the paging options and sent the whole folder */
+                if (DEBUG) Log.d(TAG, "enterFolder: " + mFolderId + " is not paged");
+                mPageCache.putFolder(mPlayerPackage, mFolderId, children, now);
+                onFolderEntered(children.size(), mSetBrowsed);
+                return;
+            }
+            if (mPage == 0 && children.size() > 0) {
+                mFirstId = children.get(0).getMediaId();
+            } else if (mPage > 0 && children.size() > 0 && mFirstId != null
+                    && mFirstId.equals(children.get(0).getMediaId())) {
+                /* A player ignoring the paging options with exactly one full page */
+                onCounted(mPage * BrowsePageCache.PAGE_SIZE);
+                return;
+            }
+
+            if (mPage < BrowsePageCache.PAGES_PER_FOLDER) {
+                mPageCache.putPage(mPlayerPackage, mFolderId, mPage, children, now);
+            }
+            if (children.size() < BrowsePageCache.PAGE_SIZE) {
+                onCounted(mPage * BrowsePageCache.PAGE_SIZE + children.size());
+                return;
+            }
+            mPage++;
+            requestPage();
+        }
+
+        @Override
+        public void onError(String parentId, Bundle options) {
+            if (mMediaBrowser != null) mMediaBrowser.unsubscribe(parentId, this);
+            if (mPage > 0) {
+                /* some players fail a page past the end instead of sending it empty */
+                onCounted(mPage * BrowsePageCache.PAGE_SIZE);
+                return;
+            }
+            onEnterFolderError(mFolderId, mSetBrowsed);
+        }
+    }
+
+    private void onEnterFolderError(String folderId, boolean setBrowsed) {
+        Log.e(TAG, "enterFolder: could not get items of " + folderId);
+        if (setBrowsed) {
+            mMediaInterface.setBrowsedPlayerRsp(mBDAddr, AvrcpConstants.RSP_INTERNAL_ERR,
+                    (byte) 0x00, 0, null);
+        } else {
+            mMediaInterface.changePathRsp(mBDAddr, AvrcpConstants.RSP_INTERNAL_ERR, 0);
+        }
+    }
+
+    private void onFolderEntered(int size, boolean setBrowsed) {
+        mFolderSize = size;
+        if (setBrowsed) {
+            if (DEBUG) Log.d(TAG, "sending setbrowsed player rsp");
+            mMediaInterface.setBrowsedPlayerRsp(mBDAddr, AvrcpConstants.RSP_NO_ERROR,
+                    (byte) 0x00, size, ROOT_FOLDER);
+        } else {
+            mMediaInterface.changePathRsp(mBDAddr, AvrcpConstants.RSP_NO_ERROR, size);
+        }
     }
 
     /* initialize mediacontroller in order to communicate with media player. */
@@ -319,7 +470,7 @@ class BrowsedMediaPlayer {
                 mMediaController = MediaController.wrap(
                     new android.media.session.MediaController(mContext, token));
                 /* get root folder items */
-                mMediaBrowser.subscribe(mRootFolderUid, folderItemsCb);
+                enterFolder(mRootFolderUid, true);
                 return;
             }
         } catch (NullPointerException ex) {
@@ -332,15 +483,17 @@ class BrowsedMediaPlayer {
     }
 
     public void setBrowsed(String packageName, String cls) {
-        Log.w(TAG, "!! In setBrowse function !!" + mFolderItems);
-        if ((mPackageName != packageName) || (mFolderItems == null)) {
+        Log.w(TAG, "!! In setBrowse function !!" + mFolderSize);
+        if ((mPackageName != packageName) || (mFolderSize < 0)) {
             Log.d(TAG, "setBrowse for packageName = " + packageName);
             mConnectingPackageName = packageName;
             mPackageName = packageName;
             mClassName = cls;
 
             /* cleanup variables from previous browsed calls */
-            mFolderItems = null;
+            mFolderSize = -1;
+            mItemPages.clear();
+            mBrowsableItems.clear();
             mMediaId = null;
             mRootFolderUid = null;
             /*
@@ -354,7 +507,7 @@ class BrowsedMediaPlayer {
                     mContext, new ComponentName(packageName, mClassName), callback, null);
             callback.setBrowser(tempBrowser);
             tempBrowser.connect();
-        } else if (mFolderItems != null) {
+        } else if (mFolderSize >= 0) {
             mPackageName = packageName;
             mClassName = cls;
             int rsp_status = AvrcpConstants.RSP_NO_ERROR;
@@ -374,11 +527,11 @@ class BrowsedMediaPlayer {
                         Log.d(TAG,"folderPath[" + i + "] = " + folderPath[i]);
                     }
                     mMediaInterface.setBrowsedPlayerRsp(mBDAddr, rsp_status,
-                            (byte)folder_depth, mFolderItems.size(), folderPath);
+                            (byte)folder_depth, mFolderSize, folderPath);
                 } else if (mPathStack.size() == 1) {
                     Log.d(TAG, "On root send SetBrowse response with root properties");
                     mMediaInterface.setBrowsedPlayerRsp(mBDAddr, rsp_status, (byte)folder_depth,
-                            mFolderItems.size(), ROOT_FOLDER);
+                            mFolderSize, ROOT_FOLDER);
                 }
             } else {
                 Log.e(TAG, "Path Stack empty sending internal error !!!");
@@ -443,9 +596,9 @@ class BrowsedMediaPlayer {
                 Log.e(TAG, "new_folder is same as current folder, Invalid direction!");
                 mMediaInterface.changePathRsp(mBDAddr, AvrcpConstants.RSP_INV_DIRN, 0);
             } else {
-                mMediaBrowser.subscribe(newPath, folderItemsCb);
                 /* assume that call is success and update stack with new folder path */
                 mPathStack.push(newPath);
+                enterFolder(newPath, false);
             }
         } else if (direction == AvrcpConstants.DIR_UP) { /* move up */
             if (isBrowsableFolderUp() == false) {
@@ -458,7 +611,7 @@ class BrowsedMediaPlayer {
                 /* move folder up */
                 mPathStack.pop();
                 newPath = mPathStack.peek();
-                mMediaBrowser.subscribe(newPath, folderItemsCb);
+                enterFolder(newPath, false);
             }
         } else { /* invalid direction */
             Log.w(TAG, "changePath : Invalid direction " + direction);
@@ -466,12 +619,11 @@ class BrowsedMediaPlayer {
         }
     }
 
-    public void getItemAttr(AvrcpCmd.ItemAttrCmd itemAttr) {
-        String mediaID;
+    public void getItemAttr(final AvrcpCmd.ItemAttrCmd itemAttr) {
         if (DEBUG) Log.d(TAG, "getItemAttr");
 
         /* check if uid is valid by doing a lookup in hashmap */
-        mediaID = byteToString(itemAttr.mUid);
+        final String mediaID = byteToString(itemAttr.mUid);
         if (mediaID == null) {
             Log.e(TAG, "uid is invalid");
             mMediaInterface.getItemAttrRsp(mBDAddr, AvrcpConstants.RSP_INV_ITEM, null);
@@ -491,8 +643,43 @@ class BrowsedMediaPlayer {
             return;
         }
 
-        /* Subscribe to the parent to list items and retrieve the right one */
-        mMediaBrowser.subscribe(mPathStack.peek(), new ItemAttribSubscriber(itemAttr, mediaID));
+        Integer itemPage = mItemPages.get(mediaID);
+        if (itemPage == null) {
+            Log.e(TAG, "getItemAttr: " + mediaID + " was not listed in the current folder");
+            mMediaInterface.getItemAttrRsp(mBDAddr, AvrcpConstants.RSP_INV_ITEM, null);
+            return;
+        }
+
+        /* Load the page of the current folder the item was listed in and retrieve it */
+        new PageLoader(mPathStack.peek(), itemPage, itemPage) {
+            private MediaBrowser.MediaItem mItem;
+
+            @Override
+            void onPage(int page, List<MediaBrowser.MediaItem> items) {
+                for (MediaBrowser.MediaItem item : items) {
+                    if (item.getMediaId().equals(mediaID)) {
+                        mItem = item;
+                        break;
+                    }
+                }
+            }
+
+            @Override
+            void onPagesLoaded() {
+                if (mItem == null) {
+                    Log.e(TAG, "getItemAttr: not able to find " + mediaID);
+                    mMediaInterface.getItemAttrRsp(mBDAddr, AvrcpConstants.RSP_INV_ITEM, null);
+                    return;
+                }
+                getItemAttrFilterAttr(itemAttr, mItem);
+            }
+
+            @Override
+            void onLoadError(int page) {
+                Log.e(TAG, "Could not get attributes from media player id: " + mediaID);
+                mMediaInterface.getItemAttrRsp(mBDAddr, AvrcpConstants.RSP_INTERNAL_ERR, null);
+            }
+        }.start();
     }
 
     public void getTotalNumOfItems(byte scope) {
@@ -503,19 +690,19 @@ class BrowsedMediaPlayer {
             return;
         }
 
-        if (mFolderItems == null) {
-            Log.e(TAG, "mFolderItems is null, sending internal error");
+        if (mFolderSize < 0) {
+            Log.e(TAG, "mFolderSize is unknown, sending internal error");
             /* folderitems were not fetched during change path */
             mMediaInterface.getTotalNumOfItemsRsp(mBDAddr, AvrcpConstants.RSP_INTERNAL_ERR, 0, 0);
             return;
         }
 
-        /* find num items using size of already cached folder items */
+        /* number of items counted when the remote moved to the folder */
         mMediaInterface.getTotalNumOfItemsRsp(
-                mBDAddr, AvrcpConstants.RSP_NO_ERROR, 0, mFolderItems.size());
+                mBDAddr, AvrcpConstants.RSP_NO_ERROR, 0, mFolderSize);
     }
 
-    public void getFolderItemsVFS(AvrcpCmd.FolderItemsCmd reqObj) {
+    public void getFolderItemsVFS(final AvrcpCmd.FolderItemsCmd reqObj) {
         if (!isPlayerConnected()) {
             Log.e(TAG, "unable to connect to media player, sending internal error");
             /* unable to connect to media player. Send error response to remote device */
@@ -526,17 +713,55 @@ class BrowsedMediaPlayer {
         if (DEBUG) Log.d(TAG, "getFolderItemsVFS");
         mFolderItemsReqObj = reqObj;
 
-        if (mFolderItems == null) {
+        if (mFolderSize < 0) {
             /* Failed to fetch folder items from media player. Send error to remote device */
             Log.e(TAG, "Failed to fetch folder items during getFolderItemsVFS");
             mMediaInterface.folderItemsRsp(mBDAddr, AvrcpConstants.RSP_INTERNAL_ERR, null);
             return;
         }
 
-        /* Filter attributes based on the request and send response to remote device */
-        getFolderItemsFilterAttr(mBDAddr, reqObj, mFolderItems,
-                AvrcpConstants.BTRC_SCOPE_FILE_SYSTEM, mFolderItemsReqObj.mStartItem,
-                mFolderItemsReqObj.mEndItem);
+        final long startItem = reqObj.mStartItem;
+        final long endItem = Math.min(Math.min(reqObj.mEndItem, mFolderSize - 1L),
+                startItem + MAX_FOLDER_ITEMS_PER_RSP - 1);
+        if (startItem > endItem) {
+            Log.w(TAG, "getFolderItemsVFS: start item " + startItem + " out of range, folder has "
+                    + mFolderSize + " items");
+            mMediaInterface.folderItemsRsp(mBDAddr, AvrcpConstants.RSP_INV_RANGE, null);
+            return;
+        }
+
+        /* Load only the pages of the requested range */
+        final String folderId = mPathStack.peek();
+        final int firstPage = (int) (startItem / BrowsePageCache.PAGE_SIZE);
+        final List<MediaBrowser.MediaItem> items = new ArrayList<MediaBrowser.MediaItem>();
+        new PageLoader(folderId, firstPage, (int) (endItem / BrowsePageCache.PAGE_SIZE)) {
+            @Override
+            void onPage(int page, List<MediaBrowser.MediaItem> pageItems) {
+                items.addAll(pageItems);
+                if (mPathStack == null || !folderId.equals(mPathStack.peek())) return;
+                for (MediaBrowser.MediaItem item : pageItems) {
+                    mItemPages.put(item.getMediaId(), page);
+                    if ((item.getFlags() & MediaBrowser.MediaItem.FLAG_BROWSABLE) != 0) {
+                        mBrowsableItems.add(item.getMediaId());
+                    }
+                }
+            }
+
+            @Override
+            void onPagesLoaded() {
+                /* Filter attributes based on the request and send response to remote device */
+                long offset = (long) firstPage * BrowsePageCache.PAGE_SIZE;
+                getFolderItemsFilterAttr(mBDAddr, reqObj, items,
+                        AvrcpConstants.BTRC_SCOPE_FILE_SYSTEM, startItem - offset,
+                        endItem - offset);
+            }
+
+            @Override
+            void onLoadError(int page) {
+                Log.e(TAG, "getFolderItemsVFS: could not load page " + page + " of " + folderId);
+                mMediaInterface.folderItemsRsp(mBDAddr, AvrcpConstants.RSP_INTERNAL_ERR, null);
+            }
+        }.start();
     }
 
     /* Instructs media player to play particular media item */
@@ -772,13 +997,8 @@ class BrowsedMediaPlayer {
 
     /* check if item is browsable Down*/
     private boolean isBrowsableFolderDn(String uid) {
-        for (MediaBrowser.MediaItem item : mFolderItems) {
-            if (item.getMediaId().equals(uid) &&
-                ((item.getFlags() & MediaBrowser.MediaItem.FLAG_BROWSABLE) ==
-                    MediaBrowser.MediaItem.FLAG_BROWSABLE))
-                return true;
-        }
-        return false;
+        /* the remote only knows the items it was sent, which were recorded then */
+        return mBrowsableItems.contains(uid);
     }
 
     /* check if browsable Up*/
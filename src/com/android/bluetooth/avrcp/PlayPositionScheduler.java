@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.annotation.Nullable;
+import android.media.session.PlaybackState;
+
+/*************************************************************************************************
+ * Decides when playback state updates from the player and play position notifications to the
+ * remote are worth sending.
+ *
+ * Players post PlaybackState updates many times per second, most of them only restating the
+ * position the state before it already implies. Those are dropped, and play position changes
+ * are reported to a device at most once per playback interval it registered with.
+ ************************************************************************************************/
+
+final class PlayPositionScheduler {
+    /* Difference with the extrapolated position still considered the same position */
+    static final long POSITION_TOLERANCE_MS = 250;
+
+    private PlayPositionScheduler() {}
+
+    /*
+     * Position of a state at nowMs, given that it was received at updateTimeMs. Returns
+     * PLAYBACK_POSITION_UNKNOWN if the state has no position.
+     */
+    static long extrapolatePosition(@Nullable PlaybackState state, long updateTimeMs, long nowMs) {
+        if (state == null || state.getPosition() == PlaybackState.PLAYBACK_POSITION_UNKNOWN) {
+            return PlaybackState.PLAYBACK_POSITION_UNKNOWN;
+        }
+        if (state.getState() != PlaybackState.STATE_PLAYING || updateTimeMs < 0) {
+            return state.getPosition();
+        }
+        // Some players report a speed of 0 while playing
+        float speed = state.getPlaybackSpeed() > 0 ? state.getPlaybackSpeed() : 1.0f;
+        return state.getPosition() + (long) ((nowMs - updateTimeMs) * speed);
+    }
+
+    /*
+     * When the position of a state was sampled: the player's own timestamp if it set one,
+     * otherwise receivedMs.
+     */
+    static long getPositionTime(PlaybackState state, long receivedMs) {
+        long updateTime = state.getLastPositionUpdateTime();
+        return updateTime > 0 ? updateTime : receivedMs;
+    }
+
+    /*
+     * Whether state, received at nowMs, brings nothing new over current, received at
+     * currentTimeMs: same state, speed and queue item, and a position matching the one
+     * extrapolated to the time the new position was sampled.
+     */
+    static boolean isRedundant(@Nullable PlaybackState current, long currentTimeMs,
+            @Nullable PlaybackState state, long nowMs) {
+        if (current == null || state == null) return false;
+        if (current.getState() != state.getState()
+                || current.getPlaybackSpeed() != state.getPlaybackSpeed()
+                || current.getActiveQueueItemId() != state.getActiveQueueItemId()) {
+            return false;
+        }
+
+        long expected = extrapolatePosition(current, getPositionTime(current, currentTimeMs),
+                getPositionTime(state, nowMs));
+        long position = state.getPosition();
+        if (expected == PlaybackState.PLAYBACK_POSITION_UNKNOWN
+                || position == PlaybackState.PLAYBACK_POSITION_UNKNOWN) {
+            return expected == position;
+        }
+        return Math.abs(expected - position) <= POSITION_TOLERANCE_MS;
+    }
+
+    /*
+     * Time to wait before a play position change can be notified to a device which was last
+     * notified at lastSentMs and registered with intervalMs. 0 if it can be sent now.
+     */
+    static long getHoldOffMs(long lastSentMs, long intervalMs, long nowMs) {
+        if (lastSentMs < 0 || intervalMs <= 0) return 0;
+        long elapsed = nowMs - lastSentMs;
+        if (elapsed < 0 || elapsed >= intervalMs) return 0;
+        return intervalMs - elapsed;
+    }
+}
@@ -90,6 +90,7 @@ public class AvrcpControllerService extends ProfileService {
      * NOTE: Not all may be defined.
      */
     private static final int JNI_AVRC_STS_NO_ERROR = 0x04;
+    private static final int JNI_AVRC_UID_CHANGED = 0x05;
     private static final int JNI_AVRC_INV_RANGE = 0x0b;
 
     /**
@@ -963,6 +964,16 @@ public class AvrcpControllerService extends ProfileService {
             return;
         }
 
+        if (status == JNI_AVRC_UID_CHANGED) {
+            // The UIDs of the folder changed while it was being fetched. End the fetch, the
+            // folders are then marked stale so that the next visit fetches them again.
+            Log.w(TAG, "UIDs changed during fetch.");
+            mAvrcpCtSm.sendMessage(AvrcpControllerStateMachine.
+                MESSAGE_PROCESS_GET_FOLDER_ITEMS_OUT_OF_RANGE);
+            handleUidsChanged();
+            return;
+        }
+
         for (MediaItem item : items) {
             if (DBG) {
                 Log.d(TAG, "media item: " + item + " uid: " + item.getDescription().getMediaId());
@@ -1084,6 +1095,14 @@ public class AvrcpControllerService extends ProfileService {
         mAvrcpCtSm.sendMessage(msg);
     }
 
+    // The remote reported that its UIDs changed, the UIDs of previously fetched items are stale.
+    private void handleUidsChanged() {
+        if (DBG) {
+            Log.d(TAG, "handleUidsChanged");
+        }
+        mAvrcpCtSm.sendMessage(AvrcpControllerStateMachine.MESSAGE_PROCESS_UIDS_CHANGED);
+    }
+
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
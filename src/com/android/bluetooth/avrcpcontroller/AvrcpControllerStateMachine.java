@@ -32,6 +32,7 @@ import android.media.MediaMetadata;
 import android.media.session.PlaybackState;
 import android.os.Bundle;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
@@ -74,6 +75,7 @@ class AvrcpControllerStateMachine extends StateMachine {
     static final int MESSAGE_PROCESS_FOLDER_PATH = 112;
     static final int MESSAGE_PROCESS_SET_BROWSED_PLAYER = 113;
     static final int MESSAGE_PROCESS_SET_ADDRESSED_PLAYER = 114;
+    static final int MESSAGE_PROCESS_UIDS_CHANGED = 115;
 
     // commands from A2DP sink
     static final int MESSAGE_STOP_METADATA_BROADCASTS = 201;
@@ -90,8 +92,12 @@ class AvrcpControllerStateMachine extends StateMachine {
     static final int MESSAGE_INTERNAL_CMD_TIMEOUT = 403;
 
     static final int CMD_TIMEOUT_MILLIS = 5000; // 5s
-    // Fetch only 5 items at a time.
+    // The first page of a folder listing is kept small so that the browser has something to
+    // show quickly. Following pages grow up to GET_FOLDER_ITEMS_PAGINATION_SIZE_MAX while the
+    // remote answers within GET_FOLDER_ITEMS_TARGET_LATENCY_MILLIS and shrink again otherwise.
     static final int GET_FOLDER_ITEMS_PAGINATION_SIZE = 5;
+    static final int GET_FOLDER_ITEMS_PAGINATION_SIZE_MAX = 64;
+    static final int GET_FOLDER_ITEMS_TARGET_LATENCY_MILLIS = 300;
 
     /*
      * Base value for absolute volume from JNI
@@ -138,6 +144,9 @@ class AvrcpControllerStateMachine extends StateMachine {
     // Depth from root of current browsing. This can be used to move to root directly.
     private int mBrowseDepth = 0;
 
+    // Page size learnt from previous folder fetches on this connection.
+    private int mFolderItemsPageSize = GET_FOLDER_ITEMS_PAGINATION_SIZE;
+
     // Browse tree.
     private BrowseTree mBrowseTree = new BrowseTree();
 
@@ -186,6 +195,7 @@ class AvrcpControllerStateMachine extends StateMachine {
                 case MESSAGE_PROCESS_CONNECTION_CHANGE:
                     if (msg.arg1 == BluetoothProfile.STATE_CONNECTED) {
                         mBrowseTree.init();
+                        mFolderItemsPageSize = GET_FOLDER_ITEMS_PAGINATION_SIZE;
                         transitionTo(mConnected);
                         BluetoothDevice rtDevice = (BluetoothDevice) msg.obj;
                         synchronized(mLock) {
@@ -384,6 +394,10 @@ class AvrcpControllerStateMachine extends StateMachine {
                         mRemoteDevice.setRemoteFeatures(msg.arg1);
                         break;
 
+                    case MESSAGE_PROCESS_UIDS_CHANGED:
+                        mBrowseTree.invalidateFolders();
+                        break;
+
                     case MESSAGE_PROCESS_SET_ABS_VOL_CMD:
                         mAbsoluteVolumeChangeInProgress = true;
                         setAbsVolume(msg.arg1, msg.arg2);
@@ -499,7 +513,17 @@ class AvrcpControllerStateMachine extends StateMachine {
                     }
                     Log.d(STATE_TAG, "New browse depth " + mBrowseDepth);
 
-                    if (msg.arg1 > 0) {
+                    BrowseTree.BrowseNode bn = mBrowseTree.findBrowseNodeByID(mID);
+                    if (bn != null && bn.isCached() && bn.getChildren().size() == msg.arg1) {
+                        // We have been here before and the remote still reports the same
+                        // number of items, serve the listing without fetching it again.
+                        Log.d(STATE_TAG, "Returning cached listing for " + mID);
+                        ArrayList<MediaItem> childrenList = new ArrayList<MediaItem>();
+                        for (BrowseTree.BrowseNode cn : bn.getChildren()) {
+                            childrenList.add(cn.getMediaItem());
+                        }
+                        broadcastFolderList(mID, childrenList);
+                    } else if (msg.arg1 > 0) {
                         sendMessage(MESSAGE_GET_FOLDER_LIST, 0, msg.arg1 -1, mID);
                     } else {
                         // Return an empty response to the upper layer.
@@ -539,13 +563,22 @@ class AvrcpControllerStateMachine extends StateMachine {
         int mScope;
         private ArrayList<MediaItem> mFolderList = new ArrayList<>();
 
+        // Number of items asked for in the outstanding request and when it was sent.
+        private int mRequestedItems;
+        private long mRequestTimeMillis;
+        // Largest page the remote answered in full during this listing. A remote trims the
+        // response to its browsing MTU, so a short page in the middle of a listing tells us
+        // how many items fit in one response.
+        private int mPageSizeLimit;
+
         @Override
         public void enter() {
+            super.enter();
             mCurrInd = 0;
             mFolderList.clear();
+            mPageSizeLimit = GET_FOLDER_ITEMS_PAGINATION_SIZE_MAX;
 
-            callNativeFunctionForScope(
-                mStartInd, Math.min(mEndInd, mStartInd + GET_FOLDER_ITEMS_PAGINATION_SIZE - 1));
+            fetchItems(mStartInd, GET_FOLDER_ITEMS_PAGINATION_SIZE);
         }
 
         public void setScope(int scope) {
@@ -577,6 +610,8 @@ class AvrcpControllerStateMachine extends StateMachine {
                             mCurrInd + " received " + folderList.size());
                     }
                     mCurrInd += folderList.size();
+                    updatePageSize(folderList.size(),
+                            SystemClock.elapsedRealtime() - mRequestTimeMillis);
 
                     // Always update the node so that the user does not wait forever
                     // for the list to populate.
@@ -589,10 +624,7 @@ class AvrcpControllerStateMachine extends StateMachine {
                         transitionTo(mConnected);
                     } else {
                         // Fetch the next set of items.
-                        callNativeFunctionForScope(
-                            (byte) mCurrInd,
-                            (byte) Math.min(
-                                mEndInd, mCurrInd + GET_FOLDER_ITEMS_PAGINATION_SIZE - 1));
+                        fetchItems(mCurrInd, mFolderItemsPageSize);
                         // Reset the timeout message since we are doing a new fetch now.
                         removeMessages(MESSAGE_INTERNAL_CMD_TIMEOUT);
                         sendMessageDelayed(MESSAGE_INTERNAL_CMD_TIMEOUT, CMD_TIMEOUT_MILLIS);
@@ -645,6 +677,34 @@ class AvrcpControllerStateMachine extends StateMachine {
             }
         }
 
+        // Adapt the page size to how the remote answered the last request: grow while it
+        // answers in full and quickly, back off when it is slow, and never ask for more than
+        // the remote managed to fit in one response.
+        private void updatePageSize(int received, long latencyMillis) {
+            if (received > 0 && received < mRequestedItems && mCurrInd <= mEndInd) {
+                mPageSizeLimit = Math.max(GET_FOLDER_ITEMS_PAGINATION_SIZE, received);
+            }
+            int pageSize = mFolderItemsPageSize;
+            if (latencyMillis > GET_FOLDER_ITEMS_TARGET_LATENCY_MILLIS) {
+                pageSize /= 2;
+            } else if (received == mRequestedItems) {
+                pageSize *= 2;
+            }
+            mFolderItemsPageSize = Math.max(GET_FOLDER_ITEMS_PAGINATION_SIZE,
+                    Math.min(pageSize, mPageSizeLimit));
+            if (DBG) {
+                Log.d(STATE_TAG, "received " + received + "/" + mRequestedItems + " in "
+                        + latencyMillis + "ms, page size " + mFolderItemsPageSize);
+            }
+        }
+
+        private void fetchItems(int start, int pageSize) {
+            int end = Math.min(mEndInd, start + pageSize - 1);
+            mRequestedItems = end - start + 1;
+            mRequestTimeMillis = SystemClock.elapsedRealtime();
+            callNativeFunctionForScope(start, end);
+        }
+
         private void callNativeFunctionForScope(int start, int end) {
             switch (mScope) {
                 case AvrcpControllerService.BROWSE_SCOPE_NOW_PLAYING:
@@ -771,6 +831,10 @@ class AvrcpControllerStateMachine extends StateMachine {
                     Log.d(STATE_TAG, "player depth " + msg.arg2);
                     mBrowseDepth = msg.arg2;
 
+                    // A new browsing session starts with the player, the response does not
+                    // carry the UID counter so assume the UIDs of the cached folders changed.
+                    mBrowseTree.invalidateFolders();
+
                     // If we already on top of player and there is no content.
                     // This should very rarely happen.
                     if (mBrowseDepth == 0 && msg.arg1 == 0) {
@@ -878,6 +942,7 @@ class AvrcpControllerStateMachine extends StateMachine {
 
     void dump(StringBuilder sb) {
         ProfileService.println(sb, "StateMachine: " + this.toString());
+        ProfileService.println(sb, mBrowseTree.toString());
     }
 
     MediaMetadata getCurrentMetaData() {
@@ -1132,6 +1197,9 @@ class AvrcpControllerStateMachine extends StateMachine {
             case MESSAGE_PROCESS_CONNECTION_CHANGE:
                 str = "CB_CONN_CHANGED";
                 break;
+            case MESSAGE_PROCESS_UIDS_CHANGED:
+                str = "CB_UIDS_CHANGED";
+                break;
             default:
                 str = Integer.toString(message);
                 break;
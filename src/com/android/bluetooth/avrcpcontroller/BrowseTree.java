@@ -26,6 +26,8 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Stack;
 
@@ -53,8 +55,16 @@ public class BrowseTree {
     public static final String NOW_PLAYING_PREFIX = "NOW_PLAYING";
     public static final String PLAYER_PREFIX = "PLAYER";
 
+    // Upper bound on the number of fetched items kept in the tree. Once exceeded the contents of
+    // the least recently used folders are dropped, they are fetched again on the next visit.
+    static final int MAX_CACHED_ITEMS = 2000;
+
     // Static instance of Folder ID <-> Folder Instance (for navigation purposes)
     private final HashMap<String, BrowseNode> mBrowseMap = new HashMap<String, BrowseNode>();
+    // Folders whose children are cached, least recently used first.
+    private final LinkedHashMap<String, BrowseNode> mCachedFolders =
+            new LinkedHashMap<String, BrowseNode>(16, 0.75f, true);
+    private int mCachedItemCount = 0;
     private BrowseNode mCurrentBrowseNode;
     private BrowseNode mCurrentBrowsedPlayer;
     private BrowseNode mCurrentAddressedPlayer;
@@ -62,7 +72,7 @@ public class BrowseTree {
     BrowseTree() {
     }
 
-    public void init() {
+    public synchronized void init() {
         MediaDescription.Builder mdb = new MediaDescription.Builder();
         mdb.setMediaId(ROOT);
         mdb.setTitle(ROOT);
@@ -73,20 +83,24 @@ public class BrowseTree {
         mCurrentBrowseNode = mBrowseMap.get(ROOT);
     }
 
-    public void clear() {
+    public synchronized void clear() {
         // Clearing the map should garbage collect everything.
         mBrowseMap.clear();
+        mCachedFolders.clear();
+        mCachedItemCount = 0;
     }
 
     // Each node of the tree is represented by Folder ID, Folder Name and the children.
+    // The item and ID of a node never change, everything else is guarded by the tree lock.
     class BrowseNode {
         // MediaItem to store the media related details.
-        MediaItem mItem;
+        final MediaItem mItem;
+        final String mID;
 
         // Type of this browse node.
         // Since Media APIs do not define the player separately we define that
         // distinction here.
-        boolean mIsPlayer = false;
+        final boolean mIsPlayer;
 
         // If this folder is currently cached, can be useful to return the contents
         // without doing another fetch.
@@ -96,11 +110,16 @@ public class BrowseTree {
         // once loading is finished.
         Result<List<MediaItem>> mResult = null;
 
-        // List of children.
+        BrowseNode mParent;
+
+        // List of children, in the order the remote returned them, and an index by ID.
         final List<BrowseNode> mChildren = new ArrayList<BrowseNode>();
+        final HashMap<String, BrowseNode> mChildIndex = new HashMap<String, BrowseNode>();
 
         BrowseNode(MediaItem item) {
             mItem = item;
+            mID = item.getDescription().getMediaId();
+            mIsPlayer = false;
         }
 
         BrowseNode(AvrcpPlayer player) {
@@ -115,57 +134,55 @@ public class BrowseTree {
             mdb.setMediaId(playerKey);
             mdb.setTitle(player.getName());
             mItem = new MediaBrowser.MediaItem(mdb.build(), MediaBrowser.MediaItem.FLAG_BROWSABLE);
+            mID = playerKey;
         }
 
-        synchronized List<BrowseNode> getChildren() {
-            return mChildren;
-        }
-
-        synchronized boolean isChild(BrowseNode node) {
-            for (BrowseNode bn : mChildren) {
-                if (bn.equals(node)) {
-                    return true;
-                }
+        List<BrowseNode> getChildren() {
+            synchronized (BrowseTree.this) {
+                return new ArrayList<BrowseNode>(mChildren);
             }
-            return false;
         }
 
-        synchronized boolean isCached() {
-            return mCached;
+        boolean isChild(BrowseNode node) {
+            synchronized (BrowseTree.this) {
+                return node != null && mChildIndex.containsKey(node.mID);
+            }
         }
 
-        synchronized void setCached(boolean cached) {
-            mCached = cached;
+        boolean isCached() {
+            synchronized (BrowseTree.this) {
+                return mCached;
+            }
         }
 
         // Fetch the Unique UID for this item, this is unique across all elements in the tree.
-        synchronized String getID() {
-            return mItem.getDescription().getMediaId();
+        String getID() {
+            return mID;
         }
 
         // Get the BT Player ID associated with this node.
-        synchronized int getPlayerID() {
-            return Integer.parseInt(getID().replace(PLAYER_PREFIX, ""));
+        int getPlayerID() {
+            return Integer.parseInt(mID.replace(PLAYER_PREFIX, ""));
         }
 
         // Fetch the Folder UID that can be used to fetch folder listing via bluetooth.
         // This may not be unique hence this combined with direction will define the
         // browsing here.
-        synchronized String getFolderUID() {
+        String getFolderUID() {
             return mItem.getDescription().getExtras().getString(
                 AvrcpControllerService.MEDIA_ITEM_UID_KEY);
         }
 
-        synchronized MediaItem getMediaItem() {
+        MediaItem getMediaItem() {
             return mItem;
         }
 
-        synchronized boolean isPlayer() {
+        boolean isPlayer() {
             return mIsPlayer;
         }
 
-        synchronized boolean isNowPlaying() {
-            return getID().startsWith(NOW_PLAYING_PREFIX);
+        boolean isNowPlaying() {
+            return mID.startsWith(NOW_PLAYING_PREFIX);
         }
 
         @Override
@@ -174,12 +191,17 @@ public class BrowseTree {
                 return false;
             }
             BrowseNode otherNode = (BrowseNode) other;
-            return getID().equals(otherNode.getID());
+            return mID.equals(otherNode.mID);
+        }
+
+        @Override
+        public int hashCode() {
+            return mID.hashCode();
         }
 
         @Override
         public String toString() {
-            return "ID: " + getID() + " desc: " + mItem;
+            return "ID: " + mID + " desc: " + mItem;
         }
     }
 
@@ -210,16 +232,14 @@ public class BrowseTree {
         String parentID = parent.getID();
         // Make sure that the child list is clean.
         if (DBG) {
-            Log.d(TAG, "parent " + parentID + " child list " + parent.getChildren());
+            Log.d(TAG, "parent " + parentID + " child list size " + parent.mChildren.size());
         }
 
         addChildrenLocked(parent, bnList);
-        List<MediaItem> childrenList = new ArrayList<MediaItem>();
-        for (BrowseNode bn : parent.getChildren()) {
-            childrenList.add(bn.getMediaItem());
-        }
-
-        parent.setCached(true);
+        parent.mCached = true;
+        mCachedFolders.put(parentID, parent);
+        mCachedItemCount += parent.mChildren.size();
+        trimCacheLocked(parent);
     }
 
     synchronized BrowseNode findBrowseNodeByID(String parentID) {
@@ -228,26 +248,83 @@ public class BrowseTree {
             Log.e(TAG, "folder " + parentID + " not found!");
             return null;
         }
-        if (DBG) {
-            Log.d(TAG, "Browse map: " + mBrowseMap);
-        }
+        // Mark the folder as recently used.
+        mCachedFolders.get(parentID);
         return bn;
     }
 
-    BrowseNode findFolderByIDLocked(String parentID) {
+    synchronized BrowseNode findFolderByIDLocked(String parentID) {
         return mBrowseMap.get(parentID);
     }
 
     void addChildrenLocked(BrowseNode parent, List<BrowseNode> items) {
         // Remove existing children and then add the new children.
-        for (BrowseNode c : parent.getChildren()) {
-            mBrowseMap.remove(c.getID());
-        }
-        parent.getChildren().clear();
+        removeChildrenLocked(parent);
 
         for (BrowseNode bn : items) {
-            parent.getChildren().add(bn);
-            mBrowseMap.put(bn.getID(), bn);
+            bn.mParent = parent;
+            parent.mChildren.add(bn);
+            parent.mChildIndex.put(bn.mID, bn);
+            mBrowseMap.put(bn.mID, bn);
+        }
+    }
+
+    // Drop the children of a node, and everything below them, from the tree.
+    private void removeChildrenLocked(BrowseNode parent) {
+        if (mCachedFolders.remove(parent.mID) != null) {
+            mCachedItemCount -= parent.mChildren.size();
+        }
+        for (BrowseNode c : parent.mChildren) {
+            removeChildrenLocked(c);
+            // Only drop the mapping if it was not replaced by a node elsewhere in the tree.
+            if (mBrowseMap.get(c.mID) == c) {
+                mBrowseMap.remove(c.mID);
+            }
+        }
+        parent.mChildren.clear();
+        parent.mChildIndex.clear();
+        parent.mCached = false;
+    }
+
+    // A folder can not be evicted while it, or something below it, is being browsed. The root
+    // is kept as well since it holds the players.
+    private boolean isEvictableLocked(BrowseNode node, BrowseNode keep) {
+        if (node.mID.equals(ROOT) || node == keep) {
+            return false;
+        }
+        for (BrowseNode n = mCurrentBrowseNode; n != null; n = n.mParent) {
+            if (n == node) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void trimCacheLocked(BrowseNode keep) {
+        Iterator<BrowseNode> it = new ArrayList<BrowseNode>(mCachedFolders.values()).iterator();
+        while (mCachedItemCount > MAX_CACHED_ITEMS && it.hasNext()) {
+            BrowseNode lru = it.next();
+            if (!mCachedFolders.containsKey(lru.mID) || !isEvictableLocked(lru, keep)) {
+                continue;
+            }
+            if (DBG) {
+                Log.d(TAG, "evicting " + lru.mID + " with " + lru.mChildren.size() + " items");
+            }
+            removeChildrenLocked(lru);
+        }
+    }
+
+    /**
+     * Mark every cached folder except the player list as stale, called when the remote reports
+     * that the UIDs of its items changed. Each folder is fetched again on its next visit.
+     */
+    synchronized void invalidateFolders() {
+        for (BrowseNode folder : mCachedFolders.values()) {
+            if (!folder.mID.equals(ROOT)) {
+                // The items are kept until the next fetch replaces them, they may still be
+                // shown by the browser.
+                folder.mCached = false;
+            }
         }
     }
 
@@ -267,8 +344,8 @@ public class BrowseTree {
             return DIRECTION_SAME;
         } else {
             Log.w(TAG, "from folder " + mCurrentBrowseNode + " children " +
-                fromFolder.getChildren() + "to folder " + toUID + " children " +
-                toFolder.getChildren());
+                fromFolder.mChildren.size() + "to folder " + toUID + " children " +
+                toFolder.mChildren.size());
             return DIRECTION_UNKNOWN;
         }
     }
@@ -280,12 +357,8 @@ public class BrowseTree {
             return false;
         }
 
-        // Set the previous folder as not cached so that we fetch the contents again.
-        if (!bn.equals(mCurrentBrowseNode)) {
-            Log.d(TAG, "Set cache false " + bn + " curr " + mCurrentBrowseNode);
-            mCurrentBrowseNode.setCached(false);
-        }
-
+        // The previous folder stays cached, it is only dropped by the LRU policy or when the
+        // remote invalidates its UIDs.
         mCurrentBrowseNode = bn;
         return true;
     }
@@ -323,7 +396,8 @@ public class BrowseTree {
     }
 
     @Override
-    public String toString() {
-        return mBrowseMap.toString();
+    public synchronized String toString() {
+        return "BrowseTree: " + mBrowseMap.size() + " nodes, " + mCachedFolders.size()
+                + " cached folders holding " + mCachedItemCount + " items";
     }
 }
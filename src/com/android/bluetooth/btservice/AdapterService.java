@@ -75,6 +75,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelUuid;
 import android.os.PowerManager;
@@ -235,6 +236,15 @@ public class AdapterService extends Service {
     private boolean mNativeAvailable;
     private boolean mCleaningUp;
     private HashMap<String,Integer> mProfileServicesState = new HashMap<String,Integer>();
+    private final ProfileStartupOrchestrator mProfileStartup = new ProfileStartupOrchestrator(
+            new ProfileStartupOrchestrator.Callback() {
+                @Override
+                public void startProfileService(Class service) {
+                    setProfileServiceState(service, BluetoothAdapter.STATE_ON);
+                }
+            });
+    // On-demand profile services left stopped on enable, keyed by class name. See Config.
+    private final HashMap<String, Class> mDormantProfiles = new HashMap<String, Class>();
     //Only BluetoothManagerService should be registered
     private RemoteCallbackList<IBluetoothCallback> mCallbacks;
     private int mCurrentRequestId;
@@ -336,6 +346,11 @@ public class AdapterService extends Service {
             return;
         }
 
+        if (state == BluetoothAdapter.STATE_ON) {
+            // Lets the services that depend on this one start.
+            mProfileStartup.onProfileServiceStarted(serviceName);
+        }
+
         synchronized (mAdapterStateMachine) {
             isTurningOff = mAdapterStateMachine.isTurningOff();
             isTurningOn = mAdapterStateMachine.isTurningOn();
@@ -397,6 +412,10 @@ public class AdapterService extends Service {
                         Log.w(TAG, "Skip GATT service - already started before");
                         continue;
                     }
+                    if (isProfileDormant(entry.getKey())) {
+                        debugLog("Skip dormant service " + entry.getKey());
+                        continue;
+                    }
                     if (BluetoothAdapter.STATE_ON != entry.getValue()) {
                         Log.w(TAG, "onProfileServiceStateChange() - Profile still not running:"
                               + entry.getKey());
@@ -490,6 +509,9 @@ public class AdapterService extends Service {
                 BatteryStats.SERVICE_NAME));
 
         mSdpManager = SdpManager.init(this);
+        // Warm up the profile priority cache so PhonePolicy does not hit the settings provider
+        // for every bonded device once the adapter turns on.
+        ProfilePriorityStore.getInstance(this).load();
         registerReceiver(mAlarmBroadcastReceiver, new IntentFilter(ACTION_ALARM_WAKEUP));
         registerReceiver(mWifiStateBroadcastReceiver, new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION));
         mProfileObserver = new ProfileObserver(getApplicationContext(), this, new Handler());
@@ -593,14 +615,104 @@ public class AdapterService extends Service {
 
         //Start profile services
         if (!mProfilesStarted && supportedProfileServices.length >0) {
-            //Startup all profile services
-            setProfileServiceState(supportedProfileServices,BluetoothAdapter.STATE_ON);
+            //Startup all profile services, in dependency order
+            mProfileStartup.start(getProfilesToStart(supportedProfileServices));
         }else {
             Log.w(TAG,"startCoreProfiles(): Profile Services alreay started");
             mAdapterStateMachine.sendMessage(mAdapterStateMachine.obtainMessage(AdapterState.BREDR_STARTED));
         }
     }
 
+    /**
+     * Leave out the on-demand profile services that no bonded device needs yet.
+     */
+    @SuppressWarnings("rawtypes")
+    private Class[] getProfilesToStart(Class[] services) {
+        ArrayList<Class> profiles = new ArrayList<Class>(services.length);
+        synchronized (mDormantProfiles) {
+            mDormantProfiles.clear();
+            for (Class service : services) {
+                if (Config.getActivationPolicy(service) == Config.ACTIVATION_ON_DEMAND
+                        && !isProfileNeededByBondedDevice(service)) {
+                    Log.i(TAG, "Leaving " + service.getSimpleName() + " dormant");
+                    mDormantProfiles.put(service.getName(), service);
+                    continue;
+                }
+                profiles.add(service);
+            }
+        }
+        return profiles.toArray(new Class[profiles.size()]);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private boolean isProfileNeededByBondedDevice(Class service) {
+        ParcelUuid[] activationUuids = Config.getActivationUuids(service);
+        if (activationUuids == null) {
+            return false;
+        }
+        for (BluetoothDevice device : getBondedDevices()) {
+            DeviceProperties deviceProp = mRemoteDevices.getDeviceProperties(device);
+            if (deviceProp != null
+                    && BluetoothUuid.containsAnyUuid(deviceProp.getUuids(), activationUuids)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isProfileDormant(String serviceName) {
+        synchronized (mDormantProfiles) {
+            return mDormantProfiles.containsKey(serviceName);
+        }
+    }
+
+    /**
+     * Start an on-demand profile service that was left dormant when Bluetooth was enabled.
+     * Called from the profile's explicit connect or register entry points.
+     *
+     * @return true if the service was dormant and is now being started
+     */
+    boolean activateProfileService(Class service) {
+        if (!isProfileDormant(service.getName())) {
+            return false;
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MESSAGE_ACTIVATE_PROFILE_SERVICE, service));
+        return true;
+    }
+
+    /**
+     * Start the dormant on-demand profile services that a bonded device with these UUIDs needs.
+     */
+    void activateProfileServices(ParcelUuid[] uuids) {
+        if (uuids == null) {
+            return;
+        }
+        synchronized (mDormantProfiles) {
+            for (Class service : mDormantProfiles.values()) {
+                ParcelUuid[] activationUuids = Config.getActivationUuids(service);
+                if (activationUuids != null
+                        && BluetoothUuid.containsAnyUuid(uuids, activationUuids)) {
+                    activateProfileService(service);
+                }
+            }
+        }
+    }
+
+    private void processActivateProfileService(Class service) {
+        synchronized (mDormantProfiles) {
+            if (mDormantProfiles.remove(service.getName()) == null) {
+                return;
+            }
+        }
+        int state = getState();
+        if (state != BluetoothAdapter.STATE_ON && state != BluetoothAdapter.STATE_TURNING_ON) {
+            debugLog("processActivateProfileService() - adapter not on, ignoring " + service);
+            return;
+        }
+        Log.i(TAG, "Activating " + service.getSimpleName());
+        setProfileServiceState(service, BluetoothAdapter.STATE_ON);
+    }
+
     void startBluetoothDisable() {
         mAdapterStateMachine.sendMessage(mAdapterStateMachine.obtainMessage(AdapterState.BEGIN_DISABLE));
     }
@@ -624,6 +736,7 @@ public class AdapterService extends Service {
             for (int i=0; i<services.length; i++) {
                 boolean res = false;
                 String serviceName = services[i].getName();
+                if (isProfileDormant(serviceName)) continue;
 
                 mProfileServicesState.put(serviceName,BluetoothAdapter.STATE_OFF);
                 Intent intent = new Intent(this,services[i]);
@@ -730,6 +843,8 @@ public class AdapterService extends Service {
             mPhonePolicy.cleanup();
         }
 
+        ProfilePriorityStore.cleanupInstance();
+
         if (mProfileServicesState != null) {
             mProfileServicesState.clear();
         }
@@ -751,7 +866,12 @@ public class AdapterService extends Service {
         }
     }
 
+    // Binder call latency, per IBluetooth transaction code.
+    private static final Instrumentation.ProbeGroup sBinderProbes =
+            new Instrumentation.ProbeGroup("IBluetooth#", 256);
+
     private static final int MESSAGE_PROFILE_SERVICE_STATE_CHANGED =1;
+    private static final int MESSAGE_ACTIVATE_PROFILE_SERVICE = 2;
 
     private final Handler mHandler = new Handler() {
         @Override
@@ -764,6 +884,9 @@ public class AdapterService extends Service {
                     processProfileServiceStateChanged((String) msg.obj, msg.arg1);
                 }
                     break;
+                case MESSAGE_ACTIVATE_PROFILE_SERVICE:
+                    processActivateProfileService((Class) msg.obj);
+                    break;
             }
         }
     };
@@ -819,40 +942,52 @@ public class AdapterService extends Service {
             return;
         }
 
-        int expectedCurrentState= BluetoothAdapter.STATE_OFF;
-        int pendingState = BluetoothAdapter.STATE_TURNING_ON;
-        if (state == BluetoothAdapter.STATE_OFF) {
-            expectedCurrentState= BluetoothAdapter.STATE_ON;
-            pendingState = BluetoothAdapter.STATE_TURNING_OFF;
-        }
         Log.w(TAG, "Total profiles ="+ (services.length));
 
         for (int i=0; i <services.length;i++) {
-            String serviceName = services[i].getName();
             String simpleName = services[i].getSimpleName();
 
             if (simpleName.equals("GattService")) continue;
 
-            Integer serviceState = mProfileServicesState.get(serviceName);
-            if(serviceState != null && serviceState != expectedCurrentState) {
-                Log.w(TAG, "setProfileServiceState() - Unable to "
-                    + (state == BluetoothAdapter.STATE_OFF ? "start" : "stop" )
-                    + " service " + serviceName
-                    + ". Invalid state: " + serviceState);
+            // Dormant on-demand services were never started, there is nothing to stop.
+            if (state == BluetoothAdapter.STATE_OFF && isProfileDormant(services[i].getName())) {
+                debugLog("setProfileServiceState() - Skip dormant service " + simpleName);
                 continue;
             }
 
-            Log.w(TAG, "setProfileServiceState() - "
-                + (state == BluetoothAdapter.STATE_OFF ? "Stopping" : "Starting")
-                + " service " + serviceName);
+            setProfileServiceState(services[i], state);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void setProfileServiceState(Class service, int state) {
+        int expectedCurrentState= BluetoothAdapter.STATE_OFF;
+        int pendingState = BluetoothAdapter.STATE_TURNING_ON;
+        if (state == BluetoothAdapter.STATE_OFF) {
+            expectedCurrentState= BluetoothAdapter.STATE_ON;
+            pendingState = BluetoothAdapter.STATE_TURNING_OFF;
+        }
 
-            mProfileServicesState.put(serviceName,pendingState);
-            Intent intent = new Intent(this,services[i]);
-            intent.putExtra(EXTRA_ACTION,ACTION_SERVICE_STATE_CHANGED);
-            intent.putExtra(BluetoothAdapter.EXTRA_STATE,state);
-            intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
-            startService(intent);
+        String serviceName = service.getName();
+        Integer serviceState = mProfileServicesState.get(serviceName);
+        if(serviceState != null && serviceState != expectedCurrentState) {
+            Log.w(TAG, "setProfileServiceState() - Unable to "
+                + (state == BluetoothAdapter.STATE_OFF ? "start" : "stop" )
+                + " service " + serviceName
+                + ". Invalid state: " + serviceState);
+            return;
         }
+
+        Log.w(TAG, "setProfileServiceState() - "
+            + (state == BluetoothAdapter.STATE_OFF ? "Stopping" : "Starting")
+            + " service " + serviceName);
+
+        mProfileServicesState.put(serviceName,pendingState);
+        Intent intent = new Intent(this,service);
+        intent.putExtra(EXTRA_ACTION,ACTION_SERVICE_STATE_CHANGED);
+        intent.putExtra(BluetoothAdapter.EXTRA_STATE,state);
+        intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
+        startService(intent);
     }
 
     private boolean isAvailable() {
@@ -881,6 +1016,19 @@ public class AdapterService extends Service {
         public AdapterServiceBinder(AdapterService svc) {
             mService = svc;
         }
+
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            long start = Instrumentation.start();
+            try {
+                return super.onTransact(code, data, reply, flags);
+            } finally {
+                if (start != 0) {
+                    sBinderProbes.get(code).end(start);
+                }
+            }
+        }
         public boolean cleanup() {
             mService = null;
             return true;
@@ -1621,6 +1769,22 @@ public class AdapterService extends Service {
         return Utils.getAddressStringFromByte(address);
     }
 
+    /**
+     * Get the remote device for an address reported by the stack. Devices the stack already
+     * knows about are resolved without formatting the address.
+     */
+    public BluetoothDevice getDeviceFromByte(byte[] address) {
+        BluetoothDevice device = null;
+        if (mRemoteDevices != null) {
+            device = mRemoteDevices.getDevice(address);
+        }
+        if (device == null) {
+            device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
+                    Utils.getAddressStringFromByte(address));
+        }
+        return device;
+    }
+
      ParcelUuid[] getUuids() {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
@@ -2423,6 +2587,17 @@ public class AdapterService extends Service {
 
         // Dump profile information
         StringBuilder sb = new StringBuilder();
+        sb.append("Profile startup:\n");
+        mProfileStartup.dump(sb);
+        synchronized (mDormantProfiles) {
+            ProfileService.println(sb, "Dormant: " + mDormantProfiles.keySet());
+        }
+        sb.append("Instrumentation:\n");
+        Instrumentation.dump(sb);
+        if (mSdpManager != null) {
+            sb.append("SdpManager:\n");
+            mSdpManager.dump(sb);
+        }
         synchronized (mProfiles) {
             for (ProfileService profile : mProfiles) {
                 profile.dump(sb);
@@ -2438,6 +2613,8 @@ public class AdapterService extends Service {
     private void dumpJava(FileDescriptor fd) {
         BluetoothProto.BluetoothLog log = new BluetoothProto.BluetoothLog();
         log.setNumBondedDevices(getBondedDevices().length);
+        mProfileStartup.dumpProto(log);
+        Instrumentation.dumpProto(log);
 
         for (ProfileService profile : mProfiles) {
             profile.dumpProto(log);
@@ -40,6 +40,7 @@ import android.os.PowerManager;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
+import com.android.bluetooth.sdp.SdpRecordCache;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
@@ -56,6 +57,8 @@ import java.util.ArrayList;
 final class BondStateMachine extends StateMachine {
     private static final boolean DBG = false;
     private static final String TAG = "BluetoothBondStateMachine";
+    private static final Instrumentation.Probe QUEUE_DELAY_PROBE =
+            Instrumentation.probe("BondStateMachine.queueDelay");
 
     static final int CREATE_BOND = 1;
     static final int CANCEL_BOND = 2;
@@ -385,8 +388,10 @@ final class BondStateMachine extends StateMachine {
         intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
         intent.putExtra(BluetoothDevice.EXTRA_BOND_STATE, newState);
         intent.putExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, oldState);
-        if (newState == BluetoothDevice.BOND_NONE)
+        if (newState == BluetoothDevice.BOND_NONE) {
             intent.putExtra(BluetoothDevice.EXTRA_REASON, reason);
+            SdpRecordCache.getInstance().invalidate(device);
+        }
         mAdapterService.sendBroadcastAsUser(intent, UserHandle.ALL,
                 AdapterService.BLUETOOTH_PERM);
         infoLog("Bond State Change Intent:" + device + " OldState: " + oldState
@@ -516,6 +521,11 @@ final class BondStateMachine extends StateMachine {
             a2dpService.resetAvrcpBlacklist(device);
     }
 
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        QUEUE_DELAY_PROBE.recordQueueDelay(msg);
+    }
+
     private void infoLog(String msg) {
         Log.i(TAG, msg);
     }
@@ -19,11 +19,13 @@ package com.android.bluetooth.btservice;
 import java.util.ArrayList;
 
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothUuid;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
 import android.provider.Settings;
 import android.util.Log;
+import android.os.ParcelUuid;
 import android.os.SystemProperties;
 
 import com.android.bluetooth.R;
@@ -71,7 +73,31 @@ public class Config {
             R.bool.profile_supported_hidd, R.bool.profile_supported_opp,
             R.bool.profile_supported_pbap};
 
+    /**
+     * The profile service is started whenever Bluetooth is enabled.
+     */
+    static final int ACTIVATION_ON_ENABLE = 0;
+    /**
+     * The profile service stays dormant until a bonded device advertises one of the UUIDs from
+     * {@link #getActivationUuids} or an app connects or registers through it.
+     */
+    static final int ACTIVATION_ON_DEMAND = 1;
+
+    /**
+     * Profile services that are started on demand when R.bool.config_bluetooth_on_demand_profiles
+     * is set, and the remote UUIDs that activate them. Services without UUIDs are only activated
+     * by an app connecting or registering through them. Server roles such as SAP can't be on
+     * demand: their SDP record is only registered once started, so a remote has nothing to
+     * connect to, and the remote doesn't advertise the UUID of the role we serve.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final Class[] ON_DEMAND_PROFILE_SERVICES = {HealthService.class,
+            HidDevService.class, MapClientService.class};
+    private static final ParcelUuid[][] ON_DEMAND_PROFILE_UUIDS = {null, null,
+            {BluetoothUuid.MAS}};
+
     private static Class[] SUPPORTED_PROFILES = new Class[0];
+    private static boolean sOnDemandProfiles = false;
 
     static void init(Context ctx) {
         if (ctx == null) {
@@ -93,6 +119,7 @@ public class Config {
             }
         }
         SUPPORTED_PROFILES = profiles.toArray(new Class[profiles.size()]);
+        sOnDemandProfiles = resources.getBoolean(R.bool.config_bluetooth_on_demand_profiles);
     }
 
     @SuppressWarnings("rawtypes")
@@ -127,6 +154,33 @@ public class Config {
         return SUPPORTED_PROFILES;
     }
 
+    /**
+     * @return {@link #ACTIVATION_ON_ENABLE} or {@link #ACTIVATION_ON_DEMAND}
+     */
+    static int getActivationPolicy(Class profile) {
+        if (sOnDemandProfiles) {
+            for (Class onDemand : ON_DEMAND_PROFILE_SERVICES) {
+                if (onDemand == profile) {
+                    return ACTIVATION_ON_DEMAND;
+                }
+            }
+        }
+        return ACTIVATION_ON_ENABLE;
+    }
+
+    /**
+     * @return the remote UUIDs that make a bonded device activate an on-demand profile service,
+     *         or null if only an app connecting or registering activates it
+     */
+    static ParcelUuid[] getActivationUuids(Class profile) {
+        for (int i = 0; i < ON_DEMAND_PROFILE_SERVICES.length; i++) {
+            if (ON_DEMAND_PROFILE_SERVICES[i] == profile) {
+                return ON_DEMAND_PROFILE_UUIDS[i];
+            }
+        }
+        return null;
+    }
+
     static long getSupportedProfilesBitMask() {
         long mask = 0;
         for (final Class profileClass : getSupportedProfiles()) {
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.os.Message;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency counters for JNI callbacks, binder calls and handler queues.
+ *
+ * Every instrumented call site owns a {@link Probe}, usually in a static final field, and wraps
+ * the measured code with {@link #start()} and {@link Probe#end(long)}. A probe counts the calls
+ * and keeps a log-linear histogram of their latency in microseconds, updated with atomics only.
+ *
+ * Instrumentation is enabled with the persist.bluetooth.instrumentation property and read once
+ * per process. When it is off {@link #start()} returns 0 and {@link Probe#end(long)} returns
+ * straight away.
+ */
+public final class Instrumentation {
+    private static final boolean ENABLED =
+            SystemProperties.getBoolean("persist.bluetooth.instrumentation", false);
+
+    // Each power of two is split into 2^SUB_BUCKET_BITS linear buckets, which keeps the
+    // relative error under 25% for any latency.
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Covers up to 2^32 us (~71 minutes), anything longer lands in the last bucket.
+    private static final int BUCKETS = (32 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static final ConcurrentHashMap<String, Probe> sProbes =
+            new ConcurrentHashMap<String, Probe>();
+
+    private Instrumentation() {}
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Get the probe with this name, creating it on first use.
+     */
+    public static Probe probe(String name) {
+        Probe probe = sProbes.get(name);
+        if (probe == null) {
+            Probe created = new Probe(name);
+            probe = sProbes.putIfAbsent(name, created);
+            if (probe == null) {
+                probe = created;
+            }
+        }
+        return probe;
+    }
+
+    /**
+     * @return the start timestamp to pass to {@link Probe#end(long)}, or 0 if disabled
+     */
+    public static long start() {
+        return ENABLED ? SystemClock.elapsedRealtimeNanos() : 0;
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return micros < 0 ? 0 : (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket, BUCKETS - 1);
+    }
+
+    /**
+     * @return the smallest latency in microseconds that falls into bucket {@code index}
+     */
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Counter and latency histogram for a single call site.
+     */
+    public static final class Probe {
+        private final String mName;
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalMicros = new AtomicLong();
+        private final AtomicLong mMaxMicros = new AtomicLong();
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+        private Probe(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Record the time elapsed since {@code startNanos}, as returned by {@link #start()}.
+         */
+        public void end(long startNanos) {
+            if (!ENABLED || startNanos == 0) {
+                return;
+            }
+            record((SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+        }
+
+        /**
+         * Record how long a message waited in its handler queue past its due time. Meant to be
+         * called when the message is dispatched.
+         */
+        public void recordQueueDelay(Message msg) {
+            // Messages posted at the front of the queue, e.g. deferred ones, have no due time.
+            if (!ENABLED || msg.getWhen() == 0) {
+                return;
+            }
+            record((SystemClock.uptimeMillis() - msg.getWhen()) * 1000);
+        }
+
+        public void record(long micros) {
+            if (!ENABLED) {
+                return;
+            }
+            if (micros < 0) {
+                micros = 0;
+            }
+            mCount.incrementAndGet();
+            mTotalMicros.addAndGet(micros);
+            mBuckets.incrementAndGet(bucketIndex(micros));
+            long max = mMaxMicros.get();
+            while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+                max = mMaxMicros.get();
+            }
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        /**
+         * @return an upper bound of the given percentile in microseconds
+         */
+        long getPercentile(double percentile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= target) {
+                    return i == BUCKETS - 1 ? mMaxMicros.get() : bucketLowerBound(i + 1) - 1;
+                }
+            }
+            return mMaxMicros.get();
+        }
+    }
+
+    /**
+     * Probes indexed by a small integer, e.g. binder transaction codes, created on first use.
+     */
+    public static final class ProbeGroup {
+        private final String mPrefix;
+        private final AtomicReferenceArray<Probe> mProbes;
+
+        public ProbeGroup(String prefix, int size) {
+            mPrefix = prefix;
+            mProbes = new AtomicReferenceArray<Probe>(size);
+        }
+
+        public Probe get(int index) {
+            if (index < 0 || index >= mProbes.length()) {
+                return probe(mPrefix + index);
+            }
+            Probe probe = mProbes.get(index);
+            if (probe == null) {
+                probe = probe(mPrefix + index);
+                mProbes.set(index, probe);
+            }
+            return probe;
+        }
+    }
+
+    private static ArrayList<Probe> getSortedProbes() {
+        ArrayList<Probe> probes = new ArrayList<Probe>(sProbes.values());
+        Collections.sort(probes, new Comparator<Probe>() {
+            @Override
+            public int compare(Probe a, Probe b) {
+                return a.mName.compareTo(b.mName);
+            }
+        });
+        return probes;
+    }
+
+    static void dump(StringBuilder sb) {
+        if (!ENABLED) {
+            ProfileService.println(sb, "Disabled, set persist.bluetooth.instrumentation to enable");
+            return;
+        }
+        ProfileService.println(sb, "name: count, avg/p50/p99/max us");
+        for (Probe probe : getSortedProbes()) {
+            long count = probe.getCount();
+            if (count == 0) {
+                continue;
+            }
+            ProfileService.println(sb, "  " + probe.mName + ": " + count + ", "
+                    + probe.mTotalMicros.get() / count + "/" + probe.getPercentile(50) + "/"
+                    + probe.getPercentile(99) + "/" + probe.mMaxMicros.get());
+        }
+    }
+
+    static void dumpProto(BluetoothProto.BluetoothLog proto) {
+        if (!ENABLED) {
+            return;
+        }
+        for (Probe probe : getSortedProbes()) {
+            if (probe.getCount() == 0) {
+                continue;
+            }
+            BluetoothProto.LatencyHistogram histogram = new BluetoothProto.LatencyHistogram();
+            histogram.setName(probe.mName);
+            histogram.setCount(probe.getCount());
+            histogram.setTotalMicros(probe.mTotalMicros.get());
+            histogram.setMaxMicros(probe.mMaxMicros.get());
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucketCount = probe.mBuckets.get(i);
+                if (bucketCount != 0) {
+                    histogram.addBucketLowerBoundMicros(bucketLowerBound(i));
+                    histogram.addBucketCount(bucketCount);
+                }
+            }
+            proto.addLatencyHistogram(histogram);
+        }
+    }
+}
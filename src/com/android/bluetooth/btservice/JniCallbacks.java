@@ -18,6 +18,25 @@ package com.android.bluetooth.btservice;
 
 final class JniCallbacks {
 
+    private static final Instrumentation.Probe SSP_REQUEST =
+            Instrumentation.probe("JniCallbacks.sspRequestCallback");
+    private static final Instrumentation.Probe DEVICE_PROPERTY_CHANGED =
+            Instrumentation.probe("JniCallbacks.devicePropertyChangedCallback");
+    private static final Instrumentation.Probe DEVICE_FOUND =
+            Instrumentation.probe("JniCallbacks.deviceFoundCallback");
+    private static final Instrumentation.Probe PIN_REQUEST =
+            Instrumentation.probe("JniCallbacks.pinRequestCallback");
+    private static final Instrumentation.Probe BOND_STATE_CHANGE =
+            Instrumentation.probe("JniCallbacks.bondStateChangeCallback");
+    private static final Instrumentation.Probe ACL_STATE_CHANGE =
+            Instrumentation.probe("JniCallbacks.aclStateChangeCallback");
+    private static final Instrumentation.Probe STATE_CHANGE =
+            Instrumentation.probe("JniCallbacks.stateChangeCallback");
+    private static final Instrumentation.Probe DISCOVERY_STATE_CHANGE =
+            Instrumentation.probe("JniCallbacks.discoveryStateChangeCallback");
+    private static final Instrumentation.Probe ADAPTER_PROPERTY_CHANGED =
+            Instrumentation.probe("JniCallbacks.adapterPropertyChangedCallback");
+
     private RemoteDevices mRemoteDevices;
     private AdapterProperties mAdapterProperties;
     private AdapterState mAdapterStateMachine;
@@ -47,39 +66,57 @@ final class JniCallbacks {
 
     void sspRequestCallback(byte[] address, byte[] name, int cod, int pairingVariant,
             int passkey) {
+        long start = Instrumentation.start();
         mBondStateMachine.sspRequestCallback(address, name, cod, pairingVariant,
             passkey);
+        SSP_REQUEST.end(start);
     }
     void devicePropertyChangedCallback(byte[] address, int[] types, byte[][] val) {
+        long start = Instrumentation.start();
         mRemoteDevices.devicePropertyChangedCallback(address, types, val);
+        DEVICE_PROPERTY_CHANGED.end(start);
     }
 
     void deviceFoundCallback(byte[] address) {
+        long start = Instrumentation.start();
         mRemoteDevices.deviceFoundCallback(address);
+        DEVICE_FOUND.end(start);
     }
 
     void pinRequestCallback(byte[] address, byte[] name, int cod, boolean min16Digits) {
+        long start = Instrumentation.start();
         mBondStateMachine.pinRequestCallback(address, name, cod, min16Digits);
+        PIN_REQUEST.end(start);
     }
 
     void bondStateChangeCallback(int status, byte[] address, int newState) {
+        long start = Instrumentation.start();
         mBondStateMachine.bondStateChangeCallback(status, address, newState);
+        BOND_STATE_CHANGE.end(start);
     }
 
     void aclStateChangeCallback(int status, byte[] address, int newState) {
+        long start = Instrumentation.start();
         mRemoteDevices.aclStateChangeCallback(status, address, newState);
+        ACL_STATE_CHANGE.end(start);
     }
 
     void stateChangeCallback(int status) {
+        long start = Instrumentation.start();
         mAdapterStateMachine.stateChangeCallback(status);
+        STATE_CHANGE.end(start);
     }
 
     void discoveryStateChangeCallback(int state) {
+        long start = Instrumentation.start();
         mAdapterProperties.discoveryStateChangeCallback(state);
+        DISCOVERY_STATE_CHANGE.end(start);
     }
 
     void adapterPropertyChangedCallback(int[] types, byte[][] val) {
+        long start = Instrumentation.start();
         mAdapterProperties.adapterPropertyChangedCallback(types, val);
+        ADAPTER_PROPERTY_CHANGED.end(start);
     }
 
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothProfile;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.provider.Settings;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory cache of the per-device profile priorities stored in {@link Settings.Global}.
+ *
+ * Profile services used to go through the settings provider on every getPriority() call, which
+ * costs a binder round trip each time PhonePolicy walks the bonded devices. This store keeps the
+ * priorities keyed by their Settings.Global key, serves reads from memory and persists writes on
+ * a background thread.
+ */
+public class ProfilePriorityStore {
+    private static final String TAG = "BluetoothProfilePriorityStore";
+    private static final boolean DBG = false;
+
+    // All the per-device priority keys share this prefix and contain this infix, see
+    // Settings.Global.getBluetooth*PriorityKey().
+    private static final String KEY_PREFIX = "bluetooth_";
+    private static final String KEY_INFIX = "_priority_";
+
+    private static final int MESSAGE_LOAD = 1;
+    private static final int MESSAGE_PERSIST = 2;
+
+    // How long cleanup() waits for the pending writes
+    private static final long CLEANUP_TIMEOUT_MS = 1000;
+
+    private static ProfilePriorityStore sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final ConcurrentHashMap<String, Integer> mPriorities =
+            new ConcurrentHashMap<String, Integer>();
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+
+    /**
+     * Get the process wide priority store, creating it on first use.
+     */
+    public static synchronized ProfilePriorityStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProfilePriorityStore(
+                    context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Flush the pending writes and drop the process wide instance.
+     */
+    static synchronized void cleanupInstance() {
+        if (sInstance != null) {
+            sInstance.cleanup();
+            sInstance = null;
+        }
+    }
+
+    @VisibleForTesting
+    ProfilePriorityStore(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+        mHandlerThread = new HandlerThread("BluetoothProfilePriorityStore");
+        mHandlerThread.start();
+        mHandler = new PriorityHandler(mHandlerThread.getLooper());
+    }
+
+    /**
+     * Asynchronously load every stored priority into memory. Values written through
+     * {@link #setPriority} before the load completes are kept.
+     */
+    void load() {
+        mHandler.sendEmptyMessage(MESSAGE_LOAD);
+    }
+
+    /**
+     * Get the priority stored under {@code key}, e.g.
+     * {@code Settings.Global.getBluetoothHeadsetPriorityKey(address)}.
+     *
+     * @return the stored priority or {@link BluetoothProfile#PRIORITY_UNDEFINED}
+     */
+    public int getPriority(String key) {
+        Integer priority = mPriorities.get(key);
+        if (priority != null) {
+            return priority;
+        }
+        int value = readSetting(key);
+        priority = mPriorities.putIfAbsent(key, value);
+        return priority != null ? priority : value;
+    }
+
+    /**
+     * Update the priority stored under {@code key}. The in-memory value is visible immediately,
+     * the settings provider is updated in the background.
+     */
+    public void setPriority(String key, int priority) {
+        Integer previous = mPriorities.put(key, priority);
+        if (previous != null && previous == priority) {
+            return;
+        }
+        // The value is captured with the write, it doesn't depend on mPriorities later on
+        mHandler.obtainMessage(MESSAGE_PERSIST, priority, 0, key).sendToTarget();
+    }
+
+    @VisibleForTesting
+    void cleanup() {
+        // Let the queued writes reach the settings provider before the thread goes away.
+        mHandlerThread.quitSafely();
+        try {
+            mHandlerThread.join(CLEANUP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "cleanup: interrupted while writing priorities");
+            Thread.currentThread().interrupt();
+        }
+        mPriorities.clear();
+    }
+
+    private static boolean isPriorityKey(String key) {
+        return key != null && key.startsWith(KEY_PREFIX) && key.contains(KEY_INFIX);
+    }
+
+    private void loadAll() {
+        Cursor cursor = null;
+        int count = 0;
+        try {
+            cursor = querySettings();
+            if (cursor == null) {
+                return;
+            }
+            int nameIndex = cursor.getColumnIndex(Settings.NameValueTable.NAME);
+            int valueIndex = cursor.getColumnIndex(Settings.NameValueTable.VALUE);
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(nameIndex);
+                if (!isPriorityKey(name)) {
+                    continue;
+                }
+                try {
+                    mPriorities.putIfAbsent(name, Integer.parseInt(cursor.getString(valueIndex)));
+                    count++;
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "loadAll: invalid priority for " + name);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "loadAll: unable to read priorities", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (DBG) Log.d(TAG, "loadAll: loaded " + count + " priorities");
+    }
+
+    private void persist(String key, int priority) {
+        writeSetting(key, priority);
+        if (DBG) Log.d(TAG, "persist: " + key + " = " + priority);
+    }
+
+    @VisibleForTesting
+    Cursor querySettings() {
+        return mContentResolver.query(Settings.Global.CONTENT_URI,
+                new String[] {Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE},
+                null, null, null);
+    }
+
+    @VisibleForTesting
+    int readSetting(String key) {
+        return Settings.Global.getInt(mContentResolver, key, BluetoothProfile.PRIORITY_UNDEFINED);
+    }
+
+    @VisibleForTesting
+    void writeSetting(String key, int priority) {
+        Settings.Global.putInt(mContentResolver, key, priority);
+    }
+
+    private class PriorityHandler extends Handler {
+        PriorityHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MESSAGE_LOAD:
+                    loadAll();
+                    break;
+                case MESSAGE_PERSIST:
+                    persist((String) msg.obj, msg.arg1);
+                    break;
+                default:
+                    Log.e(TAG, "Unknown message " + msg.what);
+                    break;
+            }
+        }
+    }
+}
@@ -61,6 +61,22 @@ public abstract class ProfileService extends Service {
         return !mStartError && !mCleaningUp;
     }
 
+    /**
+     * Start this service if it is an on-demand profile that was left dormant. Profiles call this
+     * from their explicit connect or register entry points, binding alone does not activate them.
+     *
+     * @return true if the service is dormant or still starting, the request should then fail and
+     *         be retried once the profile is up
+     */
+    protected boolean activateIfDormant() {
+        AdapterService adapterService = AdapterService.getAdapterService();
+        if (adapterService == null) {
+            return false;
+        }
+        return adapterService.activateProfileService(getClass())
+                || !adapterService.isProfileAdded(this);
+    }
+
     protected abstract IProfileServiceBinder initBinder();
 
     protected abstract boolean start();
@@ -151,7 +167,10 @@ public abstract class ProfileService extends Service {
                         Log.e(mName, ":intent received late, not Stopping profile");
                     }
                 } else if (state == BluetoothAdapter.STATE_ON) {
-                    if (((adapterService != null) && (adapterService.getState() == BluetoothAdapter.STATE_TURNING_ON) &&
+                    // On-demand profiles may also be started once the adapter is on.
+                    if (((adapterService != null) &&
+                        (adapterService.getState() == BluetoothAdapter.STATE_TURNING_ON ||
+                        adapterService.getState() == BluetoothAdapter.STATE_ON) &&
                         !mName.equals("BtGatt.GattService")) ||
                         ((adapterService != null) && (adapterService.getState() == BluetoothAdapter.STATE_BLE_TURNING_ON) &&
                         mName.equals("BtGatt.GattService")) ) {
@@ -262,6 +281,10 @@ public abstract class ProfileService extends Service {
     }
 
     protected BluetoothDevice getDevice(byte[] address) {
+        AdapterService adapterService = AdapterService.getAdapterService();
+        if (adapterService != null) {
+            return adapterService.getDeviceFromByte(address);
+        }
         if(mAdapter != null){
             return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
         }
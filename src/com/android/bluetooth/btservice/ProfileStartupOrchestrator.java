@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bluetooth.gatt.GattService;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Starts the BR/EDR profile services in dependency order.
+ *
+ * All the services whose dependencies are satisfied are requested together. A service listed in
+ * the dependencies is only requested once the dependencies that take part in the same startup
+ * have reported that they are on. The time every service waited for its dependencies and
+ * took to start is kept for dumpsys.
+ */
+final class ProfileStartupOrchestrator {
+    private static final String TAG = "BluetoothProfileStartup";
+    private static final boolean DBG = false;
+
+    interface Callback {
+        /**
+         * Request a single profile service to start.
+         */
+        void startProfileService(Class service);
+    }
+
+    // Profile services that have to be running before the key service is started. None of the
+    // current services needs another one to start: MAP and PBAP register their SDP records
+    // through SdpManager, which AdapterService sets up in onCreate() before any profile starts,
+    // and the AVRCP controller only looks up A2DP sink once a device connects.
+    private static final HashMap<Class, Class[]> DEPENDENCIES = new HashMap<Class, Class[]>();
+
+    private static class Entry {
+        final Class mService;
+        final ArrayList<String> mPendingDependencies = new ArrayList<String>();
+        long mRequestedAt = -1;
+        long mStartedAt = -1;
+
+        Entry(Class service) {
+            mService = service;
+        }
+    }
+
+    private final Callback mCallback;
+    private final HashMap<Class, Class[]> mDependencies;
+    // Keyed by class name, in Config order.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+    private long mBeginAt = -1;
+    private long mCompletedAt = -1;
+
+    ProfileStartupOrchestrator(Callback callback) {
+        this(callback, DEPENDENCIES);
+    }
+
+    @VisibleForTesting
+    ProfileStartupOrchestrator(Callback callback, HashMap<Class, Class[]> dependencies) {
+        mCallback = callback;
+        mDependencies = dependencies;
+    }
+
+    /**
+     * Start the given profile services. GattService is skipped, it is started with BLE.
+     */
+    synchronized void start(Class[] services) {
+        mEntries.clear();
+        mBeginAt = SystemClock.elapsedRealtime();
+        mCompletedAt = -1;
+
+        for (Class service : services) {
+            if (service == GattService.class) {
+                continue;
+            }
+            mEntries.put(service.getName(), new Entry(service));
+        }
+        for (Entry entry : mEntries.values()) {
+            Class[] dependencies = mDependencies.get(entry.mService);
+            if (dependencies == null) {
+                continue;
+            }
+            for (Class dependency : dependencies) {
+                // Dependencies that are not supported on this device are ignored.
+                if (mEntries.containsKey(dependency.getName())) {
+                    entry.mPendingDependencies.add(dependency.getName());
+                }
+            }
+        }
+        startReadyServices();
+    }
+
+    /**
+     * Called when a profile service reports {@link android.bluetooth.BluetoothAdapter#STATE_ON}.
+     */
+    synchronized void onProfileServiceStarted(String serviceName) {
+        Entry started = mEntries.get(serviceName);
+        if (started == null || started.mStartedAt >= 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        started.mStartedAt = now;
+        if (DBG) {
+            Log.d(TAG, serviceName + " started in " + (now - started.mRequestedAt) + " ms");
+        }
+
+        for (Entry entry : mEntries.values()) {
+            entry.mPendingDependencies.remove(serviceName);
+        }
+        startReadyServices();
+
+        for (Entry entry : mEntries.values()) {
+            if (entry.mStartedAt < 0) {
+                return;
+            }
+        }
+        mCompletedAt = now;
+        Log.i(TAG, "Started " + mEntries.size() + " profile services in "
+                + (mCompletedAt - mBeginAt) + " ms");
+    }
+
+    /**
+     * @return true if the services requested by the last {@link #start} are all running
+     */
+    synchronized boolean isComplete() {
+        return mCompletedAt >= 0;
+    }
+
+    private void startReadyServices() {
+        for (Entry entry : mEntries.values()) {
+            if (entry.mRequestedAt >= 0 || !entry.mPendingDependencies.isEmpty()) {
+                continue;
+            }
+            entry.mRequestedAt = SystemClock.elapsedRealtime();
+            mCallback.startProfileService(entry.mService);
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        if (mBeginAt < 0) {
+            ProfileService.println(sb, "Not started");
+            return;
+        }
+        ProfileService.println(sb, "Total: " + (mCompletedAt >= 0
+                ? (mCompletedAt - mBeginAt) + " ms" : "in progress"));
+        for (Entry entry : mEntries.values()) {
+            String name = entry.mService.getSimpleName();
+            if (entry.mRequestedAt < 0) {
+                ProfileService.println(sb, "  " + name + ": waiting for "
+                        + entry.mPendingDependencies);
+            } else if (entry.mStartedAt < 0) {
+                ProfileService.println(sb, "  " + name + ": waited "
+                        + (entry.mRequestedAt - mBeginAt) + " ms, starting");
+            } else {
+                ProfileService.println(sb, "  " + name + ": waited "
+                        + (entry.mRequestedAt - mBeginAt) + " ms, started in "
+                        + (entry.mStartedAt - entry.mRequestedAt) + " ms");
+            }
+        }
+    }
+
+    synchronized void dumpProto(BluetoothProto.BluetoothLog proto) {
+        if (mCompletedAt >= 0) {
+            proto.setProfileStartupMillis(mCompletedAt - mBeginAt);
+        }
+        for (Entry entry : mEntries.values()) {
+            if (entry.mStartedAt < 0) {
+                continue;
+            }
+            BluetoothProto.ProfileServiceStart start = new BluetoothProto.ProfileServiceStart();
+            start.setServiceName(entry.mService.getSimpleName());
+            start.setWaitMillis(entry.mRequestedAt - mBeginAt);
+            start.setStartMillis(entry.mStartedAt - entry.mRequestedAt);
+            proto.addProfileServiceStart(start);
+        }
+    }
+}
@@ -31,12 +31,14 @@ import android.os.Message;
 import android.os.ParcelUuid;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
+import android.util.LongSparseArray;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.hfp.HeadsetHalConstants;
+import com.android.bluetooth.sdp.SdpRecordCache;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Queue;
 
@@ -55,8 +57,10 @@ final class RemoteDevices {
     private static final int UUID_INTENT_DELAY = 6000;
     private static final int MESSAGE_UUID_INTENT = 1;
 
-    private final HashMap<String, DeviceProperties> mDevices;
-    private Queue<String> mDeviceQueue;
+    // Keyed by the packed address, see Utils.getLongFromAddress(), so that JNI callbacks can look
+    // devices up without formatting the address.
+    private final LongSparseArray<DeviceProperties> mDevices;
+    private Queue<Long> mDeviceQueue;
 
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -83,8 +87,8 @@ final class RemoteDevices {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mAdapterService = service;
         mSdpTracker = new ArrayList<BluetoothDevice>();
-        mDevices = new HashMap<String, DeviceProperties>();
-        mDeviceQueue = new LinkedList<String>();
+        mDevices = new LongSparseArray<DeviceProperties>();
+        mDeviceQueue = new LinkedList<Long>();
     }
 
     /**
@@ -133,14 +137,14 @@ final class RemoteDevices {
 
     DeviceProperties getDeviceProperties(BluetoothDevice device) {
         synchronized (mDevices) {
-            return mDevices.get(device.getAddress());
+            return mDevices.get(Utils.getLongFromAddress(device.getAddress()));
         }
     }
 
     BluetoothDevice getDevice(byte[] address) {
         DeviceProperties prop;
         synchronized (mDevices) {
-          prop = mDevices.get(Utils.getAddressStringFromByte(address));
+          prop = mDevices.get(Utils.getLongFromAddress(address));
         }
         if (prop != null)
           return prop.getDevice();
@@ -152,17 +156,21 @@ final class RemoteDevices {
             DeviceProperties prop = new DeviceProperties();
             prop.mDevice = mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
             prop.mAddress = address;
-            String key = Utils.getAddressStringFromByte(address);
-            DeviceProperties pv = mDevices.put(key, prop);
+            long key = Utils.getLongFromAddress(address);
+            DeviceProperties pv = mDevices.get(key);
+            mDevices.put(key, prop);
 
             if (pv == null) {
                 mDeviceQueue.offer(key);
                 if (mDeviceQueue.size() > MAX_DEVICE_QUEUE_SIZE) {
-                    String deleteKey = mDeviceQueue.poll();
+                    long deleteKey = mDeviceQueue.poll();
                     for (BluetoothDevice device : mAdapterService.getBondedDevices()) {
-                        if (device.getAddress().equals(deleteKey)) return prop;
+                        if (Utils.getLongFromAddress(device.getAddress()) == deleteKey) {
+                            return prop;
+                        }
                     }
-                    debugLog("Removing device " + deleteKey + " from property map");
+                    debugLog("Removing device " + Utils.getAddressStringFromLong(deleteKey)
+                            + " from property map");
                     mDevices.remove(deleteKey);
                 }
             }
@@ -487,7 +495,17 @@ final class RemoteDevices {
                         case AbstractionLayer.BT_PROPERTY_UUIDS:
                             int numUuids = val.length/AbstractionLayer.BT_UUID_SIZE;
                             int state = mAdapterService.getState();
-                            device.mUuids = Utils.byteArrayToUuid(val);
+                            ParcelUuid[] newUuids = Utils.byteArrayToUuid(val);
+                            // Unknown UUIDs, as at startup, don't tell the records changed
+                            if (device.mUuids != null
+                                    && !Arrays.equals(device.mUuids, newUuids)) {
+                                SdpRecordCache.getInstance().invalidate(bdDevice);
+                            }
+                            device.mUuids = newUuids;
+                            if (device.mBondState != BluetoothDevice.BOND_NONE) {
+                                // Start the on-demand profiles this device needs, if any
+                                mAdapterService.activateProfileServices(newUuids);
+                            }
                             if (state == BluetoothAdapter.STATE_ON)
                                 sendUuidIntent(bdDevice);
                             break;
@@ -20,6 +20,7 @@ import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.IAdvertisingSetCallback;
 import android.bluetooth.le.PeriodicAdvertisingParameters;
+import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
@@ -28,8 +29,10 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
 import android.util.Log;
+import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -51,6 +54,10 @@ class AdvertiseManager {
     private final GattService mService;
     private final AdapterService mAdapterService;
     private Handler mHandler;
+    private AdvertiseMultiplexer mMultiplexer;
+    // Apps whose shared advertisers get more slots, and how many times more
+    private Set<String> mPriorityPackages;
+    private int mPriority;
     Map<IBinder, AdvertiserInfo> mAdvertisers = Collections.synchronizedMap(new HashMap<>());
     static int sTempRegistrationId = -1;
 
@@ -71,6 +78,45 @@ class AdvertiseManager {
         HandlerThread thread = new HandlerThread("BluetoothAdvertiseManager");
         thread.start();
         mHandler = new Handler(thread.getLooper());
+        mMultiplexer = new AdvertiseMultiplexer(new AdvertiseMultiplexer.Carrier() {
+            @Override
+            public void start(AdvertisingSetParameters parameters, byte[] advertiseData,
+                    byte[] scanResponse, int regId) {
+                startAdvertisingSetNative(parameters, advertiseData, scanResponse, null, null, 0,
+                        0, regId);
+            }
+
+            @Override
+            public void stop(int advertiserId) {
+                stopAdvertisingSetNative(advertiserId);
+            }
+
+            @Override
+            public void enable(int advertiserId, boolean enable) {
+                enableAdvertisingSetNative(advertiserId, enable, 0, 0);
+            }
+
+            @Override
+            public void setData(int advertiserId, byte[] advertiseData, byte[] scanResponse) {
+                setAdvertisingDataNative(advertiserId, advertiseData);
+                setScanResponseDataNative(advertiserId, scanResponse);
+            }
+
+            @Override
+            public void setParameters(int advertiserId, AdvertisingSetParameters parameters) {
+                setAdvertisingParametersNative(advertiserId, parameters);
+            }
+
+            @Override
+            public void getOwnAddress(int advertiserId) {
+                getOwnAddressNative(advertiserId);
+            }
+        }, mHandler, mService.getResources().getInteger(
+                R.integer.gatt_advertise_multiplex_slot_millis));
+        mPriorityPackages = new HashSet<String>(Arrays.asList(mService.getResources()
+                .getStringArray(R.array.gatt_advertise_multiplex_priority_packages)));
+        mPriority = mService.getResources().getInteger(
+                R.integer.gatt_advertise_multiplex_priority);
     }
 
     void cleanup() {
@@ -78,6 +124,9 @@ class AdvertiseManager {
         cleanupNative();
         mAdvertisers.clear();
         sTempRegistrationId = -1;
+        if (mMultiplexer != null) {
+            mMultiplexer.clear();
+        }
 
         if (mHandler != null) {
             // Shut down the thread
@@ -141,6 +190,8 @@ class AdvertiseManager {
                             + advertiser_id + ", status=" + status);
         }
 
+        if (mMultiplexer.onCarrierStarted(reg_id, advertiser_id, tx_power, status)) return;
+
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(reg_id);
 
         if (entry == null) {
@@ -169,6 +220,8 @@ class AdvertiseManager {
                             + enable + ", status=" + status);
         }
 
+        if (mMultiplexer.isCarrier(advertiser_id)) return;
+
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiser_id);
         if (entry == null) {
             Log.i(TAG, "onAdvertisingSetEnable() - no callback found for advertiser_id "
@@ -180,6 +233,13 @@ class AdvertiseManager {
         callback.onAdvertisingEnabled(advertiser_id, enable, status);
     }
 
+    // Called on the binder thread of the app starting the advertiser.
+    private int getCallerPriority() {
+        String appName = mService.getPackageManager().getNameForUid(Binder.getCallingUid());
+        return (appName != null && mPriorityPackages.contains(appName))
+                ? mPriority : AdvertiseMultiplexer.PRIORITY_NORMAL;
+    }
+
     void startAdvertisingSet(AdvertisingSetParameters parameters, AdvertiseData advertiseData,
             AdvertiseData scanResponse, PeriodicAdvertisingParameters periodicParameters,
             AdvertiseData periodicData, int duration, int maxExtAdvEvents,
@@ -197,6 +257,19 @@ class AdvertiseManager {
         byte[] scan_response = AdvertiseHelper.advertiseDataToBytes(scanResponse, deviceName);
         byte[] periodic_data = AdvertiseHelper.advertiseDataToBytes(periodicData, deviceName);
 
+        if (mMultiplexer.canMultiplex(parameters, periodicParameters, adv_data, scan_response)) {
+            // Keep the last controller set for the carrier once others are taken.
+            int maxSets = mAdapterService.getNumOfAdvertisementInstancesSupported();
+            int setsInUse = mAdvertisers.size() + (mMultiplexer.usesHardwareSet() ? 1 : 0);
+            if (mMultiplexer.isActive() || (maxSets > 0 && setsInUse + 1 >= maxSets)) {
+                if (DBG) Log.d(TAG, "startAdvertisingSet() - sharing a set, callback: " + binder);
+                mMultiplexer.add(binder, callback, deathRecipient, parameters, adv_data,
+                        scan_response, duration, getCallerPriority(),
+                        maxSets <= 0 || setsInUse < maxSets);
+                return;
+            }
+        }
+
         int cb_id = --sTempRegistrationId;
         mAdvertisers.put(binder, new AdvertiserInfo(cb_id, deathRecipient, callback));
 
@@ -208,6 +281,7 @@ class AdvertiseManager {
     void onOwnAddressRead(int advertiser_id, int addressType, String address)
             throws RemoteException {
         if (DBG) Log.d(TAG, "onOwnAddressRead() advertiser_id=" + advertiser_id);
+        if (mMultiplexer.onOwnAddressRead(advertiser_id, addressType, address)) return;
 
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiser_id);
         if (entry == null) {
@@ -220,12 +294,17 @@ class AdvertiseManager {
     }
 
     void getOwnAddress(int advertiserId) {
+        if (mMultiplexer.isVirtual(advertiserId)) {
+            mMultiplexer.getOwnAddress(advertiserId);
+            return;
+        }
         getOwnAddressNative(advertiserId);
     }
 
     void stopAdvertisingSet(IAdvertisingSetCallback callback) {
         IBinder binder = toBinder(callback);
         if (DBG) Log.d(TAG, "stopAdvertisingSet() " + binder);
+        if (mMultiplexer.remove(binder)) return;
 
         AdvertiserInfo adv = mAdvertisers.remove(binder);
         if (adv == null) {
@@ -252,37 +331,65 @@ class AdvertiseManager {
     }
 
     void enableAdvertisingSet(int advertiserId, boolean enable, int duration, int maxExtAdvEvents) {
+        if (mMultiplexer.isVirtual(advertiserId)) {
+            mMultiplexer.enable(advertiserId, enable, duration);
+            return;
+        }
         enableAdvertisingSetNative(advertiserId, enable, duration, maxExtAdvEvents);
     }
 
     void setAdvertisingData(int advertiserId, AdvertiseData data) {
         String deviceName = AdapterService.getAdapterService().getName();
-        setAdvertisingDataNative(
-                advertiserId, AdvertiseHelper.advertiseDataToBytes(data, deviceName));
+        byte[] bytes = AdvertiseHelper.advertiseDataToBytes(data, deviceName);
+        if (mMultiplexer.isVirtual(advertiserId)) {
+            mMultiplexer.setAdvertisingData(advertiserId, bytes);
+            return;
+        }
+        setAdvertisingDataNative(advertiserId, bytes);
     }
 
     void setScanResponseData(int advertiserId, AdvertiseData data) {
         String deviceName = AdapterService.getAdapterService().getName();
-        setScanResponseDataNative(
-                advertiserId, AdvertiseHelper.advertiseDataToBytes(data, deviceName));
+        byte[] bytes = AdvertiseHelper.advertiseDataToBytes(data, deviceName);
+        if (mMultiplexer.isVirtual(advertiserId)) {
+            mMultiplexer.setScanResponseData(advertiserId, bytes);
+            return;
+        }
+        setScanResponseDataNative(advertiserId, bytes);
     }
 
     void setAdvertisingParameters(int advertiserId, AdvertisingSetParameters parameters) {
+        if (mMultiplexer.isVirtual(advertiserId)) {
+            mMultiplexer.setAdvertisingParameters(advertiserId, parameters);
+            return;
+        }
         setAdvertisingParametersNative(advertiserId, parameters);
     }
 
     void setPeriodicAdvertisingParameters(
             int advertiserId, PeriodicAdvertisingParameters parameters) {
+        if (mMultiplexer.isVirtual(advertiserId)) {
+            mMultiplexer.setPeriodicAdvertisingParameters(advertiserId);
+            return;
+        }
         setPeriodicAdvertisingParametersNative(advertiserId, parameters);
     }
 
     void setPeriodicAdvertisingData(int advertiserId, AdvertiseData data) {
+        if (mMultiplexer.isVirtual(advertiserId)) {
+            mMultiplexer.setPeriodicAdvertisingData(advertiserId);
+            return;
+        }
         String deviceName = AdapterService.getAdapterService().getName();
         setPeriodicAdvertisingDataNative(
                 advertiserId, AdvertiseHelper.advertiseDataToBytes(data, deviceName));
     }
 
     void setPeriodicAdvertisingEnable(int advertiserId, boolean enable) {
+        if (mMultiplexer.isVirtual(advertiserId)) {
+            mMultiplexer.setPeriodicAdvertisingEnable(advertiserId, enable);
+            return;
+        }
         setPeriodicAdvertisingEnableNative(advertiserId, enable);
     }
 
@@ -292,6 +399,8 @@ class AdvertiseManager {
                     "onAdvertisingDataSet() advertiser_id=" + advertiser_id + ", status=" + status);
         }
 
+        if (mMultiplexer.isCarrier(advertiser_id)) return;
+
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiser_id);
         if (entry == null) {
             Log.i(TAG, "onAdvertisingDataSet() - bad advertiser_id " + advertiser_id);
@@ -307,6 +416,8 @@ class AdvertiseManager {
             Log.d(TAG, "onScanResponseDataSet() advertiser_id=" + advertiser_id + ", status="
                             + status);
 
+        if (mMultiplexer.isCarrier(advertiser_id)) return;
+
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiser_id);
         if (entry == null) {
             Log.i(TAG, "onScanResponseDataSet() - bad advertiser_id " + advertiser_id);
@@ -324,6 +435,8 @@ class AdvertiseManager {
                             + ", tx_power=" + tx_power + ", status=" + status);
         }
 
+        if (mMultiplexer.onCarrierParametersUpdated(advertiser_id, tx_power, status)) return;
+
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiser_id);
         if (entry == null) {
             Log.i(TAG, "onAdvertisingParametersUpdated() - bad advertiser_id " + advertiser_id);
@@ -386,6 +499,7 @@ class AdvertiseManager {
 
     void stopAdvertisingSets() {
         Log.d(TAG, "stopAdvertisingSets()");
+        mMultiplexer.stopAll();
         for (Map.Entry<IBinder, AdvertiserInfo> entry : mAdvertisers.entrySet()) {
             Integer advertiser_id = entry.getValue().id;
             IAdvertisingSetCallback callback = entry.getValue().callback;
@@ -407,6 +521,13 @@ class AdvertiseManager {
         }
     }
 
+    void dump(StringBuilder sb) {
+        sb.append("  Advertising sets: " + mAdvertisers.size() + "\n");
+        if (mMultiplexer != null) {
+            mMultiplexer.dump(sb);
+        }
+    }
+
     static {
         classInitNative();
     }
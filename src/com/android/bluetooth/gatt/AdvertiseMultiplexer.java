@@ -0,0 +1,755 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.IAdvertisingSetCallback;
+import android.bluetooth.le.PeriodicAdvertisingParameters;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Time slices any number of logical advertisers over a single controller advertising set.
+ *
+ * Once the controller is about to run out of advertising sets, legacy non-connectable
+ * advertisers are no longer given a set of their own. They share a "carrier" set whose
+ * advertising and scan response data is rotated every slot. Advertisers that asked for a
+ * shorter interval get proportionally more slots, and priority advertisers get their share
+ * multiplied by their priority. The carrier uses the shortest interval and the highest tx power
+ * its advertisers asked for.
+ *
+ * Shared advertisers get ids from {@link #VIRTUAL_ID_BASE}, above any controller set id, and
+ * see the same callbacks as regular ones.
+ */
+class AdvertiseMultiplexer {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "AdvertiseMultiplexer";
+
+    static final int VIRTUAL_ID_BASE = 0x100;
+    static final int PRIORITY_NORMAL = 1;
+    // Registration id of the carrier set, never handed out by AdvertiseManager
+    static final int CARRIER_REG_ID = Integer.MIN_VALUE;
+
+    private static final int LEGACY_DATA_MAX_LENGTH = 31;
+
+    interface Carrier {
+        void start(AdvertisingSetParameters parameters, byte[] advertiseData,
+                byte[] scanResponse, int regId);
+
+        void stop(int advertiserId);
+
+        void enable(int advertiserId, boolean enable);
+
+        void setData(int advertiserId, byte[] advertiseData, byte[] scanResponse);
+
+        void setParameters(int advertiserId, AdvertisingSetParameters parameters);
+
+        void getOwnAddress(int advertiserId);
+    }
+
+    private class Advertiser {
+        final int id;
+        final IBinder binder;
+        final IAdvertisingSetCallback callback;
+        final IBinder.DeathRecipient deathRecipient;
+        AdvertisingSetParameters parameters;
+        byte[] advertiseData;
+        byte[] scanResponse;
+        boolean dataChanged;
+        int duration;
+        // Slot weight multiplier, PRIORITY_NORMAL unless the app is configured as a priority one
+        int priority;
+        int weight;
+        boolean enabled = true;
+        boolean started;
+        int credit;
+        long onAirMillis;
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AdvertiseMultiplexer.this) {
+                    if (!mAdvertisers.contains(Advertiser.this)) return;
+                    enabled = false;
+                    onAdvertisingEnabled(Advertiser.this, false);
+                    refresh();
+                }
+                deliverCallbacks();
+            }
+        };
+
+        Advertiser(int id, IBinder binder, IAdvertisingSetCallback callback,
+                IBinder.DeathRecipient deathRecipient) {
+            this.id = id;
+            this.binder = binder;
+            this.callback = callback;
+            this.deathRecipient = deathRecipient;
+        }
+    }
+
+    /**
+     * A callback to an app, queued while the multiplexer is locked and sent once it is released.
+     */
+    private abstract static class AppCallback implements Runnable {
+        private final int mId;
+        private final IAdvertisingSetCallback mCallback;
+        private final String mName;
+
+        AppCallback(Advertiser adv, String name) {
+            mId = adv.id;
+            mCallback = adv.callback;
+            mName = name;
+        }
+
+        abstract void call(IAdvertisingSetCallback callback, int id) throws RemoteException;
+
+        @Override
+        public void run() {
+            try {
+                call(mCallback, mId);
+            } catch (RemoteException e) {
+                Log.i(TAG, "error sending " + mName + " callback", e);
+            }
+        }
+    }
+
+    private final Carrier mCarrier;
+    private final Handler mHandler;
+    private final long mSlotMillis;
+    private final ArrayList<Advertiser> mAdvertisers = new ArrayList<Advertiser>();
+    private final ArrayList<Advertiser> mOwnAddressRequests = new ArrayList<Advertiser>();
+    private int mNextId = VIRTUAL_ID_BASE;
+
+    // Callbacks are delivered in order by one thread at a time, without holding the lock
+    private final ArrayDeque<AppCallback> mAppCallbacks = new ArrayDeque<AppCallback>();
+    private final Object mDeliveryLock = new Object();
+
+    private boolean mCarrierPending;
+    private int mCarrierId = -1;
+    private AdvertisingSetParameters mCarrierParameters;
+    private int mCarrierTxPower;
+    private boolean mCarrierEnabled;
+    private Advertiser mOnAir;
+    private long mOnAirSince;
+    private boolean mRotationScheduled;
+    private long mRotations;
+
+    private final Runnable mRotate = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (AdvertiseMultiplexer.this) {
+                mRotationScheduled = false;
+                rotate();
+            }
+        }
+    };
+
+    /**
+     * @param slotMillis time each advertiser stays on air, 0 disables multiplexing
+     */
+    AdvertiseMultiplexer(Carrier carrier, Handler handler, long slotMillis) {
+        mCarrier = carrier;
+        mHandler = handler;
+        mSlotMillis = slotMillis;
+    }
+
+    /**
+     * @return whether an advertiser with these parameters can share the carrier set
+     */
+    boolean canMultiplex(AdvertisingSetParameters parameters,
+            PeriodicAdvertisingParameters periodicParameters, byte[] advertiseData,
+            byte[] scanResponse) {
+        return mSlotMillis > 0 && isCompatible(parameters) && periodicParameters == null
+                && advertiseData.length <= LEGACY_DATA_MAX_LENGTH
+                && scanResponse.length <= LEGACY_DATA_MAX_LENGTH;
+    }
+
+    private static boolean isCompatible(AdvertisingSetParameters parameters) {
+        return parameters.isLegacy() && !parameters.isConnectable();
+    }
+
+    // Advertisers asking for a short interval get more slots, e.g. 10 for INTERVAL_LOW, times
+    // their priority.
+    static int weightOf(AdvertisingSetParameters parameters, int priority) {
+        return Math.max(1, AdvertisingSetParameters.INTERVAL_HIGH
+                / Math.max(1, parameters.getInterval())) * Math.max(PRIORITY_NORMAL, priority);
+    }
+
+    /**
+     * @return whether shared advertisers exist, in which case new compatible advertisers join
+     *         them instead of taking a controller set
+     */
+    synchronized boolean isActive() {
+        return !mAdvertisers.isEmpty();
+    }
+
+    /**
+     * @return whether the carrier holds, or is about to hold, a controller advertising set
+     */
+    synchronized boolean usesHardwareSet() {
+        return mCarrierPending || mCarrierId >= 0;
+    }
+
+    synchronized boolean isVirtual(int advertiserId) {
+        return find(advertiserId) != null;
+    }
+
+    synchronized boolean isCarrier(int advertiserId) {
+        return mCarrierId >= 0 && advertiserId == mCarrierId;
+    }
+
+    /**
+     * Add a shared advertiser. onAdvertisingSetStarted is sent once the carrier set runs, or
+     * right away with ADVERTISE_FAILED_TOO_MANY_ADVERTISERS if there is no carrier yet and no
+     * controller set is free for it.
+     *
+     * @param priority slot weight multiplier, {@link #PRIORITY_NORMAL} for most advertisers
+     * @param slotAvailable whether a controller set is free for the carrier
+     */
+    void add(IBinder binder, IAdvertisingSetCallback callback,
+            IBinder.DeathRecipient deathRecipient, AdvertisingSetParameters parameters,
+            byte[] advertiseData, byte[] scanResponse, int duration, int priority,
+            boolean slotAvailable) {
+        synchronized (this) {
+            Advertiser adv = new Advertiser(mNextId++, binder, callback, deathRecipient);
+            adv.parameters = parameters;
+            adv.advertiseData = advertiseData;
+            adv.scanResponse = scanResponse;
+            adv.priority = priority;
+            adv.weight = weightOf(parameters, priority);
+            adv.duration = duration;
+
+            if (mCarrierId < 0 && !mCarrierPending && !slotAvailable) {
+                Log.w(TAG, "add() - no advertising set left for the carrier");
+                binder.unlinkToDeath(deathRecipient, 0);
+                onStartFailed(adv, AdvertisingSetCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS);
+            } else {
+                mAdvertisers.add(adv);
+                if (DBG) Log.d(TAG, "add() id=" + adv.id + ", weight=" + adv.weight);
+
+                if (mCarrierId >= 0) {
+                    updateCarrierParameters();
+                    onStarted(adv);
+                    refresh();
+                } else if (!mCarrierPending) {
+                    startCarrier(adv);
+                }
+            }
+        }
+        deliverCallbacks();
+    }
+
+    /**
+     * @return false if the callback doesn't belong to a shared advertiser
+     */
+    boolean remove(IBinder binder) {
+        synchronized (this) {
+            Advertiser adv = null;
+            for (Advertiser a : mAdvertisers) {
+                if (a.binder == binder) {
+                    adv = a;
+                    break;
+                }
+            }
+            if (adv == null) return false;
+
+            if (DBG) Log.d(TAG, "remove() id=" + adv.id);
+            mAdvertisers.remove(adv);
+            mOwnAddressRequests.remove(adv);
+            mHandler.removeCallbacks(adv.timeout);
+            binder.unlinkToDeath(adv.deathRecipient, 0);
+            if (adv.started) {
+                mAppCallbacks.add(new AppCallback(adv, "onAdvertisingSetStopped") {
+                    @Override
+                    void call(IAdvertisingSetCallback callback, int id) throws RemoteException {
+                        callback.onAdvertisingSetStopped(id);
+                    }
+                });
+            }
+
+            if (mAdvertisers.isEmpty()) {
+                stopCarrier();
+            } else {
+                updateCarrierParameters();
+                refresh();
+            }
+        }
+        deliverCallbacks();
+        return true;
+    }
+
+    /**
+     * Stop all shared advertisers and the carrier set.
+     */
+    void stopAll() {
+        ArrayList<Advertiser> advertisers;
+        synchronized (this) {
+            advertisers = new ArrayList<Advertiser>(mAdvertisers);
+        }
+        for (Advertiser adv : advertisers) {
+            remove(adv.binder);
+        }
+    }
+
+    synchronized void clear() {
+        mHandler.removeCallbacks(mRotate);
+        for (Advertiser adv : mAdvertisers) {
+            mHandler.removeCallbacks(adv.timeout);
+        }
+        mAdvertisers.clear();
+        mOwnAddressRequests.clear();
+        mAppCallbacks.clear();
+        mCarrierPending = false;
+        mCarrierId = -1;
+        mCarrierParameters = null;
+        mCarrierEnabled = false;
+        mOnAir = null;
+        mRotationScheduled = false;
+    }
+
+    /**
+     * @return false if {@code regId} is not the carrier registration
+     */
+    boolean onCarrierStarted(int regId, int advertiserId, int txPower, int status) {
+        if (regId != CARRIER_REG_ID) return false;
+        synchronized (this) {
+            if (DBG) Log.d(TAG, "onCarrierStarted() advertiser_id=" + advertiserId + ", status="
+                    + status);
+            mCarrierPending = false;
+
+            if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                mCarrierParameters = null;
+                for (Advertiser adv : new ArrayList<Advertiser>(mAdvertisers)) {
+                    mAdvertisers.remove(adv);
+                    adv.binder.unlinkToDeath(adv.deathRecipient, 0);
+                    onStartFailed(adv, status);
+                }
+            } else if (mAdvertisers.isEmpty()) {
+                // Every shared advertiser was stopped in the meantime.
+                mCarrierParameters = null;
+                mCarrier.stop(advertiserId);
+            } else {
+                mCarrierId = advertiserId;
+                mCarrierTxPower = txPower;
+                mCarrierEnabled = true;
+                // Advertisers may have joined or left while the carrier was starting.
+                updateCarrierParameters();
+                // The carrier starts with the data of the first advertiser.
+                mOnAir = mAdvertisers.get(0);
+                mOnAirSince = SystemClock.elapsedRealtime();
+                for (Advertiser adv : mAdvertisers) {
+                    if (!adv.started) onStarted(adv);
+                }
+                refresh();
+            }
+        }
+        deliverCallbacks();
+        return true;
+    }
+
+    /**
+     * @return false if {@code advertiserId} is not the carrier set
+     */
+    synchronized boolean onCarrierParametersUpdated(int advertiserId, int txPower, int status) {
+        if (!isCarrier(advertiserId)) return false;
+        if (DBG) Log.d(TAG, "onCarrierParametersUpdated() tx_power=" + txPower + ", status="
+                + status);
+        if (status == AdvertisingSetCallback.ADVERTISE_SUCCESS) mCarrierTxPower = txPower;
+        return true;
+    }
+
+    /**
+     * @return false if {@code advertiserId} is not the carrier set
+     */
+    boolean onOwnAddressRead(int advertiserId, final int addressType, final String address) {
+        synchronized (this) {
+            if (!isCarrier(advertiserId)) return false;
+            for (Advertiser adv : mOwnAddressRequests) {
+                mAppCallbacks.add(new AppCallback(adv, "onOwnAddressRead") {
+                    @Override
+                    void call(IAdvertisingSetCallback callback, int id) throws RemoteException {
+                        callback.onOwnAddressRead(id, addressType, address);
+                    }
+                });
+            }
+            mOwnAddressRequests.clear();
+        }
+        deliverCallbacks();
+        return true;
+    }
+
+    void enable(int advertiserId, boolean enable, int duration) {
+        synchronized (this) {
+            Advertiser adv = find(advertiserId);
+            if (adv == null) return;
+
+            adv.enabled = enable;
+            mHandler.removeCallbacks(adv.timeout);
+            if (enable && duration > 0) {
+                // Duration is in 10ms units.
+                mHandler.postDelayed(adv.timeout, duration * 10L);
+            }
+            onAdvertisingEnabled(adv, enable);
+            refresh();
+        }
+        deliverCallbacks();
+    }
+
+    void setAdvertisingData(int advertiserId, byte[] data) {
+        synchronized (this) {
+            Advertiser adv = find(advertiserId);
+            if (adv == null) return;
+
+            int status = AdvertisingSetCallback.ADVERTISE_FAILED_DATA_TOO_LARGE;
+            if (data.length <= LEGACY_DATA_MAX_LENGTH) {
+                adv.advertiseData = data;
+                updateData(adv);
+                status = AdvertisingSetCallback.ADVERTISE_SUCCESS;
+            }
+            final int result = status;
+            mAppCallbacks.add(new AppCallback(adv, "onAdvertisingDataSet") {
+                @Override
+                void call(IAdvertisingSetCallback callback, int id) throws RemoteException {
+                    callback.onAdvertisingDataSet(id, result);
+                }
+            });
+        }
+        deliverCallbacks();
+    }
+
+    void setScanResponseData(int advertiserId, byte[] data) {
+        synchronized (this) {
+            Advertiser adv = find(advertiserId);
+            if (adv == null) return;
+
+            int status = AdvertisingSetCallback.ADVERTISE_FAILED_DATA_TOO_LARGE;
+            if (data.length <= LEGACY_DATA_MAX_LENGTH) {
+                adv.scanResponse = data;
+                updateData(adv);
+                status = AdvertisingSetCallback.ADVERTISE_SUCCESS;
+            }
+            final int result = status;
+            mAppCallbacks.add(new AppCallback(adv, "onScanResponseDataSet") {
+                @Override
+                void call(IAdvertisingSetCallback callback, int id) throws RemoteException {
+                    callback.onScanResponseDataSet(id, result);
+                }
+            });
+        }
+        deliverCallbacks();
+    }
+
+    void setAdvertisingParameters(int advertiserId, AdvertisingSetParameters parameters) {
+        synchronized (this) {
+            Advertiser adv = find(advertiserId);
+            if (adv == null) return;
+
+            int status = AdvertisingSetCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED;
+            if (isCompatible(parameters)) {
+                adv.parameters = parameters;
+                adv.weight = weightOf(parameters, adv.priority);
+                updateCarrierParameters();
+                status = AdvertisingSetCallback.ADVERTISE_SUCCESS;
+            }
+            final int result = status;
+            final int txPower = adv.parameters.getTxPowerLevel();
+            mAppCallbacks.add(new AppCallback(adv, "onAdvertisingParametersUpdated") {
+                @Override
+                void call(IAdvertisingSetCallback callback, int id) throws RemoteException {
+                    callback.onAdvertisingParametersUpdated(id, txPower, result);
+                }
+            });
+        }
+        deliverCallbacks();
+    }
+
+    void setPeriodicAdvertisingParameters(int advertiserId) {
+        synchronized (this) {
+            Advertiser adv = find(advertiserId);
+            if (adv == null) return;
+            mAppCallbacks.add(new AppCallback(adv, "onPeriodicAdvertisingParametersUpdated") {
+                @Override
+                void call(IAdvertisingSetCallback callback, int id) throws RemoteException {
+                    callback.onPeriodicAdvertisingParametersUpdated(id,
+                            AdvertisingSetCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED);
+                }
+            });
+        }
+        deliverCallbacks();
+    }
+
+    void setPeriodicAdvertisingData(int advertiserId) {
+        synchronized (this) {
+            Advertiser adv = find(advertiserId);
+            if (adv == null) return;
+            mAppCallbacks.add(new AppCallback(adv, "onPeriodicAdvertisingDataSet") {
+                @Override
+                void call(IAdvertisingSetCallback callback, int id) throws RemoteException {
+                    callback.onPeriodicAdvertisingDataSet(id,
+                            AdvertisingSetCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED);
+                }
+            });
+        }
+        deliverCallbacks();
+    }
+
+    void setPeriodicAdvertisingEnable(int advertiserId, final boolean enable) {
+        synchronized (this) {
+            Advertiser adv = find(advertiserId);
+            if (adv == null) return;
+            mAppCallbacks.add(new AppCallback(adv, "onPeriodicAdvertisingEnabled") {
+                @Override
+                void call(IAdvertisingSetCallback callback, int id) throws RemoteException {
+                    callback.onPeriodicAdvertisingEnabled(id, enable,
+                            AdvertisingSetCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED);
+                }
+            });
+        }
+        deliverCallbacks();
+    }
+
+    synchronized void getOwnAddress(int advertiserId) {
+        Advertiser adv = find(advertiserId);
+        if (adv == null || mCarrierId < 0) return;
+        if (!mOwnAddressRequests.contains(adv)) mOwnAddressRequests.add(adv);
+        mCarrier.getOwnAddress(mCarrierId);
+    }
+
+    private Advertiser find(int advertiserId) {
+        if (advertiserId < VIRTUAL_ID_BASE) return null;
+        for (Advertiser adv : mAdvertisers) {
+            if (adv.id == advertiserId) return adv;
+        }
+        return null;
+    }
+
+    private void deliverCallbacks() {
+        synchronized (mDeliveryLock) {
+            while (true) {
+                AppCallback callback;
+                synchronized (this) {
+                    callback = mAppCallbacks.poll();
+                }
+                if (callback == null) return;
+                callback.run();
+            }
+        }
+    }
+
+    // The carrier advertises as often and as loud as its most demanding advertiser asked for.
+    private AdvertisingSetParameters carrierParameters() {
+        int interval = AdvertisingSetParameters.INTERVAL_HIGH;
+        int txPower = AdvertisingSetParameters.TX_POWER_ULTRA_LOW;
+        boolean scannable = false;
+        for (Advertiser adv : mAdvertisers) {
+            interval = Math.min(interval, adv.parameters.getInterval());
+            txPower = Math.max(txPower, adv.parameters.getTxPowerLevel());
+            scannable |= adv.parameters.isScannable();
+        }
+        return new AdvertisingSetParameters.Builder()
+                .setLegacyMode(true)
+                .setConnectable(false)
+                .setScannable(scannable)
+                .setInterval(interval)
+                .setTxPowerLevel(txPower)
+                .build();
+    }
+
+    private static boolean sameParameters(AdvertisingSetParameters a,
+            AdvertisingSetParameters b) {
+        return a.getInterval() == b.getInterval() && a.getTxPowerLevel() == b.getTxPowerLevel()
+                && a.isScannable() == b.isScannable();
+    }
+
+    private void startCarrier(Advertiser first) {
+        if (DBG) Log.d(TAG, "startCarrier()");
+        mCarrierPending = true;
+        mCarrierParameters = carrierParameters();
+        mCarrier.start(mCarrierParameters, first.advertiseData, first.scanResponse,
+                CARRIER_REG_ID);
+    }
+
+    // Parameters can only be changed while the set is disabled.
+    private void updateCarrierParameters() {
+        if (mCarrierId < 0 || mAdvertisers.isEmpty()) return;
+        AdvertisingSetParameters parameters = carrierParameters();
+        if (mCarrierParameters != null && sameParameters(mCarrierParameters, parameters)) return;
+
+        if (DBG) Log.d(TAG, "updateCarrierParameters() interval=" + parameters.getInterval()
+                + ", tx_power=" + parameters.getTxPowerLevel());
+        mCarrierParameters = parameters;
+        if (mCarrierEnabled) mCarrier.enable(mCarrierId, false);
+        mCarrier.setParameters(mCarrierId, parameters);
+        if (mCarrierEnabled) mCarrier.enable(mCarrierId, true);
+    }
+
+    private void stopCarrier() {
+        mHandler.removeCallbacks(mRotate);
+        mRotationScheduled = false;
+        mOnAir = null;
+        if (mCarrierId >= 0) {
+            if (DBG) Log.d(TAG, "stopCarrier() advertiser_id=" + mCarrierId);
+            mCarrier.stop(mCarrierId);
+        }
+        mCarrierId = -1;
+        mCarrierParameters = null;
+        mCarrierEnabled = false;
+    }
+
+    // Apps see the tx power they asked for, the carrier may use a higher one for others.
+    private void onStarted(Advertiser adv) {
+        adv.started = true;
+        if (adv.duration > 0) mHandler.postDelayed(adv.timeout, adv.duration * 10L);
+        final int txPower = adv.parameters.getTxPowerLevel();
+        mAppCallbacks.add(new AppCallback(adv, "onAdvertisingSetStarted") {
+            @Override
+            void call(IAdvertisingSetCallback callback, int id) throws RemoteException {
+                callback.onAdvertisingSetStarted(id, txPower,
+                        AdvertisingSetCallback.ADVERTISE_SUCCESS);
+            }
+        });
+    }
+
+    private void onStartFailed(Advertiser adv, final int status) {
+        mAppCallbacks.add(new AppCallback(adv, "onAdvertisingSetStarted") {
+            @Override
+            void call(IAdvertisingSetCallback callback, int id) throws RemoteException {
+                callback.onAdvertisingSetStarted(id, 0, status);
+            }
+        });
+    }
+
+    private void onAdvertisingEnabled(Advertiser adv, final boolean enable) {
+        mAppCallbacks.add(new AppCallback(adv, "onAdvertisingEnabled") {
+            @Override
+            void call(IAdvertisingSetCallback callback, int id) throws RemoteException {
+                callback.onAdvertisingEnabled(id, enable,
+                        AdvertisingSetCallback.ADVERTISE_SUCCESS);
+            }
+        });
+    }
+
+    private void updateData(Advertiser adv) {
+        if (adv == mOnAir && mCarrierId >= 0) {
+            mCarrier.setData(mCarrierId, adv.advertiseData, adv.scanResponse);
+        } else {
+            adv.dataChanged = true;
+        }
+    }
+
+    /**
+     * Make sure the advertiser on air is still enabled and a rotation is scheduled when there is
+     * more than one advertiser to serve.
+     */
+    private void refresh() {
+        if (mCarrierId < 0) return;
+        if (mOnAir == null || !mOnAir.enabled || !mAdvertisers.contains(mOnAir)) {
+            rotate();
+        } else if (!mRotationScheduled && countEnabled() > 1) {
+            mHandler.postDelayed(mRotate, mSlotMillis);
+            mRotationScheduled = true;
+        }
+    }
+
+    private void rotate() {
+        if (mCarrierId < 0) return;
+        mHandler.removeCallbacks(mRotate);
+        mRotationScheduled = false;
+
+        long now = SystemClock.elapsedRealtime();
+        if (mOnAir != null) mOnAir.onAirMillis += now - mOnAirSince;
+
+        Advertiser next = pickNext();
+        if (next == null) {
+            mOnAir = null;
+            if (mCarrierEnabled) {
+                mCarrier.enable(mCarrierId, false);
+                mCarrierEnabled = false;
+            }
+            return;
+        }
+
+        if (next != mOnAir || next.dataChanged) {
+            mCarrier.setData(mCarrierId, next.advertiseData, next.scanResponse);
+            next.dataChanged = false;
+            mRotations++;
+        }
+        if (!mCarrierEnabled) {
+            mCarrier.enable(mCarrierId, true);
+            mCarrierEnabled = true;
+        }
+        mOnAir = next;
+        mOnAirSince = now;
+
+        if (countEnabled() > 1) {
+            mHandler.postDelayed(mRotate, mSlotMillis);
+            mRotationScheduled = true;
+        }
+    }
+
+    // Smooth weighted round robin: each advertiser gets slots in proportion to its weight, and
+    // they are spread out rather than given in bursts.
+    private Advertiser pickNext() {
+        Advertiser best = null;
+        int total = 0;
+        for (Advertiser adv : mAdvertisers) {
+            if (!adv.enabled) continue;
+            adv.credit += adv.weight;
+            total += adv.weight;
+            if (best == null || adv.credit > best.credit) best = adv;
+        }
+        if (best != null) best.credit -= total;
+        return best;
+    }
+
+    private int countEnabled() {
+        int count = 0;
+        for (Advertiser adv : mAdvertisers) {
+            if (adv.enabled) count++;
+        }
+        return count;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Slot: " + mSlotMillis + "ms, carrier: "
+                + (mCarrierId >= 0 ? mCarrierId : (mCarrierPending ? "starting" : "none"))
+                + ", rotations: " + mRotations + "\n");
+        if (mCarrierParameters != null) {
+            sb.append("  Carrier interval: " + mCarrierParameters.getInterval() + ", tx power: "
+                    + mCarrierTxPower + "dBm\n");
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long total = 0;
+        for (Advertiser adv : mAdvertisers) {
+            total += adv.onAirMillis + (adv == mOnAir ? now - mOnAirSince : 0);
+        }
+        for (Advertiser adv : mAdvertisers) {
+            long onAir = adv.onAirMillis + (adv == mOnAir ? now - mOnAirSince : 0);
+            sb.append("  id: " + adv.id + " weight: " + adv.weight
+                    + (adv.enabled ? "" : " (disabled)") + (adv.started ? "" : " (waiting)")
+                    + " on air: " + onAir + "ms"
+                    + (total > 0 ? " (" + (onAir * 100 / total) + "%)" : "") + "\n");
+        }
+    }
+}
@@ -22,6 +22,7 @@ import android.os.IInterface;
 import android.os.RemoteException;
 import android.os.WorkSource;
 import android.util.Log;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Collections;
@@ -95,7 +96,13 @@ import com.android.bluetooth.btservice.BluetoothProto;
         boolean hasPeersMacAddressPermission;
 
         /** Internal callback info queue, waiting to be send on congestion clear */
-        private List<CallbackInfo> congestionQueue = new ArrayList<CallbackInfo>();
+        private ArrayDeque<CallbackInfo> congestionQueue = new ArrayDeque<CallbackInfo>();
+
+        /** Congestion queue statistics */
+        private int maxQueueDepth;
+        private long drains;
+        private long lastDrainMicros;
+        private long maxDrainMicros;
 
         /**
          * Creates a new app context.
@@ -138,12 +145,34 @@ import com.android.bluetooth.btservice.BluetoothProto;
         }
 
         void queueCallback(CallbackInfo callbackInfo) {
-            congestionQueue.add(callbackInfo);
+            // Every completion is kept and delivered in order, apps expect one callback per
+            // request and pace their next request on it.
+            congestionQueue.addLast(callbackInfo);
+            maxQueueDepth = Math.max(maxQueueDepth, congestionQueue.size());
         }
 
         CallbackInfo popQueuedCallback() {
-            if (congestionQueue.size() == 0) return null;
-            return congestionQueue.remove(0);
+            return congestionQueue.pollFirst();
+        }
+
+        int getQueuedCallbackCount() {
+            return congestionQueue.size();
+        }
+
+        /**
+         * Record how long it took to deliver the queued callbacks once congestion cleared.
+         */
+        void recordDrain(long micros) {
+            drains++;
+            lastDrainMicros = micros;
+            maxDrainMicros = Math.max(maxDrainMicros, micros);
+        }
+
+        void dumpCongestionQueue(StringBuilder sb) {
+            if (maxQueueDepth == 0) return;
+            sb.append("  " + name + " (" + id + "): queued " + congestionQueue.size()
+                    + ", max " + maxQueueDepth + ", drains " + drains
+                    + ", last/max drain us " + lastDrainMicros + "/" + maxDrainMicros + "\n");
         }
     }
 
@@ -457,6 +486,12 @@ import com.android.bluetooth.btservice.BluetoothProto;
      * Logs debug information.
      */
     void dump(StringBuilder sb) {
+        synchronized (mApps) {
+            for (App app : mApps) {
+                app.dumpCongestionQueue(sb);
+            }
+        }
+
         sb.append("  Entries: " + mAppScanStats.size() + "\n\n");
 
         Iterator<Map.Entry<Integer, AppScanStats>> it = mAppScanStats.entrySet().iterator();
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Discovered GATT databases of bonded devices, kept in memory and on disk so that service
+ * discovery can be answered without a round trip through the stack after a reconnection.
+ *
+ * The stack handles Service Changed indications itself and runs a new search, so a cached
+ * database is dropped whenever a search completes, and replaced by the one just discovered.
+ * Only databases with a Database Hash characteristic are cached: the hash is read right after
+ * the discovery, in the same connection, before the search is reported to the app. At
+ * reconnection the hash is read again and the cached database is used only if it matches.
+ * Without a hash nothing would tell a stale database apart before the app used it.
+ *
+ * While the cache reads the hash on a connection, reads made by the app on that connection are
+ * held back, so that every reply is routed to the one who asked for it.
+ *
+ * All file access runs on the looper given at construction; lookups only use memory.
+ */
+class GattDatabaseCache {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "GattDatabaseCache";
+
+    static final UUID DATABASE_HASH_UUID =
+            UUID.fromString("00002b2a-0000-1000-8000-00805f9b34fb");
+
+    private static final int FORMAT_VERSION = 1;
+    // Bluetooth base UUID, 16 and 32 bit UUIDs are stored in 4 bytes
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+    private static final long BASE_UUID_MSB_MASK = 0x00000000ffffffffL;
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    static final int VALIDATION_VALID = 1;
+    static final int VALIDATION_INVALID = 2;
+    static final int VALIDATION_HASH_STORED = 3;
+
+    private static class Database {
+        final List<GattDbElement> elements;
+        final byte[] hash;
+
+        Database(List<GattDbElement> elements, byte[] hash) {
+            this.elements = elements;
+            this.hash = hash;
+        }
+    }
+
+    /* A read of the Database Hash issued by the cache */
+    static class Validation {
+        final String address;
+        final int handle;
+        // Set when the hash of a database just discovered is read, before caching it
+        final List<GattDbElement> discovered;
+        // Reads made by the app on this connection meanwhile, to make once the hash is read
+        final ArrayList<Runnable> deferredReads = new ArrayList<Runnable>();
+        // Once the hash is read, one of the VALIDATION_ values
+        int result;
+        // Once the hash is read, the database to report to the app, or null to search again
+        ArrayList<GattDbElement> database;
+
+        Validation(String address, int handle, List<GattDbElement> discovered) {
+            this.address = address;
+            this.handle = handle;
+            this.discovered = discovered;
+        }
+    }
+
+    private final File mDirectory;
+    private final Handler mHandler;
+    private final HashMap<String, Database> mDatabases = new HashMap<String, Database>();
+    private final SparseArray<Validation> mValidations = new SparseArray<Validation>();
+    // Devices whose database was dropped or replaced before the stored ones were loaded
+    private final HashSet<String> mChangedBeforeLoad = new HashSet<String>();
+    private boolean mLoaded;
+    private long mHits;
+    private long mMisses;
+
+    GattDatabaseCache(File directory, Looper looper) {
+        mDirectory = directory;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Load the stored databases in the background. The files of devices which are no longer
+     * bonded are deleted.
+     */
+    void start(final Set<String> bondedAddresses) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                loadAll(bondedAddresses);
+            }
+        });
+    }
+
+    @VisibleForTesting
+    synchronized boolean contains(String address) {
+        return mDatabases.containsKey(address);
+    }
+
+    /**
+     * Cache the database just discovered on a bonded device, once its hash is read.
+     *
+     * @return the handle of the Database Hash characteristic to read before the search is
+     *         reported, or -1 if the device has none and the database is not cached
+     */
+    synchronized int put(int connId, String address, List<GattDbElement> elements) {
+        GattDbElement el = findCharacteristic(elements, DATABASE_HASH_UUID);
+        if (el == null) return -1;
+
+        mValidations.put(connId, new Validation(address, el.attributeHandle,
+                new ArrayList<GattDbElement>(elements)));
+        return el.attributeHandle;
+    }
+
+    /**
+     * Drop the cached database of a device, e.g. once a search completed or the device was
+     * unbonded.
+     */
+    synchronized void remove(String address) {
+        if (DBG) Log.d(TAG, "remove() address=" + address);
+        mDatabases.remove(address);
+        if (!mLoaded) mChangedBeforeLoad.add(address);
+        final File file = getFile(address);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    synchronized void clear() {
+        mDatabases.clear();
+        mValidations.clear();
+    }
+
+    /**
+     * Start validating the cached database of a device that reconnected.
+     *
+     * @return the handle of the Database Hash characteristic to read, or -1 if the database can
+     *         be used as is
+     */
+    synchronized int startValidation(int connId, String address) {
+        Database database = mDatabases.get(address);
+        if (database == null) {
+            mMisses++;
+            return -1;
+        }
+        GattDbElement el = findCharacteristic(database.elements, DATABASE_HASH_UUID);
+        if (el == null) return -1;
+
+        mValidations.put(connId, new Validation(address, el.attributeHandle, null));
+        return el.attributeHandle;
+    }
+
+    /**
+     * @return true if the cache is reading the Database Hash on this connection, app reads
+     *         have to go through {@link #deferRead} then
+     */
+    synchronized boolean isValidating(int connId) {
+        return mValidations.get(connId) != null;
+    }
+
+    /**
+     * Hold back a read made by the app until the pending read of the Database Hash completes.
+     *
+     * @return false if no read of the hash is pending anymore, the read can be made right away
+     */
+    synchronized boolean deferRead(int connId, Runnable read) {
+        Validation validation = mValidations.get(connId);
+        if (validation == null) return false;
+        validation.deferredReads.add(read);
+        return true;
+    }
+
+    /**
+     * Check the result of a characteristic read against a pending read of the Database Hash.
+     *
+     * @return null if the read was not issued by the cache, otherwise the completed validation
+     *         with its result, the database to report and the app reads held back meanwhile
+     */
+    synchronized Validation onCharacteristicRead(int connId, int handle, int status,
+            byte[] value) {
+        Validation validation = mValidations.get(connId);
+        if (validation == null || validation.handle != handle) return null;
+        mValidations.remove(connId);
+
+        boolean hashRead = status == 0 && value != null;
+        if (validation.discovered != null) {
+            if (hashRead) {
+                putDatabase(validation.address, new Database(validation.discovered, value));
+            } else {
+                Log.w(TAG, "Unable to read the database hash of " + validation.address);
+            }
+            validation.result = VALIDATION_HASH_STORED;
+            validation.database = new ArrayList<GattDbElement>(validation.discovered);
+            return validation;
+        }
+
+        Database database = mDatabases.get(validation.address);
+        if (hashRead && database != null && database.hash != null
+                && Arrays.equals(database.hash, value)) {
+            mHits++;
+            validation.result = VALIDATION_VALID;
+            validation.database = new ArrayList<GattDbElement>(database.elements);
+            return validation;
+        }
+
+        if (DBG) Log.d(TAG, "Database hash changed for " + validation.address);
+        remove(validation.address);
+        validation.result = VALIDATION_INVALID;
+        return validation;
+    }
+
+    synchronized void onDisconnected(int connId) {
+        mValidations.remove(connId);
+    }
+
+    private void putDatabase(final String address, final Database database) {
+        mDatabases.put(address, database);
+        if (!mLoaded) mChangedBeforeLoad.add(address);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                store(address, database);
+            }
+        });
+    }
+
+    private static GattDbElement findCharacteristic(List<GattDbElement> elements, UUID uuid) {
+        for (GattDbElement el : elements) {
+            if (el.type == GattDbElement.TYPE_CHARACTERISTIC && uuid.equals(el.uuid)) {
+                return el;
+            }
+        }
+        return null;
+    }
+
+    private File getFile(String address) {
+        return new File(mDirectory, address.replace(":", ""));
+    }
+
+    private void loadAll(Set<String> bondedAddresses) {
+        HashMap<String, String> addresses = new HashMap<String, String>();
+        for (String address : bondedAddresses) {
+            addresses.put(getFile(address).getName(), address);
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) files = new File[0];
+        for (File file : files) {
+            String address = addresses.get(file.getName());
+            if (address == null) {
+                if (DBG) Log.d(TAG, "Deleting the database of unbonded device " + file.getName());
+                file.delete();
+                continue;
+            }
+
+            Database database = load(file);
+            if (database == null) continue;
+            if (database.hash == null) {
+                // Stored by an earlier version, it can't be validated
+                file.delete();
+                continue;
+            }
+            synchronized (this) {
+                if (!mChangedBeforeLoad.contains(address)) mDatabases.put(address, database);
+            }
+        }
+        synchronized (this) {
+            mLoaded = true;
+            mChangedBeforeLoad.clear();
+        }
+    }
+
+    private static Database load(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return read(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the GATT database in " + file + ": " + e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void store(String address, Database database) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(getFile(address))));
+            write(out, database);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store the GATT database of " + address + ": " + e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    // Layout: version, hash length and bytes, element count, then per element its type, id,
+    // handle, UUID, start and end handles and properties. Handles fit in 16 bits.
+    private static void write(DataOutputStream out, Database database) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        byte[] hash = database.hash;
+        out.writeByte(hash == null ? 0 : hash.length);
+        if (hash != null) out.write(hash);
+
+        out.writeShort(database.elements.size());
+        for (GattDbElement el : database.elements) {
+            out.writeByte(el.type);
+            out.writeShort(el.id);
+            out.writeShort(el.attributeHandle);
+            writeUuid(out, el.uuid);
+            out.writeShort(el.startHandle);
+            out.writeShort(el.endHandle);
+            out.writeByte(el.properties);
+        }
+    }
+
+    private static Database read(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != FORMAT_VERSION) {
+            throw new IOException("Unknown format");
+        }
+        byte[] hash = null;
+        int hashLength = in.readUnsignedByte();
+        if (hashLength > 0) {
+            hash = new byte[hashLength];
+            in.readFully(hash);
+        }
+
+        int count = in.readUnsignedShort();
+        List<GattDbElement> elements = new ArrayList<GattDbElement>(count);
+        for (int i = 0; i < count; i++) {
+            GattDbElement el = new GattDbElement();
+            el.type = in.readUnsignedByte();
+            el.id = in.readUnsignedShort();
+            el.attributeHandle = in.readUnsignedShort();
+            el.uuid = readUuid(in);
+            el.startHandle = in.readUnsignedShort();
+            el.endHandle = in.readUnsignedShort();
+            el.properties = in.readUnsignedByte();
+            elements.add(el);
+        }
+        return new Database(elements, hash);
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        if (lsb == BASE_UUID_LSB && (msb & BASE_UUID_MSB_MASK) == BASE_UUID_MSB) {
+            out.writeByte(4);
+            out.writeInt((int) (msb >>> 32));
+        } else {
+            out.writeByte(16);
+            out.writeLong(msb);
+            out.writeLong(lsb);
+        }
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length == 4) {
+            long msb = ((in.readInt() & 0xffffffffL) << 32) | BASE_UUID_MSB;
+            return new UUID(msb, BASE_UUID_LSB);
+        }
+        if (length != 16) throw new IOException("Bad UUID length " + length);
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Cached databases: " + mDatabases.size() + ", hits: " + mHits + ", misses: "
+                + mMisses + "\n");
+        for (String address : mDatabases.keySet()) {
+            Database database = mDatabases.get(address);
+            sb.append("  " + address + ": " + database.elements.size() + " attributes"
+                    + (database.hash != null ? ", hash known" : "") + "\n");
+        }
+    }
+}
@@ -46,9 +46,14 @@ import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Binder;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.SystemClock;
@@ -60,11 +65,13 @@ import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.BluetoothProto;
+import com.android.bluetooth.btservice.Instrumentation;
 import com.android.bluetooth.a2dp.A2dpService;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.File;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -102,6 +109,16 @@ public class GattService extends ProfileService {
 
     private static final int ET_LEGACY_MASK = 0x10;
 
+    private static final String GATT_DB_CACHE_DIR = "gatt_db_cache";
+
+    private static final Instrumentation.Probe SCAN_RESULT_PROBE =
+            Instrumentation.probe("GattService.onScanResult");
+    private static final Instrumentation.Probe NOTIFY_PROBE =
+            Instrumentation.probe("GattService.onNotify");
+    // Binder call latency, per IBluetoothGatt transaction code.
+    private static final Instrumentation.ProbeGroup sBinderProbes =
+            new Instrumentation.ProbeGroup("IBluetoothGatt#", 128);
+
     private static final UUID[] HID_UUIDS = {
         UUID.fromString("00002A4A-0000-1000-8000-00805F9B34FB"),
         UUID.fromString("00002A4B-0000-1000-8000-00805F9B34FB"),
@@ -165,6 +182,8 @@ public class GattService extends ProfileService {
     private Map<Integer, List<BluetoothGattService>> gattClientDatabases =
             new HashMap<Integer, List<BluetoothGattService>>();
 
+    private volatile GattDatabaseCache mDatabaseCache;
+    private HandlerThread mDatabaseCacheThread;
     private AdvertiseManager mAdvertiseManager;
     private PeriodicScanManager mPeriodicScanManager;
     private ScanManager mScanManager;
@@ -193,6 +212,17 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "start()");
         initializeNative();
         mAppOps = getSystemService(AppOpsManager.class);
+        mDatabaseCacheThread = new HandlerThread("GattDatabaseCache");
+        mDatabaseCacheThread.start();
+        mDatabaseCache = new GattDatabaseCache(new File(getFilesDir(), GATT_DB_CACHE_DIR),
+                mDatabaseCacheThread.getLooper());
+        Set<String> bondedAddresses = new HashSet<String>();
+        for (BluetoothDevice device : AdapterService.getAdapterService().getBondedDevices()) {
+            bondedAddresses.add(device.getAddress());
+        }
+        mDatabaseCache.start(bondedAddresses);
+        registerReceiver(mBondStateReceiver,
+                new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
         mAdvertiseManager = new AdvertiseManager(this, AdapterService.getAdapterService());
         mAdvertiseManager.start();
 
@@ -212,6 +242,16 @@ public class GattService extends ProfileService {
         mServerMap.clear();
         mHandleMap.clear();
         mReliableQueue.clear();
+        if (mDatabaseCache != null) {
+            unregisterReceiver(mBondStateReceiver);
+            mDatabaseCache.clear();
+            mDatabaseCache = null;
+        }
+        if (mDatabaseCacheThread != null) {
+            // Let pending writes of the database cache complete
+            mDatabaseCacheThread.quitSafely();
+            mDatabaseCacheThread = null;
+        }
 
         if (mAdvertiseManager != null) {
           mAdvertiseManager.cleanup();
@@ -371,6 +411,19 @@ public class GattService extends ProfileService {
             mService = svc;
         }
 
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            long start = Instrumentation.start();
+            try {
+                return super.onTransact(code, data, reply, flags);
+            } finally {
+                if (start != 0) {
+                    sBinderProbes.get(code).end(start);
+                }
+            }
+        }
+
         public boolean cleanup()  {
             mService = null;
             return true;
@@ -768,6 +821,18 @@ public class GattService extends ProfileService {
     void onScanResult(int event_type, int address_type, String address, int primary_phy,
             int secondary_phy, int advertising_sid, int tx_power, int rssi, int periodic_adv_int,
             byte[] adv_data) {
+        long start = Instrumentation.start();
+        try {
+            handleScanResult(event_type, address_type, address, primary_phy, secondary_phy,
+                    advertising_sid, tx_power, rssi, periodic_adv_int, adv_data);
+        } finally {
+            SCAN_RESULT_PROBE.end(start);
+        }
+    }
+
+    private void handleScanResult(int event_type, int address_type, String address,
+            int primary_phy, int secondary_phy, int advertising_sid, int tx_power, int rssi,
+            int periodic_adv_int, byte[] adv_data) {
         if (VDBG) {
             Log.d(TAG, "onScanResult() - event_type=0x" + Integer.toHexString(event_type)
                             + ", address_type=" + address_type + ", address=" + address
@@ -974,6 +1039,8 @@ public class GattService extends ProfileService {
             + ", connId=" + connId + ", address=" + address);
 
         mClientMap.removeConnection(clientIf, connId);
+        GattDatabaseCache cache = mDatabaseCache;
+        if (cache != null) cache.onDisconnected(connId);
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf, false, address);
@@ -1068,6 +1135,12 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onSearchCompleted() - connId=" + connId+ ", status=" + status);
         // Gatt DB is ready!
 
+        // The stack also searches on its own when the device indicates Service Changed. The
+        // cached database is stale either way, onGetGattDb() caches the new one.
+        String address = mClientMap.addressByConnId(connId);
+        GattDatabaseCache cache = mDatabaseCache;
+        if (address != null && cache != null) cache.remove(address);
+
         // This callback was called from the jni_workqueue thread. If we make request to the stack
         // on the same thread, it might cause deadlock. Schedule request on a new thread instead.
         Thread t = new Thread(new Runnable() {
@@ -1084,8 +1157,37 @@ public class GattService extends ProfileService {
 
     void onGetGattDb(int connId, ArrayList<GattDbElement> db) throws RemoteException {
         String address = mClientMap.addressByConnId(connId);
+        GattDatabaseCache cache = mDatabaseCache;
+        if (address != null && cache != null && isBonded(address)) {
+            // Read the Database Hash before reporting the search, the database is cached once
+            // it is known
+            int hashHandle = cache.put(connId, address, db);
+            if (hashHandle >= 0) {
+                gattClientReadCharacteristicNative(connId, hashHandle, 0 /* authReq */);
+                return;
+            }
+        }
+        deliverGattDb(connId, address, db);
+    }
+
+    private void onDatabaseHashRead(int connId, String address,
+            GattDatabaseCache.Validation validation) throws RemoteException {
+        if (DBG) Log.d(TAG, "onDatabaseHashRead() - address=" + address
+                + ", result=" + validation.result);
+
+        if (validation.database != null) {
+            deliverGattDb(connId, address, validation.database);
+        } else {
+            gattClientSearchServiceNative(connId, true, 0, 0);
+        }
+        for (Runnable read : validation.deferredReads) {
+            read.run();
+        }
+    }
 
-        if (DBG) Log.d(TAG, "onGetGattDb() - address=" + address);
+    private void deliverGattDb(int connId, String address, List<GattDbElement> db)
+            throws RemoteException {
+        if (DBG) Log.d(TAG, "deliverGattDb() - address=" + address);
 
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null || app.callback == null) {
@@ -1148,6 +1250,16 @@ public class GattService extends ProfileService {
 
     void onNotify(int connId, String address, int handle,
             boolean isNotify, byte[] data) throws RemoteException {
+        long start = Instrumentation.start();
+        try {
+            handleNotify(connId, address, handle, isNotify, data);
+        } finally {
+            NOTIFY_PROBE.end(start);
+        }
+    }
+
+    private void handleNotify(int connId, String address, int handle,
+            boolean isNotify, byte[] data) throws RemoteException {
 
         if (VDBG) Log.d(TAG, "onNotify() - address=" + address
             + ", handle=" + handle + ", length=" + data.length);
@@ -1166,6 +1278,16 @@ public class GattService extends ProfileService {
     void onReadCharacteristic(int connId, int status, int handle, byte[] data) throws RemoteException {
         String address = mClientMap.addressByConnId(connId);
 
+        // Database hash read after a discovery, or while answering discoverServices() from
+        // the cache
+        GattDatabaseCache cache = mDatabaseCache;
+        GattDatabaseCache.Validation validation = (cache != null)
+                ? cache.onCharacteristicRead(connId, handle, status, data) : null;
+        if (validation != null) {
+            onDatabaseHashRead(connId, address, validation);
+            return;
+        }
+
         if (VDBG) Log.d(TAG, "onReadCharacteristic() - address=" + address
             + ", status=" + status + ", length=" + data.length);
 
@@ -1568,12 +1690,16 @@ public class GattService extends ProfileService {
 
         if (app != null) {
             app.isCongested = congested;
+            if (congested || app.getQueuedCallbackCount() == 0) return;
+
+            long start = SystemClock.elapsedRealtimeNanos();
             while(!app.isCongested) {
                 CallbackInfo callbackInfo = app.popQueuedCallback();
-                if (callbackInfo == null)  return;
+                if (callbackInfo == null) break;
                 app.callback.onCharacteristicWrite(callbackInfo.address,
                         callbackInfo.status, callbackInfo.handle);
             }
+            app.recordDrain((SystemClock.elapsedRealtimeNanos() - start) / 1000);
         }
     }
 
@@ -2001,6 +2127,8 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "refreshDevice() - address=" + address);
+        GattDatabaseCache cache = mDatabaseCache;
+        if (cache != null) cache.remove(address);
         gattClientRefreshNative(clientIf, address);
     }
 
@@ -2010,10 +2138,40 @@ public class GattService extends ProfileService {
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (DBG) Log.d(TAG, "discoverServices() - address=" + address + ", connId=" + connId);
 
-        if (connId != null)
-            gattClientSearchServiceNative(connId, true, 0, 0);
-        else
+        if (connId == null) {
             Log.e(TAG, "discoverServices() - No connection for " + address + "...");
+            return;
+        }
+
+        // The cached database is reported once its hash is read and matches
+        GattDatabaseCache cache = mDatabaseCache;
+        if (cache != null && isBonded(address)) {
+            int hashHandle = cache.startValidation(connId, address);
+            if (hashHandle >= 0) {
+                gattClientReadCharacteristicNative(connId, hashHandle, 0 /* authReq */);
+                return;
+            }
+        }
+
+        gattClientSearchServiceNative(connId, true, 0, 0);
+    }
+
+    private final BroadcastReceiver mBondStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                    BluetoothDevice.ERROR);
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            GattDatabaseCache cache = mDatabaseCache;
+            if (state == BluetoothDevice.BOND_NONE && device != null && cache != null) {
+                cache.remove(device.getAddress());
+            }
+        }
+    };
+
+    private boolean isBonded(String address) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        return device.getBondState() == BluetoothDevice.BOND_BONDED;
     }
 
     void discoverServiceByUuid(int clientIf, String address, UUID uuid) {
@@ -2027,12 +2185,13 @@ public class GattService extends ProfileService {
             Log.e(TAG, "discoverServiceByUuid() - No connection for " + address + "...");
     }
 
-    void readCharacteristic(int clientIf, String address, int handle, int authReq) {
+    void readCharacteristic(int clientIf, String address, final int handle,
+            final int authReq) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (VDBG) Log.d(TAG, "readCharacteristic() - address=" + address);
 
-        Integer connId = mClientMap.connIdByAddress(clientIf, address);
+        final Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId == null) {
             Log.e(TAG, "readCharacteristic() - No connection for " + address + "...");
             return;
@@ -2043,16 +2202,28 @@ public class GattService extends ProfileService {
             return;
         }
 
+        // Wait for the Database Hash read of the cache, its reply must not be taken for this one
+        GattDatabaseCache cache = mDatabaseCache;
+        if (cache != null && cache.isValidating(connId) && cache.deferRead(connId,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        gattClientReadCharacteristicNative(connId, handle, authReq);
+                    }
+                })) {
+            return;
+        }
+
         gattClientReadCharacteristicNative(connId, handle, authReq);
     }
 
-    void readUsingCharacteristicUuid(
-            int clientIf, String address, UUID uuid, int startHandle, int endHandle, int authReq) {
+    void readUsingCharacteristicUuid(int clientIf, String address, final UUID uuid,
+            final int startHandle, final int endHandle, final int authReq) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (VDBG) Log.d(TAG, "readUsingCharacteristicUuid() - address=" + address);
 
-        Integer connId = mClientMap.connIdByAddress(clientIf, address);
+        final Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId == null) {
             Log.e(TAG, "readUsingCharacteristicUuid() - No connection for " + address + "...");
             return;
@@ -2063,6 +2234,20 @@ public class GattService extends ProfileService {
             return;
         }
 
+        // Wait for the Database Hash read of the cache, its reply must not be taken for this one
+        GattDatabaseCache cache = mDatabaseCache;
+        if (cache != null && cache.isValidating(connId) && cache.deferRead(connId,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        gattClientReadUsingCharacteristicUuidNative(connId,
+                                uuid.getLeastSignificantBits(), uuid.getMostSignificantBits(),
+                                startHandle, endHandle, authReq);
+                    }
+                })) {
+            return;
+        }
+
         gattClientReadUsingCharacteristicUuidNative(connId, uuid.getLeastSignificantBits(),
                 uuid.getMostSignificantBits(), startHandle, endHandle, authReq);
     }
@@ -2439,11 +2624,15 @@ public class GattService extends ProfileService {
         if (app == null) return;
 
         app.isCongested = congested;
+        if (congested || app.getQueuedCallbackCount() == 0) return;
+
+        long start = SystemClock.elapsedRealtimeNanos();
         while(!app.isCongested) {
             CallbackInfo callbackInfo = app.popQueuedCallback();
-            if (callbackInfo == null) return;
+            if (callbackInfo == null) break;
             app.callback.onNotificationSent(callbackInfo.address, callbackInfo.status);
         }
+        app.recordDrain((SystemClock.elapsedRealtimeNanos() - start) / 1000);
     }
 
     void onMtuChanged(int connId, int mtu) throws RemoteException {
@@ -2754,6 +2943,11 @@ public class GattService extends ProfileService {
         sb.append("\nGATT Scanner Map\n");
         mScannerMap.dump(sb);
 
+        if (mScanManager != null) {
+            sb.append("GATT Scan Filters\n");
+            mScanManager.dump(sb);
+        }
+
         sb.append("GATT Client Map\n");
         mClientMap.dump(sb);
 
@@ -2762,6 +2956,15 @@ public class GattService extends ProfileService {
 
         sb.append("GATT Handle Map\n");
         mHandleMap.dump(sb);
+
+        if (mAdvertiseManager != null) {
+            sb.append("GATT Advertisers\n");
+            mAdvertiseManager.dump(sb);
+        }
+
+        sb.append("GATT Database Cache\n");
+        GattDatabaseCache cache = mDatabaseCache;
+        if (cache != null) cache.dump(sb);
     }
 
     void addScanResult() {
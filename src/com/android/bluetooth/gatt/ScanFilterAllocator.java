@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Hands out the controller's scan filter slots, shared between scan clients.
+ *
+ * A slot is shared by every client asking for the same filter, and a filter can also use a
+ * slot programmed with a broader filter, e.g. the same service UUID without the service data,
+ * since results are matched against each client's filters on the host anyway. When no slot is
+ * left, a filter is narrowed down to its most selective field, the one with the lowest
+ * expected hit rate, so that it can share a slot with other filters on that field.
+ *
+ * Slots can only be shared by clients whose filters are configured the same way, which the
+ * caller expresses with a group: {@link #SHARED_GROUP} for clients whose results are delivered
+ * immediately, or a value private to a client otherwise. Results of private groups, found/lost,
+ * batched or routed, are not matched on the host, so their filters are never narrowed.
+ */
+class ScanFilterAllocator {
+    static final int SHARED_GROUP = -1;
+
+    static class Slot {
+        final int index;
+        final int group;
+        final ScanFilter filter;
+        // Scanner that programmed the slot, used to remove it
+        final int ownerScannerId;
+        int refs;
+
+        Slot(int index, int group, ScanFilter filter, int ownerScannerId) {
+            this.index = index;
+            this.group = group;
+            this.filter = filter;
+            this.ownerScannerId = ownerScannerId;
+        }
+    }
+
+    private final Deque<Integer> mFreeIndices = new ArrayDeque<Integer>();
+    private final List<Slot> mSlots = new ArrayList<Slot>();
+    private final Map<Integer, List<Slot>> mClientSlots = new HashMap<Integer, List<Slot>>();
+    private boolean mInitialized;
+    private int mCapacity;
+    private long mSharedAllocations;
+    private long mNarrowedAllocations;
+    // Whether the last plan had to narrow filters down
+    private boolean mPlanNarrowed;
+
+    /**
+     * Make the filter indices in [firstIndex, maxFilters) available.
+     */
+    synchronized void init(int firstIndex, int maxFilters) {
+        mInitialized = true;
+        for (int i = firstIndex; i < maxFilters; i++) {
+            mFreeIndices.add(i);
+            mCapacity++;
+        }
+    }
+
+    synchronized boolean isInitialized() {
+        return mInitialized;
+    }
+
+    synchronized boolean hasClient(int scannerId) {
+        return mClientSlots.containsKey(scannerId);
+    }
+
+    /**
+     * @return whether all the filters of a client would get a slot
+     */
+    synchronized boolean canAllocate(int group, List<ScanFilter> filters) {
+        return plan(group, filters) != null;
+    }
+
+    /**
+     * Get slots for all the filters of a client, or none of them.
+     *
+     * @return the slots that were newly taken and have to be programmed in the controller, or
+     *         null if the filters don't fit
+     */
+    synchronized List<Slot> allocate(int scannerId, int group, List<ScanFilter> filters) {
+        List<Object> plan = plan(group, filters);
+        if (plan == null) return null;
+        if (mPlanNarrowed) mNarrowedAllocations++;
+
+        List<Slot> clientSlots = new ArrayList<Slot>();
+        List<Slot> newSlots = new ArrayList<Slot>();
+        for (Object entry : plan) {
+            Slot slot;
+            if (entry instanceof Slot) {
+                slot = (Slot) entry;
+                mSharedAllocations++;
+            } else {
+                ScanFilter filter = (ScanFilter) entry;
+                // The same new filter may appear twice in a plan.
+                slot = findSlot(group, filter, newSlots);
+                if (slot == null) {
+                    slot = new Slot(mFreeIndices.pop(), group, filter, scannerId);
+                    mSlots.add(slot);
+                    newSlots.add(slot);
+                }
+            }
+            if (!clientSlots.contains(slot)) {
+                slot.refs++;
+                clientSlots.add(slot);
+            }
+        }
+        mClientSlots.put(scannerId, clientSlots);
+        return newSlots;
+    }
+
+    /**
+     * Release the slots of a client.
+     *
+     * @return the slots no longer used by anyone, to be removed from the controller
+     */
+    synchronized List<Slot> release(int scannerId) {
+        List<Slot> released = new ArrayList<Slot>();
+        List<Slot> clientSlots = mClientSlots.remove(scannerId);
+        if (clientSlots == null) return released;
+
+        for (Slot slot : clientSlots) {
+            if (--slot.refs > 0) continue;
+            mSlots.remove(slot);
+            mFreeIndices.push(slot.index);
+            released.add(slot);
+        }
+        return released;
+    }
+
+    // Plan entries are either an existing Slot to share or a ScanFilter needing a new slot.
+    private List<Object> plan(int group, List<ScanFilter> filters) {
+        if (filters == null) return null;
+        mPlanNarrowed = false;
+        List<Object> plan = new ArrayList<Object>();
+        List<ScanFilter> pending = new ArrayList<ScanFilter>();
+        for (ScanFilter filter : filters) {
+            Slot slot = findCoveringSlot(group, filter);
+            if (slot != null) {
+                plan.add(slot);
+                continue;
+            }
+            if (!pending.contains(filter)) pending.add(filter);
+            plan.add(filter);
+        }
+        if (pending.size() <= mFreeIndices.size()) return plan;
+        if (group != SHARED_GROUP) return null;
+
+        // Not enough slots, narrow the filters down and look again.
+        pending.clear();
+        for (int i = 0; i < plan.size(); i++) {
+            if (!(plan.get(i) instanceof ScanFilter)) continue;
+            ScanFilter narrowed = narrow((ScanFilter) plan.get(i));
+            Slot slot = findCoveringSlot(group, narrowed);
+            if (slot != null) {
+                plan.set(i, slot);
+                continue;
+            }
+            if (!pending.contains(narrowed)) pending.add(narrowed);
+            plan.set(i, narrowed);
+        }
+        if (pending.size() > mFreeIndices.size()) return null;
+        mPlanNarrowed = true;
+        return plan;
+    }
+
+    private Slot findSlot(int group, ScanFilter filter, List<Slot> slots) {
+        for (Slot slot : slots) {
+            if (slot.group == group && slot.filter.equals(filter)) return slot;
+        }
+        return null;
+    }
+
+    // Prefers an identical slot, then the most specific broader one.
+    private Slot findCoveringSlot(int group, ScanFilter filter) {
+        Slot best = null;
+        int bestFields = -1;
+        for (Slot slot : mSlots) {
+            if (slot.group != group || !covers(slot.filter, filter)) continue;
+            if (slot.filter.equals(filter)) return slot;
+            int fields = countFields(slot.filter);
+            if (fields > bestFields) {
+                best = slot;
+                bestFields = fields;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return whether every advertisement matching {@code filter} also matches {@code broad}
+     */
+    static boolean covers(ScanFilter broad, ScanFilter filter) {
+        if (countFields(broad) == 0) return false;
+        if (broad.getDeviceAddress() != null
+                && !broad.getDeviceAddress().equals(filter.getDeviceAddress())) {
+            return false;
+        }
+        if (broad.getDeviceName() != null
+                && !broad.getDeviceName().equals(filter.getDeviceName())) {
+            return false;
+        }
+        if (broad.getServiceUuid() != null
+                && (!broad.getServiceUuid().equals(filter.getServiceUuid())
+                        || !Objects.equals(broad.getServiceUuidMask(),
+                                filter.getServiceUuidMask()))) {
+            return false;
+        }
+        if (broad.getServiceDataUuid() != null
+                && (!broad.getServiceDataUuid().equals(filter.getServiceDataUuid())
+                        || !Arrays.equals(broad.getServiceData(), filter.getServiceData())
+                        || !Arrays.equals(broad.getServiceDataMask(),
+                                filter.getServiceDataMask()))) {
+            return false;
+        }
+        if (broad.getManufacturerId() >= 0
+                && (broad.getManufacturerId() != filter.getManufacturerId()
+                        || !Arrays.equals(broad.getManufacturerData(),
+                                filter.getManufacturerData())
+                        || !Arrays.equals(broad.getManufacturerDataMask(),
+                                filter.getManufacturerDataMask()))) {
+            return false;
+        }
+        return true;
+    }
+
+    private static int countFields(ScanFilter filter) {
+        int fields = 0;
+        if (filter.getDeviceAddress() != null) fields++;
+        if (filter.getDeviceName() != null) fields++;
+        if (filter.getServiceUuid() != null) fields++;
+        if (filter.getServiceDataUuid() != null) fields++;
+        if (filter.getManufacturerId() >= 0) fields++;
+        return fields;
+    }
+
+    /**
+     * Keep only the field of a filter least likely to match unrelated advertisements: a device
+     * address, then service data, manufacturer data, a service UUID and finally a name.
+     */
+    static ScanFilter narrow(ScanFilter filter) {
+        ScanFilter.Builder builder = new ScanFilter.Builder();
+        if (filter.getDeviceAddress() != null) {
+            return builder.setDeviceAddress(filter.getDeviceAddress()).build();
+        }
+        ParcelUuid serviceDataUuid = filter.getServiceDataUuid();
+        if (serviceDataUuid != null) {
+            return builder.setServiceData(serviceDataUuid, filter.getServiceData(),
+                    filter.getServiceDataMask()).build();
+        }
+        if (filter.getManufacturerId() >= 0) {
+            return builder.setManufacturerData(filter.getManufacturerId(),
+                    filter.getManufacturerData(), filter.getManufacturerDataMask()).build();
+        }
+        if (filter.getServiceUuid() != null) {
+            return builder.setServiceUuid(filter.getServiceUuid(),
+                    filter.getServiceUuidMask()).build();
+        }
+        return filter;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Filter slots: " + mSlots.size() + "/" + mCapacity + " used, clients: "
+                + mClientSlots.size() + ", shared allocations: " + mSharedAllocations
+                + ", narrowed allocations: " + mNarrowedAllocations + "\n");
+        for (Slot slot : mSlots) {
+            sb.append("    index " + slot.index + ": " + slot.refs + " client(s)"
+                    + (slot.group == SHARED_GROUP ? "" : " (private)") + " " + slot.filter + "\n");
+        }
+    }
+}
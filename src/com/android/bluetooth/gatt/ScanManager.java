@@ -40,12 +40,9 @@ import android.view.Display;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 
-import java.util.ArrayDeque;
 import java.util.Collections;
-import java.util.Deque;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -148,6 +145,10 @@ public class ScanManager {
         mScanNative.unregisterScannerNative(scannerId);
     }
 
+    void dump(StringBuilder sb) {
+        mScanNative.dump(sb);
+    }
+
     /**
      * Returns the regular scan queue.
      */
@@ -472,10 +473,8 @@ public class ScanManager {
         // The logic is AND for each filter field.
         private static final int LIST_LOGIC_TYPE = 0x1111111;
         private static final int FILTER_LOGIC_TYPE = 1;
-        // Filter indices that are available to user. It's sad we need to maintain filter index.
-        private final Deque<Integer> mFilterIndexStack;
-        // Map of scannerId and Filter indices used by client.
-        private final Map<Integer, Deque<Integer>> mClientFilterIndexMap;
+        // Filter indices that are available to user, shared between clients when possible.
+        private final ScanFilterAllocator mFilterAllocator = new ScanFilterAllocator();
         // Keep track of the clients that uses ALL_PASS filters.
         private final Set<Integer> mAllPassRegularClients = new HashSet<>();
         private final Set<Integer> mAllPassBatchClients = new HashSet<>();
@@ -484,9 +483,6 @@ public class ScanManager {
         private PendingIntent mBatchScanIntervalIntent;
 
         ScanNative() {
-            mFilterIndexStack = new ArrayDeque<Integer>();
-            mClientFilterIndexMap = new HashMap<Integer, Deque<Integer>>();
-
             mAlarmManager = (AlarmManager) mService.getSystemService(Context.ALARM_SERVICE);
             Intent batchIntent = new Intent(ACTION_REFRESH_BATCHED_SCAN, null);
             batchIntent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
@@ -579,12 +575,12 @@ public class ScanManager {
         }
 
         int startRegularScan(ScanClient client) {
-            if (isFilteringSupported() && mFilterIndexStack.isEmpty()
-                    && mClientFilterIndexMap.isEmpty()) {
+            if (isFilteringSupported() && !mFilterAllocator.isInitialized()) {
                 initFilterIndexStack();
             }
 
-            if (isRoutingScanClient(client) && (client.filters.size() > mFilterIndexStack.size())) {
+            if (isRoutingScanClient(client) && !mFilterAllocator.canAllocate(
+                    getFilterGroup(client), client.filters)) {
                 try {
                     mService.onScanManagerErrorCallback(client.scannerId,
                                 ScanCallback.SCAN_FAILED_OUT_OF_HARDWARE_RESOURCES);
@@ -616,7 +612,7 @@ public class ScanManager {
         }
 
         void startBatchScan(ScanClient client) {
-            if (mFilterIndexStack.isEmpty() && isFilteringSupported()) {
+            if (isFilteringSupported() && !mFilterAllocator.isInitialized()) {
                 initFilterIndexStack();
             }
             configureScanFilters(client);
@@ -897,12 +893,14 @@ public class ScanManager {
                                 filterIndex, 0);
                 waitForCallback();
             } else {
-                Deque<Integer> clientFilterIndices = new ArrayDeque<Integer>();
-                for (ScanFilter filter : client.filters) {
+                List<ScanFilterAllocator.Slot> slots = mFilterAllocator.allocate(scannerId,
+                        getFilterGroup(client), client.filters);
+                // Only the slots not already programmed for another client are set up.
+                for (ScanFilterAllocator.Slot slot : slots) {
                     ScanFilterQueue queue = new ScanFilterQueue();
-                    queue.addScanFilter(filter);
+                    queue.addScanFilter(slot.filter);
                     int featureSelection = queue.getFeatureSelection();
-                    int filterIndex = mFilterIndexStack.pop();
+                    int filterIndex = slot.index;
                     while (!queue.isEmpty()) {
                         resetCountDownLatch();
                         addFilterToController(scannerId, queue.pop(), filterIndex);
@@ -925,12 +923,17 @@ public class ScanManager {
                     configureFilterParamter(scannerId, client, featureSelection, filterIndex,
                                             trackEntries);
                     waitForCallback();
-                    clientFilterIndices.add(filterIndex);
                 }
-                mClientFilterIndexMap.put(scannerId, clientFilterIndices);
             }
         }
 
+        // Clients can share filter slots only if the slots are configured the same way, which is
+        // the case when results are delivered immediately and matched on the host.
+        private int getFilterGroup(ScanClient client) {
+            return getDeliveryMode(client) == DELIVERY_MODE_IMMEDIATE
+                    ? ScanFilterAllocator.SHARED_GROUP : client.scannerId;
+        }
+
         // Check whether the filter should be added to controller.
         // Note only on ALL_PASS filter should be added.
         private boolean shouldAddAllPassFilterToController(ScanClient client, int deliveryMode) {
@@ -949,14 +952,10 @@ public class ScanManager {
         }
 
         private void removeScanFilters(int scannerId) {
-            Deque<Integer> filterIndices = mClientFilterIndexMap.remove(scannerId);
-            if (filterIndices != null) {
-                mFilterIndexStack.addAll(filterIndices);
-                for (Integer filterIndex : filterIndices) {
-                    resetCountDownLatch();
-                    gattClientScanFilterParamDeleteNative(scannerId, filterIndex);
-                    waitForCallback();
-                }
+            for (ScanFilterAllocator.Slot slot : mFilterAllocator.release(scannerId)) {
+                resetCountDownLatch();
+                gattClientScanFilterParamDeleteNative(slot.ownerScannerId, slot.index);
+                waitForCallback();
             }
             // Remove if ALL_PASS filters are used.
             removeFilterIfExisits(mAllPassRegularClients, scannerId,
@@ -1014,7 +1013,10 @@ public class ScanManager {
             if (client.filters == null || client.filters.isEmpty()) {
                 return true;
             }
-            return client.filters.size() > mFilterIndexStack.size();
+            if (mFilterAllocator.hasClient(client.scannerId)) {
+                return false;
+            }
+            return !mFilterAllocator.canAllocate(getFilterGroup(client), client.filters);
         }
 
         private void addFilterToController(int scannerId, ScanFilterQueue.Entry entry,
@@ -1062,6 +1064,10 @@ public class ScanManager {
             }
         }
 
+        void dump(StringBuilder sb) {
+            mFilterAllocator.dump(sb);
+        }
+
         private void initFilterIndexStack() {
             int maxFiltersSupported =
                     AdapterService.getAdapterService().getNumOfOffloadedScanFilterSupported();
@@ -1069,9 +1075,7 @@ public class ScanManager {
             // index 0 is reserved for ALL_PASS filter in Settings app.
             // index 1 is reserved for ALL_PASS filter for regular scan apps.
             // index 2 is reserved for ALL_PASS filter for batch scan apps.
-            for (int i = 3; i < maxFiltersSupported; ++i) {
-                mFilterIndexStack.add(i);
-            }
+            mFilterAllocator.init(3, maxFiltersSupported);
         }
 
         // Configure filter parameters.
@@ -354,7 +354,7 @@ public class HealthService extends ProfileService {
         public boolean registerAppConfiguration(BluetoothHealthAppConfiguration config,
                                                 IBluetoothHealthCallback callback) {
             HealthService service = getService();
-            if (service == null) return false;
+            if (service == null || service.activateIfDormant()) return false;
             return service.registerAppConfiguration(config, callback);
         }
 
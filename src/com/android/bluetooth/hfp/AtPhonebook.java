@@ -103,7 +103,8 @@ public class AtPhonebook {
     private String mCharacterSet = "UTF-8";
 
     private int mCpbrIndex1, mCpbrIndex2;
-    private boolean mCheckingAccessPermission;
+    // Set on the AT worker of the headset, read when the access request is answered
+    private volatile boolean mCheckingAccessPermission;
 
     // package and class name to which we send intent to check phone book access permission
     private final String mPairingPackage;
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Runs the AT commands of each connected HF in order, on a thread of its own.
+ *
+ * Some commands, like AT+CPBR, query the contacts and call log providers and can take
+ * seconds to answer. Handled on the state machine thread, they would hold up the commands
+ * and call state updates of every other HF. An HF sends one command at a time and waits for
+ * its final result code, so handling a command away from the state machine thread can't
+ * reorder the responses it gets.
+ * @hide
+ */
+class HeadsetAtWorkers {
+    private static final String TAG = "HeadsetAtWorkers";
+
+    private final String mName;
+    private final HashMap<BluetoothDevice, Handler> mWorkers =
+            new HashMap<BluetoothDevice, Handler>();
+    private long mPostedCount = 0;
+
+    HeadsetAtWorkers(String name) {
+        mName = name;
+    }
+
+    /** Run task on the thread of device, after the tasks already posted for it. */
+    synchronized void post(BluetoothDevice device, Runnable task) {
+        Handler worker = mWorkers.get(device);
+        if (worker == null) {
+            HandlerThread thread = new HandlerThread(mName + "-" + device.getAddress());
+            thread.start();
+            worker = new Handler(thread.getLooper());
+            mWorkers.put(device, worker);
+            Log.d(TAG, "Started worker for " + device);
+        }
+        mPostedCount++;
+        worker.post(task);
+    }
+
+    /**
+     * Run task on the thread of device only if it still has one, e.g. for a reply that arrives
+     * after the AT command that asked for it. A device that disconnected meanwhile must not get
+     * a new thread, nothing would stop it.
+     *
+     * @return whether the task was posted
+     */
+    synchronized boolean postIfPresent(BluetoothDevice device, Runnable task) {
+        Handler worker = mWorkers.get(device);
+        if (worker == null) {
+            Log.d(TAG, "No worker for " + device + ", dropping task");
+            return false;
+        }
+        mPostedCount++;
+        worker.post(task);
+        return true;
+    }
+
+    /**
+     * Stop the thread of device once it is disconnected. The tasks not started yet are dropped,
+     * finalTask runs on the thread once the current one is done.
+     */
+    synchronized void remove(BluetoothDevice device, Runnable finalTask) {
+        Handler worker = mWorkers.remove(device);
+        if (worker == null) {
+            finalTask.run();
+            return;
+        }
+        worker.removeCallbacksAndMessages(null);
+        worker.post(finalTask);
+        worker.getLooper().quitSafely();
+        Log.d(TAG, "Stopping worker for " + device);
+    }
+
+    synchronized void cleanup() {
+        for (Handler worker : mWorkers.values()) {
+            worker.removeCallbacksAndMessages(null);
+            worker.getLooper().quitSafely();
+        }
+        mWorkers.clear();
+    }
+
+    synchronized int size() {
+        return mWorkers.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mWorkers.size() + " workers " + mWorkers.keySet() + ", tasks posted: "
+                + mPostedCount;
+    }
+}
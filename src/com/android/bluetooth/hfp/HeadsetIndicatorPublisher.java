@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+// Decides which device state updates (service, roam, signal, battery) are sent to the
+// connected HFs as indicator updates.
+//
+// Values are brought to the CIND scale and an update which doesn't change any indicator
+// from what was last sent is dropped. Signal strength may fluctuate several times a second,
+// so a change of signal alone is sent at most once every SIGNAL_UPDATE_INTERVAL_MS: the
+// latest value is held back and sent when the interval ends.
+//
+// Not thread safe, call it from the HeadsetStateMachine message handler only.
+class HeadsetIndicatorPublisher {
+    static final long SIGNAL_UPDATE_INTERVAL_MS = 2000;
+
+    // Range of the signal and battchg indicators in CIND
+    private static final int CIND_MAX_LEVEL = 5;
+
+    private HeadsetDeviceState mSent;
+    private long mSentMs = -1;
+    private HeadsetDeviceState mPending;
+
+    private long mSentCount = 0;
+    private long mDroppedCount = 0;
+    private long mDeferredCount = 0;
+
+    private static int toCindLevel(int level) {
+        return Math.max(0, Math.min(CIND_MAX_LEVEL, level));
+    }
+
+    // Returns the state to send to the HFs now, or null if there is nothing to send now. If a
+    // signal change is held back, getPendingDelayMs() tells when to call flush().
+    HeadsetDeviceState offer(HeadsetDeviceState state, long nowMs) {
+        HeadsetDeviceState quantized = new HeadsetDeviceState(state.mService, state.mRoam,
+                toCindLevel(state.mSignal), toCindLevel(state.mBatteryCharge));
+        if (mSent != null && mSent.mService == quantized.mService
+                && mSent.mRoam == quantized.mRoam
+                && mSent.mBatteryCharge == quantized.mBatteryCharge) {
+            if (mSent.mSignal == quantized.mSignal) {
+                // Back to what the HFs already have, anything held back is outdated
+                mPending = null;
+                mDroppedCount++;
+                return null;
+            }
+            if (nowMs - mSentMs < SIGNAL_UPDATE_INTERVAL_MS) {
+                if (mPending != null) mDroppedCount++;
+                mPending = quantized;
+                mDeferredCount++;
+                return null;
+            }
+        }
+        return send(quantized, nowMs);
+    }
+
+    // Milliseconds until the held back signal change can be sent, -1 if there is none
+    long getPendingDelayMs(long nowMs) {
+        if (mPending == null) return -1;
+        return Math.max(0, mSentMs + SIGNAL_UPDATE_INTERVAL_MS - nowMs);
+    }
+
+    // Returns the held back state if it can be sent now, null otherwise
+    HeadsetDeviceState flush(long nowMs) {
+        if (mPending == null || getPendingDelayMs(nowMs) > 0) return null;
+        return send(mPending, nowMs);
+    }
+
+    private HeadsetDeviceState send(HeadsetDeviceState state, long nowMs) {
+        mPending = null;
+        mSent = state;
+        mSentMs = nowMs;
+        mSentCount++;
+        return state;
+    }
+
+    // Forget what was sent: a HF which just set up its SLC or read the indicators with
+    // AT+CIND may hold other values than the last update, so the next one is always sent.
+    void reset() {
+        mSent = null;
+        mSentMs = -1;
+        mPending = null;
+    }
+
+    @Override
+    public String toString() {
+        return "sent: " + mSentCount + ", dropped: " + mDroppedCount + ", held back: "
+                + mDeferredCount;
+    }
+}
@@ -34,6 +34,7 @@ import android.os.Message;
 import android.provider.Settings;
 import android.util.Log;
 import com.android.bluetooth.a2dp.A2dpService;
+import com.android.bluetooth.btservice.ProfilePriorityStore;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.Utils;
 import java.util.ArrayList;
@@ -477,7 +478,7 @@ public class HeadsetService extends ProfileService {
 
     public boolean setPriority(BluetoothDevice device, int priority) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM, "Need BLUETOOTH_ADMIN permission");
-        Settings.Global.putInt(getContentResolver(),
+        ProfilePriorityStore.getInstance(this).setPriority(
                 Settings.Global.getBluetoothHeadsetPriorityKey(device.getAddress()), priority);
         if (DBG) {
             Log.d(TAG, "Saved priority " + device + " = " + priority);
@@ -488,9 +489,8 @@ public class HeadsetService extends ProfileService {
     public int getPriority(BluetoothDevice device) {
         if (DBG) Log.d(TAG, "Enter getPriority");
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM, "Need BLUETOOTH_ADMIN permission");
-        int priority = Settings.Global.getInt(getContentResolver(),
-                Settings.Global.getBluetoothHeadsetPriorityKey(device.getAddress()),
-                BluetoothProfile.PRIORITY_UNDEFINED);
+        int priority = ProfilePriorityStore.getInstance(this).getPriority(
+                Settings.Global.getBluetoothHeadsetPriorityKey(device.getAddress()));
         if (DBG) Log.d(TAG, "Exit getPriority");
         return priority;
     }
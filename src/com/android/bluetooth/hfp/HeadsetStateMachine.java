@@ -55,6 +55,7 @@ import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.PowerManager;
 import android.os.UserHandle;
@@ -63,6 +64,7 @@ import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.Instrumentation;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.internal.util.IState;
 import com.android.internal.util.State;
@@ -88,6 +90,8 @@ import java.lang.Runnable;
 
 final class HeadsetStateMachine extends StateMachine {
     private static final String TAG = "HeadsetStateMachine";
+    private static final Instrumentation.Probe QUEUE_DELAY_PROBE =
+            Instrumentation.probe("HeadsetStateMachine.queueDelay");
     private static final boolean DBG = Log.isLoggable("Handsfree", Log.VERBOSE);
     // For Debugging only
     private static int sRefCount = 0;
@@ -143,7 +147,6 @@ final class HeadsetStateMachine extends StateMachine {
     private static final int DIALING_OUT_TIMEOUT = 102;
     private static final int START_VR_TIMEOUT = 103;
     private static final int CLCC_RSP_TIMEOUT = 104;
-    private static final int PROCESS_CPBR = 105;
 
     private static final int CONNECT_TIMEOUT = 201;
     /* Allow time for possible LMP response timeout + Page timeout */
@@ -224,10 +227,16 @@ final class HeadsetStateMachine extends StateMachine {
     private boolean mDialingOut = false;
     private AudioManager mAudioManager;
     private AtPhonebook mPhonebook;
+    // Phonebook AT state (selected phonebook, character set, pending access request) of each
+    // connected headset, used from its AT worker
+    private final HashMap<BluetoothDevice, AtPhonebook> mDevicePhonebooks =
+            new HashMap<BluetoothDevice, AtPhonebook>();
+    private final HeadsetAtWorkers mAtWorkers = new HeadsetAtWorkers("HeadsetAt");
 
     private static Intent sVoiceCommandIntent;
 
     private HeadsetPhoneState mPhoneState;
+    private final HeadsetIndicatorPublisher mIndicatorPublisher = new HeadsetIndicatorPublisher();
     private int mAudioState;
     private BluetoothAdapter mAdapter;
     private IBluetoothHeadsetPhone mPhoneProxy;
@@ -463,6 +472,14 @@ final class HeadsetStateMachine extends StateMachine {
         if (mPhonebook != null) {
             mPhonebook.cleanup();
         }
+        ArrayList<BluetoothDevice> phonebookDevices;
+        synchronized (mDevicePhonebooks) {
+            phonebookDevices = new ArrayList<BluetoothDevice>(mDevicePhonebooks.keySet());
+        }
+        for (BluetoothDevice device : phonebookDevices) {
+            removeDeviceAtState(device);
+        }
+        mAtWorkers.cleanup();
         if (mHeadsetAudioParam != null) {
             mHeadsetAudioParam.clear();
         }
@@ -482,6 +499,11 @@ final class HeadsetStateMachine extends StateMachine {
         Log.d(TAG, "Exit cleanup()");
     }
 
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        QUEUE_DELAY_PROBE.recordQueueDelay(msg);
+    }
+
     public void dump(StringBuilder sb) {
         ProfileService.println(sb, "mCurrentDevice: " + mCurrentDevice);
         ProfileService.println(sb, "mTargetDevice: " + mTargetDevice);
@@ -493,6 +515,8 @@ final class HeadsetStateMachine extends StateMachine {
         ProfileService.println(sb, "mWaitingForVoiceRecognition: " + mWaitingForVoiceRecognition);
         ProfileService.println(sb, "StateMachine: " + this.toString());
         ProfileService.println(sb, "mPhoneState: " + mPhoneState);
+        ProfileService.println(sb, "mIndicatorPublisher: " + mIndicatorPublisher);
+        ProfileService.println(sb, "mAtWorkers: " + mAtWorkers);
         ProfileService.println(sb, "mAudioState: " + mAudioState);
     }
 
@@ -827,6 +851,7 @@ final class HeadsetStateMachine extends StateMachine {
                             mConnectedDevicesList.remove(device);
                             mHeadsetAudioParam.remove(device);
                             mHeadsetBrsf.remove(device);
+                            removeDeviceAtState(device);
                             Log.d(TAG,
                                     "Pending: device " + device.getAddress()
                                             + " is removed in Pending state");
@@ -937,6 +962,7 @@ final class HeadsetStateMachine extends StateMachine {
                     }
                     break;
                 case HeadsetHalConstants.CONNECTION_STATE_SLC_CONNECTED:
+                    mIndicatorPublisher.reset();
                     int previousConnectionState = BluetoothProfile.STATE_CONNECTING;
                     synchronized (HeadsetStateMachine.this) {
                         mCurrentDevice = device;
@@ -1340,10 +1366,6 @@ final class HeadsetStateMachine extends StateMachine {
                        Log.e(TAG, Log.getStackTraceString(new Throwable()));
                     }
                     break;
-                case PROCESS_CPBR:
-                    Intent intent = (Intent) message.obj;
-                    processCpbr(intent);
-                    break;
                 case SEND_INCOMING_CALL_IND:
                     phoneStateChangeNative(0, 0, HeadsetHalConstants.CALL_STATE_INCOMING,
                                        mPhoneState.getNumber(), mPhoneState.getType());
@@ -1433,6 +1455,7 @@ final class HeadsetStateMachine extends StateMachine {
                             mConnectedDevicesList.remove(device);
                             mHeadsetAudioParam.remove(device);
                             mHeadsetBrsf.remove(device);
+                            removeDeviceAtState(device);
                             Log.d(TAG, "device " + device.getAddress()
                                             + " is removed in Connected state");
 
@@ -1450,6 +1473,7 @@ final class HeadsetStateMachine extends StateMachine {
                     }
                     break;
                 case HeadsetHalConstants.CONNECTION_STATE_SLC_CONNECTED:
+                    mIndicatorPublisher.reset();
                     if (mRetryConnect.containsKey(device)) {
                         Log.d(TAG, "Removing device " + device +
                                    " conn retry entry since we got SLC");
@@ -1916,10 +1940,6 @@ final class HeadsetStateMachine extends StateMachine {
                     }
                     break;
                 }
-                case PROCESS_CPBR:
-                    Intent intent = (Intent) message.obj;
-                    processCpbr(intent);
-                    break;
                 case SEND_INCOMING_CALL_IND:
                     phoneStateChangeNative(0, 0, HeadsetHalConstants.CALL_STATE_INCOMING,
                                        mPhoneState.getNumber(), mPhoneState.getType());
@@ -2033,6 +2053,7 @@ final class HeadsetStateMachine extends StateMachine {
                             mConnectedDevicesList.remove(device);
                             mHeadsetAudioParam.remove(device);
                             mHeadsetBrsf.remove(device);
+                            removeDeviceAtState(device);
                             Log.d(TAG, "device " + device.getAddress()
                                             + " is removed in AudioOn state");
                             broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTED,
@@ -2048,6 +2069,7 @@ final class HeadsetStateMachine extends StateMachine {
                     }
                     break;
                 case HeadsetHalConstants.CONNECTION_STATE_SLC_CONNECTED:
+                    mIndicatorPublisher.reset();
                     if (mRetryConnect.containsKey(device)) {
                         Log.d(TAG, "Removing device " + device +
                                    " conn retry entry since we got SLC");
@@ -2447,10 +2469,6 @@ final class HeadsetStateMachine extends StateMachine {
                         Log.e(TAG, Log.getStackTraceString(new Throwable()));
                     }
                     break;
-                case PROCESS_CPBR:
-                    Intent intent = (Intent) message.obj;
-                    processCpbr(intent);
-                    break;
                 case STACK_EVENT:
                     StackEvent event = (StackEvent) message.obj;
                     log("MultiHFPending: event type: " + event.type);
@@ -2545,6 +2563,7 @@ final class HeadsetStateMachine extends StateMachine {
                                 mConnectedDevicesList.remove(device);
                                 mHeadsetAudioParam.remove(device);
                                 mHeadsetBrsf.remove(device);
+                                removeDeviceAtState(device);
                                 Log.d(TAG, "MultiHFPending: removed device=" + device);
                                 broadcastConnectionState(device,
                                         BluetoothProfile.STATE_DISCONNECTED,
@@ -2584,6 +2603,7 @@ final class HeadsetStateMachine extends StateMachine {
                                 mConnectedDevicesList.remove(device);
                                 mHeadsetAudioParam.remove(device);
                                 mHeadsetBrsf.remove(device);
+                                removeDeviceAtState(device);
                                 Log.d(TAG, "device " + device.getAddress()
                                                 + " is removed in MultiHFPending state");
                             }
@@ -2663,6 +2683,7 @@ final class HeadsetStateMachine extends StateMachine {
                     }
                     break;
                 case HeadsetHalConstants.CONNECTION_STATE_SLC_CONNECTED:
+                    mIndicatorPublisher.reset();
                     if (mRetryConnect.containsKey(device)) {
                         Log.d(TAG, "Removing device " + device +
                                    " conn retry entry since we got SLC");
@@ -4170,6 +4191,8 @@ final class HeadsetStateMachine extends StateMachine {
               call_state = mPhoneState.getCallState();
 
         Log.d(TAG, "sending call state in CIND resp as " + call_state);
+        // The HF gets the current indicators, start over from them
+        mIndicatorPublisher.reset();
 
         cindResponseNative(mPhoneState.getService(), call,
                            call_setup, call_state,
@@ -4245,36 +4268,74 @@ final class HeadsetStateMachine extends StateMachine {
         Log.d(TAG, "Exit processAtClcc()");
     }
 
-    private void processAtCscs(String atString, int type, BluetoothDevice device) {
-        log("processAtCscs - atString = " + atString);
-        if (mPhonebook != null) {
-            mPhonebook.handleCscsCommand(atString, type, device);
-        } else {
-            Log.e(TAG, "Phonebook handle null for At+CSCS");
-            atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
+    // Phonebook AT state of device, created when it sends its first phonebook command
+    private AtPhonebook getDevicePhonebook(BluetoothDevice device) {
+        synchronized (mDevicePhonebooks) {
+            AtPhonebook phonebook = mDevicePhonebooks.get(device);
+            if (phonebook == null) {
+                phonebook = new AtPhonebook(mService, this);
+                mDevicePhonebooks.put(device, phonebook);
+            }
+            return phonebook;
         }
+    }
+
+    // Drop the AT worker and phonebook state of a device which disconnected
+    private void removeDeviceAtState(BluetoothDevice device) {
+        final AtPhonebook phonebook;
+        synchronized (mDevicePhonebooks) {
+            phonebook = mDevicePhonebooks.remove(device);
+        }
+        if (phonebook == null) {
+            return;
+        }
+        // The worker may still be reading the phonebook, clean it up from there
+        mAtWorkers.remove(device, new Runnable() {
+            @Override
+            public void run() {
+                phonebook.resetAtState();
+                phonebook.cleanup();
+            }
+        });
+    }
+
+    private void processAtCscs(final String atString, final int type,
+            final BluetoothDevice device) {
+        log("processAtCscs - atString = " + atString);
+        final AtPhonebook phonebook = getDevicePhonebook(device);
+        mAtWorkers.post(device, new Runnable() {
+            @Override
+            public void run() {
+                phonebook.handleCscsCommand(atString, type, device);
+            }
+        });
         Log.d(TAG, "Exit processAtCscs()");
     }
 
-    private void processAtCpbs(String atString, int type, BluetoothDevice device) {
+    private void processAtCpbs(final String atString, final int type,
+            final BluetoothDevice device) {
         log("processAtCpbs - atString = " + atString);
-        if (mPhonebook != null) {
-            mPhonebook.handleCpbsCommand(atString, type, device);
-        } else {
-            Log.e(TAG, "Phonebook handle null for At+CPBS");
-            atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
-        }
+        final AtPhonebook phonebook = getDevicePhonebook(device);
+        mAtWorkers.post(device, new Runnable() {
+            @Override
+            public void run() {
+                phonebook.handleCpbsCommand(atString, type, device);
+            }
+        });
         Log.d(TAG, "Exit processAtCpbs()");
     }
 
-    private void processAtCpbr(String atString, int type, BluetoothDevice device) {
+    // Reading a phonebook queries the contacts and call log providers, which can take seconds
+    private void processAtCpbr(final String atString, final int type,
+            final BluetoothDevice device) {
         log("processAtCpbr - atString = " + atString);
-        if (mPhonebook != null) {
-            mPhonebook.handleCpbrCommand(atString, type, device);
-        } else {
-            Log.e(TAG, "Phonebook handle null for At+CPBR");
-            atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
-        }
+        final AtPhonebook phonebook = getDevicePhonebook(device);
+        mAtWorkers.post(device, new Runnable() {
+            @Override
+            public void run() {
+                phonebook.handleCpbrCommand(atString, type, device);
+            }
+        });
         Log.d(TAG, "Exit processAtCpbr()");
     }
 
@@ -4523,7 +4584,8 @@ final class HeadsetStateMachine extends StateMachine {
         sendIndicatorIntent(device, indId, indValue);
     }
 
-    private void processCpbr(Intent intent)
+    // Runs on the AT worker of the device
+    private void processCpbr(Intent intent, AtPhonebook phonebook)
     {
         int atCommandResult = 0;
         int atCommandErrorCode = 0;
@@ -4537,18 +4599,17 @@ final class HeadsetStateMachine extends StateMachine {
                                    BluetoothDevice.CONNECTION_ACCESS_NO)
                     == BluetoothDevice.CONNECTION_ACCESS_YES) {
                 if (intent.getBooleanExtra(BluetoothDevice.EXTRA_ALWAYS_ALLOWED, false)) {
-                    mCurrentDevice.setPhonebookAccessPermission(BluetoothDevice.ACCESS_ALLOWED);
+                    device.setPhonebookAccessPermission(BluetoothDevice.ACCESS_ALLOWED);
                 }
-                atCommandResult = mPhonebook.processCpbrCommand(device);
+                atCommandResult = phonebook.processCpbrCommand(device);
             } else {
                 if (intent.getBooleanExtra(BluetoothDevice.EXTRA_ALWAYS_ALLOWED, false)) {
-                    mCurrentDevice.setPhonebookAccessPermission(
-                            BluetoothDevice.ACCESS_REJECTED);
+                    device.setPhonebookAccessPermission(BluetoothDevice.ACCESS_REJECTED);
                 }
             }
         }
-        mPhonebook.setCpbrIndex(-1);
-        mPhonebook.setCheckingAccessPermission(false);
+        phonebook.setCpbrIndex(-1);
+        phonebook.setCheckingAccessPermission(false);
 
         if (atCommandResult >= 0) {
             atResponseCodeNative(atCommandResult, atCommandErrorCode, getByteAddress(device));
@@ -4737,10 +4798,26 @@ final class HeadsetStateMachine extends StateMachine {
         Log.d(TAG, "Exit processIntentBatteryChanged()");
     }
 
+    // A null deviceState is the end of the interval a signal change was held back for
     private void processDeviceStateChanged(HeadsetDeviceState deviceState) {
         Log.d(TAG, "Enter processDeviceStateChanged()");
-        notifyDeviceStatusNative(deviceState.mService, deviceState.mRoam, deviceState.mSignal,
-                deviceState.mBatteryCharge);
+        long now = SystemClock.elapsedRealtime();
+        HeadsetDeviceState state = null;
+        if (deviceState == null) {
+            state = mIndicatorPublisher.flush(now);
+        } else {
+            state = mIndicatorPublisher.offer(deviceState, now);
+        }
+        if (state != null) {
+            notifyDeviceStatusNative(state.mService, state.mRoam, state.mSignal,
+                    state.mBatteryCharge);
+        }
+
+        // Any DEVICE_STATE_CHANGED already queued will send or schedule the held back state
+        long delayMs = mIndicatorPublisher.getPendingDelayMs(now);
+        if (delayMs >= 0 && !getHandler().hasMessages(DEVICE_STATE_CHANGED)) {
+            sendMessageDelayed(DEVICE_STATE_CHANGED, delayMs);
+        }
         Log.d(TAG, "Exit processDeviceStateChanged()");
     }
 
@@ -4806,6 +4883,10 @@ final class HeadsetStateMachine extends StateMachine {
 
     private BluetoothDevice getDevice(byte[] address) {
         Log.d(TAG, "getDevice()");
+        AdapterService adapterService = AdapterService.getAdapterService();
+        if (adapterService != null) {
+            return adapterService.getDeviceFromByte(address);
+        }
         return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
     }
 
@@ -4937,22 +5018,28 @@ final class HeadsetStateMachine extends StateMachine {
     public void handleAccessPermissionResult(Intent intent) {
         Log.d(TAG, "Enter handleAccessPermissionResult()");
         log("handleAccessPermissionResult");
-        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-        if (mPhonebook != null) {
-            if (!mPhonebook.getCheckingAccessPermission()) {
-                return;
-            }
+        final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if (device == null) {
+            Log.e(TAG, "handleAccessPermissionResult: no device in " + intent);
+            return;
+        }
+        final AtPhonebook phonebook;
+        synchronized (mDevicePhonebooks) {
+            phonebook = mDevicePhonebooks.get(device);
+        }
+        if (phonebook == null || !phonebook.getCheckingAccessPermission()) {
+            return;
+        }
 
-            Message m = obtainMessage(PROCESS_CPBR);
-            m.obj = intent;
-            sendMessage(m);
-        } else {
-            Log.e(TAG, "Phonebook handle null");
-            if (device != null) {
-                atResponseCodeNative(
-                        HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
+        // Finish the AT+CPBR waiting for this reply on the AT worker of the device, unless the
+        // device disconnected since
+        final Intent reply = intent;
+        mAtWorkers.postIfPresent(device, new Runnable() {
+            @Override
+            public void run() {
+                processCpbr(reply, phonebook);
             }
-        }
+        });
         Log.d(TAG, "Exit handleAccessPermissionResult()");
     }
 
@@ -37,6 +37,7 @@ import android.os.Message;
 import android.provider.Settings;
 import android.util.Log;
 import com.android.bluetooth.a2dp.A2dpService;
+import com.android.bluetooth.btservice.ProfilePriorityStore;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.hfpclient.connserv.HfpClientConnectionService;
 import com.android.bluetooth.Utils;
@@ -593,9 +594,8 @@ public class HeadsetClientService extends ProfileService {
         Log.d(TAG, "Enter setPriority");
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                 "Need BLUETOOTH_ADMIN permission");
-        Settings.Global.putInt(getContentResolver(),
-                Settings.Global.getBluetoothHeadsetPriorityKey(device.getAddress()),
-                priority);
+        ProfilePriorityStore.getInstance(this).setPriority(
+                Settings.Global.getBluetoothHeadsetPriorityKey(device.getAddress()), priority);
         if (DBG) {
             Log.d(TAG, "Saved priority " + device + " = " + priority);
         }
@@ -607,9 +607,8 @@ public class HeadsetClientService extends ProfileService {
         Log.d(TAG, "Enter getPriority");
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                 "Need BLUETOOTH_ADMIN permission");
-        int priority = Settings.Global.getInt(getContentResolver(),
-                Settings.Global.getBluetoothHeadsetPriorityKey(device.getAddress()),
-                BluetoothProfile.PRIORITY_UNDEFINED);
+        int priority = ProfilePriorityStore.getInstance(this).getPriority(
+                Settings.Global.getBluetoothHeadsetPriorityKey(device.getAddress()));
         Log.d(TAG, "Exit getPriority");
         return priority;
     }
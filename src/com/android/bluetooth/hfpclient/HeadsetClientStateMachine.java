@@ -50,9 +50,11 @@ import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 import android.telecom.TelecomManager;
+import android.text.TextUtils;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.Instrumentation;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.internal.util.IState;
 import com.android.internal.util.State;
@@ -60,9 +62,9 @@ import com.android.internal.util.StateMachine;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -72,6 +74,8 @@ import com.android.bluetooth.R;
 
 public class HeadsetClientStateMachine extends StateMachine {
     private static final String TAG = "HeadsetClientStateMachine";
+    private static final Instrumentation.Probe QUEUE_DELAY_PROBE =
+            Instrumentation.probe("HeadsetClientStateMachine.queueDelay");
     private static final boolean DBG = true;
 
     static final int NO_ACTION = 0;
@@ -113,6 +117,8 @@ public class HeadsetClientStateMachine extends StateMachine {
     public static final Integer HF_ORIGINATED_CALL_ID = new Integer(-1);
     private long OUTGOING_TIMEOUT_MILLI = 10 * 1000; // 10 seconds
     private long QUERY_CURRENT_CALLS_WAIT_MILLIS = 2 * 1000; // 2 seconds
+    // Call indicators keep mCalls up to date, so the fallback AT+CLCC poll backs off up to this.
+    private long QUERY_CURRENT_CALLS_MAX_WAIT_MILLIS = 32 * 1000; // 32 seconds
 
     // Keep track of audio routing across all devices.
     private static boolean sAudioIsRouted = true;
@@ -122,15 +128,25 @@ public class HeadsetClientStateMachine extends StateMachine {
     private final Connected mConnected;
     private final AudioOn mAudioOn;
     private long mClccTimer = 0;
+    private long mClccPollMillis = QUERY_CURRENT_CALLS_WAIT_MILLIS;
 
     private final HeadsetClientService mService;
 
     // Set of calls that represent the accurate state of calls that exists on AG and the calls that
-    // are currently in process of being notified to the AG from HF.
-    private final Hashtable<Integer, BluetoothHeadsetClientCall> mCalls = new Hashtable<>();
+    // are currently in process of being notified to the AG from HF. Only accessed from the state
+    // machine thread, other threads read mCallsSnapshot.
+    private final HashMap<Integer, BluetoothHeadsetClientCall> mCalls = new HashMap<>();
     // Set of calls received from AG via the AT+CLCC command. We use this map to update the mCalls
     // which is eventually used to inform the telephony stack of any changes to call on HF.
-    private final Hashtable<Integer, BluetoothHeadsetClientCall> mCallsUpdate = new Hashtable<>();
+    private final HashMap<Integer, BluetoothHeadsetClientCall> mCallsUpdate = new HashMap<>();
+    // Copy of mCalls published after every change, see publishCalls().
+    private volatile List<BluetoothHeadsetClientCall> mCallsSnapshot =
+            Collections.<BluetoothHeadsetClientCall>emptyList();
+
+    // Last values of the call related indicators reported by the AG (+CIEV).
+    private int mIndicatorCall;
+    private int mIndicatorCallSetup;
+    private int mIndicatorCallHeld;
 
     private int mIndicatorNetworkState;
     private int mIndicatorNetworkType;
@@ -168,6 +184,11 @@ public class HeadsetClientStateMachine extends StateMachine {
         return mDisconnected;
     }
 
+    @Override
+    protected void onPreHandleMessage(Message msg) {
+        QUEUE_DELAY_PROBE.recordQueueDelay(msg);
+    }
+
     public void dump(StringBuilder sb) {
         Log.d(TAG, "Enter Dump()");
         ProfileService.println(sb, "mCurrentDevice: " + mCurrentDevice);
@@ -180,18 +201,15 @@ public class HeadsetClientStateMachine extends StateMachine {
         ProfileService.println(sb, "mOperatorName: " + mOperatorName);
         ProfileService.println(sb, "mSubscriberInfo: " + mSubscriberInfo);
 
-        ProfileService.println(sb, "mCalls:");
-        if (mCalls != null) {
-            for (BluetoothHeadsetClientCall call : mCalls.values()) {
-                ProfileService.println(sb, "  " + call);
-            }
-        }
+        ProfileService.println(sb, "mIndicatorCall: " + mIndicatorCall);
+        ProfileService.println(sb, "mIndicatorCallSetup: " + mIndicatorCallSetup);
+        ProfileService.println(sb, "mIndicatorCallHeld: " + mIndicatorCallHeld);
+        ProfileService.println(sb, "mClccPollMillis: " + mClccPollMillis);
 
-        ProfileService.println(sb, "mCallsUpdate:");
-        if (mCallsUpdate != null) {
-            for (BluetoothHeadsetClientCall call : mCallsUpdate.values()) {
-                ProfileService.println(sb, "  " + call);
-            }
+        // mCalls and mCallsUpdate belong to the state machine thread.
+        ProfileService.println(sb, "mCalls:");
+        for (BluetoothHeadsetClientCall call : mCallsSnapshot) {
+            ProfileService.println(sb, "  " + call);
         }
 
         ProfileService.println(sb, "State machine stats:");
@@ -245,6 +263,36 @@ public class HeadsetClientStateMachine extends StateMachine {
         return i;
     }
 
+    private void publishCalls() {
+        mCallsSnapshot = Collections.unmodifiableList(
+                new ArrayList<BluetoothHeadsetClientCall>(mCalls.values()));
+    }
+
+    private void resetCalls() {
+        mCalls.clear();
+        mCallsUpdate.clear();
+        publishCalls();
+
+        mIndicatorCall = HeadsetClientHalConstants.CALL_NO_CALLS_IN_PROGRESS;
+        mIndicatorCallSetup = HeadsetClientHalConstants.CALLSETUP_NONE;
+        mIndicatorCallHeld = HeadsetClientHalConstants.CALLHELD_NONE;
+        mClccPollMillis = QUERY_CURRENT_CALLS_WAIT_MILLIS;
+    }
+
+    /**
+     * Delay until the next fallback AT+CLCC while calls exist. The delay doubles after every poll
+     * up to QUERY_CURRENT_CALLS_MAX_WAIT_MILLIS, unless an HF originated call still waits to be
+     * associated with an AG call index.
+     */
+    private long nextCallsPollMillis() {
+        if (mCalls.containsKey(HF_ORIGINATED_CALL_ID)) {
+            return QUERY_CURRENT_CALLS_WAIT_MILLIS;
+        }
+        long delay = mClccPollMillis;
+        mClccPollMillis = Math.min(mClccPollMillis * 2, QUERY_CURRENT_CALLS_MAX_WAIT_MILLIS);
+        return delay;
+    }
+
     private void sendCallChangedIntent(BluetoothHeadsetClientCall c) {
         Log.d(TAG, "Enter sendCallChangedIntent()");
         if (DBG) {
@@ -271,8 +319,6 @@ public class HeadsetClientStateMachine extends StateMachine {
         if (DBG) {
             Log.d(TAG, "queryCallsDone");
         }
-        Iterator<Hashtable.Entry<Integer, BluetoothHeadsetClientCall>> it;
-
         // mCalls has two types of calls:
         // (a) Calls that are received from AG of a previous iteration of queryCallsStart()
         // (b) Calls that are outgoing initiated from HF
@@ -354,6 +400,8 @@ public class HeadsetClientStateMachine extends StateMachine {
                     sendCallChangedIntent(c1);
                 }
                 mCalls.clear();
+                mCallsUpdate.clear();
+                publishCalls();
 
                 // We return here, if there's any update to the phone we should get a
                 // follow up by getting some call indicators and hence update the calls.
@@ -367,6 +415,10 @@ public class HeadsetClientStateMachine extends StateMachine {
                 callRemovedIds + " callRetainedIds " + callRetainedIds);
         }
 
+        // Any difference to what the indicators told us restarts the fallback poll backoff.
+        boolean changed = !callRemovedIds.isEmpty() || !callAddedIds.isEmpty()
+                || hfOriginatedAssoc != -1;
+
         // Terminate & remove the calls that are done.
         for (Integer idx : callRemovedIds) {
             BluetoothHeadsetClientCall c = mCalls.remove(idx);
@@ -386,23 +438,168 @@ public class HeadsetClientStateMachine extends StateMachine {
             BluetoothHeadsetClientCall cOrig = mCalls.get(idx);
             BluetoothHeadsetClientCall cUpdate = mCallsUpdate.get(idx);
 
-            // Update the necessary fields.
-            cOrig.setNumber(cUpdate.getNumber());
-            cOrig.setState(cUpdate.getState());
-            cOrig.setMultiParty(cUpdate.isMultiParty());
-
-            // Send update with original object (UUID, idx).
-            sendCallChangedIntent(cOrig);
+            // Only tell the upper layers about calls that actually changed, or the HF originated
+            // call that just got its index.
+            if (idx.equals(hfOriginatedAssoc) || isCallChanged(cOrig, cUpdate)) {
+                // Update the necessary fields.
+                cOrig.setNumber(cUpdate.getNumber());
+                cOrig.setState(cUpdate.getState());
+                cOrig.setMultiParty(cUpdate.isMultiParty());
+
+                // Send update with original object (UUID, idx).
+                sendCallChangedIntent(cOrig);
+                changed = true;
+            }
         }
+        publishCalls();
 
+        if (changed) {
+            mClccPollMillis = QUERY_CURRENT_CALLS_WAIT_MILLIS;
+        }
         if (mCalls.size() > 0) {
-            sendMessageDelayed(QUERY_CURRENT_CALLS, QUERY_CURRENT_CALLS_WAIT_MILLIS);
+            sendMessageDelayed(QUERY_CURRENT_CALLS, nextCallsPollMillis());
         }
 
         mCallsUpdate.clear();
         Log.d(TAG, "Exit queryCallsDone()");
     }
 
+    /**
+     * Apply a call related indicator (+CIEV call/callsetup/callheld, +BTRH, +CLIP, +CCWA) to
+     * mCalls without asking the AG for the call list.
+     *
+     * Only transitions that identify the affected call unambiguously are handled here, anything
+     * else (new calls, multiple calls in the same state, held calls) needs AT+CLCC to learn the
+     * call index and state.
+     *
+     * @return true if mCalls is consistent with the event, false if the calls have to be queried
+     */
+    private boolean processCallEvent(StackEvent event) {
+        // Call activity, poll eagerly again in case the AG misses an indicator.
+        mClccPollMillis = QUERY_CURRENT_CALLS_WAIT_MILLIS;
+
+        int prevCallSetup = mIndicatorCallSetup;
+        switch (event.type) {
+            case StackEvent.EVENT_TYPE_CALL:
+                mIndicatorCall = event.valueInt;
+                break;
+            case StackEvent.EVENT_TYPE_CALLSETUP:
+                mIndicatorCallSetup = event.valueInt;
+                break;
+            case StackEvent.EVENT_TYPE_CALLHELD:
+                mIndicatorCallHeld = event.valueInt;
+                break;
+            default:
+                break;
+        }
+
+        // The HF originated call has no index yet, only AT+CLCC can associate it.
+        if (mCalls.containsKey(HF_ORIGINATED_CALL_ID)) {
+            return false;
+        }
+
+        boolean handled = false;
+        switch (event.type) {
+            case StackEvent.EVENT_TYPE_CALL:
+            case StackEvent.EVENT_TYPE_CALLSETUP:
+                if (mIndicatorCall == HeadsetClientHalConstants.CALL_NO_CALLS_IN_PROGRESS
+                        && mIndicatorCallSetup == HeadsetClientHalConstants.CALLSETUP_NONE) {
+                    // Some AGs end the setup before raising the call indicator when a call is
+                    // answered. A call being set up is only removed once AT+CLCC confirms it's
+                    // gone, unless the call indicator comes first and makes it active.
+                    if (event.type == StackEvent.EVENT_TYPE_CALLSETUP && hasCallInSetup()) {
+                        break;
+                    }
+                    // Nothing left on the AG.
+                    for (BluetoothHeadsetClientCall c : mCalls.values()) {
+                        c.setState(BluetoothHeadsetClientCall.CALL_STATE_TERMINATED);
+                        sendCallChangedIntent(c);
+                    }
+                    mCalls.clear();
+                    handled = true;
+                    break;
+                }
+                if (mCalls.size() != 1) {
+                    break;
+                }
+                BluetoothHeadsetClientCall c = mCalls.values().iterator().next();
+                int state = c.getState();
+                if (event.type == StackEvent.EVENT_TYPE_CALL) {
+                    // The only call got answered.
+                    if (mIndicatorCall == HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS
+                            && (state == BluetoothHeadsetClientCall.CALL_STATE_INCOMING
+                                    || state == BluetoothHeadsetClientCall.CALL_STATE_DIALING
+                                    || state == BluetoothHeadsetClientCall.CALL_STATE_ALERTING)) {
+                        c.setState(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE);
+                        sendCallChangedIntent(c);
+                        handled = true;
+                    }
+                } else if (prevCallSetup == HeadsetClientHalConstants.CALLSETUP_OUTGOING
+                        && mIndicatorCallSetup == HeadsetClientHalConstants.CALLSETUP_ALERTING
+                        && state == BluetoothHeadsetClientCall.CALL_STATE_DIALING) {
+                    // The only call started ringing on the remote side.
+                    c.setState(BluetoothHeadsetClientCall.CALL_STATE_ALERTING);
+                    sendCallChangedIntent(c);
+                    handled = true;
+                } else if (mIndicatorCallSetup == HeadsetClientHalConstants.CALLSETUP_NONE
+                        && mIndicatorCall == HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS
+                        && state == BluetoothHeadsetClientCall.CALL_STATE_ACTIVE) {
+                    // Setup finished for a call already marked active by the call indicator.
+                    handled = true;
+                }
+                break;
+            case StackEvent.EVENT_TYPE_CLIP:
+                if (callsInState(BluetoothHeadsetClientCall.CALL_STATE_INCOMING) == 1
+                        && mCalls.size() == 1) {
+                    BluetoothHeadsetClientCall incoming =
+                            getCall(BluetoothHeadsetClientCall.CALL_STATE_INCOMING);
+                    if (!TextUtils.equals(incoming.getNumber(), event.valueString)) {
+                        incoming.setNumber(event.valueString);
+                        sendCallChangedIntent(incoming);
+                    }
+                    handled = true;
+                }
+                break;
+            default:
+                // Held calls, response and hold and waiting calls involve several calls.
+                break;
+        }
+
+        if (handled) {
+            publishCalls();
+            removeMessages(QUERY_CURRENT_CALLS);
+            if (mCalls.size() > 0) {
+                sendMessageDelayed(QUERY_CURRENT_CALLS, nextCallsPollMillis());
+            }
+        }
+        if (DBG) {
+            Log.d(TAG, "processCallEvent: " + event + " handled " + handled);
+        }
+        return handled;
+    }
+
+    private boolean hasCallInSetup() {
+        for (BluetoothHeadsetClientCall c : mCalls.values()) {
+            switch (c.getState()) {
+                case BluetoothHeadsetClientCall.CALL_STATE_INCOMING:
+                case BluetoothHeadsetClientCall.CALL_STATE_WAITING:
+                case BluetoothHeadsetClientCall.CALL_STATE_DIALING:
+                case BluetoothHeadsetClientCall.CALL_STATE_ALERTING:
+                    return true;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCallChanged(BluetoothHeadsetClientCall c,
+            BluetoothHeadsetClientCall update) {
+        return c.getState() != update.getState()
+                || c.isMultiParty() != update.isMultiParty()
+                || !TextUtils.equals(c.getNumber(), update.getNumber());
+    }
+
     private void queryCallsUpdate(int id, int state, String number, boolean multiParty,
             boolean outgoing) {
         if (DBG) {
@@ -715,8 +912,7 @@ public class HeadsetClientStateMachine extends StateMachine {
         mQueuedActions = new LinkedList<Pair<Integer, Object>>();
         clearPendingAction();
 
-        mCalls.clear();
-        mCallsUpdate.clear();
+        resetCalls();
 
         mDisconnected = new Disconnected();
         mConnecting = new Connecting();
@@ -811,8 +1007,7 @@ public class HeadsetClientStateMachine extends StateMachine {
 
             mCurrentDevice = null;
 
-            mCalls.clear();
-            mCallsUpdate.clear();
+            resetCalls();
 
             mPeerFeatures = 0;
             mChldFeatures = 0;
@@ -1170,6 +1365,7 @@ public class HeadsetClientStateMachine extends StateMachine {
                     // Add the call as an outgoing call.
                     BluetoothHeadsetClientCall c = (BluetoothHeadsetClientCall) message.obj;
                     mCalls.put(HF_ORIGINATED_CALL_ID, c);
+                    publishCalls();
 
                     if (NativeInterface.dialNative(getByteAddress(mCurrentDevice), c.getNumber())) {
                         addQueuedAction(DIAL_NUMBER, c.getNumber());
@@ -1181,6 +1377,7 @@ public class HeadsetClientStateMachine extends StateMachine {
                         c.setState(BluetoothHeadsetClientCall.CALL_STATE_TERMINATED);
                         sendCallChangedIntent(c);
                         mCalls.remove(HF_ORIGINATED_CALL_ID);
+                        publishCalls();
                     }
                     break;
                 case ACCEPT_CALL:
@@ -1331,7 +1528,11 @@ public class HeadsetClientStateMachine extends StateMachine {
                         case StackEvent.EVENT_TYPE_RESP_AND_HOLD:
                         case StackEvent.EVENT_TYPE_CLIP:
                         case StackEvent.EVENT_TYPE_CALL_WAITING:
-                            sendMessage(QUERY_CURRENT_CALLS);
+                            // Only go back to the AG with AT+CLCC if the indicator can't be
+                            // mapped onto the calls we know about.
+                            if (!processCallEvent(event)) {
+                                sendMessage(QUERY_CURRENT_CALLS);
+                            }
                             break;
                         case StackEvent.EVENT_TYPE_CURRENT_CALLS:
                             queryCallsUpdate(
@@ -1836,7 +2037,7 @@ public class HeadsetClientStateMachine extends StateMachine {
     }
 
     public List<BluetoothHeadsetClientCall> getCurrentCalls() {
-        return new ArrayList<BluetoothHeadsetClientCall>(mCalls.values());
+        return new ArrayList<BluetoothHeadsetClientCall>(mCallsSnapshot);
     }
 
     public Bundle getCurrentAgEvents() {
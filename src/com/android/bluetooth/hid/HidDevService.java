@@ -273,7 +273,7 @@ public class HidDevService extends ProfileService {
         Log.v(TAG, "registerApp()");
 
       HidDevService service = getService();
-      if (service == null) {
+      if (service == null || service.activateIfDormant()) {
         return false;
       }
 
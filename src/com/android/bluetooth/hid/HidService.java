@@ -33,6 +33,7 @@ import android.provider.Settings;
 import android.util.Log;
 import com.android.bluetooth.a2dp.A2dpService;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfilePriorityStore;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.Utils;
 
@@ -494,9 +495,8 @@ public class HidService extends ProfileService {
     public boolean setPriority(BluetoothDevice device, int priority) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        Settings.Global.putInt(getContentResolver(),
-            Settings.Global.getBluetoothInputDevicePriorityKey(device.getAddress()),
-            priority);
+        ProfilePriorityStore.getInstance(this).setPriority(
+                Settings.Global.getBluetoothInputDevicePriorityKey(device.getAddress()), priority);
         if (DBG) Log.d(TAG,"Saved priority " + device + " = " + priority);
         return true;
     }
@@ -504,9 +504,8 @@ public class HidService extends ProfileService {
     public  int getPriority(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        int priority = Settings.Global.getInt(getContentResolver(),
-            Settings.Global.getBluetoothInputDevicePriorityKey(device.getAddress()),
-            BluetoothProfile.PRIORITY_UNDEFINED);
+        int priority = ProfilePriorityStore.getInstance(this).getPriority(
+                Settings.Global.getBluetoothInputDevicePriorityKey(device.getAddress()));
         return priority;
     }
 
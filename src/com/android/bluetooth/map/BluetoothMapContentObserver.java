@@ -86,18 +86,18 @@ public class BluetoothMapContentObserver {
     private static final boolean D = BluetoothMapService.DEBUG;
     private static final boolean V = BluetoothMapService.VERBOSE;
 
-    private static final String EVENT_TYPE_NEW              = "NewMessage";
-    private static final String EVENT_TYPE_DELETE           = "MessageDeleted";
-    private static final String EVENT_TYPE_REMOVED          = "MessageRemoved";
+    static final String EVENT_TYPE_NEW              = "NewMessage";
+    static final String EVENT_TYPE_DELETE           = "MessageDeleted";
+    static final String EVENT_TYPE_REMOVED          = "MessageRemoved";
     private static final String EVENT_TYPE_SHIFT            = "MessageShift";
     private static final String EVENT_TYPE_DELEVERY_SUCCESS = "DeliverySuccess";
     private static final String EVENT_TYPE_SENDING_SUCCESS  = "SendingSuccess";
     private static final String EVENT_TYPE_SENDING_FAILURE  = "SendingFailure";
     private static final String EVENT_TYPE_DELIVERY_FAILURE = "DeliveryFailure";
-    private static final String EVENT_TYPE_READ_STATUS      = "ReadStatusChanged";
-    private static final String EVENT_TYPE_CONVERSATION     = "ConversationChanged";
-    private static final String EVENT_TYPE_PRESENCE         = "ParticipantPresenceChanged";
-    private static final String EVENT_TYPE_CHAT_STATE       = "ParticipantChatStateChanged";
+    static final String EVENT_TYPE_READ_STATUS      = "ReadStatusChanged";
+    static final String EVENT_TYPE_CONVERSATION     = "ConversationChanged";
+    static final String EVENT_TYPE_PRESENCE         = "ParticipantPresenceChanged";
+    static final String EVENT_TYPE_CHAT_STATE       = "ParticipantChatStateChanged";
 
     private static final long EVENT_FILTER_NEW_MESSAGE                  = 1L;
     private static final long EVENT_FILTER_MESSAGE_DELETED              = 1L<<1;
@@ -729,6 +729,11 @@ public class BluetoothMapContentObserver {
             }
         }
 
+        /* Identifies the message, or participant, the event is about in the MNS queue */
+        String getQueueKey() {
+            return msgType + "/" + ((uci != null) ? uci : Long.toString(handle));
+        }
+
         public byte[] encode() throws UnsupportedEncodingException {
             StringWriter sw = new StringWriter();
             XmlSerializer xmlEvtReport = Xml.newSerializer();
@@ -1185,7 +1190,7 @@ public class BluetoothMapContentObserver {
         }
 
         try {
-            mMnsClient.sendEvent(evt.encode(), mMasId);
+            mMnsClient.sendEvent(evt.encode(), mMasId, evt.eventType, evt.getQueueKey());
         } catch (UnsupportedEncodingException ex) {
             /* do nothing */
             if (D) Log.e(TAG, "Exception - should not happen: ",ex);
@@ -2973,8 +2978,11 @@ public class BluetoothMapContentObserver {
 
         // Add data to part
         OutputStream os = mResolver.openOutputStream(res);
-        os.write(part.mData);
-        os.close();
+        try {
+            part.writeData(os);
+        } finally {
+            os.close();
+        }
     }
 
 
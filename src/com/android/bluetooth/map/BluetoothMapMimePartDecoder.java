@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.map;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.android.bluetooth.map.BluetoothMapbMessageMime.MimePart;
+
+/**
+ * Decodes the body of a MIME part of a received bMessage one line at a time.
+ *
+ * Base64 is decoded in chunks as the lines arrive, so the encoded text of an attachment is
+ * never held in full. When the decoded data of a part which may be stored in a file grows
+ * beyond MAX_IN_MEMORY_BYTES, it is moved to a temporary file and the rest is written there,
+ * see {@link MimePart#mDataFile}. Quoted-printable bodies are only used for text and are
+ * decoded once complete.
+ */
+class BluetoothMapMimePartDecoder {
+    private static final String TAG = "BluetoothMapMimePartDecoder";
+    private static final boolean V = BluetoothMapService.VERBOSE;
+
+    /* Parts decoding to more than this are stored in a temporary file */
+    static final int MAX_IN_MEMORY_BYTES = 64 * 1024;
+    /* Base64 text is decoded in chunks of this many characters, a multiple of 4 */
+    static final int BASE64_CHUNK_LENGTH = 4 * 1024;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final MimePart mPart;
+    private final boolean mBase64;
+    private final boolean mQuotedPrintable;
+    private final String mCharset;
+    private boolean mMayUseFile;
+
+    private boolean mFirstLine = true;
+    private StringBuilder mText = null;
+    private byte[] mBase64Chars = null;
+    private int mBase64Length = 0;
+
+    private ByteArrayOutputStream mMemory = new ByteArrayOutputStream();
+    private File mFile = null;
+    private OutputStream mFileStream = null;
+
+    /**
+     * @param part the part to store the decoded data in
+     * @param encoding the Content-Transfer-Encoding of the part, null if none
+     * @param charset the charset of the part, used for quoted-printable text
+     * @param mayUseFile true if the data of the part doesn't need to be in mData
+     */
+    BluetoothMapMimePartDecoder(MimePart part, String encoding, String charset,
+            boolean mayUseFile) {
+        mPart = part;
+        mBase64 = encoding != null && encoding.toUpperCase().contains("BASE64");
+        mQuotedPrintable = !mBase64 && encoding != null
+                && encoding.toUpperCase().contains("QUOTED-PRINTABLE");
+        mCharset = charset;
+        mMayUseFile = mayUseFile;
+        if (mBase64) {
+            mBase64Chars = new byte[BASE64_CHUNK_LENGTH];
+        } else if (mQuotedPrintable) {
+            mText = new StringBuilder();
+        }
+    }
+
+    /** Add the next line of the body, without its line break. */
+    void addLine(String line) throws IOException {
+        if (mBase64) {
+            for (int i = 0, n = line.length(); i < n; i++) {
+                char c = line.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    continue;
+                }
+                mBase64Chars[mBase64Length++] = (byte) c;
+                if (mBase64Length == BASE64_CHUNK_LENGTH) {
+                    decodeBase64(false);
+                }
+            }
+        } else if (mQuotedPrintable) {
+            if (!mFirstLine) {
+                mText.append("\r\n");
+            }
+            mText.append(line);
+        } else {
+            // TODO: handle other encoding types? - here we simply store the string data as bytes
+            if (!mFirstLine) {
+                write(CRLF, 0, CRLF.length);
+            }
+            byte[] data = line.getBytes(StandardCharsets.UTF_8);
+            write(data, 0, data.length);
+        }
+        mFirstLine = false;
+    }
+
+    /** Store the decoded body in the part, once all lines have been added. */
+    void finish() throws IOException {
+        if (mBase64) {
+            decodeBase64(true);
+        } else if (mQuotedPrintable) {
+            byte[] data = BluetoothMapUtils.quotedPrintableToUtf8(mText.toString(), mCharset);
+            mText = null;
+            if (data != null) {
+                write(data, 0, data.length);
+            }
+        }
+        if (mFileStream != null) {
+            mFileStream.close();
+            mFileStream = null;
+            mPart.mData = null;
+            mPart.mDataFile = mFile;
+            mFile = null;
+            if (V) Log.v(TAG, "Part data stored in " + mPart.mDataFile);
+        } else {
+            mPart.mData = mMemory.toByteArray();
+        }
+        mMemory = null;
+    }
+
+    /** Drop the data decoded so far, if the body can't be completed. */
+    void abort() {
+        deleteFile();
+        mMemory = null;
+    }
+
+    private void deleteFile() {
+        if (mFileStream != null) {
+            try {
+                mFileStream.close();
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+            mFileStream = null;
+        }
+        if (mFile != null) {
+            mFile.delete();
+            mFile = null;
+        }
+    }
+
+    /* Decode the collected characters, except a trailing incomplete quantum unless last */
+    private void decodeBase64(boolean last) throws IOException {
+        int length = last ? mBase64Length : mBase64Length & ~3;
+        if (length > 0) {
+            byte[] data = Base64.decode(mBase64Chars, 0, length, Base64.DEFAULT);
+            write(data, 0, data.length);
+        }
+        System.arraycopy(mBase64Chars, length, mBase64Chars, 0, mBase64Length - length);
+        mBase64Length -= length;
+    }
+
+    private void write(byte[] data, int offset, int length) throws IOException {
+        if (mFileStream == null && mMayUseFile
+                && mMemory.size() + length > MAX_IN_MEMORY_BYTES) {
+            moveToFile();
+        }
+        if (mFileStream != null) {
+            mFileStream.write(data, offset, length);
+        } else {
+            mMemory.write(data, offset, length);
+        }
+    }
+
+    private void moveToFile() {
+        try {
+            mFile = File.createTempFile("bmsg_part", null);
+            mFileStream = new BufferedOutputStream(new FileOutputStream(mFile));
+            mMemory.writeTo(mFileStream);
+            mMemory.reset();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store part in a file, keeping it in memory", e);
+            deleteFile();
+            mMayUseFile = false;
+        }
+    }
+}
@@ -590,6 +590,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_PRECON_FAILED;
         }
         InputStream bMsgStream = null;
+        BluetoothMapbMessage message = null;
         try {
             BluetoothMapFolderElement folderElement = getFolderElementFromName(folderName);
             if(folderElement == null) {
@@ -610,7 +611,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
              *  - Decode into a bMessage
              *  - send it.
              */
-            BluetoothMapbMessage message;
             bMsgStream = op.openInputStream();
             // Decode the messageBody
             message = BluetoothMapbMessage.parse(bMsgStream, appParams.getCharset());
@@ -682,6 +682,10 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     bMsgStream.close();
                 } catch (IOException e) {}
             }
+            if(message != null) {
+                // The message has been stored, drop the parts kept for it
+                message.release();
+            }
         }
         return ResponseCodes.OBEX_HTTP_OK;
     }
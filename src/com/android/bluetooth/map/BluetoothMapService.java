@@ -45,6 +45,7 @@ import android.util.SparseArray;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfilePriorityStore;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.ProfileService.IProfileServiceBinder;
 
@@ -581,17 +582,15 @@ public class BluetoothMapService extends ProfileService {
     }
 
     public boolean setPriority(BluetoothDevice device, int priority) {
-        Settings.Global.putInt(getContentResolver(),
-            Settings.Global.getBluetoothMapPriorityKey(device.getAddress()),
-            priority);
+        ProfilePriorityStore.getInstance(this).setPriority(
+                Settings.Global.getBluetoothMapPriorityKey(device.getAddress()), priority);
         if (VERBOSE) Log.v(TAG, "Saved priority " + device + " = " + priority);
         return true;
     }
 
     public int getPriority(BluetoothDevice device) {
-        int priority = Settings.Global.getInt(getContentResolver(),
-            Settings.Global.getBluetoothMapPriorityKey(device.getAddress()),
-            BluetoothProfile.PRIORITY_UNDEFINED);
+        int priority = ProfilePriorityStore.getInstance(this).getPriority(
+                Settings.Global.getBluetoothMapPriorityKey(device.getAddress()));
         return priority;
     }
 
@@ -1281,6 +1280,10 @@ public class BluetoothMapService extends ProfileService {
         println(sb, "mPermission: " + mPermission);
         println(sb, "mAccountChanged: " + mAccountChanged);
         println(sb, "mBluetoothMnsObexClient: " + mBluetoothMnsObexClient);
+        BluetoothMnsObexClient mnsClient = mBluetoothMnsObexClient;
+        if (mnsClient != null) {
+            println(sb, "  MNS events: " + mnsClient.getEventQueueStats());
+        }
         println(sb, "mMasInstanceMap:");
         for (BluetoothMapAccountItem key : mMasInstanceMap.keySet()) {
             println(sb, "  " + key + " : " + mMasInstanceMap.get(key));
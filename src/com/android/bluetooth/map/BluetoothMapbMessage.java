@@ -60,6 +60,8 @@ public abstract class BluetoothMapbMessage {
     private ArrayList<vCard> mOriginator = null;
     private ArrayList<vCard> mRecipient = null;
 
+    private StringBuilder mMsgPart = null; // The 'message' part while it is being read
+
 
     public static class vCard {
         /* VCARD attributes */
@@ -341,7 +343,16 @@ public abstract class BluetoothMapbMessage {
         }
 
         private byte[] getLineAsBytes() {
+            return getLineAsBytes(true);
+        }
+
+        /**
+         * @param skipEmpty true to skip empty lines
+         * @return the next line, without line break. If empty lines are kept, null at EOF.
+         */
+        private byte[] getLineAsBytes(boolean skipEmpty) {
             int readByte;
+            boolean lineEnded = false;
 
             /* TODO: Actually the vCard spec. allows to break lines by using a newLine
              * followed by a white space character(space or tab). Not sure this is a good idea to
@@ -356,16 +367,19 @@ public abstract class BluetoothMapbMessage {
                 while ((readByte = mInStream.read()) != -1) {
                     if (readByte == '\r') {
                         if ((readByte = mInStream.read()) != -1 && readByte == '\n') {
-                            if(output.size() == 0)
+                            if(output.size() == 0 && skipEmpty)
                                 continue; /* Skip empty lines */
-                            else
-                                break;
+                            lineEnded = true;
+                            break;
                         } else {
                             output.write('\r');
                         }
                     } else if (readByte == '\n' && output.size() == 0) {
                         /* Empty line - skip */
-                        continue;
+                        if(skipEmpty)
+                            continue;
+                        lineEnded = true;
+                        break;
                     }
 
                     output.write(readByte);
@@ -374,6 +388,8 @@ public abstract class BluetoothMapbMessage {
                 Log.w(TAG, e);
                 return null;
             }
+            if(!skipEmpty && !lineEnded && output.size() == 0)
+                return null; /* EOF */
             return output.toByteArray();
         }
 
@@ -407,6 +423,23 @@ public abstract class BluetoothMapbMessage {
         return line;
         }
 
+        /**
+         * Same as getLineEnforce(), but empty lines are returned too. Use this function for
+         * the 'message' part of the bMessage, where e.g. an empty line separates the headers
+         * of a MIME message from its body.
+         * @return the next line, empty if the line is empty
+         */
+        public String getMsgLineEnforce() {
+            byte[] line = getLineAsBytes(false);
+            if (line == null)
+                throw new IllegalArgumentException("Bmessage too short");
+            try {
+                return new String(line, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
 
         /**
          * Reads a line from the InputStream, and examines if the subString
@@ -639,20 +672,26 @@ public abstract class BluetoothMapbMessage {
         if(statusFound)
             newBMsg.setStatus(status);
 
-        // Now check for originator VCARDs
-        while(line.contains("BEGIN:VCARD")){
-            if(D) Log.d(TAG,"Decoding vCard");
-            newBMsg.addOriginator(vCard.parseVcard(reader,0));
-            line = reader.getLineEnforce();
-        }
-        if(line.contains("BEGIN:BENV")) {
-            newBMsg.parseEnvelope(reader, 0);
-            if ( type == TYPE.EMAIL && newBMsg instanceof BluetoothMapbMessageExtEmail) {
-                ((BluetoothMapbMessageExtEmail)newBMsg)
-                    .parseBodyEmail(reader.getLastStringTerminator("END:BBODY"));
+        try {
+            // Now check for originator VCARDs
+            while(line.contains("BEGIN:VCARD")){
+                if(D) Log.d(TAG,"Decoding vCard");
+                newBMsg.addOriginator(vCard.parseVcard(reader,0));
+                line = reader.getLineEnforce();
             }
-        } else
-            throw new IllegalArgumentException("Bmessage has no BEGIN:BENV - line:" + line);
+            if(line.contains("BEGIN:BENV")) {
+                newBMsg.parseEnvelope(reader, 0);
+                if ( type == TYPE.EMAIL && newBMsg instanceof BluetoothMapbMessageExtEmail) {
+                    ((BluetoothMapbMessageExtEmail)newBMsg)
+                        .parseBodyEmail(reader.getLastStringTerminator("END:BBODY"));
+                }
+            } else
+                throw new IllegalArgumentException("Bmessage has no BEGIN:BENV - line:" + line);
+        } catch (RuntimeException e) {
+            // Don't leave the parts stored so far behind
+            newBMsg.release();
+            throw e;
+        }
 
         /* TODO: Do we need to validate the END:* tags? They are only needed if someone puts
          *        additional info below the END:MSG - in which case we don't handle it.
@@ -764,25 +803,45 @@ public abstract class BluetoothMapbMessage {
                  * the length field.*/
 
                 // Read until we receive END:MSG as some carkits send bad message lengths
-                String data = "";
-                String message_line = "";
+                String message_line = reader.getMsgLineEnforce();
                 while (!message_line.equals("END:MSG")) {
-                    data += message_line;
-                    message_line = reader.getLineEnforce();
+                    parseMsgLine(message_line);
+                    message_line = reader.getMsgLineEnforce();
                 }
-
-                // The MAP spec says that all END:MSG strings in the body
-                // of the message must be escaped upon encoding and the
-                // escape removed upon decoding
-                data.replaceAll("([/]*)/END\\:MSG", "$1END:MSG");
-                data.trim();
-
-                parseMsgPart(data);
+                parseMsgEnd();
             }
             line = reader.getLineEnforce();
         }
     }
 
+    /**
+     * Receives the lines of the 'message' part of <bmessage-body-content> one at a time, as
+     * they are read. By default they are collected and handed to parseMsgPart() by
+     * parseMsgEnd(). Override both to parse a large message without holding all of its text.
+     * @param line the line, without line break
+     */
+    protected void parseMsgLine(String line) {
+        if(mMsgPart == null)
+            mMsgPart = new StringBuilder();
+        mMsgPart.append(line);
+    }
+
+    /**
+     * Called after the last line of the 'message' part has been given to parseMsgLine().
+     */
+    protected void parseMsgEnd() {
+        String data = (mMsgPart != null) ? mMsgPart.toString() : "";
+        mMsgPart = null;
+
+        // The MAP spec says that all END:MSG strings in the body
+        // of the message must be escaped upon encoding and the
+        // escape removed upon decoding
+        data.replaceAll("([/]*)/END\\:MSG", "$1END:MSG");
+        data.trim();
+
+        parseMsgPart(data);
+    }
+
     /**
      * Parse the 'message' part of <bmessage-body-content>"
      * @param msgPart
@@ -796,6 +855,13 @@ public abstract class BluetoothMapbMessage {
 
     public abstract byte[] encode() throws UnsupportedEncodingException;
 
+    /**
+     * Free what is held for the content of a received message, e.g. temporary files.
+     * Call once the message has been stored, the content can't be used afterwards.
+     */
+    public void release() {
+    }
+
     public void setStatus(boolean read) {
         if(read)
             this.mStatus = "READ";
@@ -14,6 +14,11 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
@@ -44,6 +49,43 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         public String mFileName = null;     /* Do not seem to be used */
         public byte[] mData = null;        /* The raw un-encoded data e.g. the raw
                                             * jpeg data or the text.getBytes("utf-8") */
+        public File mDataFile = null;      /* Holds the data instead of mData for large
+                                            * non-text parts of a received message */
+
+        long getDataLength() {
+            if(mData != null)
+                return mData.length;
+            if(mDataFile != null)
+                return mDataFile.length();
+            return 0;
+        }
+
+        /**
+         * Write the raw data of the part, from mData or from mDataFile.
+         */
+        void writeData(OutputStream os) throws IOException {
+            if(mData != null) {
+                os.write(mData);
+            } else if(mDataFile != null) {
+                InputStream is = new FileInputStream(mDataFile);
+                try {
+                    byte[] buffer = new byte[8 * 1024];
+                    int len;
+                    while((len = is.read(buffer)) > 0) {
+                        os.write(buffer, 0, len);
+                    }
+                } finally {
+                    is.close();
+                }
+            }
+        }
+
+        void release() {
+            if(mDataFile != null) {
+                mDataFile.delete();
+                mDataFile = null;
+            }
+        }
 
 
         String getDataAsString() {
@@ -154,6 +196,19 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
     private boolean hasHeaders = false;
     private String encoding = null;
 
+    /* States of the parsing of a received message, which is done one line at a time */
+    private static final int PARSE_HEADERS = 0;      // The message headers
+    private static final int PARSE_PREAMBLE = 1;     // The text before the first boundary
+    private static final int PARSE_PART_HEADERS = 2; // The headers of a part
+    private static final int PARSE_BODY = 3;         // The body of the message or of a part
+    private static final int PARSE_EPILOGUE = 4;     // The text after the closing boundary
+
+    private int mParseState = PARSE_HEADERS;
+    private String mParseHeader = null;       // The header being read, until it is unfolded
+    private MimePart mParsePart = null;       // The part being read
+    private String mParsePartEncoding = null; // Content-Transfer-Encoding of mParsePart
+    private BluetoothMapMimePartDecoder mParseDecoder = null;
+
     String getBoundary() {
         if(boundary == null)
             // Include "=_" as these cannot occur in quoted printable text
@@ -313,7 +368,7 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         int message_size = 0;
         if(parts != null) {
             for(MimePart part : parts) {
-                message_size += part.mData.length;
+                message_size += part.getDataLength();
             }
         }
         return message_size;
@@ -482,259 +537,295 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
 
 
     /**
-     * Try to parse the hdrPart string as e-mail headers.
-     * @param hdrPart The string to parse.
-     * @return Null if the entire string were e-mail headers. The part of the string in which
-     * no headers were found.
+     * Collect a line of a header section, unfolding headers which span several lines.
+     * @return false if the line does not belong to the header section, i.e. it is the empty
+     * line ending the section or the first line of text not being a header.
      */
-    private String parseMimeHeaders(String hdrPart) {
-        String[] headers = hdrPart.split("\r\n");
-        if(D) Log.d(TAG,"Header count=" + headers.length);
-        String header;
-        hasHeaders = false;
-
-        for(int i = 0, c = headers.length; i < c; i++) {
-            header = headers[i];
-            if(D) Log.d(TAG,"Header[" + i + "]: " + header);
-            /* We need to figure out if any headers are present, in cases where devices do
-             * not follow the e-mail RFCs.
-             * Skip empty lines, and then parse headers until a non-header line is found,
-             * at which point we treat the remaining as plain text.
-             */
-            if(header.trim() == "")
-                continue;
-            String[] headerParts = header.split(":",2);
-            if(headerParts.length != 2) {
-                // We treat the remaining content as plain text.
-                StringBuilder remaining = new StringBuilder();
-                for(; i < c; i++)
-                    remaining.append(headers[i]);
-
-                return remaining.toString();
-            }
+    private boolean readHeaderLine(String line) {
+        if(mParseHeader != null && line.length() > 0
+                && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+            mParseHeader += line.replaceFirst("^[ \\t]+", ""); // Unfold
+            return true;
+        }
+        flushHeader();
+        /* We need to figure out if any headers are present, in cases where devices do
+         * not follow the e-mail RFCs.
+         * Parse headers until a non-header line is found, at which point we treat the
+         * remaining as plain text. */
+        if(line.length() == 0 || line.indexOf(':') < 0)
+            return false;
+        mParseHeader = line;
+        return true;
+    }
+
+    private void flushHeader() {
+        if(mParseHeader == null)
+            return;
+        if(mParseState == PARSE_HEADERS) {
+            parseMimeHeader(mParseHeader);
+        } else {
+            parseMimePartHeader(mParsePart, mParseHeader);
+        }
+        mParseHeader = null;
+    }
 
-            String headerType = headerParts[0].toUpperCase();
-            String headerValue = headerParts[1].trim();
-
-            // Address headers
-            /* If this is empty, the MSE needs to fill it in before sending the message.
-             * This happens when sending the MMS.
-             */
-            if(headerType.contains("FROM")) {
-                headerValue = BluetoothMapUtils.stripEncoding(headerValue);
-                Rfc822Token tokens[] = Rfc822Tokenizer.tokenize(headerValue);
-                from = new ArrayList<Rfc822Token>(Arrays.asList(tokens));
-            } else if(headerType.contains("TO")) {
-                headerValue = BluetoothMapUtils.stripEncoding(headerValue);
-                Rfc822Token tokens[] = Rfc822Tokenizer.tokenize(headerValue);
-                to = new ArrayList<Rfc822Token>(Arrays.asList(tokens));
-            } else if(headerType.contains("CC")) {
-                headerValue = BluetoothMapUtils.stripEncoding(headerValue);
-                Rfc822Token tokens[] = Rfc822Tokenizer.tokenize(headerValue);
-                cc = new ArrayList<Rfc822Token>(Arrays.asList(tokens));
-            } else if(headerType.contains("BCC")) {
-                headerValue = BluetoothMapUtils.stripEncoding(headerValue);
-                Rfc822Token tokens[] = Rfc822Tokenizer.tokenize(headerValue);
-                bcc = new ArrayList<Rfc822Token>(Arrays.asList(tokens));
-            } else if(headerType.contains("REPLY-TO")) {
-                headerValue = BluetoothMapUtils.stripEncoding(headerValue);
-                Rfc822Token tokens[] = Rfc822Tokenizer.tokenize(headerValue);
-                replyTo = new ArrayList<Rfc822Token>(Arrays.asList(tokens));
-            } else if(headerType.contains("SUBJECT")) { // Other headers
-                subject = BluetoothMapUtils.stripEncoding(headerValue);
-            } else if(headerType.contains("MESSAGE-ID")) {
-                messageId = headerValue;
-            } else if(headerType.contains("DATE")) {
-                /* The date is not needed, as the time stamp will be set in the DB
-                 * when the message is send. */
-            } else if(headerType.contains("MIME-VERSION")) {
-                /* The mime version is not needed */
-            } else if(headerType.contains("CONTENT-TYPE")) {
-                String[] contentTypeParts = headerValue.split(";");
-                contentType = contentTypeParts[0];
-                // Extract the boundary if it exists
-                for(int j=1, n=contentTypeParts.length; j<n; j++)
-                {
-                    if(contentTypeParts[j].contains("boundary")) {
-                        boundary = contentTypeParts[j].split("boundary[\\s]*=", 2)[1].trim();
-                        // removing quotes from boundary string
-                        if ((boundary.charAt(0) == '\"')
-                                && (boundary.charAt(boundary.length()-1) == '\"'))
-                            boundary = boundary.substring(1, boundary.length()-1);
-                        if(D) Log.d(TAG,"Boundary tag=" + boundary);
-                    } else if(contentTypeParts[j].contains("charset")) {
-                        mCharset = contentTypeParts[j].split("charset[\\s]*=", 2)[1].trim();
-                    }
+    /**
+     * Parse an unfolded e-mail header of the message.
+     * @param header the header line
+     */
+    private void parseMimeHeader(String header) {
+        if(D) Log.d(TAG,"Header: " + header);
+        String[] headerParts = header.split(":",2);
+        String headerType = headerParts[0].toUpperCase();
+        String headerValue = headerParts[1].trim();
+
+        // Address headers
+        /* If this is empty, the MSE needs to fill it in before sending the message.
+         * This happens when sending the MMS.
+         */
+        if(headerType.contains("FROM")) {
+            headerValue = BluetoothMapUtils.stripEncoding(headerValue);
+            Rfc822Token tokens[] = Rfc822Tokenizer.tokenize(headerValue);
+            from = new ArrayList<Rfc822Token>(Arrays.asList(tokens));
+        } else if(headerType.contains("TO")) {
+            headerValue = BluetoothMapUtils.stripEncoding(headerValue);
+            Rfc822Token tokens[] = Rfc822Tokenizer.tokenize(headerValue);
+            to = new ArrayList<Rfc822Token>(Arrays.asList(tokens));
+        } else if(headerType.contains("CC")) {
+            headerValue = BluetoothMapUtils.stripEncoding(headerValue);
+            Rfc822Token tokens[] = Rfc822Tokenizer.tokenize(headerValue);
+            cc = new ArrayList<Rfc822Token>(Arrays.asList(tokens));
+        } else if(headerType.contains("BCC")) {
+            headerValue = BluetoothMapUtils.stripEncoding(headerValue);
+            Rfc822Token tokens[] = Rfc822Tokenizer.tokenize(headerValue);
+            bcc = new ArrayList<Rfc822Token>(Arrays.asList(tokens));
+        } else if(headerType.contains("REPLY-TO")) {
+            headerValue = BluetoothMapUtils.stripEncoding(headerValue);
+            Rfc822Token tokens[] = Rfc822Tokenizer.tokenize(headerValue);
+            replyTo = new ArrayList<Rfc822Token>(Arrays.asList(tokens));
+        } else if(headerType.contains("SUBJECT")) { // Other headers
+            subject = BluetoothMapUtils.stripEncoding(headerValue);
+        } else if(headerType.contains("MESSAGE-ID")) {
+            messageId = headerValue;
+        } else if(headerType.contains("DATE")) {
+            /* The date is not needed, as the time stamp will be set in the DB
+             * when the message is send. */
+        } else if(headerType.contains("MIME-VERSION")) {
+            /* The mime version is not needed */
+        } else if(headerType.contains("CONTENT-TYPE")) {
+            String[] contentTypeParts = headerValue.split(";");
+            contentType = contentTypeParts[0];
+            // Extract the boundary if it exists
+            for(int j=1, n=contentTypeParts.length; j<n; j++)
+            {
+                if(contentTypeParts[j].contains("boundary")) {
+                    boundary = contentTypeParts[j].split("boundary[\\s]*=", 2)[1].trim();
+                    // removing quotes from boundary string
+                    if ((boundary.charAt(0) == '\"')
+                            && (boundary.charAt(boundary.length()-1) == '\"'))
+                        boundary = boundary.substring(1, boundary.length()-1);
+                    if(D) Log.d(TAG,"Boundary tag=" + boundary);
+                } else if(contentTypeParts[j].contains("charset")) {
+                    mCharset = contentTypeParts[j].split("charset[\\s]*=", 2)[1].trim();
                 }
-            } else if(headerType.contains("CONTENT-TRANSFER-ENCODING")) {
-                encoding = headerValue;
-            } else {
-                if(D) Log.w(TAG,"Skipping unknown header: " + headerType + " (" + header + ")");
             }
+        } else if(headerType.contains("CONTENT-TRANSFER-ENCODING")) {
+            encoding = headerValue;
+        } else {
+            if(D) Log.w(TAG,"Skipping unknown header: " + headerType + " (" + header + ")");
         }
-        return null;
     }
 
-    private void parseMimePart(String partStr) {
-        String[] parts = partStr.split("\r\n\r\n", 2); // Split the header from the body
-        MimePart newPart = addMimePart();
-        String partEncoding = encoding; /* Use the overall encoding as default */
-        String body;
-
-        String[] headers = parts[0].split("\r\n");
-        if(D) Log.d(TAG, "parseMimePart: headers count=" + headers.length);
-
-        if(parts.length != 2) {
-            body = partStr;
-        } else {
-            for(String header : headers) {
-                // Skip empty lines(the \r\n after the boundary tag) and endBoundary tags
-                if((header.length() == 0)
-                        || (header.trim().isEmpty())
-                        || header.trim().equals("--"))
-                    continue;
-
-                String[] headerParts = header.split(":",2);
-                if(headerParts.length != 2) {
-                    if(D) Log.w(TAG, "part-Header not formatted correctly: ");
-                    continue;
-                }
-                if(D) Log.d(TAG, "parseMimePart: header=" + header);
-                String headerType = headerParts[0].toUpperCase();
-                String headerValue = headerParts[1].trim();
-                if(headerType.contains("CONTENT-TYPE")) {
-                    String[] contentTypeParts = headerValue.split(";");
-                    newPart.mContentType = contentTypeParts[0];
-                    // Extract the boundary if it exists
-                    for(int j=1, n=contentTypeParts.length; j<n; j++)
-                    {
-                        String value = contentTypeParts[j].toLowerCase();
-                        if(value.contains("charset")) {
-                            newPart.mCharsetName = value.split("charset[\\s]*=", 2)[1].trim();
-                        }
-                    }
-                }
-                else if(headerType.contains("CONTENT-LOCATION")) {
-                    // This is used if the smil refers to a file name in its src
-                    newPart.mContentLocation = headerValue;
-                    newPart.mPartName = headerValue;
-                }
-                else if(headerType.contains("CONTENT-TRANSFER-ENCODING")) {
-                    partEncoding = headerValue;
-                }
-                else if(headerType.contains("CONTENT-ID")) {
-                    // This is used if the smil refers to a cid:<xxx> in it's src
-                    newPart.mContentId = headerValue;
-                }
-                else if(headerType.contains("CONTENT-DISPOSITION")) {
-                    // This is used if the smil refers to a cid:<xxx> in it's src
-                    newPart.mContentDisposition = headerValue;
-                }
-                else {
-                    if(D) Log.w(TAG,"Skipping unknown part-header: " + headerType
-                                                                     + " (" + header + ")");
-                }
-            }
-            body = parts[1];
-            if(body.length() > 2) {
-                if(body.charAt(body.length()-2) == '\r'
-                        && body.charAt(body.length()-2) == '\n') {
-                    body = body.substring(0, body.length()-2);
+    /**
+     * Parse an unfolded header of a part of a multi-part message.
+     * @param part the part the header belongs to
+     * @param header the header line
+     */
+    private void parseMimePartHeader(MimePart part, String header) {
+        if(D) Log.d(TAG, "parseMimePartHeader: header=" + header);
+        String[] headerParts = header.split(":",2);
+        String headerType = headerParts[0].toUpperCase();
+        String headerValue = headerParts[1].trim();
+        if(headerType.contains("CONTENT-TYPE")) {
+            String[] contentTypeParts = headerValue.split(";");
+            part.mContentType = contentTypeParts[0];
+            // Extract the boundary if it exists
+            for(int j=1, n=contentTypeParts.length; j<n; j++)
+            {
+                String value = contentTypeParts[j].toLowerCase();
+                if(value.contains("charset")) {
+                    part.mCharsetName = value.split("charset[\\s]*=", 2)[1].trim();
                 }
             }
         }
-        // Now for the body
-        newPart.mData = decodeBody(body, partEncoding, newPart.mCharsetName);
+        else if(headerType.contains("CONTENT-LOCATION")) {
+            // This is used if the smil refers to a file name in its src
+            part.mContentLocation = headerValue;
+            part.mPartName = headerValue;
+        }
+        else if(headerType.contains("CONTENT-TRANSFER-ENCODING")) {
+            mParsePartEncoding = headerValue;
+        }
+        else if(headerType.contains("CONTENT-ID")) {
+            // This is used if the smil refers to a cid:<xxx> in it's src
+            part.mContentId = headerValue;
+        }
+        else if(headerType.contains("CONTENT-DISPOSITION")) {
+            // This is used if the smil refers to a cid:<xxx> in it's src
+            part.mContentDisposition = headerValue;
+        }
+        else {
+            if(D) Log.w(TAG,"Skipping unknown part-header: " + headerType
+                                                             + " (" + header + ")");
+        }
     }
 
-    private void parseMimeBody(String body) {
-        MimePart newPart = addMimePart();
-        newPart.mCharsetName = mCharset;
-        newPart.mData = decodeBody(body, encoding, mCharset);
+    private boolean isBoundary(String line) {
+        return line.startsWith("--") && line.startsWith(boundary, 2);
     }
 
-    private byte[] decodeBody(String body, String encoding, String charset) {
-        if(encoding != null && encoding.toUpperCase().contains("BASE64")) {
-            return Base64.decode(body, Base64.DEFAULT);
-        } else if(encoding != null && encoding.toUpperCase().contains("QUOTED-PRINTABLE")) {
-            return BluetoothMapUtils.quotedPrintableToUtf8(body, charset);
-        }else{
-            // TODO: handle other encoding types? - here we simply store the string data as bytes
-            try {
-
-                return body.getBytes("UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                // This will never happen, as UTF-8 is mandatory on Android platforms
-            }
+    /* Handle a boundary line: start the next part, unless it is the closing boundary */
+    private void onBoundary(String line) {
+        if(line.startsWith("--", boundary.length() + 2)) {
+            mParseState = PARSE_EPILOGUE;
+            return;
         }
-        return null;
-    }
-
-    private void parseMime(String message) {
-        /* Overall strategy for decoding:
-         * 1) split on first empty line to extract the header
-         * 2) unfold and parse headers
-         * 3) split on boundary to split into parts (or use the remaining as a part,
-         *    if part is not found)
-         * 4) parse each part
-         * */
-        String[] messageParts;
-        String[] mimeParts;
-        String remaining = null;
-        String messageBody = null;
-        message = message.replaceAll("\\r\\n[ \\\t]+", ""); // Unfold
-        messageParts = message.split("\r\n\r\n", 2); // Split the header from the body
-        if(messageParts.length != 2) {
-            // Handle entire message as plain text
-            messageBody = message;
+        mParsePart = addMimePart();
+        mParsePartEncoding = encoding; /* Use the overall encoding as default */
+        mParseState = PARSE_PART_HEADERS;
+    }
+
+    private void startBody(MimePart part, String partEncoding, String partContentType) {
+        flushHeader();
+        mParsePart = part;
+        /* Only the text and smil parts are needed as byte[], see pushMmsToFolder() */
+        boolean mayUseFile = partContentType != null
+                && !partContentType.toUpperCase().contains("TEXT")
+                && !partContentType.toUpperCase().contains("SMIL");
+        mParseDecoder = new BluetoothMapMimePartDecoder(part, partEncoding, part.mCharsetName,
+                mayUseFile);
+        mParseState = PARSE_BODY;
+    }
+
+    private void finishBody() {
+        try {
+            mParseDecoder.finish();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to store MIME part", e);
         }
-        else
-        {
-            remaining = parseMimeHeaders(messageParts[0]);
-            // If we have some text not being a header, add it to the message body.
-            if(remaining != null) {
-                messageBody = remaining + messageParts[1];
-                if(D) Log.d(TAG, "parseMime remaining=" + remaining );
+        mParseDecoder = null;
+        mParsePart = null;
+    }
+
+    /* Overall strategy for decoding, one line at a time:
+     * 1) parse and unfold the headers, until the first empty or non-header line
+     * 2) if there is no boundary, the remaining is the body of a single part
+     * 3) else skip to the first boundary, then parse the headers of each part and decode
+     *    its body until the next boundary
+     * */
+    private void parseLine(String line) {
+        switch(mParseState) {
+        case PARSE_HEADERS:
+            if(readHeaderLine(line))
+                return;
+            if(boundary == null) {
+                // If the boundary is not set, handle as non-multi-part
+                MimePart part = addMimePart();
+                part.mCharsetName = mCharset;
+                startBody(part, encoding, contentType);
             } else {
-                messageBody = messageParts[1];
+                flushHeader();
+                mParseState = PARSE_PREAMBLE;
+            }
+            // The empty line only ends the headers, any other line is part of what follows
+            if(line.length() > 0)
+                parseLine(line);
+            return;
+        case PARSE_PREAMBLE:
+            // The preamble is the message to clients not capable of decoding MIME
+            if(isBoundary(line))
+                onBoundary(line);
+            return;
+        case PARSE_PART_HEADERS:
+            if(!isBoundary(line) && readHeaderLine(line))
+                return;
+            startBody(mParsePart, mParsePartEncoding, mParsePart.mContentType);
+            if(line.length() > 0)
+                parseLine(line);
+            return;
+        case PARSE_BODY:
+            if(boundary != null && isBoundary(line)) {
+                finishBody();
+                onBoundary(line);
+                return;
+            }
+            try {
+                mParseDecoder.addLine(line);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Unable to store MIME part", e);
             }
+            return;
+        case PARSE_EPILOGUE:
+        default:
+            return;
         }
+    }
 
-        if(boundary == null)
-        {
-            // If the boundary is not set, handle as non-multi-part
-            parseMimeBody(messageBody);
+    /* Notes on SMIL decoding (from http://tools.ietf.org/html/rfc2557):
+     * src="filename.jpg" refers to a part with Content-Location: filename.jpg
+     * src="cid:1234@hest.net" refers to a part with Content-ID:<1234@hest.net>*/
+    @Override
+    protected void parseMsgLine(String line) {
+        if(line.contains("END:MSG")) {
+            // The escaping of END:MSG in the message content is removed upon decoding
+            line = line.replaceAll("([/]*)/END\\:MSG", "$1END:MSG");
+        }
+        parseLine(line);
+    }
+
+    @Override
+    protected void parseMsgEnd() {
+        if(mParseState == PARSE_HEADERS || mParseState == PARSE_PART_HEADERS)
+            parseLine(""); // End the headers
+        if(mParseState == PARSE_BODY)
+            finishBody();
+        if(boundary == null) {
             setTextOnly(true);
             if(contentType == null)
                 contentType = "text/plain";
             parts.get(0).mContentType = contentType;
         }
-        else
-        {
-            mimeParts = messageBody.split("--" + boundary);
-            if(D) Log.d(TAG, "mimePart count=" + mimeParts.length);
-            // Part 0 is the message to clients not capable of decoding MIME
-            for(int i = 1; i < mimeParts.length - 1; i++) {
-                String part = mimeParts[i];
-                if (part != null && (part.length() > 0))
-                    parseMimePart(part);
-            }
-        }
     }
 
-    /* Notes on SMIL decoding (from http://tools.ietf.org/html/rfc2557):
-     * src="filename.jpg" refers to a part with Content-Location: filename.jpg
-     * src="cid:1234@hest.net" refers to a part with Content-ID:<1234@hest.net>*/
     @Override
     public void parseMsgPart(String msgPart) {
-        parseMime(msgPart);
-
+        parseMsgInit();
+        for(String line : msgPart.split("\r\n", -1)) {
+            parseMsgLine(line);
+        }
+        parseMsgEnd();
     }
 
     @Override
     public void parseMsgInit() {
-        // Not used for e-mail
+        mParseState = PARSE_HEADERS;
+        mParseHeader = null;
+        mParsePart = null;
+        mParsePartEncoding = null;
+        mParseDecoder = null;
+    }
 
+    @Override
+    public void release() {
+        if(mParseDecoder != null) {
+            mParseDecoder.abort();
+            mParseDecoder = null;
+        }
+        if(parts != null) {
+            for(MimePart part : parts) {
+                part.release();
+            }
+        }
     }
 
     @Override
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.map;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * The event reports waiting to be sent to the MNS server.
+ *
+ * Events are sent in the order they were added, except that a NewMessage event is sent before
+ * the events about other messages waiting ahead of it. Events about the same message are never
+ * reordered, so e.g. a MessageDeleted is never overtaken by a NewMessage for the same handle.
+ *
+ * An event which is identical in type and message to one still waiting supersedes it: the
+ * waiting event is removed and the new one is queued after any other event for that message.
+ * The MCE only needs to be told once that e.g. the read status of a message changed - it reads
+ * the current state when it gets the report. A pending ReadStatusChanged is superseded when
+ * the message is deleted. Superseded events are the only ones removed from the queue; when
+ * MAX_DEPTH events are waiting, further events are dropped rather than removing an event the
+ * MCE has not been told about yet.
+ *
+ * Events are added from the content observers and polled by the MNS handler thread, hence
+ * all methods are synchronized.
+ */
+class BluetoothMnsEventQueue {
+    static final int MAX_DEPTH = 256;
+
+    static final class Entry {
+        final byte[] mEventBytes;
+        final int mMasId;
+        final String mEventType;
+        final String mKey;
+        final long mQueuedMs;
+
+        private Entry(byte[] eventBytes, int masId, String eventType, String key,
+                long queuedMs) {
+            mEventBytes = eventBytes;
+            mMasId = masId;
+            mEventType = eventType;
+            mKey = key;
+            mQueuedMs = queuedMs;
+        }
+    }
+
+    /* All events waiting, in the order they were added */
+    private final ArrayDeque<Entry> mQueue = new ArrayDeque<Entry>();
+    /* The collapsible entries waiting, by masId, event type and key */
+    private final HashMap<String, Entry> mPending = new HashMap<String, Entry>();
+
+    private long mQueuedCount = 0;
+    private long mSentCount = 0;
+    private long mCollapsedCount = 0;
+    private long mDroppedCount = 0;
+    private int mMaxDepth = 0;
+    private long mTotalLatencyMs = 0;
+    private long mMaxLatencyMs = 0;
+
+    private static boolean isCollapsible(String eventType) {
+        return BluetoothMapContentObserver.EVENT_TYPE_NEW.equals(eventType)
+                || BluetoothMapContentObserver.EVENT_TYPE_READ_STATUS.equals(eventType)
+                || BluetoothMapContentObserver.EVENT_TYPE_CONVERSATION.equals(eventType)
+                || BluetoothMapContentObserver.EVENT_TYPE_PRESENCE.equals(eventType)
+                || BluetoothMapContentObserver.EVENT_TYPE_CHAT_STATE.equals(eventType);
+    }
+
+    private static String pendingKey(int masId, String eventType, String key) {
+        return masId + "/" + eventType + "/" + key;
+    }
+
+    private static String messageKey(Entry entry) {
+        return entry.mMasId + "/" + entry.mKey;
+    }
+
+    /**
+     * Add an event report to the queue.
+     * @param eventBytes the encoded event report
+     * @param masId the MAS instance sending the event
+     * @param eventType the type of the event, null if unknown
+     * @param key identifies the message or participant the event is about, null if none
+     * @param nowMs the current time
+     */
+    synchronized void add(byte[] eventBytes, int masId, String eventType, String key,
+            long nowMs) {
+        mQueuedCount++;
+        if (eventType == null || key == null) {
+            addLast(new Entry(eventBytes, masId, eventType, key, nowMs));
+            return;
+        }
+        if (BluetoothMapContentObserver.EVENT_TYPE_DELETE.equals(eventType)
+                || BluetoothMapContentObserver.EVENT_TYPE_REMOVED.equals(eventType)) {
+            supersede(pendingKey(masId, BluetoothMapContentObserver.EVENT_TYPE_READ_STATUS,
+                    key));
+        }
+        if (!isCollapsible(eventType)) {
+            addLast(new Entry(eventBytes, masId, eventType, key, nowMs));
+            return;
+        }
+        String pendingKey = pendingKey(masId, eventType, key);
+        Entry pending = supersede(pendingKey);
+        // The latency is counted from the first of the collapsed events
+        Entry entry = new Entry(eventBytes, masId, eventType, key,
+                (pending != null) ? pending.mQueuedMs : nowMs);
+        if (addLast(entry)) {
+            mPending.put(pendingKey, entry);
+        }
+    }
+
+    /** Remove the waiting collapsible event with the given key, if any. */
+    private Entry supersede(String pendingKey) {
+        Entry pending = mPending.remove(pendingKey);
+        if (pending != null) {
+            mQueue.remove(pending);
+            mCollapsedCount++;
+        }
+        return pending;
+    }
+
+    private boolean addLast(Entry entry) {
+        if (mQueue.size() >= MAX_DEPTH) {
+            mDroppedCount++;
+            return false;
+        }
+        mQueue.addLast(entry);
+        mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+        return true;
+    }
+
+    private void forget(Entry entry) {
+        if (entry.mEventType != null && entry.mKey != null) {
+            mPending.remove(pendingKey(entry.mMasId, entry.mEventType, entry.mKey));
+        }
+    }
+
+    /**
+     * Take the next event report to send.
+     * @return the event, null if the queue is empty
+     */
+    synchronized Entry poll(long nowMs) {
+        Entry entry = null;
+        // The messages with an event waiting ahead of the candidate NewMessage
+        HashSet<String> waiting = null;
+        for (Iterator<Entry> it = mQueue.iterator(); it.hasNext();) {
+            Entry candidate = it.next();
+            if (BluetoothMapContentObserver.EVENT_TYPE_NEW.equals(candidate.mEventType)
+                    && (candidate.mKey == null || waiting == null
+                            || !waiting.contains(messageKey(candidate)))) {
+                it.remove();
+                entry = candidate;
+                break;
+            }
+            if (candidate.mKey != null) {
+                if (waiting == null) waiting = new HashSet<String>();
+                waiting.add(messageKey(candidate));
+            }
+        }
+        if (entry == null) {
+            entry = mQueue.pollFirst();
+        }
+        if (entry == null) {
+            return null;
+        }
+        forget(entry);
+        long latencyMs = nowMs - entry.mQueuedMs;
+        mSentCount++;
+        mTotalLatencyMs += latencyMs;
+        mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+        return entry;
+    }
+
+    synchronized int size() {
+        return mQueue.size();
+    }
+
+    /** Drop the events waiting, e.g. when the MNS connection is shut down. */
+    synchronized void clear() {
+        mDroppedCount += mQueue.size();
+        mQueue.clear();
+        mPending.clear();
+    }
+
+    synchronized long getSentCount() {
+        return mSentCount;
+    }
+
+    synchronized long getCollapsedCount() {
+        return mCollapsedCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    synchronized long getAverageLatencyMs() {
+        return (mSentCount == 0) ? 0 : mTotalLatencyMs / mSentCount;
+    }
+
+    synchronized long getMaxLatencyMs() {
+        return mMaxLatencyMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "queued: " + mQueuedCount + ", sent: " + mSentCount + ", collapsed: "
+                + mCollapsedCount + ", dropped: " + mDroppedCount + ", waiting: " + size()
+                + ", max depth: " + mMaxDepth + ", avg latency: " + getAverageLatencyMs()
+                + " ms, max latency: " + mMaxLatencyMs + " ms";
+    }
+}
@@ -22,10 +22,12 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseBooleanArray;
 
 import com.android.bluetooth.BluetoothObexTransport;
+import com.android.bluetooth.sdp.SdpRecordCache;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -61,6 +63,7 @@ public class BluetoothMnsObexClient {
     private HeaderSet mHsConnect = null;
     private Handler mCallback = null;
     private SdpMnsRecord mMnsRecord;
+    private final BluetoothMnsEventQueue mEventQueue = new BluetoothMnsEventQueue();
     // Used by the MAS to forward notification registrations
     public static final int MSG_MNS_NOTIFICATION_REGISTRATION = 1;
     public static final int MSG_MNS_SEND_EVENT = 2;
@@ -132,7 +135,15 @@ public class BluetoothMnsObexClient {
                 }
                 break;
             case MSG_MNS_SEND_EVENT:
-                sendEventHandler((byte[])msg.obj/*byte[]*/, msg.arg1 /*masId*/);
+                BluetoothMnsEventQueue.Entry event =
+                        mEventQueue.poll(SystemClock.elapsedRealtime());
+                if (event != null) {
+                    sendEventHandler(event.mEventBytes, event.mMasId);
+                }
+                /* Send one event per message, to let registrations in between */
+                if (mEventQueue.size() > 0 && !hasMessages(MSG_MNS_SEND_EVENT)) {
+                    sendEmptyMessage(MSG_MNS_SEND_EVENT);
+                }
                 break;
             case MSG_MNS_SDP_SEARCH_REGISTRATION:
                 //Initiate SDP Search
@@ -208,6 +219,7 @@ public class BluetoothMnsObexClient {
             }
             mHandler = null;
         }
+        mEventQueue.clear();
 
         /* Disconnect if connected */
         disconnect();
@@ -323,6 +335,7 @@ public class BluetoothMnsObexClient {
         } catch (IOException e) {
             Log.e(TAG, "BtSocket Connect error " + e.getMessage(), e);
             // TODO: do we need to report error somewhere?
+            SdpRecordCache.getInstance().onConnectFailed(mRemoteDevice, BLUETOOTH_UUID_OBEX_MNS);
             mConnected = false;
             return;
         }
@@ -368,11 +381,26 @@ public class BluetoothMnsObexClient {
      * @param masInstanceId the MasId of the instance sending the event.
      */
     public void sendEvent(byte[] eventBytes, int masInstanceId) {
+        sendEvent(eventBytes, masInstanceId, null, null);
+    }
+
+    /**
+     * Call this method to queue an event report to be send to the MNS server.
+     * Pending events of the same type for the same message are collapsed into one,
+     * see {@link BluetoothMnsEventQueue}.
+     * @param eventBytes the encoded event data.
+     * @param masInstanceId the MasId of the instance sending the event.
+     * @param eventType the type of the event, e.g. "NewMessage".
+     * @param key identifies the message or participant the event is about.
+     */
+    public void sendEvent(byte[] eventBytes, int masInstanceId, String eventType, String key) {
         // We need to check for null, to handle shutdown.
-        if(mHandler != null) {
-            Message msg = mHandler.obtainMessage(MSG_MNS_SEND_EVENT, masInstanceId, 0, eventBytes);
-            if(msg != null) {
-                msg.sendToTarget();
+        Handler handler = mHandler;
+        if(handler != null) {
+            mEventQueue.add(eventBytes, masInstanceId, eventType, key,
+                    SystemClock.elapsedRealtime());
+            if (!handler.hasMessages(MSG_MNS_SEND_EVENT)) {
+                handler.sendEmptyMessage(MSG_MNS_SEND_EVENT);
             }
         }
         notifyUpdateWakeLock();
@@ -500,6 +528,13 @@ public class BluetoothMnsObexClient {
         Log.e(TAG, "Error when sending event: " + exception);
     }
 
+    /**
+     * Get the statistics of the event queue, for dumpsys.
+     */
+    public String getEventQueueStats() {
+        return mEventQueue.toString();
+    }
+
     private void notifyUpdateWakeLock() {
         if(mCallback != null) {
             Message msg = Message.obtain(mCallback);
@@ -27,6 +27,7 @@ import android.provider.Settings;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.btservice.ProfilePriorityStore;
 import com.android.bluetooth.btservice.ProfileService;
 
 import java.util.ArrayList;
@@ -121,17 +122,15 @@ public class MapClientService extends ProfileService {
     }
 
     public boolean setPriority(BluetoothDevice device, int priority) {
-        Settings.Global.putInt(getContentResolver(),
-                Settings.Global.getBluetoothMapClientPriorityKey(device.getAddress()),
-                priority);
+        ProfilePriorityStore.getInstance(this).setPriority(
+                Settings.Global.getBluetoothMapClientPriorityKey(device.getAddress()), priority);
         if (VDBG) Log.v(TAG, "Saved priority " + device + " = " + priority);
         return true;
     }
 
     public int getPriority(BluetoothDevice device) {
-        int priority = Settings.Global.getInt(getContentResolver(),
-                Settings.Global.getBluetoothMapClientPriorityKey(device.getAddress()),
-                BluetoothProfile.PRIORITY_UNDEFINED);
+        int priority = ProfilePriorityStore.getInstance(this).getPriority(
+                Settings.Global.getBluetoothMapClientPriorityKey(device.getAddress()));
         return priority;
     }
 
@@ -242,7 +241,7 @@ public class MapClientService extends ProfileService {
         public boolean connect(BluetoothDevice device) {
             if (VDBG) Log.v(TAG, "connect()");
             MapClientService service = getService();
-            if (service == null) return false;
+            if (service == null || service.activateIfDormant()) return false;
             return service.connect(device);
         }
 
@@ -59,6 +59,7 @@ import android.telecom.PhoneAccount;
 import android.util.Log;
 
 import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.sdp.SdpRecordCache;
 import com.android.internal.util.IState;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -348,6 +349,7 @@ final class MceStateMachine extends StateMachine {
                     break;
 
                 case MSG_CONNECTING_TIMEOUT:
+                    SdpRecordCache.getInstance().onConnectFailed(mDevice, BluetoothUuid.MAS);
                     transitionTo(mDisconnecting);
                     break;
 
@@ -61,6 +61,7 @@ import android.os.ParcelUuid;
 import android.bluetooth.SdpOppOpsRecord;
 
 import com.android.bluetooth.a2dp.A2dpService;
+import com.android.bluetooth.sdp.SdpRecordCache;
 
 import java.io.File;
 import java.io.IOException;
@@ -788,6 +789,8 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
         } catch (IOException e) {
             if (V) Log.e(TAG, "Error when close socket");
         }
+        SdpRecordCache.getInstance().onConnectFailed(mBatch.mDestination,
+                BluetoothUuid.ObexObjectPush);
         mSessionHandler.obtainMessage(TRANSPORT_ERROR).sendToTarget();
         return;
     }
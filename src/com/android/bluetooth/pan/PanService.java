@@ -42,6 +42,7 @@ import android.provider.Settings;
 import android.util.Log;
 
 import com.android.bluetooth.a2dp.A2dpService;
+import com.android.bluetooth.btservice.ProfilePriorityStore;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.Utils;
 
@@ -381,9 +382,8 @@ public class PanService extends ProfileService {
             throw new IllegalArgumentException("Null device");
         }
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM, "Need BLUETOOTH_ADMIN permission");
-        Settings.Global.putInt(getContentResolver(),
-                Settings.Global.getBluetoothPanPriorityKey(device.getAddress()),
-                priority);
+        ProfilePriorityStore.getInstance(this).setPriority(
+                Settings.Global.getBluetoothPanPriorityKey(device.getAddress()), priority);
         if (DBG) {
             Log.d(TAG,"Saved priority " + device + " = " + priority);
         }
@@ -393,9 +393,8 @@ public class PanService extends ProfileService {
     public int getPriority(BluetoothDevice device) {
         if (device == null) throw new IllegalArgumentException("Null device");
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM, "Need BLUETOOTH_ADMIN permission");
-        return Settings.Global.getInt(getContentResolver(),
-                Settings.Global.getBluetoothPanPriorityKey(device.getAddress()),
-                BluetoothProfile.PRIORITY_UNDEFINED);
+        return ProfilePriorityStore.getInstance(this).getPriority(
+                Settings.Global.getBluetoothPanPriorityKey(device.getAddress()));
     }
 
     public List<BluetoothDevice> getConnectedDevices() {
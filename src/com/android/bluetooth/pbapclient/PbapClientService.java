@@ -29,6 +29,7 @@ import android.provider.CallLog;
 import android.provider.Settings;
 import android.util.Log;
 
+import com.android.bluetooth.btservice.ProfilePriorityStore;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
@@ -354,9 +355,8 @@ public class PbapClientService extends ProfileService {
     public boolean setPriority(BluetoothDevice device, int priority) {
         if (device == null) throw new IllegalArgumentException("Null device");
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM, "Need BLUETOOTH_ADMIN permission");
-        Settings.Global.putInt(getContentResolver(),
-                Settings.Global.getBluetoothPbapClientPriorityKey(device.getAddress()),
-                priority);
+        ProfilePriorityStore.getInstance(this).setPriority(
+                Settings.Global.getBluetoothPbapClientPriorityKey(device.getAddress()), priority);
         if (DBG) {
             Log.d(TAG,"Saved priority " + device + " = " + priority);
         }
@@ -366,9 +366,8 @@ public class PbapClientService extends ProfileService {
     public int getPriority(BluetoothDevice device) {
         if (device == null) throw new IllegalArgumentException("Null device");
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM, "Need BLUETOOTH_ADMIN permission");
-        int priority = Settings.Global.getInt(getContentResolver(),
-                Settings.Global.getBluetoothPbapClientPriorityKey(device.getAddress()),
-                BluetoothProfile.PRIORITY_UNDEFINED);
+        int priority = ProfilePriorityStore.getInstance(this).getPriority(
+                Settings.Global.getBluetoothPbapClientPriorityKey(device.getAddress()));
         return priority;
     }
 
@@ -58,6 +58,7 @@ import android.util.Log;
 
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.R;
+import com.android.bluetooth.sdp.SdpRecordCache;
 import com.android.internal.util.IState;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
@@ -181,6 +182,8 @@ final class PbapClientStateMachine extends StateMachine {
                 case MSG_CONNECTION_FAILED:
                 case MSG_CONNECT_TIMEOUT:
                     removeMessages(MSG_CONNECT_TIMEOUT);
+                    SdpRecordCache.getInstance().onConnectFailed(mCurrentDevice,
+                            BluetoothUuid.PBAP_PSE);
                     transitionTo(mDisconnecting);
                     break;
 
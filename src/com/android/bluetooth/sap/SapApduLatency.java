@@ -0,0 +1,71 @@
+package com.android.bluetooth.sap;
+
+import java.util.HashMap;
+
+/**
+ * Round trip time of the APDUs sent to the RIL, from the TRANSFER_APDU_REQ being sent to
+ * the RIL to its response arriving, keyed by the RIL serial of the request.
+ *
+ * Requests are sent from the SapServer handler thread and responses arrive on a HIDL
+ * thread, hence all methods are synchronized.
+ */
+class SapApduLatency {
+    /* An APDU answered later than this is counted as slow */
+    static final long SLOW_APDU_MS = 1000;
+
+    private final HashMap<Integer, Long> mSentMs = new HashMap<Integer, Long>();
+
+    private long mCount = 0;
+    private long mTotalMs = 0;
+    private long mMaxMs = 0;
+    private long mLastMs = -1;
+    private long mSlowCount = 0;
+
+    synchronized void onApduSent(int rilSerial, long nowMs) {
+        mSentMs.put(rilSerial, nowMs);
+    }
+
+    /**
+     * Record the response to the APDU request rilSerial.
+     * @return the round trip time in ms, -1 if no APDU request was pending with rilSerial
+     */
+    synchronized long onApduResponse(int rilSerial, long nowMs) {
+        Long sentMs = mSentMs.remove(rilSerial);
+        if (sentMs == null) {
+            return -1;
+        }
+        long latencyMs = nowMs - sentMs;
+        mCount++;
+        mTotalMs += latencyMs;
+        mMaxMs = Math.max(mMaxMs, latencyMs);
+        mLastMs = latencyMs;
+        if (latencyMs >= SLOW_APDU_MS) {
+            mSlowCount++;
+        }
+        return latencyMs;
+    }
+
+    /** Forget the pending requests, e.g. when the RIL queue is cleared. */
+    synchronized void clearPending() {
+        mSentMs.clear();
+    }
+
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    synchronized long getAverageMs() {
+        return (mCount == 0) ? 0 : mTotalMs / mCount;
+    }
+
+    synchronized long getMaxMs() {
+        return mMaxMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "APDUs: " + mCount + ", avg: " + getAverageMs() + " ms, max: " + mMaxMs
+                + " ms, last: " + mLastMs + " ms, slow (>= " + SLOW_APDU_MS + " ms): "
+                + mSlowCount + ", pending: " + mSentMs.size();
+    }
+}
@@ -0,0 +1,103 @@
+package com.android.bluetooth.sap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads complete SAP messages from the RFCOMM input stream.
+ *
+ * A SAP message is a 4 byte header (MsgId, parameter count, 2 reserved bytes) followed by
+ * the parameters, each a 4 byte header (ParamId, reserved, 2 byte length) and a payload
+ * padded to a multiple of 4 bytes. The header and payload of each parameter are read with
+ * one bulk read each into a buffer which is reused for every message, so the parameters can
+ * be parsed from memory afterwards by {@link SapMessage#readMessage(byte[], int)}.
+ *
+ * The buffer is owned by the reader, only use it from the RFCOMM reader thread and only
+ * until the next call to {@link #readFrame()}.
+ */
+class SapFrameReader {
+    static final int HEADER_LENGTH = 4;
+    static final int PARAM_HEADER_LENGTH = 4;
+
+    /* Enough for the APDUs of the max message size we negotiate. A larger buffer is
+     * dropped again once the message it was grown for has been read. */
+    static final int DEFAULT_BUFFER_SIZE = 512;
+    static final int MAX_KEPT_BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream mIs;
+    private byte[] mBuffer = new byte[DEFAULT_BUFFER_SIZE];
+    private int mLength = 0;
+
+    private long mFrameCount = 0;
+    private long mByteCount = 0;
+    private int mMaxFrameLength = 0;
+
+    SapFrameReader(InputStream is) {
+        mIs = is;
+    }
+
+    /**
+     * Blocking read of the next message.
+     * @return the length of the message in {@link #getFrame()}, -1 if the end of the stream
+     *         was reached before a new message started.
+     * @throws IOException in case of a stream error, or if the stream ends within a message
+     */
+    int readFrame() throws IOException {
+        if (mBuffer.length > MAX_KEPT_BUFFER_SIZE) {
+            mBuffer = new byte[DEFAULT_BUFFER_SIZE];
+        }
+        mLength = 0;
+        int msgType = mIs.read();
+        if (msgType == -1) {
+            return -1;
+        }
+        mBuffer[mLength++] = (byte) msgType;
+        fill(HEADER_LENGTH - 1);
+        int paramCount = mBuffer[1] & 0xff;
+        for (int i = 0; i < paramCount; i++) {
+            int paramStart = mLength;
+            fill(PARAM_HEADER_LENGTH);
+            int paramLength = (mBuffer[paramStart + 2] & 0xff) << 8
+                    | (mBuffer[paramStart + 3] & 0xff);
+            fill(paddedLength(paramLength));
+        }
+        mFrameCount++;
+        mByteCount += mLength;
+        mMaxFrameLength = Math.max(mMaxFrameLength, mLength);
+        return mLength;
+    }
+
+    /** The message read by the last call to {@link #readFrame()}. */
+    byte[] getFrame() {
+        return mBuffer;
+    }
+
+    /* Parameter payloads are padded to a 4 byte boundary */
+    static int paddedLength(int length) {
+        return (length + 3) & ~3;
+    }
+
+    /* Append count bytes from the stream to the buffer */
+    private void fill(int count) throws IOException {
+        if (mLength + count > mBuffer.length) {
+            byte[] buffer = new byte[Math.max(mBuffer.length * 2, mLength + count)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+        int end = mLength + count;
+        while (mLength < end) {
+            int read = mIs.read(mBuffer, mLength, end - mLength);
+            if (read == -1) {
+                throw new EOFException("EOS reached within a SAP message");
+            }
+            mLength += read;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "messages: " + mFrameCount + ", bytes: " + mByteCount + ", largest: "
+                + mMaxFrameLength + ", buffer: " + mBuffer.length;
+    }
+}
@@ -4,8 +4,9 @@ import android.hardware.radio.V1_0.ISap;
 import android.hardware.radio.V1_0.SapApduType;
 import android.hardware.radio.V1_0.SapTransferProtocol;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Map;
@@ -16,6 +17,7 @@ import org.android.btsap.SapApi.*;
 import com.google.protobuf.micro.*;
 
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -159,6 +161,8 @@ public class SapMessage {
 
     // Map<rilSerial, RequestType> - HashTable is synchronized
     static Map<Integer, Integer> sOngoingRequests = new Hashtable<Integer, Integer>();
+    // Round trip time of the TRANSFER_APDU_REQs sent to the RIL
+    static final SapApduLatency sApduLatency = new SapApduLatency();
     private boolean mSendToRil = false; // set to true for messages that needs to go to the RIL
     private boolean mClearRilQueue = false; /* set to true for messages that needs to cause the
                                               sOngoingRequests to be cleared. */
@@ -193,6 +197,7 @@ public class SapMessage {
             Log.w(TAG, "Clearing message queue with size: " + numMessages);
             sOngoingRequests.clear();
         }
+        sApduLatency.clearPending();
     }
 
     public static int getNumPendingRilMessages() {
@@ -347,27 +352,28 @@ public class SapMessage {
     }
 
     /**
-     * Construct a SapMessage based on the incoming rfcomm request.
-     * @param requestType The type of the request
-     * @param is the input stream to read the data from
+     * Construct a SapMessage based on an incoming rfcomm request.
+     * @param frame the complete message, as read by {@link SapFrameReader}
+     * @param length the length of the message in frame
      * @return the resulting message, or null if an error occurs
      */
     @SuppressWarnings("unused")
-    public static SapMessage readMessage(int requestType, InputStream is) {
+    public static SapMessage readMessage(byte[] frame, int length) {
+        ByteBuffer buf = ByteBuffer.wrap(frame, 0, length);
+        int requestType = buf.get() & 0xff;
         SapMessage newMessage = new SapMessage(requestType);
 
         /* Read in all the parameters (if any) */
-        int paramCount;
         try {
-            paramCount = is.read();
-            skip(is, 2); // Skip the 2 padding bytes
+            int paramCount = buf.get() & 0xff;
+            buf.getShort(); // Skip the 2 padding bytes
             if(paramCount > 0) {
                 if(VERBOSE) Log.i(TAG, "Parsing message with paramCount: " + paramCount);
-                if(newMessage.parseParameters(paramCount, is) == false)
+                if(newMessage.parseParameters(paramCount, buf) == false)
                     return null;
             }
-        } catch (IOException e) {
-            Log.w(TAG, e);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Truncated message: " + getMsgTypeName(requestType), e);
             return null;
         }
         if(DEBUG) Log.i(TAG, "readMessage() Read message: " + getMsgTypeName(requestType));
@@ -412,173 +418,111 @@ public class SapMessage {
     }
 
     /**
-     * Blocking read of an entire array of data.
-     * @param is the input stream to read from
-     * @param buffer the buffer to read into - the length of the buffer will
-     *        determine how many bytes will be read.
+     * Copy a byte[] parameter out of the message buffer, as the buffer is reused for the
+     * next message.
      */
-    private static void read(InputStream is, byte[] buffer) throws IOException {
-        int bytesToRead = buffer.length;
-        int bytesRead = 0;
-        int tmpBytesRead;
-        while (bytesRead < bytesToRead) {
-            tmpBytesRead = is.read(buffer, bytesRead, bytesToRead-bytesRead);
-            if(tmpBytesRead == -1)
-                throw new IOException("EOS reached while reading a byte array.");
-            else
-                bytesRead += tmpBytesRead;
-        }
+    private static byte[] readArray(ByteBuffer buf, int length) {
+        byte[] value = new byte[length];
+        buf.get(value);
+        return value;
     }
 
     /**
-     * Skip a number of bytes in an InputStream.
-     * @param is the input stream
-     * @param count the number of bytes to skip
-     * @throws IOException In case of reaching EOF or a stream error
+     * Read a single value parameter of 1 or 2 bytes in length.
+     * @return the value, or INVALID_VALUE if the parameter doesn't have the expected length
      */
-    private static void skip(InputStream is, int count) throws IOException {
-        for(int i = 0; i < count; i++) {
-            is.read(); // Do not use the InputStream.skip as it fails for some stream types
+    private static int readValue(ByteBuffer buf, String name, int length,
+            int expectedLength) {
+        if(length != expectedLength) {
+            Log.e(TAG, "Received " + name + " with wrong length: " +
+                    length + " skipping this parameter.");
+            return INVALID_VALUE;
         }
+        return (length == 1) ? buf.get() & 0xff : buf.getShort() & 0xffff;
     }
 
     /**
-     * Read the parameters from the stream and update the relevant members.
-     * This function will ensure that all parameters are read from the stream, even
+     * Read the parameters from the message buffer and update the relevant members.
+     * This function will ensure that all parameters are read from the buffer, even
      * if an error is detected.
      * @param count the number of parameters to read
-     * @param is the input stream
+     * @param buf the message, positioned at the first parameter
      * @return True if all parameters were successfully parsed, False if an error were detected.
-     * @throws IOException
      */
-    private boolean parseParameters(int count, InputStream is) throws IOException {
+    private boolean parseParameters(int count, ByteBuffer buf) {
         int paramId;
         int paramLength;
+        int nextParam;
         boolean success = true;
-        int skipLen = 0;
 
         for(int i = 0; i < count; i++) {
-            paramId = is.read();
-            is.read(); // Skip the reserved byte
-            paramLength = is.read();
-            paramLength = paramLength << 8 | is.read();
-
+            paramId = buf.get() & 0xff;
+            buf.get(); // Skip the reserved byte
+            paramLength = buf.getShort() & 0xffff;
             // As per SAP spec padding should be 0-3 bytes
-            if ((paramLength % 4) != 0)
-                skipLen = 4 - (paramLength % 4);
+            nextParam = buf.position() + SapFrameReader.paddedLength(paramLength);
 
             if(VERBOSE) Log.i(TAG, "parsing paramId: " + paramId + " with length: " + paramLength);
             switch(paramId) {
             case PARAM_MAX_MSG_SIZE_ID:
-                if(paramLength != PARAM_MAX_MSG_SIZE_LENGTH) {
-                    Log.e(TAG, "Received PARAM_MAX_MSG_SIZE with wrong length: " +
-                            paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
-                    success = false;
-                } else {
-                    mMaxMsgSize = is.read();
-                    mMaxMsgSize = mMaxMsgSize << 8 | is.read();
-                    skip(is, 4 - PARAM_MAX_MSG_SIZE_LENGTH);
-                }
+                mMaxMsgSize = readValue(buf, "PARAM_MAX_MSG_SIZE", paramLength,
+                        PARAM_MAX_MSG_SIZE_LENGTH);
+                success &= mMaxMsgSize != INVALID_VALUE;
                 break;
             case PARAM_COMMAND_APDU_ID:
-                mApdu = new byte[paramLength];
-                read(is, mApdu);
-                skip(is, skipLen);
+                mApdu = readArray(buf, paramLength);
                 break;
             case PARAM_COMMAND_APDU7816_ID:
-                mApdu7816 = new byte[paramLength];
-                read(is, mApdu7816);
-                skip(is, skipLen);
+                mApdu7816 = readArray(buf, paramLength);
                 break;
             case PARAM_TRANSPORT_PROTOCOL_ID:
-                if(paramLength != PARAM_TRANSPORT_PROTOCOL_LENGTH) {
-                    Log.e(TAG, "Received PARAM_TRANSPORT_PROTOCOL with wrong length: " +
-                            paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
-                    success = false;
-                } else {
-                    mTransportProtocol = is.read();
-                    skip(is, 4 - PARAM_TRANSPORT_PROTOCOL_LENGTH);
-                }
+                mTransportProtocol = readValue(buf, "PARAM_TRANSPORT_PROTOCOL", paramLength,
+                        PARAM_TRANSPORT_PROTOCOL_LENGTH);
+                success &= mTransportProtocol != INVALID_VALUE;
                 break;
             case PARAM_CONNECTION_STATUS_ID:
                 // not needed for server role, but used for module test
-                if(paramLength != PARAM_CONNECTION_STATUS_LENGTH) {
-                    Log.e(TAG, "Received PARAM_CONNECTION_STATUS with wrong length: " +
-                            paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
-                    success = false;
-                } else {
-                    mConnectionStatus = is.read();
-                    skip(is, 4 - PARAM_CONNECTION_STATUS_LENGTH);
-                }
+                mConnectionStatus = readValue(buf, "PARAM_CONNECTION_STATUS", paramLength,
+                        PARAM_CONNECTION_STATUS_LENGTH);
+                success &= mConnectionStatus != INVALID_VALUE;
                 break;
             case PARAM_CARD_READER_STATUS_ID:
                 // not needed for server role, but used for module test
-                if(paramLength != PARAM_CARD_READER_STATUS_LENGTH) {
-                    Log.e(TAG, "Received PARAM_CARD_READER_STATUS with wrong length: " +
-                            paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
-                    success = false;
-                } else {
-                    mCardReaderStatus = is.read();
-                    skip(is, 4 - PARAM_CARD_READER_STATUS_LENGTH);
-                }
+                mCardReaderStatus = readValue(buf, "PARAM_CARD_READER_STATUS", paramLength,
+                        PARAM_CARD_READER_STATUS_LENGTH);
+                success &= mCardReaderStatus != INVALID_VALUE;
                 break;
             case PARAM_STATUS_CHANGE_ID:
                 // not needed for server role, but used for module test
-                if(paramLength != PARAM_STATUS_CHANGE_LENGTH) {
-                    Log.e(TAG, "Received PARAM_STATUS_CHANGE with wrong length: " +
-                            paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
-                    success = false;
-                } else {
-                    mStatusChange = is.read();
-                    skip(is, 4 - PARAM_STATUS_CHANGE_LENGTH);
-                }
+                mStatusChange = readValue(buf, "PARAM_STATUS_CHANGE", paramLength,
+                        PARAM_STATUS_CHANGE_LENGTH);
+                success &= mStatusChange != INVALID_VALUE;
                 break;
             case PARAM_RESULT_CODE_ID:
                 // not needed for server role, but used for module test
-                if(paramLength != PARAM_RESULT_CODE_LENGTH) {
-                    Log.e(TAG, "Received PARAM_RESULT_CODE with wrong length: " +
-                            paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
-                    success = false;
-                } else {
-                    mResultCode = is.read();
-                    skip(is, 4 - PARAM_RESULT_CODE_LENGTH);
-                }
+                mResultCode = readValue(buf, "PARAM_RESULT_CODE", paramLength,
+                        PARAM_RESULT_CODE_LENGTH);
+                success &= mResultCode != INVALID_VALUE;
                 break;
             case PARAM_DISCONNECT_TYPE_ID:
                 // not needed for server role, but used for module test
-                if(paramLength != PARAM_DISCONNECT_TYPE_LENGTH) {
-                    Log.e(TAG, "Received PARAM_DISCONNECT_TYPE_ID with wrong length: " +
-                            paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
-                    success = false;
-                } else {
-                    mDisconnectionType = is.read();
-                    skip(is, 4 - PARAM_DISCONNECT_TYPE_LENGTH);
-                }
+                mDisconnectionType = readValue(buf, "PARAM_DISCONNECT_TYPE_ID", paramLength,
+                        PARAM_DISCONNECT_TYPE_LENGTH);
+                success &= mDisconnectionType != INVALID_VALUE;
                 break;
             case PARAM_RESPONSE_APDU_ID:
                 // not needed for server role, but used for module test
-                mApduResp = new byte[paramLength];
-                read(is, mApduResp);
-                skip(is, skipLen);
+                mApduResp = readArray(buf, paramLength);
                 break;
             case PARAM_ATR_ID:
                 // not needed for server role, but used for module test
-                mAtr = new byte[paramLength];
-                read(is, mAtr);
-                skip(is, skipLen);
+                mAtr = readArray(buf, paramLength);
                 break;
             default:
                 Log.e(TAG, "Received unknown parameter ID: " + paramId + " length: " +
                         paramLength + " skipping this parameter.");
-                skip(is, paramLength + skipLen);
             }
+            buf.position(nextParam);
         }
         return success;
     }
@@ -724,7 +668,10 @@ public class SapMessage {
     public void send(ISap sapProxy) throws RemoteException, RuntimeException {
         int rilSerial = sNextSerial.getAndIncrement();
 
-        Log.e(TAG, "callISapReq: called for mMsgType " + mMsgType + " rilSerial " + rilSerial);
+        if (VERBOSE) {
+            Log.d(TAG, "callISapReq: called for mMsgType " + mMsgType + " rilSerial "
+                    + rilSerial);
+        }
 
         /* Update the ongoing requests queue */
         if (mClearRilQueue == true) {
@@ -758,6 +705,7 @@ public class SapMessage {
                 Log.e(TAG, "Missing Apdu parameter in TRANSFER_APDU_REQ");
                 throw new IllegalArgumentException();
             }
+            sApduLatency.onApduSent(rilSerial, SystemClock.elapsedRealtime());
             sapProxy.apduReq(rilSerial, type, command);
             break;
         }
@@ -20,6 +20,7 @@ import android.os.Handler;
 import android.os.HwBinder;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class SapRilReceiver {
@@ -105,7 +106,9 @@ public class SapRilReceiver {
         }
 
         public void apduResponse(int token, int resultCode, ArrayList<Byte> apduRsp) {
-            Log.d(TAG, "apduResponse: token " + token);
+            long latencyMs =
+                    SapMessage.sApduLatency.onApduResponse(token, SystemClock.elapsedRealtime());
+            Log.d(TAG, "apduResponse: token " + token + " latencyMs " + latencyMs);
             SapService.notifyUpdateWakeLock(mSapServiceHandler);
             SapMessage sapMessage = new SapMessage(SapMessage.ID_TRANSFER_APDU_RESP);
             sapMessage.setResultCode(resultCode);
@@ -61,6 +61,8 @@ public class SapServer extends Thread implements Callback {
     /* RFCOMM socket I/O streams */
     private BufferedOutputStream mRfcommOut = null;
     private BufferedInputStream mRfcommIn = null;
+    /* Reads whole SAP messages from mRfcommIn, only used by the RFCOMM reader thread */
+    private SapFrameReader mFrameReader = null;
     /* References to the SapRilReceiver object */
     private SapRilReceiver mRilBtReceiver = null;
     /* The message handler members */
@@ -111,6 +113,7 @@ public class SapServer extends Thread implements Callback {
         /* Open in- and output streams */
         mRfcommIn = new BufferedInputStream(inStream);
         mRfcommOut = new BufferedOutputStream(outStream);
+        mFrameReader = new SapFrameReader(mRfcommIn);
 
         /* Register for phone state change and the RIL cfm message */
         IntentFilter filter = new IntentFilter();
@@ -322,14 +325,16 @@ public class SapServer extends Thread implements Callback {
             boolean done = false;
             while (!done) {
                 if(VERBOSE) Log.i(TAG, "Waiting for incomming RFCOMM message...");
-                int requestType = mRfcommIn.read();
+                int frameLength = mFrameReader.readFrame();
                 if (VERBOSE) Log.i(TAG, "RFCOMM message read...");
-                if(requestType == -1) {
-                    if (VERBOSE) Log.i(TAG, "requestType == -1");
+                if(frameLength == -1) {
+                    if (VERBOSE) Log.i(TAG, "frameLength == -1");
                     done = true; // EOF reached
                 } else {
-                    if (VERBOSE) Log.i(TAG, "requestType != -1");
-                    SapMessage msg = SapMessage.readMessage(requestType, mRfcommIn);
+                    byte[] frame = mFrameReader.getFrame();
+                    int requestType = frame[0] & 0xff;
+                    if (VERBOSE) Log.i(TAG, "requestType: " + requestType);
+                    SapMessage msg = SapMessage.readMessage(frame, frameLength);
                     /* notify about an incoming message from the BT Client */
                     SapService.notifyUpdateWakeLock(mSapServiceHandler);
                     if(msg != null && mState != SAP_STATE.DISCONNECTING)
@@ -433,6 +438,7 @@ public class SapServer extends Thread implements Callback {
             if (state != BluetoothAdapter.STATE_ON) {
                 mDeinitSignal.countDown();
             }
+            if (DEBUG) Log.d(TAG, "RFCOMM " + mFrameReader + ", " + SapMessage.sApduLatency);
             // Do cleanup even if an exception occurs
             stopDisconnectTimer();
             /* In case of e.g. a RFCOMM close while connected:
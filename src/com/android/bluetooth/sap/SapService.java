@@ -32,6 +32,7 @@ import android.util.Log;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfilePriorityStore;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.ProfileService.IProfileServiceBinder;
 import com.android.bluetooth.sdp.SdpManager;
@@ -543,17 +544,15 @@ public class SapService extends ProfileService {
     }
 
     public boolean setPriority(BluetoothDevice device, int priority) {
-        Settings.Global.putInt(getContentResolver(),
-            Settings.Global.getBluetoothSapPriorityKey(device.getAddress()),
-            priority);
+        ProfilePriorityStore.getInstance(this).setPriority(
+                Settings.Global.getBluetoothSapPriorityKey(device.getAddress()), priority);
         if (DEBUG) Log.d(TAG, "Saved priority " + device + " = " + priority);
         return true;
     }
 
     public int getPriority(BluetoothDevice device) {
-        int priority = Settings.Global.getInt(getContentResolver(),
-            Settings.Global.getBluetoothSapPriorityKey(device.getAddress()),
-            BluetoothProfile.PRIORITY_UNDEFINED);
+        int priority = ProfilePriorityStore.getInstance(this).getPriority(
+                Settings.Global.getBluetoothSapPriorityKey(device.getAddress()));
         return priority;
     }
 
@@ -612,6 +611,15 @@ public class SapService extends ProfileService {
         return true;
     }
 
+    @Override
+    public void dump(StringBuilder sb) {
+        super.dump(sb);
+        println(sb, "mState: " + mState);
+        println(sb, "mRemoteDevice: " + mRemoteDevice);
+        println(sb, "pending RIL requests: " + SapMessage.getNumPendingRilMessages());
+        println(sb, "APDU round trip: " + SapMessage.sApduLatency);
+    }
+
     private void setUserTimeoutAlarm(){
         if (DEBUG) Log.d(TAG, "setUserTimeOutAlarm()");
         cancelUserTimeoutAlarm();
@@ -34,6 +34,9 @@ import com.android.bluetooth.btservice.AdapterService;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 public class SdpManager {
 
@@ -71,6 +74,9 @@ public class SdpManager {
     static boolean mSearchInProgress = false;
     static Object mTrackerLock = new Object();
 
+    /* Results of completed searches, see SdpRecordCache. */
+    private static final SdpRecordCache sSdpRecordCache = SdpRecordCache.getInstance();
+
     /* The timeout to wait for reply from native. Should never fire. */
     private static final int SDP_INTENT_DELAY = 11000;
     private static final int MESSAGE_SDP_INTENT = 2;
@@ -113,17 +119,24 @@ public class SdpManager {
     private class SdpSearchInstance {
         private final BluetoothDevice mDevice;
         private final ParcelUuid mUuid;
+        private final String mKey;
+        private final ArrayList<Parcelable> mRecords = new ArrayList<Parcelable>();
         private int mStatus = 0;
         private boolean mSearching;
+        private boolean mCacheable = true;
         /* TODO: If we change the API to use another mechanism than intents for
          *       delivering the results, this would be the place to keep a list
          *       of the objects to deliver the results to. */
         public SdpSearchInstance(int status, BluetoothDevice device, ParcelUuid uuid){
             this.mDevice = device;
             this.mUuid = uuid;
+            this.mKey = SdpRecordCache.key(device.getAddress(), uuid);
             this.mStatus = status;
             mSearching = true;
         }
+        public String getKey() {
+            return mKey;
+        }
         public BluetoothDevice getDevice() {
             return mDevice;
         }
@@ -153,31 +166,58 @@ public class SdpManager {
         public boolean isSearching() {
             return mSearching;
         }
+
+        /* Collect the result of one callback. A search is only cached if every
+         * callback delivered a record and the search did not time out. */
+        public void addResult(Parcelable record) {
+            if (record == null || mStatus != AbstractionLayer.BT_STATUS_SUCCESS) {
+                mCacheable = false;
+                return;
+            }
+            mRecords.add(record);
+        }
+
+        public void setTimedOut() {
+            mCacheable = false;
+        }
+
+        public boolean isCacheable() {
+            return mCacheable && !mRecords.isEmpty();
+        }
+
+        public List<Parcelable> getRecords() {
+            return mRecords;
+        }
     }
 
 
-    /* We wrap the ArrayList class to decorate with functionality to
-     * find an instance based on UUID AND device address.
-     * As we use a mix of byte[] and object instances, this is more
-     * efficient than implementing comparable. */
+    /* Pending and ongoing searches, indexed by device address AND UUID.
+     * Iteration order is the order the searches were requested in, and a
+     * request for a search that is already queued is merged into it. */
     class SdpSearchTracker {
-        private final ArrayList<SdpSearchInstance> list = new ArrayList<SdpSearchInstance>();
+        private final LinkedHashMap<String, SdpSearchInstance> mInstances =
+                new LinkedHashMap<String, SdpSearchInstance>();
 
         void clear() {
-            list.clear();
+            mInstances.clear();
         }
 
         boolean add(SdpSearchInstance inst){
-            return list.add(inst);
+            if (mInstances.containsKey(inst.getKey())) {
+                return false;
+            }
+            mInstances.put(inst.getKey(), inst);
+            return true;
         }
 
         boolean remove(SdpSearchInstance inst) {
-            return list.remove(inst);
+            return mInstances.remove(inst.getKey()) != null;
         }
 
         SdpSearchInstance getNext() {
-            if(list.size() > 0) {
-                return list.get(0);
+            Iterator<SdpSearchInstance> it = mInstances.values().iterator();
+            if (it.hasNext()) {
+                return it.next();
             }
             return null;
         }
@@ -185,24 +225,17 @@ public class SdpManager {
         SdpSearchInstance getSearchInstance(byte[] address, byte[] uuidBytes) {
             String addressString = Utils.getAddressStringFromByte(address);
             ParcelUuid uuid = Utils.byteArrayToUuid(uuidBytes)[0];
-            for (SdpSearchInstance inst : list) {
-                if (inst.getDevice().getAddress().equals(addressString)
-                        && inst.getUuid().equals(uuid)) {
-                    return inst;
-                }
-            }
-            return null;
+            return mInstances.get(SdpRecordCache.key(addressString, uuid));
         }
 
         boolean isSearching(BluetoothDevice device, ParcelUuid uuid) {
-            String addressString = device.getAddress();
-            for (SdpSearchInstance inst : list) {
-                if (inst.getDevice().getAddress().equals(addressString)
-                        && inst.getUuid().equals(uuid)) {
-                    return inst.isSearching();
-                }
-            }
-            return false;
+            SdpSearchInstance inst =
+                    mInstances.get(SdpRecordCache.key(device.getAddress(), uuid));
+            return inst != null && inst.isSearching();
+        }
+
+        int size() {
+            return mInstances.size();
         }
     }
 
@@ -417,6 +450,16 @@ public class SdpManager {
             Log.e(TAG, "Native not initialized!");
             return;
         }
+        List<Parcelable> records = sSdpRecordCache.get(
+                SdpRecordCache.key(device.getAddress(), uuid));
+        if (records != null) {
+            if (D) Log.d(TAG, "sdpSearch: " + records.size() + " cached record(s) for UUID: "
+                    + uuid);
+            for (Parcelable record : records) {
+                sendSdpIntent(device, uuid, AbstractionLayer.BT_STATUS_SUCCESS, record);
+            }
+            return;
+        }
         synchronized (mTrackerLock) {
             if (sSdpSearchTracker.isSearching(device, uuid)) {
                 /* Search already in progress */
@@ -457,26 +500,45 @@ public class SdpManager {
             Parcelable record, boolean moreResults) {
 
         inst.stopSearch();
+        inst.addResult(record);
+
+        sendSdpIntent(inst.getDevice(), inst.getUuid(), inst.getStatus(), record);
+
+        if(moreResults == false) {
+            // Records are only kept across connections for bonded devices
+            if (inst.isCacheable()
+                    && inst.getDevice().getBondState() == BluetoothDevice.BOND_BONDED) {
+                sSdpRecordCache.put(inst.getKey(), inst.getRecords());
+            }
+            //Remove the outstanding UUID request
+            sSdpSearchTracker.remove(inst);
+            mSearchInProgress = false;
+            startSearch();
+        }
+    }
 
+    private void sendSdpIntent(BluetoothDevice device, ParcelUuid uuid, int status,
+            Parcelable record) {
         Intent intent = new Intent(BluetoothDevice.ACTION_SDP_RECORD);
 
-        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, inst.getDevice());
-        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, inst.getStatus());
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, status);
         if (record != null)  intent.putExtra(BluetoothDevice.EXTRA_SDP_RECORD, record);
-        intent.putExtra(BluetoothDevice.EXTRA_UUID, inst.getUuid());
+        intent.putExtra(BluetoothDevice.EXTRA_UUID, uuid);
         /* TODO:  BLUETOOTH_ADMIN_PERM was private... change to callback interface.
          * Keep in mind that the MAP client needs to use this as well,
          * hence to make it call-backs, the MAP client profile needs to be
          * part of the Bluetooth APK. */
         intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
         sAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_ADMIN_PERM);
+    }
 
-        if(moreResults == false) {
-            //Remove the outstanding UUID request
-            sSdpSearchTracker.remove(inst);
-            mSearchInProgress = false;
-            startSearch();
+    public void dump(StringBuilder sb) {
+        synchronized (mTrackerLock) {
+            sb.append("  SDP searches pending: " + sSdpSearchTracker.size()
+                    + ", in progress: " + mSearchInProgress + "\n");
         }
+        sb.append("  SDP records cached: " + sSdpRecordCache.size() + "\n");
     }
 
     private final Handler mHandler = new Handler() {
@@ -487,6 +549,7 @@ public class SdpManager {
                 SdpSearchInstance msgObj = (SdpSearchInstance)msg.obj;
                 Log.w(TAG, "Search timedout for UUID " + msgObj.getUuid());
                 synchronized (mTrackerLock) {
+                    msgObj.setTimedOut();
                     sendSdpIntent(msgObj, null, false);
                 }
                 break;
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.sdp;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of completed SDP searches of bonded devices, keyed by remote address and service UUID.
+ *
+ * Entries are kept across connections so that profiles connecting to a known device skip the
+ * SDP round trip. They expire after {@link #TTL_MILLIS} and are dropped explicitly when the
+ * remote device is unbonded or reports a new set of UUIDs. The least recently used entry is
+ * evicted once {@link #MAX_ENTRIES} is reached.
+ *
+ * A device may still change a record without changing its UUIDs, e.g. move a service to
+ * another channel. Profiles report failed connections through {@link #onConnectFailed}, which
+ * drops the entry if the search was answered from the cache, so the next attempt searches
+ * again.
+ */
+public class SdpRecordCache {
+    private static final String TAG = "SdpRecordCache";
+    static final long TTL_MILLIS = 60 * 60 * 1000; // 1 hour
+    static final int MAX_ENTRIES = 64;
+
+    // Kept for the lifetime of the process so that records survive adapter restarts.
+    private static final SdpRecordCache sInstance = new SdpRecordCache();
+
+    private static class Entry {
+        final List<Parcelable> mRecords;
+        final long mTimestamp;
+        // Whether a search was answered with these records
+        boolean mServed;
+
+        Entry(List<Parcelable> records, long timestamp) {
+            mRecords = records;
+            mTimestamp = timestamp;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    public static SdpRecordCache getInstance() {
+        return sInstance;
+    }
+
+    static String key(String address, ParcelUuid uuid) {
+        return address + "/" + uuid;
+    }
+
+    /**
+     * @return the records found by the last successful search, or null if there is no valid
+     *         entry for this key.
+     */
+    List<Parcelable> get(String key) {
+        return get(key, SystemClock.elapsedRealtime());
+    }
+
+    synchronized List<Parcelable> get(String key, long nowMs) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (nowMs - entry.mTimestamp > TTL_MILLIS) {
+            mEntries.remove(key);
+            return null;
+        }
+        entry.mServed = true;
+        return entry.mRecords;
+    }
+
+    void put(String key, List<Parcelable> records) {
+        put(key, records, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void put(String key, List<Parcelable> records, long nowMs) {
+        mEntries.put(key, new Entry(new ArrayList<Parcelable>(records), nowMs));
+    }
+
+    /**
+     * Called by a profile which failed to connect to a service with the record its SDP search
+     * returned. If that record came from the cache it may be stale, and is dropped.
+     */
+    public synchronized void onConnectFailed(BluetoothDevice device, ParcelUuid uuid) {
+        String key = key(device.getAddress(), uuid);
+        Entry entry = mEntries.get(key);
+        if (entry == null || !entry.mServed) return;
+
+        Log.w(TAG, "Connecting to " + uuid + " failed, dropping the cached record");
+        mEntries.remove(key);
+    }
+
+    /**
+     * Drop every entry belonging to a device. Called when the device is unbonded or reports a
+     * new set of UUIDs.
+     */
+    public synchronized void invalidate(BluetoothDevice device) {
+        String prefix = device.getAddress() + "/";
+        Iterator<String> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,46 @@
+package com.android.bluetooth.avrcp;
+
+import android.media.MediaDescription;
+import android.media.session.MediaSession;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/** Unit tests for {@link AddressedMediaPlayer}. */
+public class AddressedMediaPlayerTest extends AndroidTestCase {
+    private static List<MediaSession.QueueItem> queue(int size) {
+        List<MediaSession.QueueItem> items = new ArrayList<MediaSession.QueueItem>();
+        for (int i = 0; i < size; i++) {
+            MediaDescription desc =
+                    new MediaDescription.Builder().setMediaId("id" + i).setTitle("t" + i).build();
+            items.add(new MediaSession.QueueItem(desc, i));
+        }
+        return items;
+    }
+
+    public void testAddressedMediaPlayer_queueFetchedOnlyWhenChanged() {
+        AvrcpMediaRspInterface mockRsp = mock(AvrcpMediaRspInterface.class);
+        MediaController mockController = mock(MediaController.class);
+        when(mockController.getQueue()).thenReturn(queue(3));
+        AddressedMediaPlayer player = new AddressedMediaPlayer(mockRsp);
+
+        player.updateNowPlayingList(mockController);
+        player.updateNowPlayingList(mockController);
+        verify(mockController, times(1)).getQueue();
+        verify(mockRsp, times(1))
+                .nowPlayingChangedRsp(AvrcpConstants.NOTIFICATION_TYPE_CHANGED, null);
+
+        when(mockController.getQueue()).thenReturn(queue(5));
+        player.onQueueChanged();
+        assertEquals(5, player.updateNowPlayingList(mockController).size());
+        verify(mockController, times(2)).getQueue();
+        verify(mockRsp, times(2))
+                .nowPlayingChangedRsp(AvrcpConstants.NOTIFICATION_TYPE_CHANGED, null);
+    }
+}
@@ -0,0 +1,58 @@
+package com.android.bluetooth.avrcp;
+
+import android.test.AndroidTestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** Unit tests for {@link AvrcpAttributeCache}. */
+public class AvrcpAttributeCacheTest extends AndroidTestCase {
+    private static String[] values(String title, String artist) {
+        String[] values = new String[AvrcpConstants.ATTRID_COVER_ART];
+        values[AvrcpConstants.ATTRID_TITLE] = title;
+        values[AvrcpConstants.ATTRID_ARTIST] = artist;
+        return values;
+    }
+
+    private static String valueOf(AvrcpAttributeCache.Entry entry, int attrId) {
+        return new String(Arrays.copyOfRange(entry.mBlob, entry.mOffsets[attrId],
+                entry.mOffsets[attrId + 1]), StandardCharsets.UTF_8);
+    }
+
+    public void testAvrcpAttributeCache_encodesValues() {
+        AvrcpAttributeCache cache = new AvrcpAttributeCache(4);
+
+        AvrcpAttributeCache.Entry entry = cache.put(1, 0, values("Título", null));
+
+        assertTrue(entry.has(AvrcpConstants.ATTRID_TITLE));
+        assertFalse(entry.has(AvrcpConstants.ATTRID_ARTIST));
+        assertFalse(entry.has(AvrcpConstants.ATTRID_COVER_ART));
+        assertEquals("Título", valueOf(entry, AvrcpConstants.ATTRID_TITLE));
+        assertTrue(entry.hasAll(new int[] {AvrcpConstants.ATTRID_TITLE}, 1));
+        assertFalse(entry.hasAll(
+                new int[] {AvrcpConstants.ATTRID_TITLE, AvrcpConstants.ATTRID_ARTIST}, 2));
+    }
+
+    public void testAvrcpAttributeCache_outdatedVersion() {
+        AvrcpAttributeCache cache = new AvrcpAttributeCache(4);
+
+        cache.put(1, 0, values("a", "b"));
+
+        assertNotNull(cache.get(1, 0));
+        assertNull(cache.get(1, 1));
+        assertNull(cache.get(2, 0));
+    }
+
+    public void testAvrcpAttributeCache_evictsLeastRecentlyUsed() {
+        AvrcpAttributeCache cache = new AvrcpAttributeCache(2);
+
+        cache.put(1, 0, values("a", "b"));
+        cache.put(2, 0, values("c", "d"));
+        cache.get(1, 0);
+        cache.put(3, 0, values("e", "f"));
+
+        assertNotNull(cache.get(1, 0));
+        assertNull(cache.get(2, 0));
+        assertNotNull(cache.get(3, 0));
+    }
+}
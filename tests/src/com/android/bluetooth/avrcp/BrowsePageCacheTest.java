@@ -0,0 +1,97 @@
+package com.android.bluetooth.avrcp;
+
+import android.media.MediaDescription;
+import android.media.browse.MediaBrowser;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Unit tests for {@link BrowsePageCache}. */
+public class BrowsePageCacheTest extends AndroidTestCase {
+    private static final String PLAYER = "com.example.player";
+
+    private static List<MediaBrowser.MediaItem> page(int size) {
+        List<MediaBrowser.MediaItem> items = new ArrayList<MediaBrowser.MediaItem>();
+        for (int i = 0; i < size; i++) {
+            MediaDescription desc = new MediaDescription.Builder().setMediaId("id" + i).build();
+            items.add(new MediaBrowser.MediaItem(desc, MediaBrowser.MediaItem.FLAG_PLAYABLE));
+        }
+        return items;
+    }
+
+    public void testBrowsePageCache_sizeKnownAfterLastPage() {
+        BrowsePageCache cache = new BrowsePageCache();
+
+        cache.putPage(PLAYER, "root", 0, page(BrowsePageCache.PAGE_SIZE), 0);
+        assertEquals(-1, cache.getSize(PLAYER, "root", 0));
+
+        cache.putPage(PLAYER, "root", 1, page(5), 0);
+        assertEquals(BrowsePageCache.PAGE_SIZE + 5, cache.getSize(PLAYER, "root", 0));
+        assertEquals(-1, cache.getSize(PLAYER, "root", BrowsePageCache.FOLDER_MAX_AGE_MS + 1));
+        assertEquals(-1, cache.getSize("com.example.other", "root", 0));
+    }
+
+    public void testBrowsePageCache_keepsRecentPages() {
+        BrowsePageCache cache = new BrowsePageCache();
+
+        for (int i = 0; i <= BrowsePageCache.PAGES_PER_FOLDER; i++) {
+            cache.putPage(PLAYER, "root", i, page(BrowsePageCache.PAGE_SIZE), 0);
+        }
+
+        assertNull(cache.getPage(PLAYER, "root", 0, 0));
+        assertNotNull(cache.getPage(PLAYER, "root", BrowsePageCache.PAGES_PER_FOLDER, 0));
+    }
+
+    public void testBrowsePageCache_putFolderKeepsFirstPages() {
+        BrowsePageCache cache = new BrowsePageCache();
+        int size = (BrowsePageCache.PAGES_PER_FOLDER + 1) * BrowsePageCache.PAGE_SIZE + 7;
+        cache.putPage(PLAYER, "root", BrowsePageCache.PAGES_PER_FOLDER, page(3), 0);
+
+        cache.putFolder(PLAYER, "root", page(size), 1000);
+
+        assertEquals(size, cache.getSize(PLAYER, "root", 1000));
+        List<MediaBrowser.MediaItem> first = cache.getPage(PLAYER, "root", 0, 1000);
+        assertEquals(BrowsePageCache.PAGE_SIZE, first.size());
+        assertEquals("id0", first.get(0).getMediaId());
+        assertEquals("id" + BrowsePageCache.PAGE_SIZE, cache.getPage(PLAYER, "root", 1, 1000)
+                .get(0).getMediaId());
+        // Pages past the first ones are left for the remote to ask for
+        assertNull(cache.getPage(PLAYER, "root", BrowsePageCache.PAGES_PER_FOLDER, 1000));
+    }
+
+    public void testBrowsePageCache_putFolderEmpty() {
+        BrowsePageCache cache = new BrowsePageCache();
+
+        cache.putFolder(PLAYER, "root", page(0), 0);
+
+        assertEquals(0, cache.getSize(PLAYER, "root", 0));
+        assertEquals(0, cache.getPage(PLAYER, "root", 0, 0).size());
+        assertNull(cache.getPage(PLAYER, "root", 1, 0));
+    }
+
+    public void testBrowsePageCache_setSizeKeepsFirstPages() {
+        BrowsePageCache cache = new BrowsePageCache();
+        cache.putPage(PLAYER, "root", 0, page(BrowsePageCache.PAGE_SIZE), 0);
+
+        cache.setSize(PLAYER, "root", 1234, 10);
+
+        assertEquals(1234, cache.getSize(PLAYER, "root", 10));
+        assertNotNull(cache.getPage(PLAYER, "root", 0, 10));
+        // The folder is as old as its first page
+        assertEquals(-1, cache.getSize(PLAYER, "root", BrowsePageCache.FOLDER_MAX_AGE_MS + 1));
+    }
+
+    public void testBrowsePageCache_pagesExpireWithSize() {
+        BrowsePageCache cache = new BrowsePageCache();
+        cache.putFolder(PLAYER, "root", page(3), 0);
+
+        // A page loaded again later doesn't keep the folder alive
+        cache.putPage(PLAYER, "root", 0, page(3), BrowsePageCache.FOLDER_MAX_AGE_MS);
+        assertNotNull(cache.getPage(PLAYER, "root", 0, BrowsePageCache.FOLDER_MAX_AGE_MS));
+        long expired = BrowsePageCache.FOLDER_MAX_AGE_MS + 1;
+
+        assertNull(cache.getPage(PLAYER, "root", 0, expired));
+        assertEquals(-1, cache.getSize(PLAYER, "root", expired));
+    }
+}
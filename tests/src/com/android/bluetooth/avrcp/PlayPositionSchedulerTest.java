@@ -0,0 +1,59 @@
+package com.android.bluetooth.avrcp;
+
+import android.media.session.PlaybackState;
+import android.test.AndroidTestCase;
+
+/** Unit tests for {@link PlayPositionScheduler}. */
+public class PlayPositionSchedulerTest extends AndroidTestCase {
+    // Without a position update time, the time the state was received is used
+    private static PlaybackState state(int state, long position, float speed) {
+        return state(state, position, speed, 0);
+    }
+
+    private static PlaybackState state(int state, long position, float speed, long updateTime) {
+        return new PlaybackState.Builder().setState(state, position, speed, updateTime).build();
+    }
+
+    public void testPlayPositionScheduler_extrapolatesWhilePlaying() {
+        PlaybackState playing = state(PlaybackState.STATE_PLAYING, 10000, 1.0f);
+        PlaybackState paused = state(PlaybackState.STATE_PAUSED, 10000, 0.0f);
+
+        assertEquals(12000, PlayPositionScheduler.extrapolatePosition(playing, 1000, 3000));
+        assertEquals(10000, PlayPositionScheduler.extrapolatePosition(paused, 1000, 3000));
+        assertEquals(PlaybackState.PLAYBACK_POSITION_UNKNOWN,
+                PlayPositionScheduler.extrapolatePosition(
+                        state(PlaybackState.STATE_PLAYING,
+                                PlaybackState.PLAYBACK_POSITION_UNKNOWN, 1.0f), 1000, 3000));
+    }
+
+    public void testPlayPositionScheduler_dropsRestatedPosition() {
+        PlaybackState current = state(PlaybackState.STATE_PLAYING, 10000, 1.0f);
+
+        assertTrue(PlayPositionScheduler.isRedundant(current, 1000,
+                state(PlaybackState.STATE_PLAYING, 12100, 1.0f), 3000));
+        // Seek
+        assertFalse(PlayPositionScheduler.isRedundant(current, 1000,
+                state(PlaybackState.STATE_PLAYING, 30000, 1.0f), 3000));
+        // Pause
+        assertFalse(PlayPositionScheduler.isRedundant(current, 1000,
+                state(PlaybackState.STATE_PAUSED, 12000, 0.0f), 3000));
+    }
+
+    public void testPlayPositionScheduler_usesPositionUpdateTime() {
+        PlaybackState current = state(PlaybackState.STATE_PLAYING, 10000, 1.0f, 1000);
+
+        // Sampled at 2000 but received at 3000, the position moved on by 1 s only
+        assertTrue(PlayPositionScheduler.isRedundant(current, 1500,
+                state(PlaybackState.STATE_PLAYING, 11000, 1.0f, 2000), 3000));
+        // Same position as before but sampled 2 s later: the player stalled
+        assertFalse(PlayPositionScheduler.isRedundant(current, 1500,
+                state(PlaybackState.STATE_PLAYING, 10000, 1.0f, 3000), 3000));
+    }
+
+    public void testPlayPositionScheduler_holdOffWithinInterval() {
+        assertEquals(0, PlayPositionScheduler.getHoldOffMs(-1, 1000, 5000));
+        assertEquals(0, PlayPositionScheduler.getHoldOffMs(4000, 0, 5000));
+        assertEquals(0, PlayPositionScheduler.getHoldOffMs(4000, 1000, 5000));
+        assertEquals(700, PlayPositionScheduler.getHoldOffMs(4700, 1000, 5000));
+    }
+}
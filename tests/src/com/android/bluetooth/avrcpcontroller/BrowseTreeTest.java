@@ -0,0 +1,86 @@
+package com.android.bluetooth.avrcpcontroller;
+
+import android.media.MediaDescription;
+import android.media.browse.MediaBrowser.MediaItem;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Unit tests for {@link BrowseTree}. */
+public class BrowseTreeTest extends AndroidTestCase {
+    private BrowseTree mTree;
+
+    @Override
+    protected void setUp() {
+        mTree = new BrowseTree();
+        mTree.init();
+    }
+
+    private static List<MediaItem> items(String prefix, int count) {
+        List<MediaItem> items = new ArrayList<MediaItem>();
+        for (int i = 0; i < count; i++) {
+            MediaDescription desc = new MediaDescription.Builder().setMediaId(prefix + i).build();
+            items.add(new MediaItem(desc, MediaItem.FLAG_BROWSABLE));
+        }
+        return items;
+    }
+
+    public void testBrowseTree_leftFolderStaysCached() {
+        mTree.refreshChildren(BrowseTree.ROOT, items("folder", 2));
+        mTree.refreshChildren("folder0", items("song", 10));
+
+        assertTrue(mTree.setCurrentBrowsedFolder("folder0"));
+        assertTrue(mTree.setCurrentBrowsedFolder(BrowseTree.ROOT));
+
+        BrowseTree.BrowseNode folder = mTree.findBrowseNodeByID("folder0");
+        assertTrue(folder.isCached());
+        assertEquals(10, folder.getChildren().size());
+    }
+
+    public void testBrowseTree_leastRecentlyUsedFolderEvicted() {
+        int half = BrowseTree.MAX_CACHED_ITEMS / 2 - 10;
+        mTree.refreshChildren(BrowseTree.ROOT, items("folder", 3));
+        mTree.refreshChildren("folder0", items("a", half));
+        mTree.refreshChildren("folder1", items("b", half));
+        // Visiting the first folder makes the second one the least recently used
+        mTree.findBrowseNodeByID("folder0");
+
+        mTree.refreshChildren("folder2", items("c", 30));
+
+        assertTrue(mTree.findBrowseNodeByID("folder0").isCached());
+        assertFalse(mTree.findBrowseNodeByID("folder1").isCached());
+        assertEquals(0, mTree.findBrowseNodeByID("folder1").getChildren().size());
+        assertNull(mTree.findFolderByIDLocked("b0"));
+        assertTrue(mTree.findBrowseNodeByID(BrowseTree.ROOT).isCached());
+    }
+
+    public void testBrowseTree_browsedFolderNotEvicted() {
+        int count = BrowseTree.MAX_CACHED_ITEMS / 2 + 1;
+        mTree.refreshChildren(BrowseTree.ROOT, items("folder", 2));
+        mTree.refreshChildren("folder0", items("a", count));
+        assertTrue(mTree.setCurrentBrowsedFolder("folder0"));
+
+        mTree.refreshChildren("folder1", items("b", count));
+
+        assertTrue(mTree.findBrowseNodeByID("folder0").isCached());
+        assertTrue(mTree.findBrowseNodeByID("folder1").isCached());
+    }
+
+    public void testBrowseTree_invalidateFoldersKeepsPlayers() {
+        mTree.refreshChildren(BrowseTree.ROOT, items("folder", 2));
+        mTree.refreshChildren("folder0", items("song", 10));
+
+        mTree.invalidateFolders();
+
+        BrowseTree.BrowseNode folder = mTree.findBrowseNodeByID("folder0");
+        assertFalse(folder.isCached());
+        // Still shown until the next fetch replaces them
+        assertEquals(10, folder.getChildren().size());
+        assertTrue(mTree.findBrowseNodeByID(BrowseTree.ROOT).isCached());
+
+        mTree.refreshChildren("folder0", items("song", 5));
+        assertTrue(folder.isCached());
+        assertEquals(5, folder.getChildren().size());
+    }
+}
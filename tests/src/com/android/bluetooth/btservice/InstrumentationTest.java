@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.test.AndroidTestCase;
+
+public class InstrumentationTest extends AndroidTestCase {
+    // Every latency falls in the bucket whose bounds contain it.
+    public void testBucketBounds() {
+        long[] samples = {0, 1, 3, 4, 5, 7, 8, 9, 10, 15, 16, 100, 999, 1000, 123456, 1L << 31};
+        for (long micros : samples) {
+            int index = Instrumentation.bucketIndex(micros);
+            assertTrue("lower bound of " + micros,
+                    Instrumentation.bucketLowerBound(index) <= micros);
+            assertTrue("upper bound of " + micros,
+                    Instrumentation.bucketLowerBound(index + 1) > micros);
+        }
+    }
+
+    public void testBucketIndexMonotonic() {
+        int previous = 0;
+        for (long micros = 0; micros < 100000; micros++) {
+            int index = Instrumentation.bucketIndex(micros);
+            assertTrue(index == previous || index == previous + 1);
+            previous = index;
+        }
+    }
+
+    public void testProbeIsShared() {
+        assertSame(Instrumentation.probe("InstrumentationTest.probe"),
+                Instrumentation.probe("InstrumentationTest.probe"));
+        Instrumentation.ProbeGroup group = new Instrumentation.ProbeGroup("InstrumentationTest#", 4);
+        assertSame(group.get(2), Instrumentation.probe("InstrumentationTest#2"));
+        assertSame(group.get(10), Instrumentation.probe("InstrumentationTest#10"));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothProfile;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link ProfilePriorityStore}.
+ */
+public class ProfilePriorityStoreTest extends AndroidTestCase {
+    private static final String KEY = "bluetooth_a2dp_sink_priority_00:01:02:03:04:05";
+    private static final String OTHER_KEY = "bluetooth_headset_priority_00:01:02:03:04:05";
+
+    /* Stands in for Settings.Global */
+    private class FakeStore extends ProfilePriorityStore {
+        final Map<String, Integer> mSettings =
+                Collections.synchronizedMap(new HashMap<String, Integer>());
+        final List<String> mWrites = Collections.synchronizedList(new ArrayList<String>());
+        volatile CountDownLatch mWriteBlocker = null;
+        volatile CountDownLatch mQueryBlocker = null;
+
+        FakeStore() {
+            super(null);
+        }
+
+        @Override
+        Cursor querySettings() {
+            await(mQueryBlocker);
+            MatrixCursor cursor = new MatrixCursor(
+                    new String[] {Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE});
+            synchronized (mSettings) {
+                for (Map.Entry<String, Integer> entry : mSettings.entrySet()) {
+                    cursor.addRow(new Object[] {entry.getKey(), entry.getValue().toString()});
+                }
+            }
+            cursor.addRow(new Object[] {"airplane_mode_on", "0"});
+            return cursor;
+        }
+
+        @Override
+        int readSetting(String key) {
+            Integer value = mSettings.get(key);
+            return value != null ? value : BluetoothProfile.PRIORITY_UNDEFINED;
+        }
+
+        @Override
+        void writeSetting(String key, int priority) {
+            await(mWriteBlocker);
+            mSettings.put(key, priority);
+            mWrites.add(key + "=" + priority);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        if (latch == null) return;
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // Go on
+        }
+    }
+
+    private void waitForWrites(int count) throws InterruptedException {
+        for (int i = 0; i < 50 && mStore.mWrites.size() < count; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(count, mStore.mWrites.size());
+    }
+
+    private FakeStore mStore;
+
+    @Override
+    protected void setUp() {
+        mStore = new FakeStore();
+    }
+
+    @Override
+    protected void tearDown() {
+        mStore.cleanup();
+    }
+
+    public void testGetPriority_readsThroughOnce() {
+        mStore.mSettings.put(KEY, BluetoothProfile.PRIORITY_ON);
+
+        assertEquals(BluetoothProfile.PRIORITY_ON, mStore.getPriority(KEY));
+        mStore.mSettings.put(KEY, BluetoothProfile.PRIORITY_OFF);
+        assertEquals(BluetoothProfile.PRIORITY_ON, mStore.getPriority(KEY));
+        assertEquals(BluetoothProfile.PRIORITY_UNDEFINED, mStore.getPriority(OTHER_KEY));
+    }
+
+    public void testSetPriority_visibleBeforeWritten() {
+        mStore.mWriteBlocker = new CountDownLatch(1);
+
+        mStore.setPriority(KEY, BluetoothProfile.PRIORITY_OFF);
+
+        assertEquals(BluetoothProfile.PRIORITY_OFF, mStore.getPriority(KEY));
+        assertNull(mStore.mSettings.get(KEY));
+        mStore.mWriteBlocker.countDown();
+        mStore.cleanup();
+        assertEquals(BluetoothProfile.PRIORITY_OFF, (int) mStore.mSettings.get(KEY));
+    }
+
+    public void testCleanup_flushesEveryQueuedWrite() {
+        mStore.mWriteBlocker = new CountDownLatch(1);
+        mStore.setPriority(KEY, BluetoothProfile.PRIORITY_ON);
+        mStore.setPriority(KEY, BluetoothProfile.PRIORITY_OFF);
+        mStore.setPriority(OTHER_KEY, BluetoothProfile.PRIORITY_AUTO_CONNECT);
+
+        mStore.mWriteBlocker.countDown();
+        mStore.cleanup();
+
+        assertEquals(3, mStore.mWrites.size());
+        assertEquals(BluetoothProfile.PRIORITY_OFF, (int) mStore.mSettings.get(KEY));
+        assertEquals(BluetoothProfile.PRIORITY_AUTO_CONNECT,
+                (int) mStore.mSettings.get(OTHER_KEY));
+    }
+
+    public void testSetPriority_unchangedValueNotWritten() {
+        mStore.setPriority(KEY, BluetoothProfile.PRIORITY_ON);
+        mStore.setPriority(KEY, BluetoothProfile.PRIORITY_ON);
+
+        mStore.cleanup();
+
+        assertEquals(1, mStore.mWrites.size());
+    }
+
+    public void testLoad_servesStoredPriorities() throws Exception {
+        mStore.mSettings.put(KEY, BluetoothProfile.PRIORITY_ON);
+
+        mStore.load();
+        // Written after the load, in order
+        mStore.setPriority(OTHER_KEY, BluetoothProfile.PRIORITY_ON);
+        waitForWrites(1);
+
+        mStore.mSettings.put(KEY, BluetoothProfile.PRIORITY_OFF);
+        assertEquals(BluetoothProfile.PRIORITY_ON, mStore.getPriority(KEY));
+    }
+
+    public void testLoad_keepsNewerValues() throws Exception {
+        mStore.mSettings.put(KEY, BluetoothProfile.PRIORITY_ON);
+        mStore.mQueryBlocker = new CountDownLatch(1);
+
+        mStore.load();
+        mStore.setPriority(KEY, BluetoothProfile.PRIORITY_OFF);
+        mStore.mQueryBlocker.countDown();
+        waitForWrites(1);
+
+        assertEquals(BluetoothProfile.PRIORITY_OFF, mStore.getPriority(KEY));
+        assertEquals(BluetoothProfile.PRIORITY_OFF, (int) mStore.mSettings.get(KEY));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.test.AndroidTestCase;
+
+import com.android.bluetooth.a2dpsink.A2dpSinkService;
+import com.android.bluetooth.avrcpcontroller.AvrcpControllerService;
+import com.android.bluetooth.gatt.GattService;
+import com.android.bluetooth.hfpclient.HeadsetClientService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class ProfileStartupOrchestratorTest extends AndroidTestCase {
+    private final List<Class> mStarted = new ArrayList<Class>();
+    private ProfileStartupOrchestrator mOrchestrator;
+
+    @Override
+    protected void setUp() {
+        mStarted.clear();
+        // The real services have no dependencies, make one up.
+        HashMap<Class, Class[]> dependencies = new HashMap<Class, Class[]>();
+        dependencies.put(AvrcpControllerService.class, new Class[] {A2dpSinkService.class});
+        mOrchestrator = new ProfileStartupOrchestrator(new ProfileStartupOrchestrator.Callback() {
+            @Override
+            public void startProfileService(Class service) {
+                mStarted.add(service);
+            }
+        }, dependencies);
+    }
+
+    // Independent services are requested together, a dependent service waits for its dependency
+    // and GATT is left alone since it is started with BLE.
+    public void testDependentServiceWaits() {
+        mOrchestrator.start(new Class[] {GattService.class, AvrcpControllerService.class,
+                A2dpSinkService.class, HeadsetClientService.class});
+
+        assertEquals(2, mStarted.size());
+        assertTrue(mStarted.contains(A2dpSinkService.class));
+        assertTrue(mStarted.contains(HeadsetClientService.class));
+
+        mOrchestrator.onProfileServiceStarted(HeadsetClientService.class.getName());
+        assertEquals(2, mStarted.size());
+
+        mOrchestrator.onProfileServiceStarted(A2dpSinkService.class.getName());
+        assertEquals(3, mStarted.size());
+        assertEquals(AvrcpControllerService.class, mStarted.get(2));
+        assertFalse(mOrchestrator.isComplete());
+
+        mOrchestrator.onProfileServiceStarted(AvrcpControllerService.class.getName());
+        assertTrue(mOrchestrator.isComplete());
+    }
+
+    // A dependency that is not supported on the device doesn't hold the service back.
+    public void testMissingDependencyIgnored() {
+        mOrchestrator.start(new Class[] {AvrcpControllerService.class});
+
+        assertEquals(1, mStarted.size());
+        assertEquals(AvrcpControllerService.class, mStarted.get(0));
+    }
+}
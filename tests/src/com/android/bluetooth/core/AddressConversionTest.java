@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Test the address conversions used on the JNI callback paths, and benchmark them against the
+// String.format() and String keyed lookups they replace.
+public class AddressConversionTest extends AndroidTestCase {
+    private static final String TAG = "AddressConversionTest";
+    private static final int DEVICES = 32;
+    private static final int ITERATIONS = 20000;
+
+    private static final byte[] ADDRESS = {
+            (byte) 0x00, (byte) 0x1A, (byte) 0x7D, (byte) 0xDA, (byte) 0x71, (byte) 0xFF};
+    private static final String ADDRESS_STRING = "00:1A:7D:DA:71:FF";
+
+    public void testAddressString() {
+        assertEquals(ADDRESS_STRING, Utils.getAddressStringFromByte(ADDRESS));
+        assertNull(Utils.getAddressStringFromByte(new byte[3]));
+        assertTrue(Arrays.equals(ADDRESS, Utils.getBytesFromAddress(ADDRESS_STRING)));
+        assertTrue(Arrays.equals(ADDRESS, Utils.getBytesFromAddress("00:1a:7d:da:71:ff")));
+    }
+
+    public void testPackedAddress() {
+        long packed = Utils.getLongFromAddress(ADDRESS);
+        assertEquals(0x001A7DDA71FFL, packed);
+        assertEquals(packed, Utils.getLongFromAddress(ADDRESS_STRING));
+        assertEquals(ADDRESS_STRING, Utils.getAddressStringFromLong(packed));
+
+        assertEquals(-1, Utils.getLongFromAddress((byte[]) null));
+        assertEquals(-1, Utils.getLongFromAddress("00:1A:7D"));
+        assertEquals(-1, Utils.getLongFromAddress("00:1A:7D:DA:71:GG"));
+    }
+
+    // Not a pass/fail test, logs the cost of each way of resolving an address from JNI.
+    public void testBenchmarkLookup() {
+        byte[][] addresses = new byte[DEVICES][];
+        HashMap<String, Object> stringMap = new HashMap<String, Object>();
+        LongSparseArray<Object> longMap = new LongSparseArray<Object>();
+        for (int i = 0; i < DEVICES; i++) {
+            addresses[i] = ADDRESS.clone();
+            addresses[i][5] = (byte) i;
+            Object value = new Object();
+            stringMap.put(Utils.getAddressStringFromByte(addresses[i]), value);
+            longMap.put(Utils.getLongFromAddress(addresses[i]), value);
+        }
+
+        int found = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int n = 0; n < ITERATIONS; n++) {
+            byte[] a = addresses[n % DEVICES];
+            String key = String.format("%02X:%02X:%02X:%02X:%02X:%02X",
+                    a[0], a[1], a[2], a[3], a[4], a[5]);
+            if (stringMap.get(key) != null) found++;
+        }
+        long formatNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int n = 0; n < ITERATIONS; n++) {
+            if (stringMap.get(Utils.getAddressStringFromByte(addresses[n % DEVICES])) != null) {
+                found++;
+            }
+        }
+        long stringNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int n = 0; n < ITERATIONS; n++) {
+            if (longMap.get(Utils.getLongFromAddress(addresses[n % DEVICES])) != null) found++;
+        }
+        long longNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int n = 0; n < ITERATIONS; n++) {
+            if (Utils.getBytesFromAddress(ADDRESS_STRING) != null) found++;
+        }
+        long parseNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        assertEquals(4 * ITERATIONS, found);
+        Log.i(TAG, "ns per lookup: String.format + HashMap " + formatNanos / ITERATIONS
+                + ", getAddressStringFromByte + HashMap " + stringNanos / ITERATIONS
+                + ", getLongFromAddress + LongSparseArray " + longNanos / ITERATIONS
+                + ", getBytesFromAddress " + parseNanos / ITERATIONS);
+    }
+}
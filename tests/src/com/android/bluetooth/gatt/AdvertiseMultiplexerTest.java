@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.IAdvertisingSetCallback;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link AdvertiseMultiplexer}.
+ */
+public class AdvertiseMultiplexerTest extends AndroidTestCase {
+    private static final int CARRIER_ID = 3;
+    // Long enough for no rotation to happen during a test
+    private static final long SLOT_MILLIS = 60 * 1000;
+    private static final byte[] DATA = {0x02, 0x01, 0x06};
+
+    private final List<AdvertisingSetParameters> mStarted =
+            new ArrayList<AdvertisingSetParameters>();
+    private final List<AdvertisingSetParameters> mUpdated =
+            new ArrayList<AdvertisingSetParameters>();
+    private HandlerThread mThread;
+    private AdvertiseMultiplexer mMultiplexer;
+
+    @Override
+    protected void setUp() {
+        mStarted.clear();
+        mUpdated.clear();
+        mThread = new HandlerThread("AdvertiseMultiplexerTest");
+        mThread.start();
+        mMultiplexer = new AdvertiseMultiplexer(new AdvertiseMultiplexer.Carrier() {
+            @Override
+            public void start(AdvertisingSetParameters parameters, byte[] advertiseData,
+                    byte[] scanResponse, int regId) {
+                mStarted.add(parameters);
+            }
+
+            @Override
+            public void stop(int advertiserId) {}
+
+            @Override
+            public void enable(int advertiserId, boolean enable) {}
+
+            @Override
+            public void setData(int advertiserId, byte[] advertiseData, byte[] scanResponse) {}
+
+            @Override
+            public void setParameters(int advertiserId, AdvertisingSetParameters parameters) {
+                mUpdated.add(parameters);
+            }
+
+            @Override
+            public void getOwnAddress(int advertiserId) {}
+        }, new Handler(mThread.getLooper()), SLOT_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() {
+        mMultiplexer.clear();
+        mThread.quitSafely();
+    }
+
+    private static AdvertisingSetParameters parameters(int interval, int txPower) {
+        return new AdvertisingSetParameters.Builder()
+                .setLegacyMode(true)
+                .setConnectable(false)
+                .setScannable(false)
+                .setInterval(interval)
+                .setTxPowerLevel(txPower)
+                .build();
+    }
+
+    private IAdvertisingSetCallback add(AdvertisingSetParameters parameters,
+            boolean slotAvailable) {
+        IAdvertisingSetCallback callback = mock(IAdvertisingSetCallback.class);
+        mMultiplexer.add(mock(IBinder.class), callback, mock(IBinder.DeathRecipient.class),
+                parameters, DATA, new byte[0], 0, AdvertiseMultiplexer.PRIORITY_NORMAL,
+                slotAvailable);
+        return callback;
+    }
+
+    @SmallTest
+    public void testCarrierUsesMostDemandingParameters() {
+        add(parameters(AdvertisingSetParameters.INTERVAL_HIGH,
+                AdvertisingSetParameters.TX_POWER_LOW), true);
+        add(parameters(AdvertisingSetParameters.INTERVAL_MEDIUM,
+                AdvertisingSetParameters.TX_POWER_ULTRA_LOW), true);
+        mMultiplexer.onCarrierStarted(AdvertiseMultiplexer.CARRIER_REG_ID, CARRIER_ID,
+                AdvertisingSetParameters.TX_POWER_LOW, AdvertisingSetCallback.ADVERTISE_SUCCESS);
+
+        // Started with the first advertiser only, updated once the second one is known
+        assertEquals(1, mStarted.size());
+        assertEquals(AdvertisingSetParameters.INTERVAL_HIGH, mStarted.get(0).getInterval());
+        assertEquals(1, mUpdated.size());
+        assertEquals(AdvertisingSetParameters.INTERVAL_MEDIUM, mUpdated.get(0).getInterval());
+        assertEquals(AdvertisingSetParameters.TX_POWER_LOW, mUpdated.get(0).getTxPowerLevel());
+
+        add(parameters(AdvertisingSetParameters.INTERVAL_HIGH,
+                AdvertisingSetParameters.TX_POWER_HIGH), false);
+
+        assertEquals(2, mUpdated.size());
+        assertEquals(AdvertisingSetParameters.INTERVAL_MEDIUM, mUpdated.get(1).getInterval());
+        assertEquals(AdvertisingSetParameters.TX_POWER_HIGH, mUpdated.get(1).getTxPowerLevel());
+    }
+
+    @SmallTest
+    public void testPriorityMultipliesWeight() {
+        AdvertisingSetParameters low = parameters(AdvertisingSetParameters.INTERVAL_LOW,
+                AdvertisingSetParameters.TX_POWER_MEDIUM);
+        AdvertisingSetParameters high = parameters(AdvertisingSetParameters.INTERVAL_HIGH,
+                AdvertisingSetParameters.TX_POWER_MEDIUM);
+
+        assertEquals(1, AdvertiseMultiplexer.weightOf(high, AdvertiseMultiplexer.PRIORITY_NORMAL));
+        assertEquals(4, AdvertiseMultiplexer.weightOf(high, 4));
+        assertEquals(4 * AdvertiseMultiplexer.weightOf(low, AdvertiseMultiplexer.PRIORITY_NORMAL),
+                AdvertiseMultiplexer.weightOf(low, 4));
+        // A bad overlay value doesn't take slots away
+        assertEquals(1, AdvertiseMultiplexer.weightOf(high, 0));
+    }
+
+    @SmallTest
+    public void testAdvertiserSeesOwnTxPower() throws Exception {
+        IAdvertisingSetCallback quiet = add(parameters(AdvertisingSetParameters.INTERVAL_HIGH,
+                AdvertisingSetParameters.TX_POWER_ULTRA_LOW), true);
+        IAdvertisingSetCallback loud = add(parameters(AdvertisingSetParameters.INTERVAL_HIGH,
+                AdvertisingSetParameters.TX_POWER_HIGH), true);
+        mMultiplexer.onCarrierStarted(AdvertiseMultiplexer.CARRIER_REG_ID, CARRIER_ID,
+                AdvertisingSetParameters.TX_POWER_HIGH, AdvertisingSetCallback.ADVERTISE_SUCCESS);
+
+        verify(quiet).onAdvertisingSetStarted(anyInt(),
+                eq(AdvertisingSetParameters.TX_POWER_ULTRA_LOW),
+                eq(AdvertisingSetCallback.ADVERTISE_SUCCESS));
+        verify(loud).onAdvertisingSetStarted(anyInt(),
+                eq(AdvertisingSetParameters.TX_POWER_HIGH),
+                eq(AdvertisingSetCallback.ADVERTISE_SUCCESS));
+    }
+
+    @SmallTest
+    public void testNoSetForCarrierFailsRightAway() throws Exception {
+        IAdvertisingSetCallback callback = add(parameters(AdvertisingSetParameters.INTERVAL_HIGH,
+                AdvertisingSetParameters.TX_POWER_MEDIUM), false);
+
+        verify(callback).onAdvertisingSetStarted(anyInt(), eq(0),
+                eq(AdvertisingSetCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS));
+        assertTrue(mStarted.isEmpty());
+        assertFalse(mMultiplexer.isActive());
+    }
+
+    @SmallTest
+    public void testCallbacksSentOutsideLock() throws Exception {
+        final List<Boolean> locked = new ArrayList<Boolean>();
+        IAdvertisingSetCallback callback = mock(IAdvertisingSetCallback.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                locked.add(Thread.holdsLock(mMultiplexer));
+                return null;
+            }
+        }).when(callback).onAdvertisingSetStarted(anyInt(), anyInt(), anyInt());
+        mMultiplexer.add(mock(IBinder.class), callback, mock(IBinder.DeathRecipient.class),
+                parameters(AdvertisingSetParameters.INTERVAL_HIGH,
+                        AdvertisingSetParameters.TX_POWER_MEDIUM),
+                DATA, new byte[0], 0, AdvertiseMultiplexer.PRIORITY_NORMAL, true);
+
+        mMultiplexer.onCarrierStarted(AdvertiseMultiplexer.CARRIER_REG_ID, CARRIER_ID,
+                AdvertisingSetParameters.TX_POWER_MEDIUM,
+                AdvertisingSetCallback.ADVERTISE_SUCCESS);
+
+        assertEquals(1, locked.size());
+        assertFalse(locked.get(0));
+    }
+}
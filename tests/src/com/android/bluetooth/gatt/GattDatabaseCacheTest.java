@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link GattDatabaseCache}.
+ */
+public class GattDatabaseCacheTest extends AndroidTestCase {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int CONN_ID = 3;
+    private static final int HASH_HANDLE = 7;
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID CUSTOM_UUID =
+            UUID.fromString("12345678-9abc-def0-1234-56789abcdef0");
+    private static final byte[] HASH = {1, 2, 3, 4};
+
+    private HandlerThread mThread;
+    private File mDirectory;
+
+    @Override
+    protected void setUp() {
+        mThread = new HandlerThread("GattDatabaseCacheTest");
+        mThread.start();
+        mDirectory = new File(getContext().getCacheDir(), "gatt_db_cache_test");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() {
+        mThread.quit();
+        deleteDirectory();
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    /* Wait for the file access posted so far to complete */
+    private void waitForIo() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(mThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private GattDatabaseCache newCache(String... bondedAddresses) throws InterruptedException {
+        GattDatabaseCache cache = new GattDatabaseCache(mDirectory, mThread.getLooper());
+        cache.start(new HashSet<String>(Arrays.asList(bondedAddresses)));
+        waitForIo();
+        return cache;
+    }
+
+    private static List<GattDbElement> database(boolean withHash) {
+        List<GattDbElement> db = new ArrayList<GattDbElement>();
+        GattDbElement service = GattDbElement.createPrimaryService(SERVICE_UUID);
+        service.attributeHandle = 1;
+        service.startHandle = 1;
+        service.endHandle = 9;
+        db.add(service);
+        GattDbElement characteristic = GattDbElement.createCharacteristic(CUSTOM_UUID, 0x12, 0);
+        characteristic.attributeHandle = 3;
+        db.add(characteristic);
+        if (withHash) {
+            GattDbElement hash = GattDbElement.createCharacteristic(
+                    GattDatabaseCache.DATABASE_HASH_UUID, 0x02, 0);
+            hash.attributeHandle = HASH_HANDLE;
+            db.add(hash);
+        }
+        return db;
+    }
+
+    /* Cache a database with a hash, as after a discovery */
+    private static void store(GattDatabaseCache cache) {
+        assertEquals(HASH_HANDLE, cache.put(CONN_ID, ADDRESS, database(true)));
+        cache.onCharacteristicRead(CONN_ID, HASH_HANDLE, 0, HASH);
+    }
+
+    @SmallTest
+    public void testStoreAndLoad() throws Exception {
+        GattDatabaseCache cache = newCache(ADDRESS);
+        store(cache);
+        waitForIo();
+
+        GattDatabaseCache reloaded = newCache(ADDRESS);
+
+        assertTrue(reloaded.contains(ADDRESS));
+        assertEquals(HASH_HANDLE, reloaded.startValidation(CONN_ID + 1, ADDRESS));
+        List<GattDbElement> db =
+                reloaded.onCharacteristicRead(CONN_ID + 1, HASH_HANDLE, 0, HASH).database;
+        assertEquals(3, db.size());
+        assertEquals(SERVICE_UUID, db.get(0).uuid);
+        assertEquals(9, db.get(0).endHandle);
+        assertEquals(CUSTOM_UUID, db.get(1).uuid);
+        assertEquals(0x12, db.get(1).properties);
+    }
+
+    @SmallTest
+    public void testNoHashNotCached() throws Exception {
+        GattDatabaseCache cache = newCache(ADDRESS);
+
+        assertEquals(-1, cache.put(CONN_ID, ADDRESS, database(false)));
+        assertFalse(cache.contains(ADDRESS));
+        assertEquals(-1, cache.startValidation(CONN_ID, ADDRESS));
+    }
+
+    @SmallTest
+    public void testHashReadBeforeCaching() throws Exception {
+        GattDatabaseCache cache = newCache(ADDRESS);
+
+        assertEquals(HASH_HANDLE, cache.put(CONN_ID, ADDRESS, database(true)));
+        assertFalse(cache.contains(ADDRESS));
+        GattDatabaseCache.Validation validation =
+                cache.onCharacteristicRead(CONN_ID, HASH_HANDLE, 0, HASH);
+        assertEquals(GattDatabaseCache.VALIDATION_HASH_STORED, validation.result);
+        // The search is reported with the database just discovered
+        assertEquals(3, validation.database.size());
+        assertTrue(cache.contains(ADDRESS));
+    }
+
+    @SmallTest
+    public void testFailedHashReadNotCached() throws Exception {
+        GattDatabaseCache cache = newCache(ADDRESS);
+
+        cache.put(CONN_ID, ADDRESS, database(true));
+        GattDatabaseCache.Validation validation =
+                cache.onCharacteristicRead(CONN_ID, HASH_HANDLE, 5, null);
+        assertEquals(GattDatabaseCache.VALIDATION_HASH_STORED, validation.result);
+        assertNotNull(validation.database);
+        assertFalse(cache.contains(ADDRESS));
+    }
+
+    @SmallTest
+    public void testHashMatch() throws Exception {
+        GattDatabaseCache cache = newCache(ADDRESS);
+        store(cache);
+        waitForIo();
+
+        GattDatabaseCache reloaded = newCache(ADDRESS);
+        assertEquals(HASH_HANDLE, reloaded.startValidation(CONN_ID + 1, ADDRESS));
+        GattDatabaseCache.Validation validation =
+                reloaded.onCharacteristicRead(CONN_ID + 1, HASH_HANDLE, 0, HASH.clone());
+        assertEquals(GattDatabaseCache.VALIDATION_VALID, validation.result);
+        assertNotNull(validation.database);
+    }
+
+    @SmallTest
+    public void testHashMismatch() throws Exception {
+        GattDatabaseCache cache = newCache(ADDRESS);
+        store(cache);
+
+        assertEquals(HASH_HANDLE, cache.startValidation(CONN_ID + 1, ADDRESS));
+        GattDatabaseCache.Validation validation =
+                cache.onCharacteristicRead(CONN_ID + 1, HASH_HANDLE, 0, new byte[] {9, 9});
+        assertEquals(GattDatabaseCache.VALIDATION_INVALID, validation.result);
+        assertNull(validation.database);
+        assertFalse(cache.contains(ADDRESS));
+        waitForIo();
+        assertFalse(newCache(ADDRESS).contains(ADDRESS));
+    }
+
+    @SmallTest
+    public void testAppReadsHeldBack() throws Exception {
+        GattDatabaseCache cache = newCache(ADDRESS);
+        Runnable read = new Runnable() {
+            @Override
+            public void run() {}
+        };
+        assertFalse(cache.isValidating(CONN_ID));
+        assertFalse(cache.deferRead(CONN_ID, read));
+
+        cache.put(CONN_ID, ADDRESS, database(true));
+        assertTrue(cache.isValidating(CONN_ID));
+        assertTrue(cache.deferRead(CONN_ID, read));
+
+        GattDatabaseCache.Validation validation =
+                cache.onCharacteristicRead(CONN_ID, HASH_HANDLE, 0, HASH);
+        assertEquals(1, validation.deferredReads.size());
+        assertFalse(cache.isValidating(CONN_ID));
+        // The reply to the app read of the hash goes to the app
+        assertNull(cache.onCharacteristicRead(CONN_ID, HASH_HANDLE, 0, HASH));
+    }
+
+    @SmallTest
+    public void testOtherReadNotIntercepted() throws Exception {
+        GattDatabaseCache cache = newCache(ADDRESS);
+        cache.put(CONN_ID, ADDRESS, database(true));
+
+        assertNull(cache.onCharacteristicRead(CONN_ID, 3, 0, HASH));
+        cache.onDisconnected(CONN_ID);
+        assertNull(cache.onCharacteristicRead(CONN_ID, HASH_HANDLE, 0, HASH));
+    }
+
+    @SmallTest
+    public void testRemoveDeletesFile() throws Exception {
+        GattDatabaseCache cache = newCache(ADDRESS);
+        store(cache);
+        waitForIo();
+        assertEquals(1, mDirectory.listFiles().length);
+
+        cache.remove(ADDRESS);
+        waitForIo();
+
+        assertFalse(cache.contains(ADDRESS));
+        assertEquals(0, mDirectory.listFiles().length);
+    }
+
+    @SmallTest
+    public void testUnbondedDeviceDeletedAtStart() throws Exception {
+        GattDatabaseCache cache = newCache(ADDRESS);
+        store(cache);
+        waitForIo();
+
+        GattDatabaseCache reloaded = newCache();
+
+        assertFalse(reloaded.contains(ADDRESS));
+        assertEquals(0, mDirectory.listFiles().length);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterAllocator}.
+ */
+public class ScanFilterAllocatorTest extends AndroidTestCase {
+    private static final ParcelUuid UUID_A =
+            ParcelUuid.fromString("0000feaa-0000-1000-8000-00805f9b34fb");
+    private static final ParcelUuid UUID_B =
+            ParcelUuid.fromString("0000fe9f-0000-1000-8000-00805f9b34fb");
+    private static final int SHARED = ScanFilterAllocator.SHARED_GROUP;
+
+    private ScanFilterAllocator mAllocator;
+
+    @Override
+    protected void setUp() {
+        mAllocator = new ScanFilterAllocator();
+        mAllocator.init(3, 5);
+    }
+
+    private static ScanFilter uuid(ParcelUuid uuid) {
+        return new ScanFilter.Builder().setServiceUuid(uuid).build();
+    }
+
+    private static ScanFilter uuidAndName(ParcelUuid uuid, String name) {
+        return new ScanFilter.Builder().setServiceUuid(uuid).setDeviceName(name).build();
+    }
+
+    @SmallTest
+    public void testIdenticalFiltersShareSlot() {
+        List<ScanFilterAllocator.Slot> first =
+                mAllocator.allocate(1, SHARED, Arrays.asList(uuid(UUID_A)));
+        List<ScanFilterAllocator.Slot> second =
+                mAllocator.allocate(2, SHARED, Arrays.asList(uuid(UUID_A)));
+        assertEquals(1, first.size());
+        assertTrue(second.isEmpty());
+
+        // The slot is removed with its last client only
+        assertTrue(mAllocator.release(1).isEmpty());
+        assertEquals(1, mAllocator.release(2).size());
+    }
+
+    @SmallTest
+    public void testBroaderSlotIsReused() {
+        mAllocator.allocate(1, SHARED, Arrays.asList(uuid(UUID_A)));
+        assertTrue(mAllocator.allocate(2, SHARED,
+                Arrays.asList(uuidAndName(UUID_A, "beacon"))).isEmpty());
+    }
+
+    @SmallTest
+    public void testPrivateGroupsDontShare() {
+        mAllocator.allocate(1, 1, Arrays.asList(uuid(UUID_A)));
+        assertEquals(1, mAllocator.allocate(2, 2, Arrays.asList(uuid(UUID_A))).size());
+    }
+
+    @SmallTest
+    public void testNarrowedWhenFull() {
+        mAllocator.allocate(1, SHARED, Arrays.asList(uuid(UUID_B)));
+        // One slot left for two filters, both are narrowed down to the UUID they share
+        List<ScanFilterAllocator.Slot> slots = mAllocator.allocate(2, SHARED, Arrays.asList(
+                uuidAndName(UUID_A, "x"), uuidAndName(UUID_A, "y")));
+        assertEquals(1, slots.size());
+        assertEquals(uuid(UUID_A), slots.get(0).filter);
+
+        assertFalse(mAllocator.canAllocate(SHARED, Arrays.asList(
+                new ScanFilter.Builder().setDeviceName("x").build())));
+    }
+
+    @SmallTest
+    public void testPrivateGroupNotNarrowed() {
+        mAllocator.allocate(1, SHARED, Arrays.asList(uuid(UUID_B)));
+        // Found/lost results are not matched on the host, a narrowed filter would leak others
+        List<ScanFilter> filters =
+                Arrays.asList(uuidAndName(UUID_A, "x"), uuidAndName(UUID_A, "y"));
+        assertFalse(mAllocator.canAllocate(2, filters));
+        assertNull(mAllocator.allocate(2, 2, filters));
+    }
+}
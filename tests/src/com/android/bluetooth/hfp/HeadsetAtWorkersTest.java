@@ -0,0 +1,127 @@
+package com.android.bluetooth.hfp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link HeadsetAtWorkers}, driving several simulated HFs. */
+public class HeadsetAtWorkersTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 2000;
+
+    private HeadsetAtWorkers mWorkers;
+    private BluetoothDevice[] mHfs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWorkers = new HeadsetAtWorkers("HeadsetAtTest");
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mHfs = new BluetoothDevice[] {
+                adapter.getRemoteDevice("00:01:02:03:04:05"),
+                adapter.getRemoteDevice("00:01:02:03:04:06"),
+                adapter.getRemoteDevice("00:01:02:03:04:07"),
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWorkers.cleanup();
+        super.tearDown();
+    }
+
+    /* Simulated AT command which blocks until released, like a slow AT+CPBR */
+    private static Runnable slowCommand(final CountDownLatch started,
+            final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Runnable command(final List<String> log, final String name,
+            final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+    public void testHeadsetAtWorkers_slowHfDoesNotBlockOthers() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(mHfs.length - 1);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        mWorkers.post(mHfs[0], slowCommand(started, release));
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 1; i < mHfs.length; i++) {
+            mWorkers.post(mHfs[i], command(log, "CIND" + i, done));
+        }
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(mHfs.length, mWorkers.size());
+        release.countDown();
+    }
+
+    public void testHeadsetAtWorkers_commandsOfOneHfInOrder() throws Exception {
+        CountDownLatch done = new CountDownLatch(3);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        mWorkers.post(mHfs[0], command(log, "CSCS", done));
+        mWorkers.post(mHfs[0], command(log, "CPBS", done));
+        mWorkers.post(mHfs[0], command(log, "CPBR", done));
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(3, log.size());
+        assertEquals("CSCS", log.get(0));
+        assertEquals("CPBS", log.get(1));
+        assertEquals("CPBR", log.get(2));
+    }
+
+    public void testHeadsetAtWorkers_removeDropsPendingCommands() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch cleanedUp = new CountDownLatch(1);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        mWorkers.post(mHfs[0], slowCommand(started, release));
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        mWorkers.post(mHfs[0], command(log, "CPBR", new CountDownLatch(1)));
+        mWorkers.remove(mHfs[0], command(log, "cleanup", cleanedUp));
+        release.countDown();
+
+        assertTrue(cleanedUp.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, log.size());
+        assertEquals("cleanup", log.get(0));
+        assertEquals(0, mWorkers.size());
+    }
+
+    public void testHeadsetAtWorkers_postIfPresentAfterRemove() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+        mWorkers.post(mHfs[0], command(log, "CPBR", done));
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mWorkers.postIfPresent(mHfs[0], command(log, "reply", new CountDownLatch(1))));
+
+        mWorkers.remove(mHfs[0], command(log, "cleanup", new CountDownLatch(1)));
+        assertFalse(mWorkers.postIfPresent(mHfs[0], command(log, "late", new CountDownLatch(1))));
+        assertEquals(0, mWorkers.size());
+    }
+}
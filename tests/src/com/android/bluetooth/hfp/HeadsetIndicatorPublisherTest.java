@@ -0,0 +1,81 @@
+package com.android.bluetooth.hfp;
+
+import android.test.AndroidTestCase;
+
+/** Unit tests for {@link HeadsetIndicatorPublisher}. */
+public class HeadsetIndicatorPublisherTest extends AndroidTestCase {
+    private static final long INTERVAL = HeadsetIndicatorPublisher.SIGNAL_UPDATE_INTERVAL_MS;
+
+    private static HeadsetDeviceState state(int signal, int battery) {
+        return new HeadsetDeviceState(HeadsetHalConstants.NETWORK_STATE_AVAILABLE,
+                HeadsetHalConstants.SERVICE_TYPE_HOME, signal, battery);
+    }
+
+    public void testHeadsetIndicatorPublisher_dropsUnchanged() {
+        HeadsetIndicatorPublisher publisher = new HeadsetIndicatorPublisher();
+
+        assertNotNull(publisher.offer(state(3, 4), 0));
+        assertNull(publisher.offer(state(3, 4), 5000));
+        assertEquals(-1, publisher.getPendingDelayMs(5000));
+    }
+
+    public void testHeadsetIndicatorPublisher_quantizesToCindScale() {
+        HeadsetIndicatorPublisher publisher = new HeadsetIndicatorPublisher();
+
+        HeadsetDeviceState sent = publisher.offer(state(7, -1), 0);
+
+        assertEquals(5, sent.mSignal);
+        assertEquals(0, sent.mBatteryCharge);
+        assertNull(publisher.offer(state(6, 0), 5000));
+    }
+
+    public void testHeadsetIndicatorPublisher_holdsBackSignalChanges() {
+        HeadsetIndicatorPublisher publisher = new HeadsetIndicatorPublisher();
+        publisher.offer(state(3, 4), 0);
+
+        assertNull(publisher.offer(state(2, 4), 500));
+        assertNull(publisher.offer(state(1, 4), 800));
+        assertEquals(INTERVAL - 800, publisher.getPendingDelayMs(800));
+        assertNull(publisher.flush(1000));
+
+        HeadsetDeviceState sent = publisher.flush(INTERVAL);
+        assertEquals(1, sent.mSignal);
+        assertEquals(-1, publisher.getPendingDelayMs(INTERVAL));
+    }
+
+    public void testHeadsetIndicatorPublisher_otherIndicatorsSentAtOnce() {
+        HeadsetIndicatorPublisher publisher = new HeadsetIndicatorPublisher();
+        publisher.offer(state(3, 4), 0);
+        publisher.offer(state(2, 4), 500);
+
+        HeadsetDeviceState sent = publisher.offer(state(2, 3), 600);
+
+        assertEquals(2, sent.mSignal);
+        assertEquals(3, sent.mBatteryCharge);
+        assertEquals(-1, publisher.getPendingDelayMs(600));
+    }
+
+    public void testHeadsetIndicatorPublisher_signalBackToSentValue() {
+        HeadsetIndicatorPublisher publisher = new HeadsetIndicatorPublisher();
+        publisher.offer(state(3, 4), 0);
+        publisher.offer(state(2, 4), 500);
+
+        assertNull(publisher.offer(state(3, 4), 700));
+
+        assertEquals(-1, publisher.getPendingDelayMs(700));
+        assertNull(publisher.flush(INTERVAL));
+    }
+
+    public void testHeadsetIndicatorPublisher_resetSendsNextUpdate() {
+        HeadsetIndicatorPublisher publisher = new HeadsetIndicatorPublisher();
+        publisher.offer(state(3, 4), 0);
+        publisher.offer(state(2, 4), 500);
+
+        publisher.reset();
+
+        assertEquals(-1, publisher.getPendingDelayMs(600));
+        HeadsetDeviceState sent = publisher.offer(state(3, 4), 600);
+        assertNotNull(sent);
+        assertEquals(3, sent.mSignal);
+    }
+}
@@ -2,11 +2,14 @@ package com.android.bluetooth.hfpclient;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHeadsetClient;
+import android.bluetooth.BluetoothHeadsetClientCall;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.media.AudioManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
@@ -14,6 +17,8 @@ import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import com.android.bluetooth.btservice.AdapterService;
 
@@ -184,4 +189,141 @@ public class HeadsetClientStateMachineTest extends AndroidTestCase {
         // Check we are in connecting state now.
         assertTrue(mockSM.getCurrentState() instanceof HeadsetClientStateMachine.Disconnected);
     }
+
+    // Test that an AG ending the call setup before raising the call indicator while a call is
+    // answered doesn't get the incoming call terminated
+    public void testIncomingCallAnsweredCallSetupFirst() throws Exception {
+        HeadsetClientService mockService = mock(HeadsetClientService.class);
+        BluetoothDevice device = mAdapter.getRemoteDevice("00:01:02:03:04:05");
+        HeadsetClientStateMachine mockSM = makeConnectedStateMachine(mockService, device);
+        addIncomingCall(mockSM, device);
+
+        sendIndicator(mockSM, device, StackEvent.EVENT_TYPE_CALLSETUP,
+                HeadsetClientHalConstants.CALLSETUP_NONE);
+        waitForStateMachine(mockSM);
+        assertEquals(BluetoothHeadsetClientCall.CALL_STATE_INCOMING, getOnlyCallState(mockSM));
+
+        sendIndicator(mockSM, device, StackEvent.EVENT_TYPE_CALL,
+                HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS);
+        waitForStateMachine(mockSM);
+        assertEquals(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, getOnlyCallState(mockSM));
+        assertFalse(callTerminated(mockService));
+    }
+
+    // Test that a call setup ending with no call on the AG terminates the incoming call once
+    // AT+CLCC confirms it is gone
+    public void testIncomingCallRejectedAfterClcc() throws Exception {
+        HeadsetClientService mockService = mock(HeadsetClientService.class);
+        BluetoothDevice device = mAdapter.getRemoteDevice("00:01:02:03:04:05");
+        HeadsetClientStateMachine mockSM = makeConnectedStateMachine(mockService, device);
+        addIncomingCall(mockSM, device);
+
+        sendIndicator(mockSM, device, StackEvent.EVENT_TYPE_CALLSETUP,
+                HeadsetClientHalConstants.CALLSETUP_NONE);
+        waitForStateMachine(mockSM);
+        assertFalse(callTerminated(mockService));
+
+        // The AG lists no call, wait for the next poll (every 2 seconds) to be sent
+        Thread.sleep(3000);
+        waitForStateMachine(mockSM);
+        mockSM.sendMessage(StackEvent.STACK_EVENT,
+                new StackEvent(StackEvent.EVENT_TYPE_CMD_RESULT));
+        waitForStateMachine(mockSM);
+        assertTrue(mockSM.getCurrentCalls().isEmpty());
+        assertTrue(callTerminated(mockService));
+    }
+
+    private HeadsetClientStateMachine makeConnectedStateMachine(
+            HeadsetClientService mockService, BluetoothDevice device) {
+        AudioManager mockAudioManager = mock(AudioManager.class);
+        when(mockService.getSystemService(Context.AUDIO_SERVICE)).thenReturn(mockAudioManager);
+        when(mockAudioManager.getStreamVolume(anyInt())).thenReturn(2);
+        when(mockAudioManager.getStreamMaxVolume(anyInt())).thenReturn(10);
+        when(mockAudioManager.getStreamMinVolume(anyInt())).thenReturn(1);
+        when(mockService.getPriority(any(BluetoothDevice.class))).thenReturn(
+            BluetoothProfile.PRIORITY_ON);
+
+        HeadsetClientStateMachine mockSM = new HeadsetClientStateMachine(
+            mockService, getContext().getMainLooper());
+        mockSM.start();
+
+        StackEvent connStCh =
+            new StackEvent(StackEvent.EVENT_TYPE_CONNECTION_STATE_CHANGED);
+        connStCh.valueInt = HeadsetClientHalConstants.CONNECTION_STATE_CONNECTED;
+        connStCh.device = device;
+        mockSM.sendMessage(StackEvent.STACK_EVENT, connStCh);
+
+        StackEvent slcEvent =
+            new StackEvent(StackEvent.EVENT_TYPE_CONNECTION_STATE_CHANGED);
+        slcEvent.valueInt = HeadsetClientHalConstants.CONNECTION_STATE_SLC_CONNECTED;
+        slcEvent.valueInt2 = HeadsetClientHalConstants.PEER_FEAT_ECS;
+        slcEvent.device = device;
+        mockSM.sendMessage(StackEvent.STACK_EVENT, slcEvent);
+
+        verify(mockService, timeout(1000).times(2)).sendBroadcast(
+            any(Intent.class), anyString());
+        assertTrue(mockSM.getCurrentState() instanceof HeadsetClientStateMachine.Connected);
+        return mockSM;
+    }
+
+    // The AG rings: callsetup=1, then AT+CLCC lists the incoming call
+    private void addIncomingCall(HeadsetClientStateMachine mockSM, BluetoothDevice device)
+            throws Exception {
+        sendIndicator(mockSM, device, StackEvent.EVENT_TYPE_CALLSETUP,
+                HeadsetClientHalConstants.CALLSETUP_INCOMING);
+        // Lets the call query started by the indicator go out before the AG answers it
+        waitForStateMachine(mockSM);
+
+        StackEvent call = new StackEvent(StackEvent.EVENT_TYPE_CURRENT_CALLS);
+        call.valueInt = 1;
+        call.valueInt2 = HeadsetClientHalConstants.CALL_DIRECTION_INCOMING;
+        call.valueInt3 = BluetoothHeadsetClientCall.CALL_STATE_INCOMING;
+        call.valueString = "5551212";
+        call.device = device;
+        mockSM.sendMessage(StackEvent.STACK_EVENT, call);
+        mockSM.sendMessage(StackEvent.STACK_EVENT,
+                new StackEvent(StackEvent.EVENT_TYPE_CMD_RESULT));
+        waitForStateMachine(mockSM);
+        assertEquals(BluetoothHeadsetClientCall.CALL_STATE_INCOMING, getOnlyCallState(mockSM));
+    }
+
+    private static void sendIndicator(HeadsetClientStateMachine mockSM, BluetoothDevice device,
+            int type, int value) {
+        StackEvent event = new StackEvent(type);
+        event.valueInt = value;
+        event.device = device;
+        mockSM.sendMessage(StackEvent.STACK_EVENT, event);
+    }
+
+    // Messages the state machine sends itself are queued behind ours, so go around twice
+    private static void waitForStateMachine(HeadsetClientStateMachine mockSM) throws Exception {
+        for (int i = 0; i < 2; i++) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            new Handler(mockSM.getHandler().getLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+        }
+    }
+
+    private static int getOnlyCallState(HeadsetClientStateMachine mockSM) {
+        List<BluetoothHeadsetClientCall> calls = mockSM.getCurrentCalls();
+        assertEquals(1, calls.size());
+        return calls.get(0).getState();
+    }
+
+    private static boolean callTerminated(HeadsetClientService mockService) {
+        ArgumentCaptor<Intent> intents = ArgumentCaptor.forClass(Intent.class);
+        verify(mockService, atLeast(0)).sendBroadcast(intents.capture(), anyString());
+        for (Intent intent : intents.getAllValues()) {
+            if (!BluetoothHeadsetClient.ACTION_CALL_CHANGED.equals(intent.getAction())) continue;
+            BluetoothHeadsetClientCall call =
+                    intent.getParcelableExtra(BluetoothHeadsetClient.EXTRA_CALL);
+            if (call.getState() == BluetoothHeadsetClientCall.CALL_STATE_TERMINATED) return true;
+        }
+        return false;
+    }
 }
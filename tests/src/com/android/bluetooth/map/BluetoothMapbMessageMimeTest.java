@@ -0,0 +1,166 @@
+package com.android.bluetooth.map;
+
+import android.test.AndroidTestCase;
+import android.util.Base64;
+
+import com.android.bluetooth.map.BluetoothMapbMessageMime.MimePart;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Unit tests for the parsing of pushed messages in {@link BluetoothMapbMessageMime}. */
+public class BluetoothMapbMessageMimeTest extends AndroidTestCase {
+    private static final String BOUNDARY = "--=_boundary";
+
+    private static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /* Wrap the MIME message in a pushed bMessage and parse it, as the MAS does */
+    private static BluetoothMapbMessageMime parse(String message) {
+        String bMessage = "BEGIN:BMSG\r\n"
+                + "VERSION:1.0\r\n"
+                + "STATUS:UNREAD\r\n"
+                + "TYPE:MMS\r\n"
+                + "FOLDER:telecom/msg/outbox\r\n"
+                + "BEGIN:BENV\r\n"
+                + "BEGIN:VCARD\r\n"
+                + "VERSION:2.1\r\n"
+                + "N:Doe;John\r\n"
+                + "TEL:+15551234567\r\n"
+                + "END:VCARD\r\n"
+                + "BEGIN:BBODY\r\n"
+                + "CHARSET:UTF-8\r\n"
+                + "LENGTH:" + message.length() + "\r\n"
+                + "BEGIN:MSG\r\n"
+                + message
+                + "END:MSG\r\n"
+                + "END:BBODY\r\n"
+                + "END:BENV\r\n"
+                + "END:BMSG\r\n";
+        return (BluetoothMapbMessageMime) BluetoothMapbMessage.parse(
+                new ByteArrayInputStream(bMessage.getBytes(StandardCharsets.UTF_8)),
+                BluetoothMapAppParams.CHARSET_UTF8);
+    }
+
+    private static String multipart(byte[] image) {
+        String base64 = Base64.encodeToString(image, Base64.DEFAULT).replace("\n", "\r\n");
+        return "Subject: Photo\r\n"
+                + "Content-Type: multipart/mixed;\r\n"
+                + "\tboundary=\"" + BOUNDARY + "\"\r\n"
+                + "\r\n"
+                + "This is a multi-part message in MIME format\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Type: text/plain; charset=\"utf-8\"\r\n"
+                + "Content-Transfer-Encoding: 8BIT\r\n"
+                + "\r\n"
+                + "Look at this at 10:30\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Type: image/jpeg\r\n"
+                + "Content-Location: photo.jpg\r\n"
+                + "Content-Transfer-Encoding: Base64\r\n"
+                + "\r\n"
+                + base64
+                + "--" + BOUNDARY + "--\r\n";
+    }
+
+    private static byte[] readData(MimePart part) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        part.writeData(os);
+        return os.toByteArray();
+    }
+
+    public void testParse_multipartWithSmallAttachment() throws Exception {
+        byte[] image = randomData(1000);
+
+        BluetoothMapbMessageMime mime = parse(multipart(image));
+
+        assertEquals("Photo", mime.getSubject());
+        assertFalse(mime.getTextOnly());
+        assertEquals(2, mime.getMimeParts().size());
+        MimePart text = mime.getMimeParts().get(0);
+        assertEquals("text/plain", text.mContentType);
+        assertEquals("Look at this at 10:30", text.getDataAsString());
+        MimePart photo = mime.getMimeParts().get(1);
+        assertEquals("photo.jpg", photo.mPartName);
+        assertNull(photo.mDataFile);
+        assertTrue(Arrays.equals(image, photo.mData));
+        assertEquals(image.length + "Look at this at 10:30".length(), mime.getSize());
+    }
+
+    public void testParse_largeAttachmentStoredInFile() throws Exception {
+        byte[] image = randomData(BluetoothMapMimePartDecoder.MAX_IN_MEMORY_BYTES * 3 + 5);
+
+        BluetoothMapbMessageMime mime = parse(multipart(image));
+
+        MimePart photo = mime.getMimeParts().get(1);
+        assertNull(photo.mData);
+        File file = photo.mDataFile;
+        assertNotNull(file);
+        assertEquals(image.length, photo.getDataLength());
+        assertTrue(Arrays.equals(image, readData(photo)));
+
+        mime.release();
+        assertFalse(file.exists());
+    }
+
+    public void testParse_singlePartText() throws Exception {
+        BluetoothMapbMessageMime mime =
+                parse("Subject: Hi\r\n\r\nFirst line\r\n\r\nSecond line\r\n");
+
+        assertTrue(mime.getTextOnly());
+        assertEquals("Hi", mime.getSubject());
+        assertEquals(1, mime.getMimeParts().size());
+        MimePart text = mime.getMimeParts().get(0);
+        assertEquals("text/plain", text.mContentType);
+        assertEquals("First line\r\n\r\nSecond line", text.getDataAsString());
+    }
+
+    public void testParse_bodyStartingWithColon() throws Exception {
+        BluetoothMapbMessageMime mime = parse("Subject: Meeting\r\n"
+                + "\r\n"
+                + "10:30 in the lobby\r\n"
+                + "http://example.com/map\r\n");
+
+        assertEquals("Meeting", mime.getSubject());
+        MimePart text = mime.getMimeParts().get(0);
+        assertEquals("10:30 in the lobby\r\nhttp://example.com/map", text.getDataAsString());
+    }
+
+    public void testParse_partBodyStartingWithColon() throws Exception {
+        BluetoothMapbMessageMime mime = parse("Subject: Meeting\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"" + BOUNDARY + "\"\r\n"
+                + "\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Type: text/plain; charset=\"utf-8\"\r\n"
+                + "\r\n"
+                + "Note: bring the slides\r\n"
+                + "--" + BOUNDARY + "--\r\n");
+
+        assertEquals(1, mime.getMimeParts().size());
+        MimePart text = mime.getMimeParts().get(0);
+        assertEquals("text/plain", text.mContentType);
+        assertEquals("Note: bring the slides", text.getDataAsString());
+    }
+
+    public void testDecoder_base64SplitAnywhere() throws Exception {
+        byte[] data = randomData(BluetoothMapMimePartDecoder.BASE64_CHUNK_LENGTH + 17);
+        String base64 = Base64.encodeToString(data, Base64.NO_WRAP);
+        MimePart part = new MimePart();
+        BluetoothMapMimePartDecoder decoder =
+                new BluetoothMapMimePartDecoder(part, "base64", null, false);
+
+        for (int i = 0; i < base64.length(); i += 7) {
+            decoder.addLine(base64.substring(i, Math.min(i + 7, base64.length())));
+        }
+        decoder.finish();
+
+        assertTrue(Arrays.equals(data, part.mData));
+    }
+}
@@ -0,0 +1,89 @@
+package com.android.bluetooth.map;
+
+import android.test.AndroidTestCase;
+
+/** Unit tests for {@link BluetoothMnsEventQueue}. */
+public class BluetoothMnsEventQueueTest extends AndroidTestCase {
+    private static final int MAS_ID = 0;
+    private static final String NEW = BluetoothMapContentObserver.EVENT_TYPE_NEW;
+    private static final String READ = BluetoothMapContentObserver.EVENT_TYPE_READ_STATUS;
+    private static final String DELETE = BluetoothMapContentObserver.EVENT_TYPE_DELETE;
+
+    private static byte[] bytes(int value) {
+        return new byte[] {(byte) value};
+    }
+
+    public void testMnsEventQueue_newMessageFirst() {
+        BluetoothMnsEventQueue queue = new BluetoothMnsEventQueue();
+        queue.add(bytes(1), MAS_ID, READ, "SMS_GSM/1", 0);
+        queue.add(bytes(2), MAS_ID, NEW, "SMS_GSM/2", 0);
+        queue.add(bytes(3), MAS_ID, READ, "SMS_GSM/3", 0);
+
+        assertEquals(2, queue.poll(0).mEventBytes[0]);
+        assertEquals(1, queue.poll(0).mEventBytes[0]);
+        assertEquals(3, queue.poll(0).mEventBytes[0]);
+        assertNull(queue.poll(0));
+    }
+
+    public void testMnsEventQueue_newMessageKeepsOrderPerMessage() {
+        BluetoothMnsEventQueue queue = new BluetoothMnsEventQueue();
+        queue.add(bytes(1), MAS_ID, DELETE, "SMS_GSM/1", 0);
+        queue.add(bytes(2), MAS_ID, NEW, "SMS_GSM/1", 0);
+        queue.add(bytes(3), MAS_ID, NEW, "SMS_GSM/2", 0);
+
+        // The NewMessage for handle 2 overtakes the delete, the one for handle 1 does not
+        assertEquals(3, queue.poll(0).mEventBytes[0]);
+        assertEquals(1, queue.poll(0).mEventBytes[0]);
+        assertEquals(2, queue.poll(0).mEventBytes[0]);
+        assertNull(queue.poll(0));
+    }
+
+    public void testMnsEventQueue_collapsesReadStatus() {
+        BluetoothMnsEventQueue queue = new BluetoothMnsEventQueue();
+        queue.add(bytes(1), MAS_ID, READ, "SMS_GSM/1", 10);
+        queue.add(bytes(2), MAS_ID, READ, "SMS_GSM/2", 20);
+        queue.add(bytes(3), MAS_ID, READ, "SMS_GSM/1", 30);
+
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getCollapsedCount());
+        // The latest read status is sent after the events queued before it
+        assertEquals(2, queue.poll(50).mEventBytes[0]);
+        BluetoothMnsEventQueue.Entry collapsed = queue.poll(50);
+        assertEquals(3, collapsed.mEventBytes[0]);
+        assertEquals(40, queue.getMaxLatencyMs());
+
+        // Once sent, a new change is queued again
+        queue.add(bytes(4), MAS_ID, READ, "SMS_GSM/1", 60);
+        queue.add(bytes(5), MAS_ID, READ, "SMS_GSM/1", 60);
+        assertEquals(1, queue.size());
+        assertEquals(5, queue.poll(60).mEventBytes[0]);
+    }
+
+    public void testMnsEventQueue_deleteDropsReadStatus() {
+        BluetoothMnsEventQueue queue = new BluetoothMnsEventQueue();
+        queue.add(bytes(1), MAS_ID, READ, "MMS/1", 0);
+        queue.add(bytes(2), MAS_ID, DELETE, "MMS/1", 0);
+
+        assertEquals(1, queue.size());
+        assertEquals(2, queue.poll(0).mEventBytes[0]);
+    }
+
+    public void testMnsEventQueue_boundedDepth() {
+        BluetoothMnsEventQueue queue = new BluetoothMnsEventQueue();
+        queue.add(bytes(1), MAS_ID, DELETE, "SMS_GSM/0", 0);
+        for (int i = 1; i < BluetoothMnsEventQueue.MAX_DEPTH; i++) {
+            queue.add(bytes(2), MAS_ID, READ, "SMS_GSM/" + i, 0);
+        }
+        queue.add(bytes(3), MAS_ID, NEW, "SMS_GSM/0", 0);
+
+        // Events already waiting are kept, the new one is dropped
+        assertEquals(BluetoothMnsEventQueue.MAX_DEPTH, queue.size());
+        assertEquals(1, queue.getDroppedCount());
+
+        // A superseding event still gets in
+        queue.add(bytes(4), MAS_ID, READ, "SMS_GSM/1", 0);
+        assertEquals(BluetoothMnsEventQueue.MAX_DEPTH, queue.size());
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(1, queue.poll(0).mEventBytes[0]);
+    }
+}
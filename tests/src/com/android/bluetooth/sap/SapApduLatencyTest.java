@@ -0,0 +1,40 @@
+package com.android.bluetooth.sap;
+
+import android.test.AndroidTestCase;
+
+/** Unit tests for {@link SapApduLatency}. */
+public class SapApduLatencyTest extends AndroidTestCase {
+    public void testSapApduLatency_roundTrips() {
+        SapApduLatency latency = new SapApduLatency();
+
+        latency.onApduSent(1, 100);
+        latency.onApduSent(2, 110);
+        assertEquals(40, latency.onApduResponse(1, 140));
+        assertEquals(90, latency.onApduResponse(2, 200));
+
+        assertEquals(2, latency.getCount());
+        assertEquals(65, latency.getAverageMs());
+        assertEquals(90, latency.getMaxMs());
+    }
+
+    public void testSapApduLatency_unknownSerial() {
+        SapApduLatency latency = new SapApduLatency();
+        latency.onApduSent(1, 100);
+
+        assertEquals(-1, latency.onApduResponse(7, 140));
+        assertEquals(40, latency.onApduResponse(1, 140));
+        assertEquals(-1, latency.onApduResponse(1, 150));
+        assertEquals(1, latency.getCount());
+    }
+
+    public void testSapApduLatency_clearPending() {
+        SapApduLatency latency = new SapApduLatency();
+        latency.onApduSent(1, 100);
+
+        latency.clearPending();
+
+        assertEquals(-1, latency.onApduResponse(1, 140));
+        assertEquals(0, latency.getCount());
+        assertEquals(0, latency.getAverageMs());
+    }
+}
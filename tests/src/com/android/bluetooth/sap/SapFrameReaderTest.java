@@ -0,0 +1,109 @@
+package com.android.bluetooth.sap;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/** Unit tests for {@link SapFrameReader}. */
+public class SapFrameReaderTest extends AndroidTestCase {
+    private static final byte[] APDU = {0x00, (byte) 0xa4, 0x00, 0x04, 0x02};
+
+    /* A stream returning at most one byte per read, like a slow RFCOMM link */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static byte[] apduRequest(byte[] apdu) throws Exception {
+        SapMessage msg = new SapMessage(SapMessage.ID_TRANSFER_APDU_REQ);
+        msg.setApdu(apdu);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        msg.write(os);
+        return os.toByteArray();
+    }
+
+    private static byte[] connectRequest(int maxMsgSize) throws Exception {
+        SapMessage msg = new SapMessage(SapMessage.ID_CONNECT_REQ);
+        msg.setMaxMsgSize(maxMsgSize);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        msg.write(os);
+        return os.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    public void testSapFrameReader_readsPaddedApdu() throws Exception {
+        byte[] request = apduRequest(APDU);
+        SapFrameReader reader = new SapFrameReader(new ByteArrayInputStream(request));
+
+        int length = reader.readFrame();
+
+        assertEquals(request.length, length);
+        SapMessage msg = SapMessage.readMessage(reader.getFrame(), length);
+        assertNotNull(msg);
+        assertTrue(Arrays.equals(APDU, msg.getApdu()));
+        assertTrue(msg.getSendToRil());
+        assertEquals(-1, reader.readFrame());
+    }
+
+    public void testSapFrameReader_keepsMessagesApart() throws Exception {
+        InputStream is = new TrickleInputStream(concat(connectRequest(300), apduRequest(APDU)));
+        SapFrameReader reader = new SapFrameReader(is);
+
+        SapMessage connect = SapMessage.readMessage(reader.getFrame(), reader.readFrame());
+        assertEquals(SapMessage.ID_CONNECT_REQ, connect.getMsgType());
+        assertEquals(300, connect.getMaxMsgSize());
+
+        SapMessage apdu = SapMessage.readMessage(reader.getFrame(), reader.readFrame());
+        assertEquals(SapMessage.ID_TRANSFER_APDU_REQ, apdu.getMsgType());
+        assertTrue(Arrays.equals(APDU, apdu.getApdu()));
+        assertEquals(-1, reader.readFrame());
+    }
+
+    public void testSapFrameReader_growsForLargeApdu() throws Exception {
+        byte[] apdu = new byte[SapFrameReader.DEFAULT_BUFFER_SIZE * 3 + 1];
+        Arrays.fill(apdu, (byte) 0x5a);
+        SapFrameReader reader = new SapFrameReader(
+                new ByteArrayInputStream(concat(apduRequest(apdu), apduRequest(APDU))));
+
+        SapMessage large = SapMessage.readMessage(reader.getFrame(), reader.readFrame());
+        assertTrue(Arrays.equals(apdu, large.getApdu()));
+
+        SapMessage small = SapMessage.readMessage(reader.getFrame(), reader.readFrame());
+        assertTrue(Arrays.equals(APDU, small.getApdu()));
+    }
+
+    public void testSapFrameReader_truncatedMessage() throws Exception {
+        byte[] request = apduRequest(APDU);
+        SapFrameReader reader = new SapFrameReader(
+                new ByteArrayInputStream(Arrays.copyOf(request, request.length - 3)));
+
+        try {
+            reader.readFrame();
+            fail("Expected EOFException");
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+
+    public void testSapMessage_wrongParameterLength() throws Exception {
+        byte[] frame = connectRequest(300);
+        frame[SapFrameReader.HEADER_LENGTH + 3] = 1; // MaxMsgSize shall be 2 bytes
+
+        assertNull(SapMessage.readMessage(frame, frame.length));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.sdp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothUuid;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link SdpRecordCache}.
+ */
+public class SdpRecordCacheTest extends AndroidTestCase {
+    private BluetoothDevice mDevice;
+    private BluetoothDevice mOtherDevice;
+    private SdpRecordCache mCache;
+
+    @Override
+    protected void setUp() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mDevice = adapter.getRemoteDevice("00:01:02:03:04:05");
+        mOtherDevice = adapter.getRemoteDevice("00:01:02:03:04:06");
+        mCache = new SdpRecordCache();
+    }
+
+    private static String key(BluetoothDevice device, ParcelUuid uuid) {
+        return SdpRecordCache.key(device.getAddress(), uuid);
+    }
+
+    private static List<Parcelable> records(ParcelUuid uuid) {
+        return Arrays.<Parcelable>asList(uuid);
+    }
+
+    @SmallTest
+    public void testEntryExpires() {
+        mCache.put(key(mDevice, BluetoothUuid.MAS), records(BluetoothUuid.MAS), 0);
+
+        assertEquals(records(BluetoothUuid.MAS),
+                mCache.get(key(mDevice, BluetoothUuid.MAS), SdpRecordCache.TTL_MILLIS));
+        assertNull(mCache.get(key(mDevice, BluetoothUuid.MAS), SdpRecordCache.TTL_MILLIS + 1));
+        assertEquals(0, mCache.size());
+    }
+
+    @SmallTest
+    public void testConnectFailedDropsServedRecord() {
+        mCache.put(key(mDevice, BluetoothUuid.MAS), records(BluetoothUuid.MAS), 0);
+        mCache.put(key(mDevice, BluetoothUuid.PBAP_PSE), records(BluetoothUuid.PBAP_PSE), 0);
+        assertNotNull(mCache.get(key(mDevice, BluetoothUuid.MAS), 0));
+
+        mCache.onConnectFailed(mDevice, BluetoothUuid.MAS);
+
+        assertNull(mCache.get(key(mDevice, BluetoothUuid.MAS), 0));
+        assertNotNull(mCache.get(key(mDevice, BluetoothUuid.PBAP_PSE), 0));
+    }
+
+    @SmallTest
+    public void testConnectFailedKeepsFreshRecord() {
+        // Just found by a search, not answered from the cache yet
+        mCache.put(key(mDevice, BluetoothUuid.MAS), records(BluetoothUuid.MAS), 0);
+
+        mCache.onConnectFailed(mDevice, BluetoothUuid.MAS);
+
+        assertNotNull(mCache.get(key(mDevice, BluetoothUuid.MAS), 0));
+    }
+
+    @SmallTest
+    public void testInvalidateDevice() {
+        mCache.put(key(mDevice, BluetoothUuid.MAS), records(BluetoothUuid.MAS), 0);
+        mCache.put(key(mDevice, BluetoothUuid.PBAP_PSE), records(BluetoothUuid.PBAP_PSE), 0);
+        mCache.put(key(mOtherDevice, BluetoothUuid.MAS), records(BluetoothUuid.MAS), 0);
+
+        // e.g. the device was unbonded
+        mCache.invalidate(mDevice);
+
+        assertNull(mCache.get(key(mDevice, BluetoothUuid.MAS), 0));
+        assertNull(mCache.get(key(mDevice, BluetoothUuid.PBAP_PSE), 0));
+        assertNotNull(mCache.get(key(mOtherDevice, BluetoothUuid.MAS), 0));
+    }
+
+    @SmallTest
+    public void testLeastRecentlyUsedEvicted() {
+        for (int i = 0; i < SdpRecordCache.MAX_ENTRIES; i++) {
+            mCache.put(i + "/" + BluetoothUuid.MAS, records(BluetoothUuid.MAS), 0);
+        }
+        // Using the first entry makes the second one the least recently used
+        assertNotNull(mCache.get(0 + "/" + BluetoothUuid.MAS, 0));
+        mCache.put(key(mDevice, BluetoothUuid.MAS), records(BluetoothUuid.MAS), 0);
+
+        assertEquals(SdpRecordCache.MAX_ENTRIES, mCache.size());
+        assertNotNull(mCache.get(0 + "/" + BluetoothUuid.MAS, 0));
+        assertNull(mCache.get(1 + "/" + BluetoothUuid.MAS, 0));
+    }
+}